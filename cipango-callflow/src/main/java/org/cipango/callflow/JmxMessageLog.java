@@ -19,12 +19,17 @@ import java.io.OutputStreamWriter;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
-import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.commons.jexl.Expression;
 import org.apache.commons.jexl.ExpressionFactory;
@@ -35,40 +40,57 @@ import org.cipango.server.SipMessage;
 import org.cipango.server.log.AbstractMessageLog;
 import org.eclipse.jetty.util.log.Log;
 
+/**
+ * Keeps the last SIP messages in memory for the console.
+ * <p>
+ * Messages are stored in a ring buffer written without lock: each message takes the next
+ * sequence number and replaces the message in the slot of this number. Messages are also
+ * chained by Call-ID, method and remote address, the last message of each value being kept
+ * in a concurrent map, so that filters on these values only walk the matching messages.
+ * <p>
+ * Queries read the messages from the most recent sequence number down and skip the messages
+ * overwritten meanwhile, so they never block the threads logging messages. Other filters are
+ * JEXL expressions, compiled once and cached.
+ */
 public class JmxMessageLog extends AbstractMessageLog
 {
 	private static final int DEFAULT_MAX_MESSAGES = 100;
+	private static final int MAX_CACHED_FILTERS = 64;
 	
-	private MessageInfo[] _messages;
+	private static final Pattern INDEXED_FILTER = Pattern.compile(
+			"\\s*(message\\.callId|message\\.method|remote)\\s*"
+			+ "(?:\\.equals\\(\\s*(['\"])((?:(?!\\2).)*)\\2\\s*\\)|==\\s*(['\"])((?:(?!\\4).)*)\\4)\\s*");
+	
+	private volatile MessageRing _ring;
 	private int _maxMessages = DEFAULT_MAX_MESSAGES;
-	private int _cursor;
+	private ConcurrentMap<String, Expression> _filters = new ConcurrentHashMap<String, Expression>();
 	
-	private Map<String, String> _alias = new HashMap<String, String>();
+	private Map<String, String> _alias = new ConcurrentHashMap<String, String>();
+	private Object _infoLineLock = new Object();
 	
 	public int getMaxMessages()
 	{
 		return _maxMessages;
 	}
 
+	/**
+	 * Sets the number of messages kept. If running, the last messages are copied to a new 
+	 * buffer: messages logged while copying may be lost.
+	 */
 	public void setMaxMessages(int maxMessages)
 	{
 		if (maxMessages <= 0)
 			throw new IllegalArgumentException("Max message must be greater than 0");
 		synchronized (this)
 		{
-			if (isRunning() && maxMessages != _maxMessages)
+			MessageRing ring = _ring;
+			if (isRunning() && ring != null && maxMessages != _maxMessages)
 			{
-				MessageInfo[] messages = new MessageInfo[maxMessages];
-				ListIterator<MessageInfo> it = iterate(false);
-				int index = maxMessages;
-				while (it.hasPrevious())
-				{
-					messages[--index] = it.previous();
-					if (index == 0)
-						break;
-				}	
-				_cursor = 0;
-				_messages = messages;
+				MessageRing newRing = new MessageRing(maxMessages);
+				List<MessageInfo> messages = ring.select(0, maxMessages);
+				for (MessageInfo info : messages)
+					newRing.add(new MessageInfo(info));
+				_ring = newRing;
 			}
 			_maxMessages = maxMessages;
 		}
@@ -76,20 +98,20 @@ public class JmxMessageLog extends AbstractMessageLog
 
 	protected void doStart() throws Exception
 	{
-		_messages = new MessageInfo[_maxMessages];
-		_cursor = 0;
+		_ring = new MessageRing(_maxMessages);
 		super.doStart();
 	}
 
 	protected void doStop() throws Exception
 	{
-		_messages = null;
+		_ring = null;
 		super.doStop();
 	}
 
 	public void doLog(SipMessage message, int direction, SipConnection connection)
 	{
-		if (_messages != null)
+		MessageRing ring = _ring;
+		if (ring != null)
 		{
 			// Log only once message to loopback
 			if (direction == OUT
@@ -97,12 +119,7 @@ public class JmxMessageLog extends AbstractMessageLog
 					&& connection.getLocalPort() == connection.getRemotePort())
 				return;
 				
-			synchronized (this)
-			{
-				_messages[_cursor] = new MessageInfo(message, direction, connection);
-				_cursor = getNextCursor();
-			}
-			
+			ring.add(new MessageInfo(message, direction, connection));
 		}
 	}
 		
@@ -111,38 +128,41 @@ public class JmxMessageLog extends AbstractMessageLog
 		return getMessages(maxMessages, null);
 	}
 	
-	private ListIterator<MessageInfo> iterate(boolean start)
-	{
-		return new LogIterator(start);
-	}
-	
-	
-	private int getNextCursor()
-	{
-		return _cursor + 1 == _maxMessages ? 0 : _cursor + 1;
-	}
-	
 	public void clear()
 	{
-		if (_messages == null)
-			return;
-		
 		synchronized (this)
 		{
-			for (int i = 0; i < _messages.length; i++)
-				_messages[i] = null;
-			_cursor = 0;
+			if (_ring != null)
+				_ring = new MessageRing(_maxMessages);
 		}
 	}
 	
 	public Object[][] getMessages(Integer maxMessages, String msgFilter) throws Exception
 	{
-		List<MessageInfo> messages = getMessageList(maxMessages, msgFilter);
+		return getMessages(0, maxMessages, msgFilter);
+	}
+	
+	/**
+	 * Returns a page of the messages matching the filter.
+	 * 
+	 * @param offset the number of most recent matching messages to skip.
+	 * @param maxMessages the maximum number of messages to return.
+	 * @param msgFilter a JEXL boolean expression or <code>null</code>.
+	 */
+	public Object[][] getMessages(Integer offset, Integer maxMessages, String msgFilter) throws Exception
+	{
+		List<MessageInfo> messages = getMessageList(offset, maxMessages, msgFilter);
+		if (messages == null)
+			return null;
+		
 		Object[][] tab = new Object[messages.size()][3];
 		for (int i = 0; i < tab.length; i++)
 		{
 			MessageInfo info = (MessageInfo) messages.get(i);
-			tab[i][0] = generateInfoLine(info.getDirection(), info.getConnection(), info.getDate());
+			synchronized (_infoLineLock) // the info line buffer is shared
+			{
+				tab[i][0] = generateInfoLine(info.getDirection(), info.getConnection(), info.getDate());
+			}
 			tab[i][1] = info.getMessage();
 			tab[i][2] = info.getRemote();
 		}
@@ -150,40 +170,43 @@ public class JmxMessageLog extends AbstractMessageLog
 		return tab;
 	}
 	
-	@SuppressWarnings("unchecked")
 	private List<MessageInfo> getMessageList(Integer maxMessages, String msgFilter) throws Exception
 	{
-		if (_messages == null)
+		return getMessageList(0, maxMessages, msgFilter);
+	}
+	
+	private List<MessageInfo> getMessageList(Integer offset, Integer maxMessages, String msgFilter) throws Exception
+	{
+		MessageRing ring = _ring;
+		if (ring == null)
 			return null;
 		
-		synchronized (this)
+		int skip = offset == null ? 0 : offset;
+		if (msgFilter == null || msgFilter.trim().equals(""))
+			return ring.select(skip, maxMessages);
+		
+		Matcher matcher = INDEXED_FILTER.matcher(msgFilter);
+		if (matcher.matches())
 		{
-			JexlContext jc = JexlHelper.createContext();
-			Expression msgExpression = null;
-			if (msgFilter != null && !msgFilter.trim().equals(""))
-			{
-				Log.debug("Get messages with filter: " + msgFilter);
-				msgExpression = ExpressionFactory.createExpression("log." + msgFilter);
-			}
+			String value = matcher.group(3) != null ? matcher.group(3) : matcher.group(5);
+			return ring.select(skip, maxMessages, ring.getIndex(matcher.group(1)), value);
+		}
 		
-			List<MessageInfo> result = new ArrayList<MessageInfo>();
-			ListIterator<MessageInfo> it = iterate(false);
-			
-			int i = 0;
-			while (it.hasPrevious() && i < maxMessages)
-			{
-				MessageInfo info = it.previous();
-				jc.getVars().put("log", info);
-				jc.getVars().put("message", info.getMessage());
-			
-				if (msgExpression == null || ((Boolean) msgExpression.evaluate(jc)).booleanValue())
-				{
-					result.add(0, info);
-					i++;
-				}
-			}
-			return result;
+		Log.debug("Get messages with filter: " + msgFilter);
+		return ring.select(skip, maxMessages, getExpression(msgFilter));
+	}
+	
+	private Expression getExpression(String msgFilter) throws Exception
+	{
+		Expression expression = _filters.get(msgFilter);
+		if (expression == null)
+		{
+			expression = ExpressionFactory.createExpression("log." + msgFilter);
+			if (_filters.size() >= MAX_CACHED_FILTERS)
+				_filters.clear();
+			_filters.put(msgFilter, expression);
 		}
+		return expression;
 	}
 	
 	public byte[] generateGraph(Integer maxMessages, String msgFilter, String xslUri) throws Exception
@@ -296,84 +319,247 @@ public class JmxMessageLog extends AbstractMessageLog
 		InetAddress addr = InetAddress.getByName(host);
 		_alias.put(addr.getHostAddress() + ":" + port, name);
 	}
-			
-	private class LogIterator implements ListIterator<MessageInfo>
+	
+	/**
+	 * Messages chained by a value. The last message of each value is kept in a concurrent map, 
+	 * the previous messages are linked from it.
+	 */
+	static abstract class Index
 	{
-		private int _itCursor;
-		private boolean _start = true;
+		private ConcurrentMap<String, MessageInfo> _last = new ConcurrentHashMap<String, MessageInfo>();
 		
-		public LogIterator(boolean start)
+		abstract String getKey(MessageInfo info);
+		abstract MessageInfo getPrevious(MessageInfo info);
+		abstract void setPrevious(MessageInfo info, MessageInfo previous);
+		
+		void add(MessageInfo info)
 		{
-			if (start)
-				_itCursor = _messages[getNextCursor()] == null ? 0 : getNextCursor();
-			else
-				_itCursor = _cursor;
+			String key = getKey(info);
+			if (key == null)
+				return;
+			while (true)
+			{
+				MessageInfo last = _last.get(key);
+				setPrevious(info, last);
+				if (last == null ? _last.putIfAbsent(key, info) == null : _last.replace(key, last, info))
+					return;
+			}
+		}
+		
+		void remove(MessageInfo info)
+		{
+			setPrevious(info, null);
+			String key = getKey(info);
+			if (key != null)
+				_last.remove(key, info);
 		}
 		
-		private int getNextItCursor()
+		MessageInfo getLast(String key)
 		{
-			return _itCursor + 1 == _maxMessages ? 0 : _itCursor + 1;
+			return _last.get(key);
 		}
-		private int getPreviousItCursor()
+	}
+	
+	static class CallIdIndex extends Index
+	{
+		String getKey(MessageInfo info)
 		{
-			return _itCursor == 0 ? _maxMessages - 1 : _itCursor - 1;
+			return info.getMessage().getCallId();
 		}
 		
-		public boolean hasNext()
+		MessageInfo getPrevious(MessageInfo info)
 		{
-			return _itCursor != _cursor && _messages[getNextItCursor()] != null;
+			return info.getPreviousCallId();
 		}
-
-		public MessageInfo next()
+		
+		void setPrevious(MessageInfo info, MessageInfo previous)
 		{
-			if (!hasNext())
-				throw new NoSuchElementException("No next");
-			_itCursor = getNextItCursor();
-			return _messages[_itCursor];
+			info.setPreviousCallId(previous);
 		}
-
-		public void remove()
+	}
+	
+	static class MethodIndex extends Index
+	{
+		String getKey(MessageInfo info)
 		{
-			throw new UnsupportedOperationException("Read-only");
+			return info.getMessage().getMethod();
 		}
-
-		public void add(MessageInfo arg0)
+		
+		MessageInfo getPrevious(MessageInfo info)
 		{
-			throw new UnsupportedOperationException("Read-only");
+			return info.getPreviousMethod();
 		}
-
-		public boolean hasPrevious()
+		
+		void setPrevious(MessageInfo info, MessageInfo previous)
 		{
-			return (_start || _itCursor != _cursor) && _messages[getPreviousItCursor()] != null;
+			info.setPreviousMethod(previous);
 		}
-
-		public int nextIndex()
+	}
+	
+	static class RemoteIndex extends Index
+	{
+		String getKey(MessageInfo info)
 		{
-			return 0;
+			return info.getRemote();
 		}
-
-		public MessageInfo previous()
+		
+		MessageInfo getPrevious(MessageInfo info)
 		{
-			if (!hasPrevious())
-				throw new NoSuchElementException("No previous");
-			_start = false;
-			_itCursor = getPreviousItCursor();
-			return _messages[_itCursor];
+			return info.getPreviousRemote();
 		}
-
-		public int previousIndex()
+		
+		void setPrevious(MessageInfo info, MessageInfo previous)
 		{
-			return 0;
+			info.setPreviousRemote(previous);
 		}
-
-		public void set(MessageInfo arg0)
+	}
+	
+	/**
+	 * Lock-free ring buffer of messages with their indexes.
+	 */
+	static class MessageRing
+	{
+		private final AtomicReferenceArray<MessageInfo> _messages;
+		private final int _capacity;
+		private final AtomicLong _sequence = new AtomicLong();
+		
+		private final Index _callIds = new CallIdIndex();
+		private final Index _methods = new MethodIndex();
+		private final Index _remotes = new RemoteIndex();
+		
+		MessageRing(int capacity)
+		{
+			_capacity = capacity;
+			_messages = new AtomicReferenceArray<MessageInfo>(capacity);
+		}
+		
+		Index getIndex(String field)
+		{
+			if ("message.callId".equals(field))
+				return _callIds;
+			else if ("message.method".equals(field))
+				return _methods;
+			else
+				return _remotes;
+		}
+		
+		void add(MessageInfo info)
+		{
+			long sequence = _sequence.getAndIncrement();
+			info.setSequence(sequence);
+			
+			_callIds.add(info);
+			_methods.add(info);
+			_remotes.add(info);
+			
+			int slot = (int) (sequence % _capacity);
+			while (true)
+			{
+				MessageInfo old = _messages.get(slot);
+				if (old != null && old.getSequence() > sequence)
+				{
+					// overtaken by a message logged a full ring later
+					removeFromIndexes(info);
+					return;
+				}
+				if (_messages.compareAndSet(slot, old, info))
+				{
+					if (old != null)
+						removeFromIndexes(old);
+					return;
+				}
+			}
+		}
+		
+		private void removeFromIndexes(MessageInfo info)
+		{
+			_callIds.remove(info);
+			_methods.remove(info);
+			_remotes.remove(info);
+		}
+		
+		/**
+		 * Returns <code>true</code> if the message is still in the buffer.
+		 */
+		boolean contains(MessageInfo info)
+		{
+			return _messages.get((int) (info.getSequence() % _capacity)) == info;
+		}
+		
+		/**
+		 * Returns the last messages, oldest first.
+		 */
+		List<MessageInfo> select(int offset, int max)
+		{
+			List<MessageInfo> result = new ArrayList<MessageInfo>();
+			
+			long end = _sequence.get();
+			long start = Math.max(0, end - _capacity);
+			for (long sequence = end - 1; sequence >= start && result.size() < max; sequence--)
+			{
+				MessageInfo info = _messages.get((int) (sequence % _capacity));
+				if (info == null || info.getSequence() != sequence)
+					continue;
+				if (offset > 0)
+					offset--;
+				else
+					result.add(info);
+			}
+			Collections.reverse(result);
+			return result;
+		}
+		
+		/**
+		 * Returns the messages matching the expression, oldest first.
+		 */
+		List<MessageInfo> select(int offset, int max, Expression expression) throws Exception
+		{
+			JexlContext jc = JexlHelper.createContext();
+			List<MessageInfo> result = new ArrayList<MessageInfo>();
+			
+			long end = _sequence.get();
+			long start = Math.max(0, end - _capacity);
+			for (long sequence = end - 1; sequence >= start && result.size() < max; sequence--)
+			{
+				MessageInfo info = _messages.get((int) (sequence % _capacity));
+				if (info == null || info.getSequence() != sequence)
+					continue;
+				
+				jc.getVars().put("log", info);
+				jc.getVars().put("message", info.getMessage());
+				if (!Boolean.TRUE.equals(expression.evaluate(jc)))
+					continue;
+				if (offset > 0)
+					offset--;
+				else
+					result.add(info);
+			}
+			Collections.reverse(result);
+			return result;
+		}
+		
+		/**
+		 * Returns the messages with the given index value, oldest first.
+		 */
+		List<MessageInfo> select(int offset, int max, Index index, String value)
 		{
-			throw new UnsupportedOperationException("Read-only");
+			List<MessageInfo> result = new ArrayList<MessageInfo>();
+			long start = _sequence.get() - _capacity;
+			
+			MessageInfo info = index.getLast(value);
+			while (info != null && info.getSequence() >= start && result.size() < max)
+			{
+				if (contains(info))
+				{
+					if (offset > 0)
+						offset--;
+					else
+						result.add(info);
+				}
+				info = index.getPrevious(info);
+			}
+			Collections.reverse(result);
+			return result;
 		}
 	}
-
 }
-
-
-
-
@@ -17,6 +17,12 @@ public class MessageInfo
 	private int _direction;
 	private SipConnection _connection;
 	private long _date;
+	private String _remote;
+	
+	private long _sequence;
+	private volatile MessageInfo _previousCallId;
+	private volatile MessageInfo _previousMethod;
+	private volatile MessageInfo _previousRemote;
 	
 	public MessageInfo(SipMessage message, int direction, SipConnection connection)
 	{
@@ -27,16 +33,32 @@ public class MessageInfo
 		_direction = direction;
 		_connection = connection;
 		_date = System.currentTimeMillis();
+		_remote = connection.getRemoteAddress() + ":" + connection.getRemotePort();
 		
 	}
 	
+	/**
+	 * Copies the message info, without its position in the log.
+	 */
+	MessageInfo(MessageInfo info)
+	{
+		_sipMessage = info._sipMessage;
+		_direction = info._direction;
+		_connection = info._connection;
+		_date = info._date;
+		_remote = info._remote;
+	}
+	
 	public long getDate()
 	{
 		return _date;
 	}
 	public String getFormatedDate()
 	{
-		return DATE_FORMAT.format(new Date(_date));
+		synchronized (DATE_FORMAT)
+		{
+			return DATE_FORMAT.format(new Date(_date));
+		}
 	}
 	public SipMessage getMessage()
 	{
@@ -64,7 +86,7 @@ public class MessageInfo
 	
 	public String getRemote()
 	{
-		return _connection.getRemoteAddress() + ":" + _connection.getRemotePort();
+		return _remote;
 	}
 	
 	public String getRemoteKey()
@@ -82,6 +104,49 @@ public class MessageInfo
 			return response.getStatus() + " " + response.getReasonPhrase();
 		}
 	}
+	/**
+	 * Position of the message in the log.
+	 */
+	long getSequence()
+	{
+		return _sequence;
+	}
+	
+	void setSequence(long sequence)
+	{
+		_sequence = sequence;
+	}
+	
+	MessageInfo getPreviousCallId()
+	{
+		return _previousCallId;
+	}
+	
+	void setPreviousCallId(MessageInfo previous)
+	{
+		_previousCallId = previous;
+	}
+	
+	MessageInfo getPreviousMethod()
+	{
+		return _previousMethod;
+	}
+	
+	void setPreviousMethod(MessageInfo previous)
+	{
+		_previousMethod = previous;
+	}
+	
+	MessageInfo getPreviousRemote()
+	{
+		return _previousRemote;
+	}
+	
+	void setPreviousRemote(MessageInfo previous)
+	{
+		_previousRemote = previous;
+	}
+	
 	/**
 	 * Time since the message has been received or sent in seconds
 	 */
@@ -0,0 +1,208 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.callflow;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.cipango.server.AbstractSipConnector.EventHandler;
+import org.cipango.server.SipConnection;
+import org.cipango.server.SipConnector;
+import org.cipango.server.SipMessage;
+import org.cipango.server.bio.UdpConnector;
+import org.cipango.server.log.AbstractMessageLog;
+import org.cipango.sip.SipParser;
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+
+/**
+ * Standalone benchmark of the JMX message log: SIP worker threads log messages while console 
+ * threads query the log, unfiltered, by Call-ID and with a JEXL filter.
+ * <p>
+ * Usage: <code>JmxMessageLogBenchmark [writers] [readers] [maxMessages] [seconds]</code>
+ */
+public class JmxMessageLogBenchmark
+{
+	private static final String[] CALL_FLOW = { "INVITE", "ACK", "BYE" };
+	
+	public static void main(String[] args) throws Exception
+	{
+		int writers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		int readers = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+		int maxMessages = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+		int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+		
+		final JmxMessageLog log = new JmxMessageLog();
+		log.setMaxMessages(maxMessages);
+		log.start();
+		
+		final SipMessage[] messages = new SipMessage[300];
+		for (int i = 0; i < messages.length; i++)
+			messages[i] = newRequest(CALL_FLOW[i % CALL_FLOW.length], "call" + (i / CALL_FLOW.length));
+		final SipConnection[] connections = new SipConnection[16];
+		for (int i = 0; i < connections.length; i++)
+			connections[i] = new TestConnection(InetAddress.getByName("192.168.0." + (i + 1)), 5060);
+		
+		System.out.println("Writers alone: " + run(log, messages, connections, writers, 0, seconds));
+		log.clear();
+		System.out.println("Writers and readers: " + run(log, messages, connections, writers, readers, seconds));
+		log.stop();
+	}
+	
+	private static String run(final JmxMessageLog log, final SipMessage[] messages, final SipConnection[] connections, 
+			int writers, int readers, int seconds) throws Exception
+	{
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final AtomicLong logged = new AtomicLong();
+		final AtomicLong queries = new AtomicLong();
+		final AtomicLong queryTime = new AtomicLong();
+		
+		Thread[] threads = new Thread[writers + readers];
+		for (int t = 0; t < writers; t++)
+		{
+			final int id = t;
+			threads[t] = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					long n = 0;
+					for (int i = id; running.get(); i++)
+					{
+						log.doLog(messages[i % messages.length], AbstractMessageLog.OUT, connections[i % connections.length]);
+						n++;
+					}
+					logged.addAndGet(n);
+				}
+			};
+		}
+		for (int t = writers; t < threads.length; t++)
+		{
+			final int id = t;
+			threads[t] = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						for (int i = id; running.get(); i++)
+						{
+							long start = System.nanoTime();
+							switch (i % 3)
+							{
+							case 0:
+								log.getMessages(0, 100, null);
+								break;
+							case 1:
+								log.getMessages(0, 100, "message.callId.equals('call" + (i % 100) + "')");
+								break;
+							default:
+								log.getMessages(0, 100, "message.method == 'BYE' and remote.startsWith('/192.168.0.1:')");
+							}
+							queryTime.addAndGet(System.nanoTime() - start);
+							queries.incrementAndGet();
+						}
+					}
+					catch (Exception e)
+					{
+						e.printStackTrace();
+					}
+				}
+			};
+		}
+		
+		for (Thread thread : threads)
+			thread.start();
+		Thread.sleep(seconds * 1000L);
+		running.set(false);
+		for (Thread thread : threads)
+			thread.join();
+		
+		StringBuilder sb = new StringBuilder();
+		sb.append(logged.get() / seconds).append(" messages/s");
+		if (queries.get() > 0)
+			sb.append(", ").append(queries.get() / seconds).append(" queries/s, ")
+				.append(queryTime.get() / queries.get() / 1000).append(" us/query");
+		return sb.toString();
+	}
+	
+	static SipMessage newRequest(String method, String callId) throws Exception
+	{
+		String msg = method + " sip:alice@cipango.org SIP/2.0\r\n"
+			+ "Via: SIP/2.0/UDP 192.168.0.1:5060;branch=z9hG4bK" + callId + method + "\r\n"
+			+ "Max-Forwards: 70\r\n"
+			+ "From: Bob <sip:bob@cipango.org>;tag=a73kszlfl\r\n"
+			+ "To: Alice <sip:alice@cipango.org>\r\n"
+			+ "Call-ID: " + callId + "\r\n"
+			+ "CSeq: 1 " + method + "\r\n"
+			+ "Content-Length: 0\r\n\r\n";
+		EventHandler handler = new EventHandler();
+		SipParser parser = new SipParser(new ByteArrayBuffer(msg.getBytes()), handler);
+		parser.parse();
+		return handler.getMessage();
+	}
+	
+	static class TestConnection implements SipConnection
+	{
+		private SipConnector _connector = new UdpConnector();
+		private InetAddress _localAddress;
+		private InetAddress _remoteAddress;
+		private int _remotePort;
+		
+		public TestConnection(InetAddress remoteAddress, int remotePort) throws IOException
+		{
+			_localAddress = InetAddress.getByName("192.168.0.254");
+			_remoteAddress = remoteAddress;
+			_remotePort = remotePort;
+		}
+		
+		public SipConnector getConnector()
+		{
+			return _connector;
+		}
+
+		public InetAddress getLocalAddress()
+		{
+			return _localAddress;
+		}
+
+		public int getLocalPort()
+		{
+			return 5060;
+		}
+
+		public InetAddress getRemoteAddress()
+		{
+			return _remoteAddress;
+		}
+
+		public int getRemotePort()
+		{
+			return _remotePort;
+		}
+
+		public void write(Buffer buffer) throws IOException
+		{
+		}
+
+		public boolean isOpen()
+		{
+			return true;
+		}
+	}
+}
@@ -0,0 +1,208 @@
+// ========================================================================
+// Copyright 2010 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+package org.cipango.callflow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.cipango.callflow.JmxMessageLogBenchmark.TestConnection;
+import org.cipango.server.SipConnection;
+import org.cipango.server.SipMessage;
+import org.cipango.server.log.AbstractMessageLog;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JmxMessageLogTest
+{
+	private static final String[] CALL_FLOW = { "INVITE", "ACK", "BYE" };
+	private static final int MAX_MESSAGES = 20;
+
+	private JmxMessageLog _log;
+	private SipConnection[] _connections;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		_log = new JmxMessageLog();
+		_log.setMaxMessages(MAX_MESSAGES);
+		_log.start();
+
+		_connections = new SipConnection[3];
+		for (int i = 0; i < _connections.length; i++)
+			_connections[i] = new TestConnection(InetAddress.getByName("192.168.0." + (i + 1)), 5060);
+
+		// more messages than kept so that the oldest ones are overwritten
+		for (int i = 0; i < 35; i++)
+		{
+			SipMessage message = JmxMessageLogBenchmark.newRequest(CALL_FLOW[i % CALL_FLOW.length], "call" + (i / CALL_FLOW.length % 5));
+			_log.doLog(message, i % 2 == 0 ? AbstractMessageLog.IN : AbstractMessageLog.OUT, _connections[i % _connections.length]);
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		_log.stop();
+	}
+
+	@Test
+	public void testNoFilter() throws Exception
+	{
+		Object[][] messages = _log.getMessages(100);
+		assertEquals(MAX_MESSAGES, messages.length);
+		assertEquals(5, _log.getMessages(5).length);
+
+		// the most recent messages, oldest first
+		Object[][] last = _log.getMessages(2, 3, null);
+		for (int i = 0; i < last.length; i++)
+			assertSame(messages[MAX_MESSAGES - 5 + i][1], last[i][1]);
+	}
+
+	@Test
+	public void testIndexedFilters() throws Exception
+	{
+		for (int call = 0; call < 5; call++)
+		{
+			String callId = "call" + call;
+			assertFilter("message.callId == '" + callId + "'", new Field("callId", callId));
+			assertFilter("message.callId.equals(\"" + callId + "\")", new Field("callId", callId));
+		}
+		for (String method : CALL_FLOW)
+		{
+			assertFilter("message.method == '" + method + "'", new Field("method", method));
+			assertFilter(" message.method.equals('" + method + "') ", new Field("method", method));
+		}
+		for (SipConnection connection : _connections)
+		{
+			String remote = connection.getRemoteAddress() + ":" + connection.getRemotePort();
+			assertFilter("remote == '" + remote + "'", new Field("remote", remote));
+		}
+		assertFilter("message.callId == 'unknown'", new Field("callId", "unknown"));
+	}
+
+	@Test
+	public void testStreamedFilters() throws Exception
+	{
+		// not indexed: evaluated with JEXL on each message
+		assertFilter("message.callId == 'call1' and true", new Field("callId", "call1"));
+		assertFilter("message.callId == 'call1' || message.callId == 'call2'",
+				new Field("callId", "call1"), new Field("callId", "call2"));
+	}
+
+	@Test
+	public void testIndexedMatchesStreamed() throws Exception
+	{
+		for (int max = 1; max <= MAX_MESSAGES; max += 3)
+		{
+			for (int offset = 0; offset < 5; offset++)
+			{
+				Object[][] indexed = _log.getMessages(offset, max, "message.method == 'BYE'");
+				Object[][] streamed = _log.getMessages(offset, max, "message.method == 'BYE' and true");
+				assertEquals(streamed.length, indexed.length);
+				for (int i = 0; i < indexed.length; i++)
+					assertSame(streamed[i][1], indexed[i][1]);
+			}
+		}
+	}
+
+	@Test
+	public void testLoopback() throws Exception
+	{
+		_log.clear();
+		SipConnection loopback = new TestConnection(InetAddress.getByName("192.168.0.254"), 5060);
+		SipMessage message = JmxMessageLogBenchmark.newRequest("MESSAGE", "loopback");
+
+		// a message sent to the server itself is logged once, when received
+		_log.doLog(message, AbstractMessageLog.OUT, loopback);
+		_log.doLog(message, AbstractMessageLog.IN, loopback);
+
+		assertEquals(1, _log.getMessages(100).length);
+		assertEquals(1, _log.getMessages(100, "message.callId == 'loopback'").length);
+		assertEquals(1, _log.getMessages(100, "remote == '/192.168.0.254:5060'").length);
+		assertEquals(1, _log.getMessages(100, "message.method == 'MESSAGE'").length);
+	}
+
+	@Test
+	public void testResize() throws Exception
+	{
+		Object[][] messages = _log.getMessages(100);
+		_log.setMaxMessages(5);
+
+		Object[][] resized = _log.getMessages(100);
+		assertEquals(5, resized.length);
+		for (int i = 0; i < resized.length; i++)
+			assertEquals(messages[MAX_MESSAGES - 5 + i][1], resized[i][1]);
+		assertFilter("message.callId == 'call1'", new Field("callId", "call1"));
+	}
+
+	/**
+	 * Checks that the filter selects the messages the log had with the previous implementation:
+	 * the most recent messages matching the filter among the messages kept, oldest first.
+	 */
+	private void assertFilter(String filter, Field... fields) throws Exception
+	{
+		List<Object> all = new ArrayList<Object>();
+		for (Object[] message : _log.getMessages(100))
+			all.add(message);
+
+		for (int max = 1; max <= MAX_MESSAGES; max++)
+		{
+			List<Object> expected = new ArrayList<Object>();
+			for (int i = all.size() - 1; i >= 0 && expected.size() < max; i--)
+			{
+				Object[] message = (Object[]) all.get(i);
+				for (Field field : fields)
+				{
+					if (field.matches(message))
+					{
+						expected.add(0, message[1]);
+						break;
+					}
+				}
+			}
+
+			Object[][] messages = _log.getMessages(max, filter);
+			assertEquals(filter, expected.size(), messages.length);
+			for (int i = 0; i < messages.length; i++)
+				assertSame(filter, expected.get(i), messages[i][1]);
+		}
+	}
+
+	static class Field
+	{
+		private String _name;
+		private String _value;
+
+		Field(String name, String value)
+		{
+			_name = name;
+			_value = value;
+		}
+
+		boolean matches(Object[] message)
+		{
+			SipMessage sipMessage = (SipMessage) message[1];
+			if ("callId".equals(_name))
+				return _value.equals(sipMessage.getCallId());
+			else if ("method".equals(_name))
+				return _value.equals(sipMessage.getMethod());
+			return _value.equals(message[2]);
+		}
+	}
+}
@@ -20,19 +20,33 @@ import java.net.URI;
 import java.net.URL;
 import java.text.ParseException;
 import java.util.ArrayList;
-import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Properties;
 
 import javax.servlet.sip.ar.SipApplicationRoutingRegion;
 import javax.servlet.sip.ar.SipRouteModifier;
 
+import org.cipango.dar.RoutingRule.Condition;
+
+/**
+ * DAR configuration read from a properties file.
+ * <p>
+ * Each property is a routing rule. The property name is the SIP method, optionally followed by 
+ * <code>/</code> and a name to define several rules for the same method. The value is an 
+ * optional list of conditions between brackets followed by the stringified router infos:
+ * <pre>
+ * INVITE/tenant1: [to.domain="tenant1.com", header.X-Service="vm"] ("VoiceMail", "DAR:To", "TERMINATING", "", "NO_ROUTE", "0")
+ * INVITE: ("OriginatingCallWaiting", "DAR:From", "ORIGINATING", "", "NO_ROUTE", "0")
+ * </pre>
+ * Rules are evaluated in file order.
+ * 
+ * @see RoutingRule
+ */
 public class DARConfiguration
 {
 	private Properties _properties;
+	private List<String> _keys = new ArrayList<String>();
 
 	public DARConfiguration(URI uri) throws Exception
 	{
@@ -46,7 +60,7 @@ public class DARConfiguration
 		{
 			url = uri.toURL();
 		}
-		_properties = new Properties();
+		_properties = new OrderedProperties();
 		InputStream is = url.openStream();
 		_properties.load(is);
 		is.close();
@@ -54,7 +68,7 @@ public class DARConfiguration
 	
 	public DARConfiguration(URL url) throws Exception
 	{
-		_properties = new Properties();
+		_properties = new OrderedProperties();
 		InputStream is = url.openStream();
 		_properties.load(is);
 		is.close();
@@ -62,14 +76,27 @@ public class DARConfiguration
 
 	public void configure(DefaultApplicationRouter dar) throws ParseException
 	{
-		Map<String, RouterInfo[]> infoMap = new HashMap<String, RouterInfo[]>();
+		dar.setRules(getRules());
+	}
+	
+	public List<RoutingRule> getRules() throws ParseException
+	{
+		List<RoutingRule> rules = new ArrayList<RoutingRule>();
 
-		Enumeration<Object> e = _properties.keys();
-		while (e.hasMoreElements())
+		for (String key : _keys)
 		{
-			String key = e.nextElement().toString();
 			String infos = _properties.get(key).toString().trim();
 
+			Condition[] conditions = null;
+			if (infos.startsWith("["))
+			{
+				int end = indexOfUnquoted(infos, ']', 1);
+				if (end < 0)
+					throw new ParseException(infos, 0);
+				conditions = parseConditions(infos, 1, end);
+				infos = infos.substring(end + 1);
+			}
+			
 			List<RouterInfo> list = new ArrayList<RouterInfo>();
 			int li = infos.indexOf('(');
 			while (li >= 0)
@@ -94,9 +121,60 @@ public class DARConfiguration
 						name, identity, region, uri, routeModifier);
 				list.add(sri);
 			}
-			infoMap.put(key, list.toArray(new RouterInfo[0]));
+			int slash = key.indexOf('/');
+			String method = slash == -1 ? key : key.substring(0, slash);
+			try
+			{
+				rules.add(new RoutingRule(key, method.trim(), conditions, list.toArray(new RouterInfo[0])));
+			}
+			catch (IllegalArgumentException e)
+			{
+				throw new ParseException(key + ": " + e.getMessage(), 0);
+			}
+		}
+		return rules;
+	}
+	
+	private Condition[] parseConditions(String s, int start, int end) throws ParseException
+	{
+		List<Condition> conditions = new ArrayList<Condition>();
+		while (start < end)
+		{
+			int eq = s.indexOf('=', start);
+			int lq = s.indexOf('"', start);
+			int rq = lq < 0 ? -1 : s.indexOf('"', lq + 1);
+			if (eq < 0 || eq > end || lq < eq || rq < 0 || rq > end)
+				throw new ParseException(s, start);
+			
+			try
+			{
+				conditions.add(new Condition(s.substring(start, eq), s.substring(lq + 1, rq)));
+			}
+			catch (IllegalArgumentException e)
+			{
+				throw new ParseException(e.getMessage(), start);
+			}
+			
+			start = s.indexOf(',', rq);
+			if (start < 0 || start > end)
+				break;
+			start++;
+		}
+		return conditions.toArray(new Condition[conditions.size()]);
+	}
+	
+	private int indexOfUnquoted(String s, char c, int start)
+	{
+		boolean quoted = false;
+		for (int i = start; i < s.length(); i++)
+		{
+			char ch = s.charAt(i);
+			if (ch == '"')
+				quoted = !quoted;
+			else if (ch == c && !quoted)
+				return i;
 		}
-		dar.setRouterInfos(infoMap);
+		return -1;
 	}
 
 	public SipApplicationRoutingRegion valueOf(String region)
@@ -110,6 +188,22 @@ public class DARConfiguration
 		return null;
 	}
 
+	/**
+	 * Keeps the order of the properties in the file.
+	 */
+	@SuppressWarnings("serial")
+	class OrderedProperties extends Properties
+	{
+		@Override
+		public synchronized Object put(Object key, Object value)
+		{
+			Object previous = super.put(key, value);
+			if (previous == null)
+				_keys.add(key.toString());
+			return previous;
+		}
+	}
+	
 	class InfoIterator implements Iterator<String>
 	{
 		private String _info;
@@ -19,12 +19,13 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.net.URI;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.SortedSet;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.TreeSet;
 
 import javax.servlet.sip.SipServletRequest;
@@ -35,6 +36,8 @@ import javax.servlet.sip.ar.SipApplicationRoutingRegion;
 import javax.servlet.sip.ar.SipRouteModifier;
 import javax.servlet.sip.ar.SipTargetedRequestInfo;
 
+import org.cipango.dar.RoutingRule.Condition;
+import org.cipango.dar.RoutingRule.RequestValues;
 import org.eclipse.jetty.util.component.AggregateLifeCycle;
 import org.eclipse.jetty.util.component.Dumpable;
 import org.eclipse.jetty.util.log.Log;
@@ -43,6 +46,14 @@ import org.eclipse.jetty.util.log.Log;
  * Default Application Router. 
  * Looks for its configuration from the property javax.servlet.sip.ar.dar.configuration
  * or etc/dar.properties if not defined. 
+ * <p>
+ * The configuration is compiled into an immutable routing table that is replaced atomically
+ * when the configuration is reloaded, either with {@link #reload()} or when the configuration
+ * file is modified if <code>scanInterval</code> is set. Requests being routed keep the rule 
+ * selected for them: the state info returned with an application holds the rule name, so 
+ * that the next applications of the request are found without evaluating the rules again.
+ * 
+ * @see DARConfiguration
  */
 public class DefaultApplicationRouter implements SipApplicationRouter, Dumpable
 {
@@ -51,12 +62,16 @@ public class DefaultApplicationRouter implements SipApplicationRouter, Dumpable
 	public static final String ROUTE_OUTGOING_REQUESTS = "org.cipango.dar.routeOutgoingRequests";
 	public static final String DEFAULT_CONFIGURATION = "etc/dar.properties";
 
-	private Map<String, RouterInfo[]> _routerInfoMap;
+	private volatile RoutingTable _routingTable;
 	private String _configuration;
-	private SortedSet<String> _applicationNames = new TreeSet<String>();
+	private volatile SortedSet<String> _applicationNames = new TreeSet<String>();
 	
 	private boolean _routeOutgoingRequests = true;
 	
+	private int _scanInterval;
+	private Timer _scanner;
+	private long _lastModified;
+	
 	public void setConfiguration(String configuration)
 	{
 		_configuration = configuration;
@@ -77,25 +92,49 @@ public class DefaultApplicationRouter implements SipApplicationRouter, Dumpable
 		return _routeOutgoingRequests;
 	}
 	
+	/**
+	 * Sets the interval in seconds at which the configuration file is checked for modification.
+	 * If <code>0</code>, the default, the configuration is only reloaded by {@link #reload()}.
+	 */
+	public void setScanInterval(int scanInterval)
+	{
+		_scanInterval = scanInterval;
+	}
+	
+	public int getScanInterval()
+	{
+		return _scanInterval;
+	}
+	
 	public String[] getApplicationNames()
 	{
 		return _applicationNames.toArray(new String[] {});
 	}
 	
-	public void applicationDeployed(List<String> newlyDeployedApplicationNames)
+	public synchronized void applicationDeployed(List<String> newlyDeployedApplicationNames)
 	{
-		_applicationNames.addAll(newlyDeployedApplicationNames);
-		init();
+		SortedSet<String> names = new TreeSet<String>(_applicationNames);
+		names.addAll(newlyDeployedApplicationNames);
+		_applicationNames = names;
+		
+		if (_routingTable == null)
+			init();
 	}
 
-	public void applicationUndeployed(List<String> undeployedApplicationNames)
+	public synchronized void applicationUndeployed(List<String> undeployedApplicationNames)
 	{
-		_applicationNames.removeAll(undeployedApplicationNames);
-		init();
+		SortedSet<String> names = new TreeSet<String>(_applicationNames);
+		names.removeAll(undeployedApplicationNames);
+		_applicationNames = names;
 	}
 
-	public void destroy()
+	public synchronized void destroy()
 	{
+		if (_scanner != null)
+		{
+			_scanner.cancel();
+			_scanner = null;
+		}
 	}
 
 	public SipApplicationRouterInfo getNextApplication(SipServletRequest initialRequest,
@@ -104,12 +143,14 @@ public class DefaultApplicationRouter implements SipApplicationRouter, Dumpable
 		if (!_routeOutgoingRequests && initialRequest.getRemoteAddr() == null)
 			return null;
 		
-		if (_routerInfoMap == null || _routerInfoMap.isEmpty())
+		RoutingTable table = _routingTable;
+		if (table == null || table.isEmpty())
 		{
-			if (stateInfo != null || _applicationNames.isEmpty() || directive != SipApplicationRoutingDirective.NEW)
+			SortedSet<String> applicationNames = _applicationNames;
+			if (stateInfo != null || applicationNames.isEmpty() || directive != SipApplicationRoutingDirective.NEW)
 				return null;
 			
-			return new SipApplicationRouterInfo(_applicationNames.first(), 
+			return new SipApplicationRouterInfo(applicationNames.first(), 
 					SipApplicationRoutingRegion.NEUTRAL_REGION, 
 					initialRequest.getFrom().getURI().toString(), 
 					null,
@@ -117,26 +158,40 @@ public class DefaultApplicationRouter implements SipApplicationRouter, Dumpable
 					1);
 		}
 		
-		String method = initialRequest.getMethod();
-		RouterInfo[] infos = _routerInfoMap.get(method.toUpperCase());
-
-		if (infos == null)
+		RoutingRule rule;
+		int index;
+		if (stateInfo instanceof State)
+		{
+			State state = (State) stateInfo;
+			rule = table.getRule(state.getRule());
+			index = state.getIndex();
+		}
+		else if (stateInfo == null)
+		{
+			rule = table.match(new RequestValues(initialRequest));
+			if (rule != null)
+				rule.hit();
+			index = 0;
+		}
+		else
+		{
 			return null;
+		}
 		
-		int index = 0;
-		if (stateInfo != null)
-			index = (Integer) stateInfo;
+		if (rule == null)
+			return null;
 
+		RouterInfo[] infos = rule.getRouterInfos();
 		if (index >= 0 && index < infos.length)
 		{
 			RouterInfo info = infos[index];
 			
 			String identity = info.getIdentity();
-			if (identity.startsWith("DAR:"))
+			if (info.getIdentityHeader() != null)
 			{
 				try
 				{
-					identity = initialRequest.getAddressHeader(identity.substring("DAR:".length())).getURI().toString();
+					identity = initialRequest.getAddressHeader(info.getIdentityHeader()).getURI().toString();
 				}
 				catch (Exception e)
 				{
@@ -145,7 +200,7 @@ public class DefaultApplicationRouter implements SipApplicationRouter, Dumpable
 			}
 			
 			return new SipApplicationRouterInfo(info.getName(), info.getRegion(), identity, null,
-					SipRouteModifier.NO_ROUTE, index + 1);
+					SipRouteModifier.NO_ROUTE, new State(rule.getName(), index + 1));
 		}
 
 		return null;
@@ -153,34 +208,112 @@ public class DefaultApplicationRouter implements SipApplicationRouter, Dumpable
 	
 	public String getDefaultApplication()
 	{
-		if ((_routerInfoMap == null || _routerInfoMap.isEmpty()) && !_applicationNames.isEmpty())
-			return _applicationNames.first();
+		RoutingTable table = _routingTable;
+		SortedSet<String> applicationNames = _applicationNames;
+		if ((table == null || table.isEmpty()) && !applicationNames.isEmpty())
+			return applicationNames.first();
 		return null;
 	}
 
+	/**
+	 * Replaces the routing rules. Hit counters of the rules with the same name are kept.
+	 * 
+	 * @throws IllegalArgumentException if two rules have the same name.
+	 */
+	public void setRules(List<RoutingRule> rules)
+	{
+		RoutingTable table = new RoutingTable(rules);
+		RoutingTable previous = _routingTable;
+		if (previous != null)
+		{
+			for (RoutingRule rule : rules)
+			{
+				RoutingRule old = previous.getRule(rule.getName());
+				if (old != null)
+					rule.keepHits(old);
+			}
+		}
+		_routingTable = table;
+	}
+	
+	/**
+	 * Returns the routing rules with their hit count.
+	 */
+	public String[] getRules()
+	{
+		RoutingTable table = _routingTable;
+		if (table == null)
+			return null;
+		
+		List<RoutingRule> rules = table.getRules();
+		String[] s = new String[rules.size()];
+		for (int i = 0; i < s.length; i++)
+			s[i] = rules.get(i).toString();
+		return s;
+	}
+	
+	public void resetHits()
+	{
+		RoutingTable table = _routingTable;
+		if (table != null)
+		{
+			for (RoutingRule rule : table.getRules())
+				rule.resetHits();
+		}
+	}
+
+	/**
+	 * Sets the rules routing all the requests with a method.
+	 */
 	public void setRouterInfos(Map<String, RouterInfo[]> infoMap)
 	{
-		_routerInfoMap = infoMap;
+		List<RoutingRule> rules = new ArrayList<RoutingRule>();
+		for (Map.Entry<String, RouterInfo[]> entry : infoMap.entrySet())
+			rules.add(new RoutingRule(entry.getKey(), entry.getKey(), null, entry.getValue()));
+		setRules(rules);
 	}
 	
+	/**
+	 * Returns the router infos of the rules without conditions by method.
+	 */
 	public Map<String, RouterInfo[]> getRouterInfos()
 	{
-		return _routerInfoMap;
+		RoutingTable table = _routingTable;
+		if (table == null)
+			return null;
+		
+		Map<String, RouterInfo[]> infoMap = new LinkedHashMap<String, RouterInfo[]>();
+		for (RoutingRule rule : table.getRules())
+		{
+			if (rule.getConditions().length == 0 && !infoMap.containsKey(rule.getMethod()))
+				infoMap.put(rule.getMethod(), rule.getRouterInfos());
+		}
+		return infoMap;
 	}
 	
 	public String getConfig()
 	{
-		if (_routerInfoMap == null)
+		RoutingTable table = _routingTable;
+		if (table == null)
 			return null;
 		
 		StringBuilder sb = new StringBuilder();
-		Iterator<String> it = _routerInfoMap.keySet().iterator();
-		while (it.hasNext())
+		for (RoutingRule rule : table.getRules())
 		{
-			
-			String method = (String) it.next();
-			RouterInfo[] routerInfos = _routerInfoMap.get(method);
-			sb.append(method).append(": ");
+			sb.append(rule.getName()).append(": ");
+			Condition[] conditions = rule.getConditions();
+			if (conditions.length > 0)
+			{
+				sb.append('[');
+				for (int i = 0; i < conditions.length; i++)
+				{
+					sb.append(conditions[i]);
+					if (i + 1 < conditions.length)
+						sb.append(", ");
+				}
+				sb.append("] ");
+			}
+			RouterInfo[] routerInfos = rule.getRouterInfos();
 			for (int i = 0; routerInfos != null && i < routerInfos.length; i++)
 			{
 				RouterInfo routerInfo = routerInfos[i];
@@ -200,12 +333,17 @@ public class DefaultApplicationRouter implements SipApplicationRouter, Dumpable
 		return sb.toString();
 	}
 	
+	/**
+	 * Returns the router infos of the rule with the given name.
+	 */
 	public RouterInfo[] getRouterInfo(String key)
 	{
-		return _routerInfoMap.get(key);
+		RoutingTable table = _routingTable;
+		RoutingRule rule = table == null ? null : table.getRule(key);
+		return rule == null ? null : rule.getRouterInfos();
 	}
 
-	public void init() 
+	public synchronized void init() 
 	{
 		if (!System.getProperty(ROUTE_OUTGOING_REQUESTS, "true").equalsIgnoreCase("true"))
 			_routeOutgoingRequests = false;
@@ -230,23 +368,88 @@ public class DefaultApplicationRouter implements SipApplicationRouter, Dumpable
 		
 		try
 		{
-			DARConfiguration config = new DARConfiguration(new URI(_configuration));
-			config.configure(this);
+			load();
 		}
 		catch (Exception e)
 		{
 			Log.debug("DAR configuration error: " + e);
 		}
 		
+		if (_scanInterval > 0 && _scanner == null)
+		{
+			_scanner = new Timer("dar-scanner", true);
+			_scanner.schedule(new TimerTask()
+			{
+				@Override
+				public void run()
+				{
+					scan();
+				}
+			}, _scanInterval * 1000L, _scanInterval * 1000L);
+		}
 		
-		if ((_routerInfoMap == null || _routerInfoMap.isEmpty()) && !_applicationNames.isEmpty())
-			Log.info("No DAR configuration. Using application: " + _applicationNames.first());
+		SortedSet<String> applicationNames = _applicationNames;
+		if (getDefaultApplication() != null)
+			Log.info("No DAR configuration. Using application: " + applicationNames.first());
 	}
 	
 	public void init(Properties properties)
 	{
 		init();
 	}
+	
+	/**
+	 * Reloads the configuration. Requests are routed with the previous configuration until
+	 * the new one is loaded, and if it cannot be loaded.
+	 */
+	public synchronized void reload() throws Exception
+	{
+		load();
+		Log.info("DAR configuration reloaded from " + _configuration);
+	}
+	
+	private void load() throws Exception
+	{
+		File file = getConfigurationFile();
+		if (file != null)
+			_lastModified = file.lastModified();
+		
+		DARConfiguration config = new DARConfiguration(new URI(_configuration));
+		config.configure(this);
+	}
+	
+	protected synchronized void scan()
+	{
+		File file = getConfigurationFile();
+		if (file != null && file.exists() && file.lastModified() != _lastModified)
+		{
+			try
+			{
+				reload();
+			}
+			catch (Exception e)
+			{
+				Log.warn("Failed to reload DAR configuration " + _configuration, e);
+			}
+		}
+	}
+	
+	private File getConfigurationFile()
+	{
+		try
+		{
+			URI uri = new URI(_configuration);
+			if (!uri.isAbsolute())
+				return new File(_configuration);
+			if ("file".equals(uri.getScheme()))
+				return new File(uri);
+		}
+		catch (Exception e)
+		{
+			Log.ignore(e);
+		}
+		return null;
+	}
 
 	public String dump()
 	{
@@ -256,7 +459,8 @@ public class DefaultApplicationRouter implements SipApplicationRouter, Dumpable
 	public void dump(Appendable out, String indent) throws IOException
 	{
 		out.append("DefaultApplicationRouter ");
-		if (_routerInfoMap == null || _routerInfoMap.isEmpty())
+		RoutingTable table = _routingTable;
+		if (table == null || table.isEmpty())
 		{
 			if (!_applicationNames.isEmpty())
 				out.append("default application: ").append(getDefaultApplication());
@@ -266,35 +470,41 @@ public class DefaultApplicationRouter implements SipApplicationRouter, Dumpable
 		else
 		{
 			out.append("\n");
-			List<Dumpable> l = new ArrayList<Dumpable>();
-			Iterator<String> it = _routerInfoMap.keySet().iterator();
-			while (it.hasNext())
-				l.add(new DumpableMethod(it.next()));
-			AggregateLifeCycle.dump(out,indent, l);
+			AggregateLifeCycle.dump(out, indent, table.getRules());
 		}
-			
 	}
-		
-	public class DumpableMethod implements Dumpable
+	
+	/**
+	 * Routing state of a request: the rule selected for the request and the index of the 
+	 * next application to invoke. 
+	 */
+	public static class State implements Serializable
 	{
-		private String _method;
+		private static final long serialVersionUID = 1L;
+		
+		private String _rule;
+		private int _index;
 		
-		public DumpableMethod(String method)
+		public State(String rule, int index)
 		{
-			_method = method;
+			_rule = rule;
+			_index = index;
 		}
 		
-		public String dump()
+		public String getRule()
 		{
-			return AggregateLifeCycle.dump(this);
+			return _rule;
 		}
-	
-		public void dump(Appendable out, String indent) throws IOException
+		
+		public int getIndex()
 		{
-			out.append(_method).append("\n");
-			AggregateLifeCycle.dump(out,indent, Arrays.asList(_routerInfoMap.get(_method)));
+			return _index;
 		}
 		
+		@Override
+		public String toString()
+		{
+			return _rule + "#" + _index;
+		}
 	}
 }
-
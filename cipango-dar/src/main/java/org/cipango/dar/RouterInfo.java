@@ -18,8 +18,11 @@ import javax.servlet.sip.ar.SipRouteModifier;
 
 public class RouterInfo
 {
+	public static final String DAR_PREFIX = "DAR:";
+	
 	private String _name;
 	private String _identity;
+	private String _identityHeader;
 	private SipApplicationRoutingRegion _region;
 	private String _uri;
 	private SipRouteModifier _routeModifier;
@@ -28,6 +31,8 @@ public class RouterInfo
 	{
 		_name = name;
 		_identity = identity;
+		if (identity != null && identity.startsWith(DAR_PREFIX))
+			_identityHeader = identity.substring(DAR_PREFIX.length());
 		_region = region;
 		_uri = uri;
 		_routeModifier = routeModifier;
@@ -53,6 +58,15 @@ public class RouterInfo
 		return _identity;
 	}
 
+	/**
+	 * Returns the name of the header holding the subscriber URI if the identity is 
+	 * <code>DAR:&lt;header&gt;</code>, <code>null</code> otherwise.
+	 */
+	public String getIdentityHeader()
+	{
+		return _identityHeader;
+	}
+
 	public SipApplicationRoutingRegion getRegion()
 	{
 		return _region;
@@ -0,0 +1,281 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.dar;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.sip.Address;
+import javax.servlet.sip.SipServletRequest;
+import javax.servlet.sip.SipURI;
+import javax.servlet.sip.URI;
+
+/**
+ * Routing rule: the applications to invoke for the initial requests with the rule method that
+ * match all the rule conditions.
+ * <p>
+ * A condition compares a field of the request to a value. Supported fields are:
+ * <ul>
+ * <li><code>request-uri</code>, <code>request-uri.user</code>, <code>request-uri.domain</code></li>
+ * <li><code>from</code>, <code>from.user</code>, <code>from.domain</code></li>
+ * <li><code>to</code>, <code>to.user</code>, <code>to.domain</code></li>
+ * <li><code>header.&lt;name&gt;</code>: first value of the header</li>
+ * </ul>
+ * Domains are compared ignoring case, other fields are compared as is.
+ */
+public class RoutingRule
+{
+	private String _name;
+	private String _method;
+	private Condition[] _conditions;
+	private RouterInfo[] _routerInfos;
+	private AtomicLong _hits = new AtomicLong();
+
+	/**
+	 * @param name the rule name, unique in the configuration.
+	 * @param method the SIP method of the requests the rule applies to.
+	 * @param conditions the conditions the request must match, may be empty.
+	 * @param routerInfos the applications to invoke, in order.
+	 */
+	public RoutingRule(String name, String method, Condition[] conditions, RouterInfo[] routerInfos)
+	{
+		_name = name;
+		_method = method.toUpperCase(Locale.ENGLISH);
+		_conditions = conditions == null ? new Condition[0] : conditions;
+		_routerInfos = routerInfos;
+	}
+
+	public String getName()
+	{
+		return _name;
+	}
+
+	public String getMethod()
+	{
+		return _method;
+	}
+
+	public Condition[] getConditions()
+	{
+		return _conditions;
+	}
+
+	public RouterInfo[] getRouterInfos()
+	{
+		return _routerInfos;
+	}
+
+	public boolean matches(RequestValues request)
+	{
+		for (int i = 0; i < _conditions.length; i++)
+		{
+			if (!_conditions[i].matches(request))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the number of requests routed by this rule.
+	 */
+	public long getHits()
+	{
+		return _hits.get();
+	}
+
+	void hit()
+	{
+		_hits.incrementAndGet();
+	}
+
+	void resetHits()
+	{
+		_hits.set(0);
+	}
+
+	/**
+	 * Shares the hit counter of the rule with the same name in the previous configuration.
+	 */
+	void keepHits(RoutingRule previous)
+	{
+		_hits = previous._hits;
+	}
+
+	@Override
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append(_name).append(": ");
+		if (_conditions.length > 0)
+		{
+			sb.append('[');
+			for (int i = 0; i < _conditions.length; i++)
+			{
+				if (i != 0)
+					sb.append(", ");
+				sb.append(_conditions[i]);
+			}
+			sb.append("] ");
+		}
+		for (int i = 0; i < _routerInfos.length; i++)
+		{
+			if (i != 0)
+				sb.append(", ");
+			sb.append(_routerInfos[i]);
+		}
+		sb.append(" hits=").append(getHits());
+		return sb.toString();
+	}
+
+	public static class Condition
+	{
+		private String _field;
+		private String _value;
+
+		/**
+		 * @throws IllegalArgumentException if the field is not supported.
+		 */
+		public Condition(String field, String value)
+		{
+			_field = normalizeField(field);
+			_value = normalize(_field, value);
+		}
+
+		/**
+		 * Returns the field, lower-cased.
+		 */
+		public String getField()
+		{
+			return _field;
+		}
+
+		/**
+		 * Returns the value, lower-cased if the field is a domain.
+		 */
+		public String getValue()
+		{
+			return _value;
+		}
+
+		public boolean matches(RequestValues request)
+		{
+			return _value.equals(request.get(_field));
+		}
+
+		@Override
+		public String toString()
+		{
+			return _field + "=\"" + _value + "\"";
+		}
+
+		static String normalizeField(String field)
+		{
+			field = field.trim().toLowerCase(Locale.ENGLISH);
+			if (field.startsWith(RequestValues.HEADER_PREFIX) && field.length() > RequestValues.HEADER_PREFIX.length())
+				return field;
+			if (!RequestValues.isField(field))
+				throw new IllegalArgumentException("Unsupported DAR field: " + field);
+			return field;
+		}
+
+		static String normalize(String field, String value)
+		{
+			if (value != null && field.endsWith(RequestValues.DOMAIN))
+				return value.toLowerCase(Locale.ENGLISH);
+			return value;
+		}
+	}
+
+	/**
+	 * Values of the fields of a request, extracted once when first used by a condition.
+	 */
+	public static class RequestValues
+	{
+		static final String HEADER_PREFIX = "header.";
+		static final String DOMAIN = ".domain";
+
+		private static final String[] FIELDS = { "request-uri", "request-uri.user", "request-uri.domain",
+			"from", "from.user", "from.domain", "to", "to.user", "to.domain" };
+		private static final String NULL = new String();
+
+		private SipServletRequest _request;
+		private Map<String, String> _values = new HashMap<String, String>();
+
+		public RequestValues(SipServletRequest request)
+		{
+			_request = request;
+		}
+
+		public SipServletRequest getRequest()
+		{
+			return _request;
+		}
+
+		static boolean isField(String field)
+		{
+			for (String f : FIELDS)
+			{
+				if (f.equals(field))
+					return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Returns the value of the field or <code>null</code> if the request has none.
+		 * @param field a field normalized by {@link Condition}.
+		 */
+		public String get(String field)
+		{
+			String value = _values.get(field);
+			if (value == null)
+			{
+				value = extract(field);
+				_values.put(field, value == null ? NULL : value);
+				return value;
+			}
+			return value == NULL ? null : value;
+		}
+
+		protected String extract(String field)
+		{
+			if (field.startsWith(HEADER_PREFIX))
+				return _request.getHeader(field.substring(HEADER_PREFIX.length()));
+
+			int i = field.indexOf('.');
+			String base = i == -1 ? field : field.substring(0, i);
+			URI uri;
+			if ("request-uri".equals(base))
+				uri = _request.getRequestURI();
+			else
+			{
+				Address address = "from".equals(base) ? _request.getFrom() : _request.getTo();
+				uri = address == null ? null : address.getURI();
+			}
+			if (uri == null)
+				return null;
+
+			if (i == -1)
+				return uri.toString();
+			if (!uri.isSipURI())
+				return null;
+			if (field.endsWith(DOMAIN))
+				return Condition.normalize(field, ((SipURI) uri).getHost());
+			return ((SipURI) uri).getUser();
+		}
+	}
+}
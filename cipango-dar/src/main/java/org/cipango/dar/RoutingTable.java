@@ -0,0 +1,187 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.dar;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.cipango.dar.RoutingRule.Condition;
+import org.cipango.dar.RoutingRule.RequestValues;
+
+/**
+ * Immutable index of the routing rules of a configuration.
+ * <p>
+ * Rules are grouped by method. Within a method, a rule with conditions is indexed by the
+ * value of its first condition, so that only the rules whose first condition holds are
+ * evaluated. The first rule in configuration order matching the request is selected.
+ */
+class RoutingTable
+{
+	private List<RoutingRule> _rules;
+	private Map<String, RoutingRule> _rulesByName = new HashMap<String, RoutingRule>();
+	private Map<String, MethodRules> _methods = new HashMap<String, MethodRules>();
+
+	RoutingTable(List<RoutingRule> rules)
+	{
+		_rules = Collections.unmodifiableList(new ArrayList<RoutingRule>(rules));
+
+		Map<String, List<RoutingRule>> byMethod = new LinkedHashMap<String, List<RoutingRule>>();
+		for (RoutingRule rule : rules)
+		{
+			if (_rulesByName.put(rule.getName(), rule) != null)
+				throw new IllegalArgumentException("Duplicate DAR rule: " + rule.getName());
+
+			List<RoutingRule> l = byMethod.get(rule.getMethod());
+			if (l == null)
+			{
+				l = new ArrayList<RoutingRule>();
+				byMethod.put(rule.getMethod(), l);
+			}
+			l.add(rule);
+		}
+		for (Map.Entry<String, List<RoutingRule>> entry : byMethod.entrySet())
+			_methods.put(entry.getKey(), new MethodRules(entry.getValue()));
+	}
+
+	public boolean isEmpty()
+	{
+		return _rules.isEmpty();
+	}
+
+	public List<RoutingRule> getRules()
+	{
+		return _rules;
+	}
+
+	public RoutingRule getRule(String name)
+	{
+		return _rulesByName.get(name);
+	}
+
+	/**
+	 * Returns the first rule matching the request or <code>null</code> if none.
+	 */
+	public RoutingRule match(RequestValues request)
+	{
+		String method = request.getRequest().getMethod();
+		MethodRules rules = _methods.get(method);
+		if (rules == null)
+			rules = _methods.get(method.toUpperCase(Locale.ENGLISH));
+		if (rules == null)
+			return null;
+		return rules.match(request);
+	}
+
+	static class MethodRules
+	{
+		private RoutingRule[] _rules;
+		private int[] _unindexed;
+		private String[] _fields;
+		private List<Map<String, int[]>> _indexes = new ArrayList<Map<String, int[]>>();
+
+		MethodRules(List<RoutingRule> rules)
+		{
+			_rules = rules.toArray(new RoutingRule[rules.size()]);
+
+			List<Integer> unindexed = new ArrayList<Integer>();
+			Map<String, Map<String, List<Integer>>> indexes = new LinkedHashMap<String, Map<String, List<Integer>>>();
+			for (int i = 0; i < _rules.length; i++)
+			{
+				Condition[] conditions = _rules[i].getConditions();
+				if (conditions.length == 0)
+				{
+					unindexed.add(i);
+					continue;
+				}
+				Map<String, List<Integer>> index = indexes.get(conditions[0].getField());
+				if (index == null)
+				{
+					index = new HashMap<String, List<Integer>>();
+					indexes.put(conditions[0].getField(), index);
+				}
+				List<Integer> l = index.get(conditions[0].getValue());
+				if (l == null)
+				{
+					l = new ArrayList<Integer>();
+					index.put(conditions[0].getValue(), l);
+				}
+				l.add(i);
+			}
+
+			_unindexed = toArray(unindexed);
+			_fields = indexes.keySet().toArray(new String[indexes.size()]);
+			for (Map<String, List<Integer>> index : indexes.values())
+			{
+				Map<String, int[]> m = new HashMap<String, int[]>();
+				for (Map.Entry<String, List<Integer>> entry : index.entrySet())
+					m.put(entry.getKey(), toArray(entry.getValue()));
+				_indexes.add(m);
+			}
+		}
+
+		RoutingRule match(RequestValues request)
+		{
+			int[][] candidates = new int[_fields.length + 1][];
+			int n = 0;
+			if (_unindexed.length > 0)
+				candidates[n++] = _unindexed;
+			for (int i = 0; i < _fields.length; i++)
+			{
+				String value = request.get(_fields[i]);
+				if (value != null)
+				{
+					int[] c = _indexes.get(i).get(value);
+					if (c != null)
+						candidates[n++] = c;
+				}
+			}
+
+			// each rule is in a single candidate list: merge them by rule order
+			int[] positions = new int[n];
+			while (true)
+			{
+				int next = -1;
+				int list = -1;
+				for (int i = 0; i < n; i++)
+				{
+					if (positions[i] < candidates[i].length && (next == -1 || candidates[i][positions[i]] < next))
+					{
+						next = candidates[i][positions[i]];
+						list = i;
+					}
+				}
+				if (next == -1)
+					return null;
+
+				positions[list]++;
+				if (_rules[next].matches(request))
+					return _rules[next];
+			}
+		}
+
+		private static int[] toArray(List<Integer> l)
+		{
+			int[] array = new int[l.size()];
+			for (int i = 0; i < array.length; i++)
+				array[i] = l.get(i);
+			return array;
+		}
+	}
+}
@@ -0,0 +1,209 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.dar;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.sip.Address;
+import javax.servlet.sip.SipServletRequest;
+import javax.servlet.sip.SipURI;
+import javax.servlet.sip.ar.SipApplicationRouterInfo;
+import javax.servlet.sip.ar.SipApplicationRoutingDirective;
+import javax.servlet.sip.ar.SipApplicationRoutingRegion;
+
+import org.junit.Test;
+
+public class DefaultApplicationRouterTest
+{
+	protected SipApplicationRouterInfo next(DefaultApplicationRouter dar, SipServletRequest request, Serializable stateInfo)
+	{
+		return dar.getNextApplication(request, null, SipApplicationRoutingDirective.NEW, null, stateInfo);
+	}
+
+	protected String route(DefaultApplicationRouter dar, SipServletRequest request)
+	{
+		StringBuilder sb = new StringBuilder();
+		SipApplicationRouterInfo info = next(dar, request, null);
+		while (info != null)
+		{
+			if (sb.length() > 0)
+				sb.append(',');
+			sb.append(info.getNextApplicationName());
+			info = next(dar, request, info.getStateInfo());
+		}
+		return sb.toString();
+	}
+
+	@Test
+	public void testRules() throws Exception
+	{
+		DefaultApplicationRouter dar = new DefaultApplicationRouter();
+		new DARConfiguration(getClass().getResource("/org/cipango/dar/dar-rules.properties")).configure(dar);
+
+		assertEquals("VoiceMail", route(dar, newRequest("INVITE", "sip:voicemail@tenant1.com", "sip:bob@example.com", "sip:alice@TENANT1.com")));
+		assertEquals("Tenant1Originating,Tenant1Terminating", route(dar, newRequest("INVITE", "sip:alice@tenant1.com", "sip:bob@example.com", "sip:alice@tenant1.com")));
+		assertEquals("Default", route(dar, newRequest("INVITE", "sip:alice@tenant2.com", "sip:bob@tenant3.com", "sip:alice@tenant2.com")));
+		assertEquals("IM", route(dar, newRequest("MESSAGE", "sip:alice@tenant2.com", "sip:bob@tenant3.com", "sip:alice@tenant2.com")));
+		assertEquals("", route(dar, newRequest("MESSAGE", "sip:alice@tenant2.com", "sip:bob@tenant2.com", "sip:alice@tenant2.com")));
+		assertEquals("", route(dar, newRequest("REGISTER", "sip:tenant1.com", "sip:bob@tenant1.com", "sip:bob@tenant1.com")));
+
+		SipServletRequest request = newRequest("INVITE", "sip:alice@tenant2.com", "sip:bob@example.com", "sip:alice@tenant2.com");
+		request.setHeader("X-Tenant", "t2");
+		SipApplicationRouterInfo info = next(dar, request, null);
+		assertEquals("Tenant2", info.getNextApplicationName());
+		assertEquals("sip:bob@example.com", info.getSubscriberURI());
+		assertEquals(SipApplicationRoutingRegion.ORIGINATING_REGION, info.getRoutingRegion());
+
+		String[] rules = dar.getRules();
+		assertEquals(6, rules.length);
+		assertEquals(true, rules[1].startsWith("INVITE/tenant1: [to.domain=\"tenant1.com\"]"));
+		assertEquals(true, rules[1].endsWith("hits=1"));
+		assertEquals(true, rules[2].endsWith("hits=1"));
+		assertEquals(true, rules[4].endsWith("hits=0"));
+
+		assertEquals(1, dar.getRouterInfos().size());
+		assertEquals("Default", dar.getRouterInfos().get("INVITE")[0].getName());
+	}
+
+	@Test
+	public void testReload() throws Exception
+	{
+		File file = File.createTempFile("dar", ".properties");
+		file.deleteOnExit();
+		write(file, "INVITE/tenant1: [to.domain=\"tenant1.com\"] (\"App1\", \"DAR:From\", \"ORIGINATING\", \"\", \"NO_ROUTE\", \"0\"), (\"App2\", \"DAR:To\", \"TERMINATING\", \"\", \"NO_ROUTE\", \"1\")\n"
+				+ "INVITE/tenant2: [to.domain=\"tenant2.com\"] (\"App3\", \"DAR:From\", \"ORIGINATING\", \"\", \"NO_ROUTE\", \"0\"), (\"App4\", \"DAR:To\", \"TERMINATING\", \"\", \"NO_ROUTE\", \"1\")\n");
+
+		DefaultApplicationRouter dar = new DefaultApplicationRouter();
+		dar.setConfiguration(file.toURI().toString());
+		dar.init();
+
+		SipServletRequest request1 = newRequest("INVITE", "sip:alice@tenant1.com", "sip:bob@example.com", "sip:alice@tenant1.com");
+		SipServletRequest request2 = newRequest("INVITE", "sip:alice@tenant2.com", "sip:bob@example.com", "sip:alice@tenant2.com");
+		SipApplicationRouterInfo info1 = next(dar, request1, null);
+		SipApplicationRouterInfo info2 = next(dar, request2, null);
+		assertEquals("App1", info1.getNextApplicationName());
+		assertEquals("App3", info2.getNextApplicationName());
+
+		write(file, "INVITE/tenant1: [to.domain=\"tenant1.com\"] (\"App1\", \"DAR:From\", \"ORIGINATING\", \"\", \"NO_ROUTE\", \"0\"), (\"App5\", \"DAR:To\", \"TERMINATING\", \"\", \"NO_ROUTE\", \"1\")\n");
+		file.setLastModified(file.lastModified() + 2000);
+		dar.scan();
+
+		// requests being routed continue with their rule if it still exists
+		assertEquals("App5", next(dar, request1, info1.getStateInfo()).getNextApplicationName());
+		assertNull(next(dar, request2, info2.getStateInfo()));
+		assertNull(next(dar, request2, null));
+
+		// hits are kept for rules with the same name
+		assertEquals(true, dar.getRules()[0].endsWith("hits=1"));
+		dar.resetHits();
+		assertEquals(true, dar.getRules()[0].endsWith("hits=0"));
+
+		write(file, "INVITE/tenant1: [to.domain=\"tenant1.com\"] (\"App1\"");
+		file.setLastModified(file.lastModified() + 2000);
+		dar.scan();
+		// invalid configuration: previous configuration is kept
+		assertEquals("App1,App5", route(dar, request1));
+		dar.destroy();
+	}
+
+	private void write(File file, String content) throws Exception
+	{
+		FileWriter writer = new FileWriter(file);
+		writer.write(content);
+		writer.close();
+	}
+
+	public static SipServletRequest newRequest(String method, String requestUri, String from, String to)
+	{
+		final Map<String, Object> values = new HashMap<String, Object>();
+		values.put("getMethod", method);
+		values.put("getRequestURI", newUri(requestUri));
+		values.put("getFrom", newAddress(from));
+		values.put("getTo", newAddress(to));
+		values.put("getRemoteAddr", "127.0.0.1");
+
+		final Map<String, String> headers = new HashMap<String, String>();
+		return (SipServletRequest) Proxy.newProxyInstance(SipServletRequest.class.getClassLoader(),
+				new Class[] { SipServletRequest.class }, new InvocationHandler()
+		{
+			public Object invoke(Object proxy, Method m, Object[] args) throws Throwable
+			{
+				String name = m.getName();
+				if ("setHeader".equals(name))
+				{
+					headers.put(((String) args[0]).toLowerCase(), (String) args[1]);
+					return null;
+				}
+				else if ("getHeader".equals(name))
+					return headers.get(((String) args[0]).toLowerCase());
+				else if ("getAddressHeader".equals(name))
+					return values.get("get" + args[0]);
+				return values.get(name);
+			}
+		});
+	}
+
+	public static Address newAddress(String uri)
+	{
+		final SipURI sipUri = newUri(uri);
+		return (Address) Proxy.newProxyInstance(Address.class.getClassLoader(),
+				new Class[] { Address.class }, new InvocationHandler()
+		{
+			public Object invoke(Object proxy, Method m, Object[] args) throws Throwable
+			{
+				if ("getURI".equals(m.getName()))
+					return sipUri;
+				if ("toString".equals(m.getName()))
+					return "<" + sipUri + ">";
+				return null;
+			}
+		});
+	}
+
+	public static SipURI newUri(final String uri)
+	{
+		int colon = uri.indexOf(':');
+		int at = uri.indexOf('@');
+		final String user = at == -1 ? null : uri.substring(colon + 1, at);
+		final String host = uri.substring(at == -1 ? colon + 1 : at + 1);
+		return (SipURI) Proxy.newProxyInstance(SipURI.class.getClassLoader(),
+				new Class[] { SipURI.class }, new InvocationHandler()
+		{
+			public Object invoke(Object proxy, Method m, Object[] args) throws Throwable
+			{
+				String name = m.getName();
+				if ("isSipURI".equals(name))
+					return true;
+				if ("getUser".equals(name))
+					return user;
+				if ("getHost".equals(name))
+					return host;
+				if ("toString".equals(name))
+					return uri;
+				return null;
+			}
+		});
+	}
+}
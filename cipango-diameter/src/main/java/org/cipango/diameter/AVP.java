@@ -48,12 +48,21 @@ public class AVP<T> implements Visitable
 		return _value;
 	}
 	
+	/**
+	 * @return <code>true</code> if this AVP is of type <code>type</code>.
+	 */
+	public boolean isType(Type<?> type)
+	{
+		return getType() == type;
+	}
+	
 	public void accept(DiameterVisitor visitor)
 	{
-		if (_value instanceof AVPList)
+		T value = getValue();
+		if (value instanceof AVPList)
 		{
 			visitor.visitEnter((AVP<AVPList>) this);
-			for (AVP<?> avp : (AVPList) _value)
+			for (AVP<?> avp : (AVPList) value)
 			{
 				avp.accept(visitor);
 			}
@@ -65,6 +74,6 @@ public class AVP<T> implements Visitable
 	
 	public String toString()
 	{
-		return _type + " = " + _value;
+		return getType() + " = " + getValue();
 	}
 }
\ No newline at end of file
@@ -34,7 +34,7 @@ public class AVPList extends AbstractList<AVP<?>>
 	{
 		for (AVP<?> avp : _avps)
 		{
-			if (avp.getType() == type)
+			if (avp.isType(type))
 				return (AVP<T>) avp;
 		}
 		return null;
@@ -78,7 +78,7 @@ public class AVPList extends AbstractList<AVP<?>>
 		for (int i = 0; i < _avps.size(); i++)
 		{
 			AVP avp = _avps.get(i);
-			if (avp.getType() == type)
+			if (avp.isType(type))
 				avps = LazyList.add(avps, avp);
 		}
 		return LazyList.iterator(avps);
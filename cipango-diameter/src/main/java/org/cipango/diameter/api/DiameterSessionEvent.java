@@ -0,0 +1,41 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at 
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+package org.cipango.diameter.api;
+
+import java.util.EventObject;
+
+/**
+ * Events of this type are sent to objects implementing the <code>DiameterSessionListener</code>
+ * interface.
+ */
+public class DiameterSessionEvent extends EventObject
+{
+	private DiameterSession _session;
+
+	public DiameterSessionEvent(DiameterSession source)
+	{
+		super(source);
+		_session = source;
+	}
+
+	/**
+	 * Returns the Diameter session associated with this <code>DiameterSessionEvent</code>.
+	 * 
+	 * @return the Diameter session associated with this <code>DiameterSessionEvent</code>.
+	 */
+	public DiameterSession getSession()
+	{
+		return _session;
+	}
+}
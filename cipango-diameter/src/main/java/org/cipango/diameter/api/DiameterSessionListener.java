@@ -0,0 +1,32 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at 
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+package org.cipango.diameter.api;
+
+import java.util.EventListener;
+
+/**
+ * Causes applications to be notified of the lifecycle of their Diameter sessions.
+ */
+public interface DiameterSessionListener extends EventListener
+{
+	/**
+	 * Invoked by the container to notify an application that a Diameter session has been 
+	 * invalidated as it was not accessed during the session idle timeout. The session can no 
+	 * longer be used to create requests, so the application should send any termination 
+	 * request, such as a Session-Termination-Request, with a new session.
+	 * 
+	 * @param e the event that identifies the session.
+	 */
+	public void sessionExpired(DiameterSessionEvent e);
+}
@@ -23,10 +23,13 @@ import org.cipango.diameter.api.DiameterErrorEvent;
 import org.cipango.diameter.api.DiameterErrorListener;
 import org.cipango.diameter.api.DiameterListener;
 import org.cipango.diameter.api.DiameterServletMessage;
+import org.cipango.diameter.api.DiameterSessionEvent;
+import org.cipango.diameter.api.DiameterSessionListener;
 import org.cipango.diameter.node.DiameterAnswer;
 import org.cipango.diameter.node.DiameterHandler;
 import org.cipango.diameter.node.DiameterMessage;
 import org.cipango.diameter.node.DiameterRequest;
+import org.cipango.diameter.node.Session;
 import org.cipango.server.session.AppSessionIf;
 import org.cipango.sipapp.SipAppContext;
 import org.eclipse.jetty.util.LazyList;
@@ -40,6 +43,7 @@ public class DiameterContext implements DiameterHandler
 
 	private Method _handleMsg;
 	private Method _noAnswerReceived;
+	private Method _sessionExpired;
 	
 	public DiameterContext()
 	{
@@ -47,6 +51,7 @@ public class DiameterContext implements DiameterHandler
 		{
 		 _handleMsg = DiameterListener.class.getMethod("handle", DiameterServletMessage.class);
 		 _noAnswerReceived = DiameterErrorListener.class.getMethod("noAnswerReceived", DiameterErrorEvent.class);
+		 _sessionExpired = DiameterSessionListener.class.getMethod("sessionExpired", DiameterSessionEvent.class);
 		} 
         catch (NoSuchMethodException e)
         {
@@ -109,6 +114,27 @@ public class DiameterContext implements DiameterHandler
 		diameterAppContext.removeErrorListener(listener);
 	}
 	
+	public void addSessionListener(WebAppContext context, DiameterSessionListener listener)
+	{
+		DiameterAppContext diameterAppContext = _diameterListeners.get(context.getContextPath());
+		if (diameterAppContext == null)
+		{
+			diameterAppContext = new DiameterAppContext();
+			_diameterListeners.put(context.getContextPath(), diameterAppContext);
+		}
+		
+		diameterAppContext.addSessionListener(listener);
+	}
+	
+	public void removeSessionListener(WebAppContext context, DiameterSessionListener listener)
+	{
+		DiameterAppContext diameterAppContext = _diameterListeners.get(context.getContextPath());
+		if (diameterAppContext == null)
+			return;
+		
+		diameterAppContext.removeSessionListener(listener);
+	}
+	
 	public void removeListeners(WebAppContext context)
 	{
 		_diameterListeners.remove(context.getContextPath());
@@ -168,12 +194,35 @@ public class DiameterContext implements DiameterHandler
 			context.fire(listeners, _noAnswerReceived, new DiameterErrorEvent(request, timeout));		
 	}
 	
+	public void fireSessionExpired(Session session)
+	{
+		DiameterSessionListener[] listeners = null;
+		SipAppContext context = session.getContext();
+		if (context == null)
+		{
+			AppSessionIf appSession = (AppSessionIf) session.getApplicationSession();
+			if (appSession != null)
+				context = appSession.getAppSession().getContext();
+		}
+		
+		if (context != null)
+		{
+			DiameterAppContext ctx = _diameterListeners.get(context.getContextPath());
+			if (ctx != null)
+				listeners = ctx.getSessionListeners();
+		}
+		
+		if (listeners != null && listeners.length != 0)
+			context.fire(listeners, _sessionExpired, new DiameterSessionEvent(session));
+	}
+	
 }
 
 class DiameterAppContext
 {
 	private DiameterListener[] _diameterListeners;
 	private DiameterErrorListener[] _errorListeners;
+	private DiameterSessionListener[] _sessionListeners;
 	
 	public DiameterAppContext()
 	{
@@ -205,6 +254,16 @@ class DiameterAppContext
 		_errorListeners = (DiameterErrorListener[]) LazyList.removeFromArray(_errorListeners, l);
 	}
 
+	public void addSessionListener(DiameterSessionListener l)
+	{
+		_sessionListeners = (DiameterSessionListener[]) LazyList.addToArray(_sessionListeners, l, DiameterSessionListener.class);
+	}
+	
+	public void removeSessionListener(DiameterSessionListener l)
+	{
+		_sessionListeners = (DiameterSessionListener[]) LazyList.removeFromArray(_sessionListeners, l);
+	}
+
 	public DiameterListener[] getDiameterListeners()
 	{
 		return _diameterListeners;
@@ -214,5 +273,10 @@ class DiameterAppContext
 	{
 		return _errorListeners;
 	}
+
+	public DiameterSessionListener[] getSessionListeners()
+	{
+		return _sessionListeners;
+	}
 }
 
@@ -21,6 +21,7 @@ import javax.servlet.ServletException;
 
 import org.cipango.diameter.api.DiameterErrorListener;
 import org.cipango.diameter.api.DiameterListener;
+import org.cipango.diameter.api.DiameterSessionListener;
 import org.eclipse.jetty.servlet.FilterHolder;
 import org.eclipse.jetty.servlet.ServletContextHandler.Decorator;
 import org.eclipse.jetty.servlet.ServletHolder;
@@ -54,6 +55,8 @@ public class DiameterDecorator implements Decorator
 			_context.addListener(_appContext, (DiameterListener) listener);
 		if (listener instanceof DiameterErrorListener)
 			_context.addErrorListener(_appContext, (DiameterErrorListener) listener);
+		if (listener instanceof DiameterSessionListener)
+			_context.addSessionListener(_appContext, (DiameterSessionListener) listener);
 		return listener;
 	}
 
@@ -79,6 +82,8 @@ public class DiameterDecorator implements Decorator
 			_context.removeListener(_appContext, (DiameterListener) f);
 		if (f instanceof DiameterErrorListener)
 			_context.removeErrorListener(_appContext, (DiameterErrorListener) f);
+		if (f instanceof DiameterSessionListener)
+			_context.removeSessionListener(_appContext, (DiameterSessionListener) f);
 	}
 
 }
@@ -20,15 +20,8 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 
-import org.cipango.diameter.AVP;
-import org.cipango.diameter.AVPList;
-import org.cipango.diameter.Dictionary;
-import org.cipango.diameter.Factory;
-import org.cipango.diameter.ResultCode;
-import org.cipango.diameter.base.Common;
 import org.cipango.diameter.io.Codecs;
 import org.cipango.diameter.node.AbstractDiameterConnector;
-import org.cipango.diameter.node.DiameterAnswer;
 import org.cipango.diameter.node.DiameterConnection;
 import org.cipango.diameter.node.DiameterMessage;
 import org.cipango.diameter.node.Peer;
@@ -149,17 +142,22 @@ public class DiameterSocketConnector extends AbstractDiameterConnector
 		
 		public void write(DiameterMessage message) throws IOException
 		{
-			Buffer buffer = getBuffer(getMessageBufferSize());
-			buffer = Codecs.__message.encode(buffer, message);
+			Buffer initial = getBuffer(getMessageBufferSize());
+			Buffer buffer = Codecs.__message.encode(initial, message);
 			
-			flush(buffer);
-			returnBuffer(buffer);
-			
-			if (getNode().isStatsOn())
-				_messagesSent.incrementAndGet();
+			try
+			{
+				flush(buffer);
+			}
+			finally
+			{
+				// the encoded message may not fit in the initial buffer
+				if (buffer != initial)
+					returnBuffer(initial);
+				returnBuffer(buffer);
+			}
 			
-			if (_listener != null)
-				_listener.messageSent(message, this);
+			sent(message, this);
 		}
 		
 		public void run()
@@ -195,42 +193,8 @@ public class DiameterSocketConnector extends AbstractDiameterConnector
 						totalRead += read;
 					}
 										
-					DiameterMessage message = Codecs.__message.decode(b);
-					message.setConnection(this);
-					message.setNode(getNode());
-					
-					if (getNode().isStatsOn())
-						_messagesReceived.incrementAndGet();
-					
-					// TODO move the following code at a better place. Need to be done before _listener.messageReceived(message, this);
-					if (!message.isRequest())
-					{
-						int code;
-						int vendorId = Common.IETF_VENDOR_ID;
-						
-						AVP<Integer> avp = message.getAVPs().get(Common.RESULT_CODE);
-						if (avp != null)
-						{
-							code = avp.getValue();
-						}
-						else
-						{
-							AVPList expRc = message.get(Common.EXPERIMENTAL_RESULT);
-							code = expRc.getValue(Common.EXPERIMENTAL_RESULT_CODE);
-							vendorId = expRc.getValue(Common.VENDOR_ID);
-						}
-						
-						ResultCode rc = Dictionary.getInstance().getResultCode(vendorId, code);
-						if (rc == null)
-							rc = Factory.newResultCode(vendorId, code, "Unknown");
-						
-						((DiameterAnswer) message).setResultCode(rc);
-					}
-					
-					if (_listener != null)
-						_listener.messageReceived(message, this);
-					
-					getNode().receive(message);
+					DiameterMessage message = decode(b);
+					received(message, this);
 				}
 			}
 			catch (EofException e)
@@ -27,8 +27,16 @@ import org.eclipse.jetty.io.View;
  */
 public class AVPCodec extends AbstractCodec<AVP<?>>
 {
-	private static final int AVP_VENDOR_FLAG = 0x80;
-	private static final int AVP_MANDATORY_FLAG = 0x40;
+	static final int AVP_VENDOR_FLAG = 0x80;
+	static final int AVP_MANDATORY_FLAG = 0x40;
+	
+	static Type<?> getType(int vendorId, int code)
+	{
+		Type<?> type = Dictionary.getInstance().getType(vendorId, code);
+		if (type == null)
+			type = Factory.newType("Unknown", vendorId, code, Common.__octetString);
+		return type;
+	}
 	
 	@SuppressWarnings("unchecked")
 	public AVP<?> decode(Buffer buffer) throws IOException
@@ -55,10 +63,7 @@ public class AVPCodec extends AbstractCodec<AVP<?>>
 		
 		buffer.setGetIndex(buffer.getIndex() + (dataLength + 3 & -4));
 		
-		Type type = Dictionary.getInstance().getType(vendorId, code);
-		
-		if (type == null)
-			type = Factory.newType("Unknown", vendorId, code, Common.__octetString);
+		Type type = getType(vendorId, code);
 		
 		AVP avp = new AVP(type);
 		// TODO flags
@@ -70,6 +75,9 @@ public class AVPCodec extends AbstractCodec<AVP<?>>
 	@SuppressWarnings("unchecked")
 	public Buffer encode(Buffer buffer, AVP avp) throws IOException
 	{
+		if (avp instanceof LazyAVP && ((LazyAVP) avp).isRaw())
+			return ((LazyAVP) avp).encodeRaw(this, buffer);
+		
 		buffer = ensureSpace(buffer, 12);
 		int flags = AVP_MANDATORY_FLAG;
 		
@@ -9,9 +9,11 @@ public abstract class AbstractCodec<T> implements DiameterCodec<T>
 	{
 		if (buffer.space() < space)
 		{
-			while (space < (buffer.capacity() / 2) && space < 128)
-				space *= 2;
-			ByteArrayBuffer larger = new ByteArrayBuffer(buffer.capacity() + space);
+			// double the capacity so that the larger buffer fits a size class of the buffer pool
+			int capacity = buffer.capacity() * 2;
+			while (capacity < buffer.putIndex() + space)
+				capacity *= 2;
+			ByteArrayBuffer larger = new ByteArrayBuffer(capacity);
 			larger.put(buffer);
 			//larger.setMarkIndex(buffer.markIndex());
 			larger.setGetIndex(buffer.getIndex());
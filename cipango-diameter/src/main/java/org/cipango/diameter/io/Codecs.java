@@ -12,4 +12,5 @@ public abstract class Codecs
 	
 	public static final DiameterCodec<AVP<?>> __avp = new AVPCodec();
 	public static final DiameterCodec<DiameterMessage> __message = new MessageCodec();
+	public static final DiameterCodec<DiameterMessage> __lazyMessage = new MessageCodec(true);
 }
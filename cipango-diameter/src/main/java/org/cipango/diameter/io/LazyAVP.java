@@ -0,0 +1,183 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.diameter.io;
+
+import java.io.IOException;
+
+import org.cipango.diameter.AVP;
+import org.cipango.diameter.AVPList;
+import org.cipango.diameter.Type;
+import org.cipango.diameter.base.Common;
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.eclipse.jetty.util.log.Log;
+
+/**
+ * AVP decoded on demand.
+ * <p>
+ * A lazy AVP only records the position of the AVP in the bytes of the received message.
+ * Its type is looked up in the dictionary and its value decoded the first time they are
+ * read. The values of Grouped AVPs are lists of lazy AVPs.
+ * <p>
+ * As long as its value has not been set, nor a Grouped value read, the AVP is raw and
+ * is encoded by copying its original bytes.
+ */
+public class LazyAVP<T> extends AVP<T>
+{
+	private final byte[] _data;
+	private final int _offset;
+	private final int _length;
+	private final int _dataOffset;
+	private final int _vendorId;
+	private final int _code;
+	private boolean _decoded;
+	private boolean _raw = true;
+
+	LazyAVP(byte[] data, int offset, int length, int dataOffset, int vendorId, int code)
+	{
+		super(null);
+		_data = data;
+		_offset = offset;
+		_length = length;
+		_dataOffset = dataOffset;
+		_vendorId = vendorId;
+		_code = code;
+	}
+
+	/**
+	 * Records the AVPs in <code>data</code> from <code>offset</code> to <code>end</code>
+	 * without decoding their values.
+	 */
+	public static AVPList decodeList(byte[] data, int offset, int end) throws IOException
+	{
+		AVPList avps = new AVPList();
+		while (offset < end)
+		{
+			if (end - offset < 8)
+				throw new IOException("Truncated AVP header");
+
+			int code = getInt(data, offset);
+			int i = getInt(data, offset + 4);
+			int flags = i >> 24 & 0xff;
+			int length = i & 0xffffff;
+
+			int dataOffset = offset + 8;
+			int vendorId = 0;
+			if ((flags & AVPCodec.AVP_VENDOR_FLAG) == AVPCodec.AVP_VENDOR_FLAG)
+			{
+				if (end - offset < 12)
+					throw new IOException("Truncated AVP header");
+				vendorId = getInt(data, offset + 8);
+				dataOffset += 4;
+			}
+
+			if (length < dataOffset - offset || length > end - offset)
+				throw new IOException("Invalid AVP length: " + length);
+
+			avps.add(new LazyAVP<Object>(data, offset, length, dataOffset, vendorId, code));
+			offset += length + 3 & -4;
+		}
+		return avps;
+	}
+
+	private static int getInt(byte[] data, int offset)
+	{
+		return (data[offset] & 0xff) << 24
+			| (data[offset + 1] & 0xff) << 16
+			| (data[offset + 2] & 0xff) << 8
+			| (data[offset + 3] & 0xff);
+	}
+
+	public int getCode()
+	{
+		return _code;
+	}
+
+	public int getVendorId()
+	{
+		return _vendorId;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public Type<T> getType()
+	{
+		if (_type == null)
+			_type = (Type<T>) AVPCodec.getType(_vendorId, _code);
+		return _type;
+	}
+
+	@Override
+	public boolean isType(Type<?> type)
+	{
+		// no dictionary lookup
+		return _code == type.getCode() && _vendorId == type.getVendorId();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public T getValue()
+	{
+		if (!_decoded)
+		{
+			_decoded = true;
+			try
+			{
+				if (getType().getDataFormat() == Common.__grouped)
+				{
+					_value = (T) decodeList(_data, _dataOffset, _offset + _length);
+					// the list may be modified
+					_raw = false;
+				}
+				else
+				{
+					Buffer data = new ByteArrayBuffer(_data, _dataOffset, _offset + _length - _dataOffset, Buffer.READONLY);
+					_value = getType().getDataFormat().decode(data);
+				}
+			}
+			catch (IOException e)
+			{
+				Log.warn("Failed to decode AVP " + getType(), e);
+			}
+		}
+		return _value;
+	}
+
+	@Override
+	public void setValue(T value)
+	{
+		super.setValue(value);
+		_decoded = true;
+		_raw = false;
+	}
+
+	/**
+	 * @return <code>true</code> if the AVP is encoded by copying its original bytes.
+	 */
+	public boolean isRaw()
+	{
+		return _raw;
+	}
+
+	Buffer encodeRaw(AbstractCodec<?> codec, Buffer buffer)
+	{
+		int padded = _length + 3 & -4;
+		buffer = codec.ensureSpace(buffer, padded);
+		buffer.put(_data, _offset, _length);
+		for (int i = _length; i < padded; i++)
+			buffer.put((byte) 0);
+		return buffer;
+	}
+}
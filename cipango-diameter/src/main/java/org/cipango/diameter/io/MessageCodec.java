@@ -37,6 +37,26 @@ public class MessageCodec extends AbstractCodec<DiameterMessage>
 	public static final int REQUEST_FLAG = 0x80;
 	public static final int PROXIABLE_FLAG = 0x40;
 	
+	private final boolean _lazy;
+	
+	public MessageCodec()
+	{
+		this(false);
+	}
+	
+	/**
+	 * @param lazy if <code>true</code>, AVPs are decoded as {@link LazyAVP}.
+	 */
+	public MessageCodec(boolean lazy)
+	{
+		_lazy = lazy;
+	}
+	
+	public boolean isLazy()
+	{
+		return _lazy;
+	}
+	
 	public DiameterMessage decode(Buffer buffer) throws IOException
 	{
 		int i = BufferUtil.getInt(buffer);
@@ -68,7 +88,15 @@ public class MessageCodec extends AbstractCodec<DiameterMessage>
 		if (isRequest)
 			((DiameterRequest) message).setUac(false);
 		
-		message.setAVPList(Common.__grouped.decode(buffer));
+		if (_lazy)
+		{
+			// copy the AVPs once so that they do not reference the read buffer
+			byte[] avps = new byte[buffer.length()];
+			buffer.get(avps, 0, avps.length);
+			message.setAVPList(LazyAVP.decodeList(avps, 0, avps.length));
+		}
+		else
+			message.setAVPList(Common.__grouped.decode(buffer));
 		return message;
 	}
 	
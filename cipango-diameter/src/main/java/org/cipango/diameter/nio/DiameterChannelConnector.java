@@ -0,0 +1,669 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.diameter.nio;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cipango.diameter.io.Codecs;
+import org.cipango.diameter.node.AbstractDiameterConnector;
+import org.cipango.diameter.node.DiameterConnection;
+import org.cipango.diameter.node.DiameterMessage;
+import org.cipango.diameter.node.Peer;
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.io.View;
+import org.eclipse.jetty.io.nio.ChannelEndPoint;
+import org.eclipse.jetty.io.nio.NIOBuffer;
+import org.eclipse.jetty.util.log.Log;
+
+/**
+ * TCP Diameter Connector using NIO.
+ * <p>
+ * Connections are multiplexed on <code>selectors</code> selector threads instead of
+ * using a thread per connection. Messages are read into buffers from the connector pool
+ * and decoded from views on these buffers, the buffers being returned to the pool when
+ * the connection has no more partial message.
+ * <p>
+ * Writes are pipelined: a message is encoded by the sending thread and queued. The first
+ * thread finding the connection idle writes all the queued messages with gathering
+ * writes, so that concurrent senders are flushed together. When the socket send buffer
+ * is full, the remaining messages are written by the selector thread once the socket is
+ * writable again, and senders do not wait.
+ */
+public class DiameterChannelConnector extends AbstractDiameterConnector
+{
+	public static final int DEFAULT_PORT = 3868;
+
+	private ServerSocketChannel _acceptChannel;
+
+	private int _selectors = 1;
+	private int _readBufferSize = 16 * 1024;
+	private int _maxWriteBatch = 64;
+	private int _maxWriteQueue = 16 * 1024;
+
+	private SelectorThread[] _selectorThreads;
+	private final AtomicInteger _nextSelector = new AtomicInteger();
+
+	@Override
+	protected void doStart() throws Exception
+	{
+		_selectorThreads = new SelectorThread[_selectors];
+		for (int i = 0; i < _selectorThreads.length; i++)
+		{
+			_selectorThreads[i] = new SelectorThread(i);
+			_selectorThreads[i].start();
+		}
+		super.doStart();
+	}
+
+	@Override
+	protected void doStop() throws Exception
+	{
+		super.doStop();
+
+		SelectorThread[] selectors = _selectorThreads;
+		_selectorThreads = null;
+		if (selectors != null)
+		{
+			for (SelectorThread selector : selectors)
+				selector.stopSelector();
+			for (SelectorThread selector : selectors)
+				selector.join(2000);
+		}
+	}
+
+	public void open() throws IOException
+	{
+		if (_acceptChannel == null || !_acceptChannel.isOpen())
+		{
+			_acceptChannel = ServerSocketChannel.open();
+			_acceptChannel.configureBlocking(true);
+			_acceptChannel.socket().setReuseAddress(true);
+			if (getHost() == null)
+				_acceptChannel.socket().bind(new InetSocketAddress(getPort()));
+			else
+				_acceptChannel.socket().bind(new InetSocketAddress(getHost(), getPort()));
+		}
+	}
+
+	public void close() throws IOException
+	{
+		if (_acceptChannel != null)
+			_acceptChannel.close();
+		_acceptChannel = null;
+	}
+
+	public Object getTransport()
+	{
+		return _acceptChannel;
+	}
+
+	public void accept(int acceptorID) throws IOException, InterruptedException
+	{
+		ServerSocketChannel acceptChannel = _acceptChannel;
+		if (acceptChannel == null || !acceptChannel.isOpen())
+			throw new ClosedChannelException();
+
+		SocketChannel channel = acceptChannel.accept();
+		configure(channel);
+		newConnection(channel);
+	}
+
+	public DiameterConnection getConnection(Peer peer) throws IOException
+	{
+		int port = peer.getPort();
+		if (port == 0)
+			port = DEFAULT_PORT;
+
+		InetSocketAddress address = peer.getAddress() != null
+				? new InetSocketAddress(peer.getAddress(), port)
+				: new InetSocketAddress(peer.getHost(), port);
+
+		SocketChannel channel = SocketChannel.open();
+		try
+		{
+			if (getLocalAddress() != null)
+				channel.socket().bind(new InetSocketAddress(getLocalAddress(), 0));
+			channel.connect(address);
+			configure(channel);
+		}
+		catch (IOException e)
+		{
+			try { channel.close(); } catch (IOException e2) { Log.ignore(e2); }
+			throw e;
+		}
+
+		Connection connection = newConnection(channel);
+		connection.setPeer(peer);
+		return connection;
+	}
+
+	protected void configure(SocketChannel channel) throws IOException
+	{
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+	}
+
+	private Connection newConnection(SocketChannel channel) throws IOException
+	{
+		SelectorThread[] selectors = _selectorThreads;
+		if (selectors == null)
+		{
+			channel.close();
+			throw new ClosedChannelException();
+		}
+		SelectorThread selector = selectors[(_nextSelector.getAndIncrement() & Integer.MAX_VALUE) % selectors.length];
+		Connection connection = new Connection(channel, selector);
+		selector.register(connection);
+		return connection;
+	}
+
+	public int getLocalPort()
+	{
+		if (_acceptChannel == null || !_acceptChannel.isOpen())
+			return -1;
+		return _acceptChannel.socket().getLocalPort();
+	}
+
+	public InetAddress getLocalAddress()
+	{
+		if (_acceptChannel == null || !_acceptChannel.isOpen())
+			return null;
+		return _acceptChannel.socket().getInetAddress();
+	}
+
+	@Override
+	protected int getDefaultPort()
+	{
+		return DEFAULT_PORT;
+	}
+
+	public int getSelectors()
+	{
+		return _selectors;
+	}
+
+	public void setSelectors(int selectors)
+	{
+		if (isRunning())
+			throw new IllegalStateException("running");
+		_selectors = selectors;
+	}
+
+	public int getReadBufferSize()
+	{
+		return _readBufferSize;
+	}
+
+	/**
+	 * Sets the size of the buffers used to read messages. Larger messages are read in
+	 * larger buffers.
+	 */
+	public void setReadBufferSize(int readBufferSize)
+	{
+		_readBufferSize = readBufferSize;
+	}
+
+	public int getMaxWriteBatch()
+	{
+		return _maxWriteBatch;
+	}
+
+	/**
+	 * Sets the maximum number of messages written by a single gathering write.
+	 */
+	public void setMaxWriteBatch(int maxWriteBatch)
+	{
+		if (isRunning())
+			throw new IllegalStateException("running");
+		_maxWriteBatch = maxWriteBatch;
+	}
+
+	public int getMaxWriteQueue()
+	{
+		return _maxWriteQueue;
+	}
+
+	/**
+	 * Sets the maximum number of messages waiting to be written on a connection. Sending
+	 * a message fails when this number is reached.
+	 */
+	public void setMaxWriteQueue(int maxWriteQueue)
+	{
+		_maxWriteQueue = maxWriteQueue;
+	}
+
+	public class Connection extends ChannelEndPoint implements DiameterConnection
+	{
+		private Peer _peer;
+		private final SelectorThread _selector;
+		private SelectionKey _key;
+
+		private Buffer _in;
+
+		private final Queue<Buffer> _queue = new ConcurrentLinkedQueue<Buffer>();
+		private final AtomicInteger _queued = new AtomicInteger();
+		private final AtomicBoolean _flushing = new AtomicBoolean();
+		private final Buffer[] _batch = new Buffer[_maxWriteBatch];
+		private final ByteBuffer[] _gather = new ByteBuffer[_maxWriteBatch];
+		private int _batchStart;
+		private int _batchEnd;
+
+		private final AtomicBoolean _closed = new AtomicBoolean();
+
+		public Connection(SocketChannel channel, SelectorThread selector) throws IOException
+		{
+			super(channel);
+			_selector = selector;
+		}
+
+		public void setPeer(Peer peer)
+		{
+			_peer = peer;
+		}
+
+		public Peer getPeer()
+		{
+			return _peer;
+		}
+
+		public void stop()
+		{
+			try { close(); } catch (IOException e) { Log.ignore(e); }
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			try
+			{
+				super.close();
+			}
+			finally
+			{
+				_selector.addChange(new Runnable()
+				{
+					public void run()
+					{
+						closed();
+					}
+				});
+			}
+		}
+
+		public void write(DiameterMessage message) throws IOException
+		{
+			if (!isOpen())
+				throw new ClosedChannelException();
+
+			if (_queued.incrementAndGet() > _maxWriteQueue)
+			{
+				_queued.decrementAndGet();
+				throw new IOException("Write queue full on " + this);
+			}
+
+			Buffer initial = getBuffer(getMessageBufferSize());
+			Buffer buffer;
+			try
+			{
+				buffer = Codecs.__message.encode(initial, message);
+			}
+			catch (IOException e)
+			{
+				_queued.decrementAndGet();
+				returnBuffer(initial);
+				throw e;
+			}
+
+			// the encoded message may not fit in the initial buffer
+			if (buffer != initial)
+				returnBuffer(initial);
+
+			_queue.offer(buffer);
+
+			if (_flushing.compareAndSet(false, true))
+			{
+				try
+				{
+					flushQueue();
+				}
+				catch (IOException e)
+				{
+					stop();
+					throw e;
+				}
+			}
+
+			sent(message, this);
+		}
+
+		/**
+		 * Writes the queued messages. Must only be called by the thread that set
+		 * <code>_flushing</code>.
+		 */
+		protected void flushQueue() throws IOException
+		{
+			while (true)
+			{
+				if (_batchStart == _batchEnd)
+				{
+					_batchStart = _batchEnd = 0;
+					Buffer buffer;
+					while (_batchEnd < _batch.length && (buffer = _queue.poll()) != null)
+					{
+						_batch[_batchEnd] = buffer;
+						_gather[_batchEnd] = toByteBuffer(buffer);
+						_batchEnd++;
+					}
+
+					if (_batchEnd == 0)
+					{
+						_flushing.set(false);
+						// a message may have been queued before _flushing was reset
+						if (_queue.isEmpty() || !_flushing.compareAndSet(false, true))
+							return;
+						continue;
+					}
+				}
+
+				((SocketChannel) _channel).write(_gather, _batchStart, _batchEnd - _batchStart);
+
+				while (_batchStart < _batchEnd && !_gather[_batchStart].hasRemaining())
+				{
+					returnBuffer(_batch[_batchStart]);
+					_batch[_batchStart] = null;
+					_gather[_batchStart] = null;
+					_batchStart++;
+					_queued.decrementAndGet();
+				}
+
+				if (_batchStart < _batchEnd)
+				{
+					// socket buffer is full, resume when writable
+					_selector.interestWrite(this);
+					return;
+				}
+			}
+		}
+
+		private ByteBuffer toByteBuffer(Buffer buffer)
+		{
+			if (buffer instanceof NIOBuffer)
+			{
+				ByteBuffer bb = ((NIOBuffer) buffer).getByteBuffer().duplicate();
+				bb.limit(buffer.putIndex());
+				bb.position(buffer.getIndex());
+				return bb;
+			}
+			return ByteBuffer.wrap(buffer.array(), buffer.getIndex(), buffer.length());
+		}
+
+		/**
+		 * Reads and handles the available messages. Called by the selector thread.
+		 */
+		protected void readable() throws IOException
+		{
+			while (true)
+			{
+				if (_in == null)
+					_in = getBuffer(_readBufferSize);
+
+				ByteBuffer bb = ByteBuffer.wrap(_in.array(), _in.putIndex(), _in.space());
+				int read = ((SocketChannel) _channel).read(bb);
+				if (read == -1)
+				{
+					stop();
+					return;
+				}
+				if (read == 0)
+					break;
+				_in.setPutIndex(_in.putIndex() + read);
+
+				parse();
+			}
+
+			if (!_in.hasContent())
+			{
+				// do not keep a buffer for idle connections
+				returnBuffer(_in);
+				_in = null;
+			}
+		}
+
+		private void parse() throws IOException
+		{
+			while (_in.length() >= 4)
+			{
+				int index = _in.getIndex();
+				int length =
+					(_in.peek(index + 1) & 0xff) << 16
+					| (_in.peek(index + 2) & 0xff) << 8
+					| (_in.peek(index + 3) & 0xff);
+
+				if (length < 20)
+					throw new IOException("Invalid message length: " + length);
+
+				if (_in.length() < length)
+				{
+					if (length > _in.capacity())
+					{
+						Buffer larger = getBuffer(length);
+						larger.put(_in);
+						returnBuffer(_in);
+						_in = larger;
+					}
+					else if (length > _in.capacity() - index)
+						_in.compact();
+					return;
+				}
+
+				View view = new View(_in, index, index, index + length, Buffer.READONLY);
+				_in.skip(length);
+
+				// decoded values do not reference the read buffer
+				DiameterMessage message = decode(view);
+				received(message, this);
+			}
+
+			if (_in.space() < 4)
+				_in.compact();
+		}
+
+		/**
+		 * Writes the queued messages once the socket is writable. Called by the selector thread.
+		 */
+		protected void writable() throws IOException
+		{
+			flushQueue();
+		}
+
+		/**
+		 * Releases the connection resources once closed. Called by the selector thread.
+		 */
+		protected void closed()
+		{
+			if (!_closed.compareAndSet(false, true))
+				return;
+
+			if (_key != null)
+				_key.cancel();
+
+			if (_in != null)
+			{
+				returnBuffer(_in);
+				_in = null;
+			}
+
+			if (_flushing.compareAndSet(false, true))
+			{
+				for (int i = _batchStart; i < _batchEnd; i++)
+				{
+					returnBuffer(_batch[i]);
+					_batch[i] = null;
+					_gather[i] = null;
+				}
+				_batchStart = _batchEnd = 0;
+
+				Buffer buffer;
+				while ((buffer = _queue.poll()) != null)
+					returnBuffer(buffer);
+			}
+
+			if (_peer != null)
+				_peer.peerDisc(this);
+		}
+
+		@Override
+		public String toString()
+		{
+			return "Connection@" + getRemoteAddr() + ":" + getRemotePort();
+		}
+	}
+
+	class SelectorThread extends Thread
+	{
+		private final Selector _selector;
+		private final Queue<Runnable> _changes = new ConcurrentLinkedQueue<Runnable>();
+		private volatile boolean _running = true;
+
+		SelectorThread(int id) throws IOException
+		{
+			super("DiameterSelector-" + id + " " + DiameterChannelConnector.this);
+			setDaemon(true);
+			_selector = Selector.open();
+		}
+
+		void addChange(Runnable change)
+		{
+			_changes.offer(change);
+			_selector.wakeup();
+		}
+
+		void register(final Connection connection)
+		{
+			addChange(new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						connection._key = ((SocketChannel) connection.getChannel()).register(_selector, SelectionKey.OP_READ, connection);
+					}
+					catch (IOException e)
+					{
+						Log.debug(e);
+						connection.stop();
+					}
+				}
+			});
+		}
+
+		void interestWrite(final Connection connection)
+		{
+			addChange(new Runnable()
+			{
+				public void run()
+				{
+					SelectionKey key = connection._key;
+					if (key != null && key.isValid())
+						key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				}
+			});
+		}
+
+		void stopSelector()
+		{
+			_running = false;
+			_selector.wakeup();
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				while (_running)
+				{
+					Runnable change;
+					while ((change = _changes.poll()) != null)
+						change.run();
+
+					_selector.select();
+
+					Iterator<SelectionKey> it = _selector.selectedKeys().iterator();
+					while (it.hasNext())
+					{
+						SelectionKey key = it.next();
+						it.remove();
+
+						Connection connection = (Connection) key.attachment();
+						try
+						{
+							if (key.isValid() && key.isWritable())
+							{
+								key.interestOps(SelectionKey.OP_READ);
+								connection.writable();
+							}
+							if (key.isValid() && key.isReadable())
+								connection.readable();
+						}
+						catch (IOException e)
+						{
+							Log.debug(e);
+							connection.stop();
+						}
+						catch (Throwable t)
+						{
+							Log.warn("handle failed", t);
+							connection.stop();
+						}
+					}
+				}
+			}
+			catch (Throwable t)
+			{
+				Log.warn(t);
+			}
+			finally
+			{
+				for (SelectionKey key : _selector.keys())
+				{
+					Connection connection = (Connection) key.attachment();
+					if (connection != null)
+					{
+						connection.stop();
+						connection.closed();
+					}
+				}
+				Runnable change;
+				while ((change = _changes.poll()) != null)
+					change.run();
+				try { _selector.close(); } catch (IOException e) { Log.ignore(e); }
+			}
+		}
+	}
+}
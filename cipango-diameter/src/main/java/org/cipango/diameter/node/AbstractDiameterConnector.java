@@ -16,10 +16,18 @@ package org.cipango.diameter.node;
 
 import java.io.IOException;
 import java.net.InetAddress;
-import java.util.ArrayList;
 import java.util.concurrent.atomic.AtomicLong;
 
+import org.cipango.diameter.AVP;
+import org.cipango.diameter.AVPList;
+import org.cipango.diameter.Dictionary;
+import org.cipango.diameter.Factory;
+import org.cipango.diameter.ResultCode;
+import org.cipango.diameter.base.Common;
+import org.cipango.diameter.io.Codecs;
+import org.cipango.diameter.io.LazyAVP;
 import org.cipango.diameter.log.DiameterMessageListener;
+import org.cipango.io.BufferPool;
 import org.eclipse.jetty.io.Buffer;
 import org.eclipse.jetty.io.ByteArrayBuffer;
 import org.eclipse.jetty.util.component.AbstractLifeCycle;
@@ -53,8 +61,10 @@ public abstract class AbstractDiameterConnector extends AbstractLifeCycle implem
 	private int _port;
 	
 	private Thread[] _acceptorThread;
-	private ArrayList<Buffer> _buffers;
+	private BufferPool _bufferPool;
+	private boolean _ownBufferPool;
 	private int _messageBufferSize = 8192;
+	private boolean _lazyDecoding;
 	
 	protected AtomicLong _messagesReceived = new AtomicLong();
 	protected AtomicLong _messagesSent = new AtomicLong();
@@ -75,10 +85,19 @@ public abstract class AbstractDiameterConnector extends AbstractLifeCycle implem
 		
 		open();
 		
-		if (_buffers != null)
-			_buffers.clear();
-		else
-			_buffers = new ArrayList<Buffer>();
+		if (_bufferPool == null)
+		{
+			// share the SIP connectors pool when linked to a server
+			if (_node.getServer() != null)
+				_bufferPool = _node.getServer().getConnectorManager().getBufferPool();
+			else
+			{
+				_bufferPool = new BufferPool();
+				_ownBufferPool = true;
+			}
+		}
+		if (_ownBufferPool)
+			_bufferPool.start();
 		
 		super.doStart();
 		
@@ -107,6 +126,9 @@ public abstract class AbstractDiameterConnector extends AbstractLifeCycle implem
 		
 		close();
 		
+		if (_ownBufferPool)
+			_bufferPool.stop();
+		
 		Thread[] acceptors = null;
         synchronized(this)
         {
@@ -159,32 +181,32 @@ public abstract class AbstractDiameterConnector extends AbstractLifeCycle implem
 	
 	public Buffer getBuffer(int size)
 	{
-		if (size == _messageBufferSize)
-		{
-			synchronized(_buffers)
-			{
-				if (_buffers.size() > 0)
-					return (Buffer) _buffers.remove(_buffers.size() - 1);
-			}
-			return newBuffer(size);
-		}
-		return newBuffer(size);
+		BufferPool pool = _bufferPool;
+		return pool != null ? pool.getBuffer(size) : newBuffer(size);
 	}
 	
 	public void returnBuffer(Buffer buffer)
 	{
-		buffer.clear();
-		if (!buffer.isVolatile() && !buffer.isImmutable())
-        {
-			int c = buffer.capacity();
-            if (c == _messageBufferSize)
-            {
-                synchronized(_buffers)
-                {
-                	_buffers.add(buffer);
-                }
-            }
-        }
+		BufferPool pool = _bufferPool;
+		if (pool != null)
+			pool.returnBuffer(buffer);
+	}
+	
+	/**
+	 * Sets the pool of the buffers used to send messages. By default, the pool of the
+	 * SIP connectors is used if the node is linked to a server. 
+	 */
+	public void setBufferPool(BufferPool bufferPool)
+	{
+		if (isRunning())
+			throw new IllegalStateException("running");
+		_bufferPool = bufferPool;
+		_ownBufferPool = false;
+	}
+	
+	public BufferPool getBufferPool()
+	{
+		return _bufferPool;
 	}
 	
 	public int getMessageBufferSize()
@@ -197,6 +219,26 @@ public abstract class AbstractDiameterConnector extends AbstractLifeCycle implem
 		return new ByteArrayBuffer(size);
 	}
 	
+	public boolean isLazyDecoding()
+	{
+		return _lazyDecoding;
+	}
+	
+	/**
+	 * If <code>true</code>, the AVPs of received messages are decoded only when read, and
+	 * forwarded AVPs not modified are copied as received.
+	 * @see LazyAVP
+	 */
+	public void setLazyDecoding(boolean lazyDecoding)
+	{
+		_lazyDecoding = lazyDecoding;
+	}
+	
+	protected DiameterMessage decode(Buffer buffer) throws IOException
+	{
+		return (_lazyDecoding ? Codecs.__lazyMessage : Codecs.__message).decode(buffer);
+	}
+	
 	public int getAcceptors()
 	{
 		return _acceptors;
@@ -241,6 +283,60 @@ public abstract class AbstractDiameterConnector extends AbstractLifeCycle implem
 		return _node;
 	}
 	
+	/**
+	 * Handles a message decoded by a connection of this connector.
+	 */
+	protected void received(DiameterMessage message, DiameterConnection connection) throws IOException
+	{
+		message.setConnection(connection);
+		message.setNode(getNode());
+		
+		if (getNode().isStatsOn())
+			_messagesReceived.incrementAndGet();
+		
+		// TODO move the following code at a better place. Need to be done before _listener.messageReceived(message, this);
+		if (!message.isRequest())
+		{
+			int code;
+			int vendorId = Common.IETF_VENDOR_ID;
+			
+			AVP<Integer> avp = message.getAVPs().get(Common.RESULT_CODE);
+			if (avp != null)
+			{
+				code = avp.getValue();
+			}
+			else
+			{
+				AVPList expRc = message.get(Common.EXPERIMENTAL_RESULT);
+				code = expRc.getValue(Common.EXPERIMENTAL_RESULT_CODE);
+				vendorId = expRc.getValue(Common.VENDOR_ID);
+			}
+			
+			ResultCode rc = Dictionary.getInstance().getResultCode(vendorId, code);
+			if (rc == null)
+				rc = Factory.newResultCode(vendorId, code, "Unknown");
+			
+			((DiameterAnswer) message).setResultCode(rc);
+		}
+		
+		if (_listener != null)
+			_listener.messageReceived(message, connection);
+		
+		getNode().receive(message);
+	}
+	
+	/**
+	 * Notifies that a message has been written by a connection of this connector.
+	 */
+	protected void sent(DiameterMessage message, DiameterConnection connection)
+	{
+		if (getNode().isStatsOn())
+			_messagesSent.incrementAndGet();
+		
+		if (_listener != null)
+			_listener.messageSent(message, connection);
+	}
+	
 	protected abstract void accept(int acceptorID) throws IOException, InterruptedException;
 	
 	protected abstract int getDefaultPort();
@@ -16,6 +16,7 @@ package org.cipango.diameter.node;
 
 import java.io.IOException;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.sip.SipApplicationSession;
 
@@ -28,14 +29,15 @@ import org.cipango.diameter.base.Common;
 import org.cipango.server.session.AppSession;
 import org.cipango.server.session.scope.ScopedAppSession;
 import org.cipango.sipapp.SipAppContext;
+import org.eclipse.jetty.util.LazyList;
 
 public class DiameterRequest extends DiameterMessage implements DiameterServletRequest
 {
-	private static int __hopId;
-	private static int __endId;
+	private static final AtomicInteger __hopId = new AtomicInteger();
+	private static final AtomicInteger __endId = new AtomicInteger();
 	
-	private static synchronized int nextHopId() { return __hopId++; }
-	private static synchronized int nextEndId() { return __endId++; }
+	private static int nextHopId() { return __hopId.getAndIncrement(); }
+	private static int nextEndId() { return __endId.getAndIncrement(); }
 
 	private SipApplicationSession _appSession;
 	
@@ -43,13 +45,15 @@ public class DiameterRequest extends DiameterMessage implements DiameterServletR
 
 	private boolean _uac;
 	
+	private Object _sentTo;
+	
 	static {
 		Random random = new Random();
-		 __hopId = Math.abs(random.nextInt());
+		 __hopId.set(Math.abs(random.nextInt()));
 		 // RFC 3588: Upon reboot implementations MAY set the high order 12 bits to
 	     // contain the low order 12 bits of current time, and the low order
 	     // 20 bits to a random value
-		__endId = (int) ((System.currentTimeMillis() & 0xFFF) << 20) + random.nextInt(0x100000);
+		__endId.set((int) ((System.currentTimeMillis() & 0xFFF) << 20) + random.nextInt(0x100000));
 	}
 	
 	public DiameterRequest() {}
@@ -127,6 +131,19 @@ public class DiameterRequest extends DiameterMessage implements DiameterServletR
 	{
 		_uac = uac;
 	}
+	
+	/**
+	 * @return <code>true</code> if the request has already been sent to <code>peer</code>.
+	 */
+	public boolean hasBeenSentTo(Peer peer)
+	{
+		return LazyList.contains(_sentTo, peer);
+	}
+	
+	void addSentTo(Peer peer)
+	{
+		_sentTo = LazyList.add(_sentTo, peer);
+	}
 	public SipAppContext getContext()
 	{
 		return _context;
@@ -33,10 +33,13 @@ import org.cipango.diameter.app.DiameterContext;
 import org.cipango.diameter.base.Common;
 import org.cipango.diameter.bio.DiameterSocketConnector;
 import org.cipango.diameter.log.BasicMessageLog;
-import org.cipango.diameter.router.DefaultRouter;
 import org.cipango.diameter.router.DiameterRouter;
+import org.cipango.diameter.router.FailoverRouter;
+import org.cipango.diameter.router.RealmRouter;
 import org.cipango.server.Server;
 import org.cipango.server.session.SessionManager.SessionScope;
+import org.cipango.util.TimerTask;
+import org.cipango.util.TimingWheel;
 import org.eclipse.jetty.util.LazyList;
 import org.eclipse.jetty.util.Loader;
 import org.eclipse.jetty.util.MultiException;
@@ -45,6 +48,8 @@ import org.eclipse.jetty.util.component.AggregateLifeCycle;
 import org.eclipse.jetty.util.component.Dumpable;
 import org.eclipse.jetty.util.component.LifeCycle;
 import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
 
 
 /**
@@ -71,6 +76,7 @@ public class Node extends AbstractLifeCycle implements DiameterHandler, Dumpable
 	public static final long DEFAULT_TW = 30000;
 	public static final long DEFAULT_TC = 30000;
 	public static final long DEFAULT_REQUEST_TIMEOUT = 10000;
+	public static final int DEFAULT_PENDING_TABLE_SIZE = 8192;
 	
 	private Server _server;
 	
@@ -96,6 +102,15 @@ public class Node extends AbstractLifeCycle implements DiameterHandler, Dumpable
 	
 	private DiameterRouter _router;
 	
+	private TimingWheel _timeouts;
+	private long _timeoutTick = 100;
+	private int _pendingTableSize = DEFAULT_PENDING_TABLE_SIZE;
+	
+	private ThreadPool _threadPool;
+	private boolean _ownThreadPool;
+	private int _dispatchLanes = 16;
+	private int _dispatchQueueSize = 10000;
+	
 	protected final AtomicLong _statsStartedAt = new AtomicLong(-1L);
 		
 	public Node()
@@ -194,7 +209,8 @@ public class Node extends AbstractLifeCycle implements DiameterHandler, Dumpable
 		if (_identity == null) 
 			_identity = InetAddress.getLocalHost().getHostName();
 		
-		_sessionManager = new SessionManager();
+		if (_sessionManager == null)
+			_sessionManager = new SessionManager();
 		
 		if (_server != null)
 			_server.getContainer().update(this, null, _sessionManager, "sessionManager");
@@ -211,8 +227,34 @@ public class Node extends AbstractLifeCycle implements DiameterHandler, Dumpable
 		
 		_scheduler = new ScheduledThreadPoolExecutor(1);
 		
+		// a single periodic task expires the requests timeouts in bulk
+		_timeouts = new TimingWheel(_timeoutTick, System.currentTimeMillis());
+		_scheduler.scheduleAtFixedRate(new Runnable()
+		{
+			public void run()
+			{
+				expireTimeouts(System.currentTimeMillis());
+			}
+		}, _timeoutTick, _timeoutTick, TimeUnit.MILLISECONDS);
+		
+		if (_threadPool == null && _dispatchQueueSize > 0)
+		{
+			// share the SIP threads when linked to a server
+			if (_server != null && _server.getSipThreadPool() != null)
+				_threadPool = _server.getSipThreadPool();
+			else
+			{
+				QueuedThreadPool threadPool = new QueuedThreadPool();
+				threadPool.setName("diameter");
+				_threadPool = threadPool;
+				_ownThreadPool = true;
+			}
+		}
+		if (_ownThreadPool && _threadPool instanceof LifeCycle)
+			((LifeCycle) _threadPool).start();
+		
 		if (_router == null)
-			_router = new DefaultRouter();
+			_router = new RealmRouter();
 		
 		if (_router instanceof LifeCycle)
 			((LifeCycle) _router).start();
@@ -262,6 +304,18 @@ public class Node extends AbstractLifeCycle implements DiameterHandler, Dumpable
 				}
 			}
 		}
+		
+		if (_ownThreadPool && _threadPool instanceof LifeCycle)
+		{
+			try
+			{
+				((LifeCycle) _threadPool).stop();
+			}
+			catch (Exception e)
+			{
+				mex.add(e);
+			}
+		}
 		mex.ifExceptionThrow();
 	}
 	
@@ -305,6 +359,13 @@ public class Node extends AbstractLifeCycle implements DiameterHandler, Dumpable
 		return _sessionManager;
 	}
 	
+	public void setSessionManager(SessionManager sessionManager)
+	{
+		if (isRunning())
+			throw new IllegalStateException("running");
+		_sessionManager = sessionManager;
+	}
+	
 	public DiameterConnection getConnection(Peer peer) throws IOException
 	{
 		return _connectors[0].getConnection(peer);
@@ -336,6 +397,74 @@ public class Node extends AbstractLifeCycle implements DiameterHandler, Dumpable
 		_router = router;
 	}
 	
+	/**
+	 * Adds a realm route to the {@link RealmRouter}, used by default.
+	 * @see RealmRouter#addRoute(String, int, String, int, int)
+	 */
+	public synchronized void addRoute(String realm, int applicationId, String host, int priority, int weight)
+	{
+		if (_router == null)
+			_router = new RealmRouter();
+		if (!(_router instanceof RealmRouter))
+			throw new IllegalStateException("Router " + _router + " does not support realm routes");
+		((RealmRouter) _router).addRoute(realm, applicationId, host, priority, weight);
+	}
+	
+	/**
+	 * Sets the thread pool used to handle the application messages. By default, the SIP
+	 * thread pool is used if the node is linked to a server.
+	 */
+	public void setThreadPool(ThreadPool threadPool)
+	{
+		if (isRunning())
+			throw new IllegalStateException("running");
+		_threadPool = threadPool;
+		_ownThreadPool = false;
+	}
+	
+	public ThreadPool getThreadPool()
+	{
+		return _threadPool;
+	}
+	
+	public int getDispatchLanes()
+	{
+		return _dispatchLanes;
+	}
+	
+	/**
+	 * Sets the number of lanes per peer. The messages of a session are always handled in
+	 * the same lane, and a lane by a single thread at a time.
+	 */
+	public void setDispatchLanes(int dispatchLanes)
+	{
+		_dispatchLanes = dispatchLanes;
+	}
+	
+	public int getDispatchQueueSize()
+	{
+		return _dispatchQueueSize;
+	}
+	
+	/**
+	 * Sets the maximum number of messages of a peer waiting to be handled, above which requests 
+	 * are rejected with DIAMETER_TOO_BUSY. If <code>0</code>, messages are handled by the thread 
+	 * that read them.
+	 */
+	public void setDispatchQueueSize(int dispatchQueueSize)
+	{
+		if (isRunning())
+			throw new IllegalStateException("running");
+		_dispatchQueueSize = dispatchQueueSize;
+	}
+	
+	protected PeerDispatcher newDispatcher(Peer peer)
+	{
+		if (_dispatchQueueSize <= 0)
+			return null;
+		return new PeerDispatcher(this, _threadPool, _dispatchLanes, _dispatchQueueSize);
+	}
+	
 	public void send(DiameterRequest request) throws IOException
 	{
 		Peer peer = _router.getRoute(request);
@@ -347,10 +476,50 @@ public class Node extends AbstractLifeCycle implements DiameterHandler, Dumpable
 			addPeer(peer);
 		}
 			
-		if (peer != null)
-			peer.send(request);
-		else
+		if (peer == null)
 			throw new IOException("Router found no peer and no destination host set");
+		
+		try
+		{
+			peer.send(request);
+		}
+		catch (IOException e)
+		{
+			if (!(_router instanceof FailoverRouter))
+				throw e;
+			((FailoverRouter) _router).sendFailed(peer, request);
+			Log.debug("Failed to send request to {}: {}", peer, e);
+			if (!failover(request))
+				throw e;
+		}
+	}
+	
+	/**
+	 * Sends a request that could not be delivered to a peer it has not been sent to yet.
+	 * @return <code>true</code> if the request has been sent to another peer.
+	 */
+	protected boolean failover(DiameterRequest request)
+	{
+		if (!(_router instanceof FailoverRouter))
+			return false;
+		
+		FailoverRouter router = (FailoverRouter) _router;
+		Peer peer = router.getFailoverRoute(request);
+		while (peer != null)
+		{
+			try
+			{
+				peer.send(request);
+				return true;
+			}
+			catch (IOException e)
+			{
+				Log.debug("Failed to send request to {}: {}", peer, e);
+				router.sendFailed(peer, request);
+				peer = router.getFailoverRoute(request);
+			}
+		}
+		return false;
 	}
 	
 	public void receive(DiameterMessage message) throws IOException
@@ -526,6 +695,86 @@ public class Node extends AbstractLifeCycle implements DiameterHandler, Dumpable
 		return _scheduler.schedule(runnable, ms, TimeUnit.MILLISECONDS);
 	}
 	
+	/**
+	 * Schedules a timeout in the timing wheel of the node. Timeouts are expired with a precision 
+	 * of <code>timeoutTick</code> ms and are not scheduled while the node is not started.
+	 * @return the task to cancel with {@link #cancelTimeout(TimerTask)}, or <code>null</code> if 
+	 * 	the node is not started.
+	 */
+	public TimerTask scheduleTimeout(Runnable timeout, long ms)
+	{
+		TimingWheel timeouts = _timeouts;
+		if (timeouts == null)
+			return null;
+		
+		TimerTask task = new TimerTask(timeout, System.currentTimeMillis() + ms);
+		synchronized (timeouts)
+		{
+			timeouts.schedule(task);
+		}
+		return task;
+	}
+	
+	public void cancelTimeout(TimerTask task)
+	{
+		TimingWheel timeouts = _timeouts;
+		if (timeouts != null && task != null)
+		{
+			synchronized (timeouts)
+			{
+				timeouts.cancel(task);
+			}
+		}
+	}
+	
+	protected void expireTimeouts(long now)
+	{
+		List<TimerTask> expired = new ArrayList<TimerTask>();
+		synchronized (_timeouts)
+		{
+			_timeouts.expire(now, expired);
+		}
+		for (int i = 0; i < expired.size(); i++)
+		{
+			TimerTask task = expired.get(i);
+			try
+			{
+				task.getRunnable().run();
+			}
+			catch (Throwable t)
+			{
+				Log.warn("Failed to expire " + task, t);
+			}
+		}
+	}
+	
+	public long getTimeoutTick()
+	{
+		return _timeoutTick;
+	}
+	
+	public void setTimeoutTick(long timeoutTick)
+	{
+		if (isRunning())
+			throw new IllegalStateException("running");
+		_timeoutTick = timeoutTick;
+	}
+	
+	public int getPendingTableSize()
+	{
+		return _pendingTableSize;
+	}
+	
+	/**
+	 * Sets the number of requests in flight per peer tracked without overflow. Should be
+	 * above the expected number of requests waiting for an answer. Applies to the peers 
+	 * added afterwards.
+	 */
+	public void setPendingTableSize(int pendingTableSize)
+	{
+		_pendingTableSize = pendingTableSize;
+	}
+	
 	public void scheduleReconnect(Peer peer)
 	{
 		schedule(new ConnectPeerTimeout(peer), _tc);
@@ -21,13 +21,16 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import org.cipango.diameter.ResultCode;
 import org.cipango.diameter.app.DiameterContext;
 import org.cipango.diameter.base.Common;
 import org.cipango.diameter.base.Common.DisconnectCause;
 import org.cipango.diameter.bio.DiameterSocketConnector;
+import org.cipango.diameter.router.FailoverRouter;
+import org.cipango.util.TimerTask;
 import org.eclipse.jetty.util.component.AggregateLifeCycle;
 import org.eclipse.jetty.util.component.Dumpable;
 import org.eclipse.jetty.util.log.Log;
@@ -49,7 +52,7 @@ public class Peer implements Dumpable
 	private DiameterConnection _rConnection;
 	private DiameterConnection _iConnection;
 	
-	private Map<Integer, Pending> _pendingRequests = new HashMap<Integer, Pending>();
+	private PendingTable<Pending> _pendingRequests = new PendingTable<Pending>(Node.DEFAULT_PENDING_TABLE_SIZE);
 	private Map<Integer, Pending> _waitingRequests = new HashMap<Integer, Pending>();
 	
 	private AtomicInteger _maxPendings = new AtomicInteger();
@@ -60,6 +63,9 @@ public class Peer implements Dumpable
 	// indicate whether the peer has been explicitly stopped
 	private boolean _stopped;
 	
+	private volatile PeerDispatcher _dispatcher;
+	private volatile boolean _dispatcherCreated;
+	
 	public Peer()
 	{
 		_state = CLOSED;
@@ -125,6 +131,8 @@ public class Peer implements Dumpable
 	public void setNode(Node node)
 	{
 		_node = node;
+		if (node != null && _pendingRequests.size() == 0)
+			_pendingRequests = new PendingTable<Pending>(node.getPendingTableSize());
 	}
 	
 	public State getState()
@@ -159,10 +167,12 @@ public class Peer implements Dumpable
 	
 	public void send(DiameterRequest request) throws IOException
 	{
+		request.addSentTo(this);
+		
 		if (!isOpen())
 		{
 			// FIXME use same timeout ???
-			synchronized (_pendingRequests)
+			synchronized (_waitingRequests)
 			{
 				_waitingRequests.put(request.getHopByHopId(), new Pending(request));
 			}
@@ -173,15 +183,27 @@ public class Peer implements Dumpable
 		if (connection == null || !connection.isOpen())
 			throw new IOException("connection not open");
 		
-		synchronized (_pendingRequests)
+		Pending pending = new Pending(request);
+		_pendingRequests.put(request.getHopByHopId(), pending);
+		
+		if (_node.isStatsOn())
 		{
-			_pendingRequests.put(request.getHopByHopId(), new Pending(request));
-			
-			if (_node.isStatsOn() && _pendingRequests.size() > _maxPendings.get())
-				_maxPendings.set(_pendingRequests.size());
-			
+			int pendings = _pendingRequests.size();
+			int max = _maxPendings.get();
+			while (pendings > max && !_maxPendings.compareAndSet(max, pendings))
+				max = _maxPendings.get();
+		}
+		try
+		{
+			connection.write(request);
+		}
+		catch (IOException e)
+		{
+			// the request may be sent to another peer
+			if (_pendingRequests.remove(request.getHopByHopId(), pending))
+				pending.cancel();
+			throw e;
 		}
-		connection.write(request);
 	}
 	
 	public void receive(DiameterMessage message) throws IOException
@@ -217,7 +239,7 @@ public class Peer implements Dumpable
 				break;
 			}
 		}
-		getNode().handle(request);
+		dispatch(request);
 	}
 	
 	protected void receiveAnswer(DiameterAnswer answer) throws IOException
@@ -238,20 +260,64 @@ public class Peer implements Dumpable
 		}
 		 
 		DiameterRequest request = null;
-		synchronized (_pendingRequests)
+		Pending pending = _pendingRequests.remove(answer.getHopByHopId());
+		// the request may have just expired
+		if (pending != null && pending.cancel())
+			request = pending.getRequest();
+		
+		answer.setRequest(request);
+		
+		if (request != null && _node.getDiameterRouter() instanceof FailoverRouter)
 		{
+			((FailoverRouter) _node.getDiameterRouter()).answerReceived(this, request, answer);
 			
-			Pending pending = _pendingRequests.remove(answer.getHopByHopId());
-			if (pending != null)
+			ResultCode rc = answer.getResultCode();
+			if (rc != null && !rc.isExperimentalResultCode() 
+					&& rc.getCode() == Common.DIAMETER_UNABLE_TO_DELIVER_ORDINAL
+					&& request.isUac() && _node.failover(request))
 			{
-				pending.cancel();
-				request = pending.getRequest();
+				Log.debug("Request {} not delivered by {}, sent to another peer", request.getCommand(), this);
+				return;
 			}
 		}
 		
-		answer.setRequest(request);
-		
-		getNode().handle(answer);
+		dispatch(answer);
+	}
+	
+	/**
+	 * Hands an application message over to the peer dispatcher. Base protocol messages
+	 * are not dispatched but handled by the thread that read them.
+	 */
+	protected void dispatch(DiameterMessage message) throws IOException
+	{
+		PeerDispatcher dispatcher = getDispatcher();
+		if (dispatcher == null)
+		{
+			getNode().handle(message);
+			return;
+		}
+		if (!dispatcher.dispatch(message))
+		{
+			// only requests are rejected, answers are queued in their session lane
+			Log.debug("Too many messages waiting on peer {}, rejecting {}", this, message.getCommand());
+			((DiameterRequest) message).createAnswer(Common.DIAMETER_TOO_BUSY).send();
+		}
+	}
+	
+	public PeerDispatcher getDispatcher()
+	{
+		if (!_dispatcherCreated)
+		{
+			synchronized (this)
+			{
+				if (!_dispatcherCreated && _node != null)
+				{
+					_dispatcher = _node.newDispatcher(this);
+					_dispatcherCreated = true;
+				}
+			}
+		}
+		return _dispatcher;
 	}
 	
 	protected void receiveDWR(DiameterRequest dwr)
@@ -288,7 +354,7 @@ public class Peer implements Dumpable
 		}
 			
 
-		synchronized (_pendingRequests)
+		synchronized (_waitingRequests)
 		{
 			try
 			{
@@ -516,10 +582,15 @@ public class Peer implements Dumpable
     
     public int getPendings()
     {
-    	synchronized (_pendingRequests)
-		{
-        	return _pendingRequests.size();
-		}
+    	return _pendingRequests.size();
+    }
+    
+    /**
+     * @return the number of pending requests that did not fit in the pending table.
+     */
+    public int getPendingOverflows()
+    {
+    	return _pendingRequests.getOverflowSize();
     }
     
     public int getMaxPendings()
@@ -529,15 +600,60 @@ public class Peer implements Dumpable
     
     public int getWaitings()
     {
-    	synchronized (_pendingRequests)
+    	synchronized (_waitingRequests)
 		{
         	return _waitingRequests.size();
 		}
     }
     
+    /**
+     * @return the number of application messages waiting to be handled.
+     */
+    public int getDispatchQueued()
+    {
+    	PeerDispatcher dispatcher = _dispatcher;
+    	return dispatcher == null ? 0 : dispatcher.getQueued();
+    }
+    
+    public int getDispatchMaxQueued()
+    {
+    	PeerDispatcher dispatcher = _dispatcher;
+    	return dispatcher == null ? 0 : dispatcher.getMaxQueued();
+    }
+    
+    /**
+     * @return the number of requests rejected as too many messages were waiting.
+     */
+    public long getDispatchRejected()
+    {
+    	PeerDispatcher dispatcher = _dispatcher;
+    	return dispatcher == null ? 0 : dispatcher.getRejected();
+    }
+    
+    public double getDispatchWaitTimeAvg()
+    {
+    	PeerDispatcher dispatcher = _dispatcher;
+    	return dispatcher == null ? 0 : dispatcher.getWaitTimeAvg();
+    }
+    
+    public double getHandleTimeAvg()
+    {
+    	PeerDispatcher dispatcher = _dispatcher;
+    	return dispatcher == null ? 0 : dispatcher.getHandleTimeAvg();
+    }
+    
+    public double getHandleTimeMax()
+    {
+    	PeerDispatcher dispatcher = _dispatcher;
+    	return dispatcher == null ? 0 : dispatcher.getHandleTimeMax();
+    }
+    
     public void statsReset() 
     {
     	_maxPendings.set(0);
+    	PeerDispatcher dispatcher = _dispatcher;
+    	if (dispatcher != null)
+    		dispatcher.statsReset();
     }
     
 	public String dump()
@@ -852,39 +968,54 @@ public class Peer implements Dumpable
 	
 	class Pending implements Runnable
 	{
-		private DiameterRequest _request;
-		private ScheduledFuture<?> _timeout;
+		private final DiameterRequest _request;
+		private final AtomicBoolean _done = new AtomicBoolean();
+		private final TimerTask _timeout;
 		
 		public Pending(DiameterRequest request)
 		{
 			_request = request;
-			_timeout = _node.schedule(this, _node.getRequestTimeout());
+			_timeout = _node.scheduleTimeout(this, _node.getRequestTimeout());
 		}
 		
-		public void cancel()
-		{
-			_timeout.cancel(false);
-		}
-
 		public DiameterRequest getRequest()
 		{
 			return _request;
 		}
 		
+		/**
+		 * @return <code>true</code> if the request was cancelled before it expired.
+		 */
+		public boolean cancel()
+		{
+			if (!_done.compareAndSet(false, true))
+				return false;
+			_node.cancelTimeout(_timeout);
+			return true;
+		}
+		
 		public void run()
 		{
+			if (!_done.compareAndSet(false, true))
+				return;
+			
 			Log.debug("Diameter request timeout for {}", _request);
-			// FIXME should not use class cast
-			if (_node.getHandler() instanceof DiameterContext)
-				((DiameterContext) _node.getHandler()).fireNoAnswerReceived(_request, _node.getRequestTimeout());
 			
-			synchronized (_pendingRequests)
+			int id = _request.getHopByHopId();
+			if (!_pendingRequests.remove(id, this))
 			{
-				Pending p = _pendingRequests.remove(_request.getHopByHopId());
-				if (p == null)
-					_waitingRequests.remove(_request.getHopByHopId());
+				synchronized (_waitingRequests)
+				{
+					_waitingRequests.remove(id);
+				}
 			}
 			
+			if (_node.getDiameterRouter() instanceof FailoverRouter)
+				((FailoverRouter) _node.getDiameterRouter()).noAnswerReceived(Peer.this, _request);
+			
+			// FIXME should not use class cast
+			if (_node.getHandler() instanceof DiameterContext)
+				((DiameterContext) _node.getHandler()).fireNoAnswerReceived(_request, _node.getRequestTimeout());
 		}
 	}
 }
@@ -0,0 +1,246 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.diameter.node;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+/**
+ * Hands the application messages received from a peer over to a thread pool, so that a
+ * slow handler does not delay the other messages read on the peer connection.
+ * <p>
+ * Messages are spread on lanes by Session-Id. A lane is handled by at most one thread at
+ * a time, so the messages of a session are handled in the order they were received.
+ * The number of requests waiting in the lanes of a peer is bounded: when the bound is
+ * reached, {@link #dispatch(DiameterMessage)} returns <code>false</code> and the caller
+ * decides how to reject the request. Answers are always queued, even over the bound, as
+ * handling them elsewhere would break the order of their session.
+ */
+public class PeerDispatcher
+{
+	private static final int MAX_BATCH = 32;
+
+	private final Node _node;
+	private final ThreadPool _threadPool;
+	private final int _maxQueued;
+	private final Lane[] _lanes;
+
+	private final AtomicInteger _queued = new AtomicInteger();
+	private final AtomicInteger _maxQueuedReached = new AtomicInteger();
+	private final AtomicLong _dispatched = new AtomicLong();
+	private final AtomicLong _rejected = new AtomicLong();
+	private final AtomicLong _handled = new AtomicLong();
+	private final AtomicLong _waitTime = new AtomicLong();
+	private final AtomicLong _handleTime = new AtomicLong();
+	private final AtomicLong _maxHandleTime = new AtomicLong();
+
+	/**
+	 * @param lanes number of lanes, rounded up to a power of two.
+	 */
+	public PeerDispatcher(Node node, ThreadPool threadPool, int lanes, int maxQueued)
+	{
+		_node = node;
+		_threadPool = threadPool;
+		_maxQueued = maxQueued;
+
+		int size = lanes <= 1 ? 1 : Integer.highestOneBit(lanes - 1) << 1;
+		_lanes = new Lane[size];
+		for (int i = 0; i < size; i++)
+			_lanes[i] = new Lane();
+	}
+
+	/**
+	 * Queues the message to be handled by the node.
+	 * @return <code>false</code> if the message is a request and too many messages are waiting
+	 * 	to be handled.
+	 */
+	public boolean dispatch(DiameterMessage message)
+	{
+		int queued = _queued.incrementAndGet();
+		if (queued > _maxQueued && message.isRequest())
+		{
+			_queued.decrementAndGet();
+			_rejected.incrementAndGet();
+			return false;
+		}
+
+		int max = _maxQueuedReached.get();
+		while (queued > max && !_maxQueuedReached.compareAndSet(max, queued))
+			max = _maxQueuedReached.get();
+
+		_dispatched.incrementAndGet();
+		_lanes[lane(message)].offer(new Entry(message));
+		return true;
+	}
+
+	int lane(DiameterMessage message)
+	{
+		String sessionId = message.getSessionId();
+		int hash = sessionId != null ? sessionId.hashCode() : message.getHopByHopId();
+		hash ^= (hash >>> 16);
+		return hash & (_lanes.length - 1);
+	}
+
+	protected void handle(Entry entry)
+	{
+		long start = System.nanoTime();
+		_waitTime.addAndGet(start - entry._queuedAt);
+		try
+		{
+			_node.handle(entry._message);
+		}
+		catch (Throwable t)
+		{
+			Log.warn("Failed to handle message " + entry._message.getCommand(), t);
+		}
+		finally
+		{
+			long time = System.nanoTime() - start;
+			_handleTime.addAndGet(time);
+			long max = _maxHandleTime.get();
+			while (time > max && !_maxHandleTime.compareAndSet(max, time))
+				max = _maxHandleTime.get();
+			_handled.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return the number of messages waiting to be handled.
+	 */
+	public int getQueued()
+	{
+		return _queued.get();
+	}
+
+	public int getMaxQueued()
+	{
+		return _maxQueuedReached.get();
+	}
+
+	public long getDispatched()
+	{
+		return _dispatched.get();
+	}
+
+	public long getRejected()
+	{
+		return _rejected.get();
+	}
+
+	public long getHandled()
+	{
+		return _handled.get();
+	}
+
+	/**
+	 * @return the average time in milliseconds a message waited before being handled.
+	 */
+	public double getWaitTimeAvg()
+	{
+		long handled = _handled.get();
+		return handled == 0 ? 0 : _waitTime.get() / 1e6 / handled;
+	}
+
+	/**
+	 * @return the average time in milliseconds spent in the handler.
+	 */
+	public double getHandleTimeAvg()
+	{
+		long handled = _handled.get();
+		return handled == 0 ? 0 : _handleTime.get() / 1e6 / handled;
+	}
+
+	/**
+	 * @return the maximum time in milliseconds spent in the handler.
+	 */
+	public double getHandleTimeMax()
+	{
+		return _maxHandleTime.get() / 1e6;
+	}
+
+	public void statsReset()
+	{
+		_maxQueuedReached.set(_queued.get());
+		_dispatched.set(0);
+		_rejected.set(0);
+		_handled.set(0);
+		_waitTime.set(0);
+		_handleTime.set(0);
+		_maxHandleTime.set(0);
+	}
+
+	static class Entry
+	{
+		final DiameterMessage _message;
+		final long _queuedAt = System.nanoTime();
+
+		Entry(DiameterMessage message)
+		{
+			_message = message;
+		}
+	}
+
+	class Lane implements Runnable
+	{
+		private final Queue<Entry> _queue = new ConcurrentLinkedQueue<Entry>();
+		private final AtomicBoolean _scheduled = new AtomicBoolean();
+
+		void offer(Entry entry)
+		{
+			_queue.offer(entry);
+			schedule();
+		}
+
+		private void schedule()
+		{
+			if (_scheduled.compareAndSet(false, true))
+			{
+				if (_threadPool == null || !_threadPool.dispatch(this))
+				{
+					Log.debug("No thread available, handling messages in current thread");
+					run();
+				}
+			}
+		}
+
+		public void run()
+		{
+			try
+			{
+				// give the thread back after a batch to be fair with other lanes
+				for (int i = 0; i < MAX_BATCH; i++)
+				{
+					Entry entry = _queue.poll();
+					if (entry == null)
+						break;
+					_queued.decrementAndGet();
+					handle(entry);
+				}
+			}
+			finally
+			{
+				_scheduled.set(false);
+				if (!_queue.isEmpty())
+					schedule();
+			}
+		}
+	}
+}
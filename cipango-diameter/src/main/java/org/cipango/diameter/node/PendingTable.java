@@ -0,0 +1,161 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.diameter.node;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free table of pending requests indexed by hop-by-hop identifier.
+ * <p>
+ * Hop-by-hop identifiers are allocated sequentially, so the requests in flight have
+ * consecutive identifiers and are spread without collision on an array indexed by the
+ * low bits of the identifier. A request is stored in the first free slot within
+ * <code>MAX_PROBES</code> slots of its index, the others go to an overflow map. Slots
+ * are updated with compare and set, so that neither insertion, lookup nor removal
+ * takes a lock.
+ */
+public class PendingTable<T>
+{
+	private static final int MAX_PROBES = 16;
+
+	private final AtomicReferenceArray<Entry<T>> _entries;
+	private final int _mask;
+	private final Map<Integer, T> _overflow = new ConcurrentHashMap<Integer, T>();
+	private final AtomicInteger _overflowSize = new AtomicInteger();
+	private final AtomicInteger _size = new AtomicInteger();
+
+	/**
+	 * @param capacity number of requests in flight held without overflow, rounded up to
+	 * 	a power of two.
+	 */
+	public PendingTable(int capacity)
+	{
+		int size = capacity <= 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+		_entries = new AtomicReferenceArray<Entry<T>>(size);
+		_mask = size - 1;
+	}
+
+	public void put(int id, T value)
+	{
+		Entry<T> entry = new Entry<T>(id, value);
+		for (int i = 0; i < MAX_PROBES; i++)
+		{
+			if (_entries.compareAndSet((id + i) & _mask, null, entry))
+			{
+				_size.incrementAndGet();
+				return;
+			}
+		}
+		_overflowSize.incrementAndGet();
+		_overflow.put(id, value);
+		_size.incrementAndGet();
+	}
+
+	public T get(int id)
+	{
+		for (int i = 0; i < MAX_PROBES; i++)
+		{
+			Entry<T> entry = _entries.get((id + i) & _mask);
+			if (entry != null && entry._id == id)
+				return entry._value;
+		}
+		return _overflowSize.get() == 0 ? null : _overflow.get(id);
+	}
+
+	/**
+	 * Removes the value associated to <code>id</code>.
+	 * @return the removed value or <code>null</code> if none.
+	 */
+	public T remove(int id)
+	{
+		for (int i = 0; i < MAX_PROBES; i++)
+		{
+			int index = (id + i) & _mask;
+			Entry<T> entry = _entries.get(index);
+			if (entry != null && entry._id == id && _entries.compareAndSet(index, entry, null))
+			{
+				_size.decrementAndGet();
+				return entry._value;
+			}
+		}
+		if (_overflowSize.get() != 0)
+		{
+			T value = _overflow.remove(id);
+			if (value != null)
+			{
+				_overflowSize.decrementAndGet();
+				_size.decrementAndGet();
+				return value;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Removes the value associated to <code>id</code> only if it is <code>value</code>.
+	 */
+	public boolean remove(int id, T value)
+	{
+		for (int i = 0; i < MAX_PROBES; i++)
+		{
+			int index = (id + i) & _mask;
+			Entry<T> entry = _entries.get(index);
+			if (entry != null && entry._id == id && entry._value == value)
+			{
+				if (_entries.compareAndSet(index, entry, null))
+				{
+					_size.decrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		}
+		if (_overflowSize.get() != 0 && _overflow.remove(id, value))
+		{
+			_overflowSize.decrementAndGet();
+			_size.decrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	public int size()
+	{
+		return _size.get();
+	}
+
+	/**
+	 * @return the number of requests that did not find a free slot.
+	 */
+	public int getOverflowSize()
+	{
+		return _overflowSize.get();
+	}
+
+	static class Entry<T>
+	{
+		final int _id;
+		final T _value;
+
+		Entry(int id, T value)
+		{
+			_id = id;
+			_value = value;
+		}
+	}
+}
@@ -48,7 +48,8 @@ public class Session implements DiameterSession
 	private SipApplicationSession _appSession;
 	private SipAppContext _context;
 	
-	private boolean _valid = true;
+	private volatile boolean _valid = true;
+	private volatile long _lastAccessed = System.currentTimeMillis();
 	
 	private Map<String, Object> _attributes;
 		
@@ -65,6 +66,11 @@ public class Session implements DiameterSession
 			return new ScopedAppSession((AppSession) _appSession);
 		return _appSession;
 	}
+	
+	public SipAppContext getContext()
+	{
+		return _context;
+	}
 
 	public void setApplicationId(ApplicationId appId)
 	{
@@ -88,6 +94,7 @@ public class Session implements DiameterSession
 	public DiameterRequest createRequest(DiameterCommand command, boolean maintained)
 	{
 		checkValid();
+		access();
 		
 		DiameterRequest request = new DiameterRequest(_node, command, _appId.getId(), _sessionId);
 		request.getAVPs().add(Common.DESTINATION_REALM, _destinationRealm);
@@ -140,13 +147,41 @@ public class Session implements DiameterSession
 		return _valid;
 	}
 	
+	/**
+	 * @return the last time in milliseconds a message of this session was sent or received.
+	 */
+	public long getLastAccessedTime()
+	{
+		return _lastAccessed;
+	}
+	
+	void access()
+	{
+		_lastAccessed = System.currentTimeMillis();
+	}
+	
 	public void invalidate()
 	{
-		checkValid();
-		_valid = false;
+		synchronized (this)
+		{
+			checkValid();
+			_valid = false;
+		}
 		_node.getSessionManager().removeSession(this);
 	}
 	
+	/**
+	 * Invalidates the session if still valid.
+	 * @return <code>true</code> if the session has been invalidated.
+	 */
+	synchronized boolean expire()
+	{
+		if (!_valid)
+			return false;
+		_valid = false;
+		return true;
+	}
+	
 	private void checkValid()
 	{
 		if (!_valid)
@@ -14,45 +14,95 @@
 
 package org.cipango.diameter.node;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.sip.SipApplicationSession;
 
+import org.cipango.diameter.app.DiameterContext;
 import org.cipango.server.session.AppSessionIf;
 import org.cipango.server.session.CallSession;
 import org.cipango.server.session.SessionManager.SessionScope;
+import org.eclipse.jetty.util.log.Log;
 import org.eclipse.jetty.util.statistic.CounterStatistic;
 
+/**
+ * Diameter sessions of a node.
+ * <p>
+ * Sessions are kept in a concurrent map split in <code>concurrencyLevel</code> segments so
+ * that looking up the session of each received message does not contend with sessions
+ * being created or removed.
+ * <p>
+ * If <code>idleTimeout</code> is set, sessions not accessed for that time are invalidated.
+ * Accessing a session only records the access time: the session idle timeout is
+ * scheduled in the node timing wheel and, when it expires, is scheduled again for the
+ * remaining time if the session has been accessed in between. The expiry of a session
+ * thus costs a single timeout entry whatever the number of messages of the session.
+ * The application is notified of expired sessions through the 
+ * {@link org.cipango.diameter.api.DiameterSessionListener}s, no termination request is sent.
+ */
 public class SessionManager 
 {
 	private long _startTimestamp = ((System.currentTimeMillis() / 1000) & 0xffffffffl);
-	private long _id;
+	private final AtomicLong _id = new AtomicLong();
 	
 	private Node _node;
-	private Map<String, Session> _sessions = new HashMap<String, Session>();
+	private ConcurrentMap<String, Session> _sessions;
+	private long _idleTimeout;
 	
 	private CounterStatistic _sessionsCounter = new CounterStatistic();
+	private final AtomicLong _created = new AtomicLong();
+	private final AtomicLong _removed = new AtomicLong();
+	private final AtomicLong _expired = new AtomicLong();
+
+	public SessionManager()
+	{
+		this(16);
+	}
+
+	/**
+	 * @param concurrencyLevel the estimated number of threads updating sessions concurrently.
+	 */
+	public SessionManager(int concurrencyLevel)
+	{
+		_sessions = new ConcurrentHashMap<String, Session>(1024, 0.75f, concurrencyLevel);
+	}
 	
 	public Session createSession(DiameterRequest request)
 	{
 		Session diameterSession = new Session(request.getApplicationSession(), request.getSessionId(), request.getContext());
-		synchronized (_sessions)
+		diameterSession.setNode(_node);
+
+		Session previous = _sessions.put(diameterSession.getId(), diameterSession);
+		if (previous != null)
+			Log.debug("Replaced Diameter session {}", previous.getId());
+		if (_node.isStatsOn())
 		{
-			_sessions.put(diameterSession.getId(), diameterSession);
-			if (_node.isStatsOn())
-				_sessionsCounter.increment();
+			_created.incrementAndGet();
+			_sessionsCounter.increment();
+			if (previous != null)
+			{
+				_removed.incrementAndGet();
+				_sessionsCounter.decrement();
+			}
 		}
-		diameterSession.setNode(_node);
+
+		long idleTimeout = _idleTimeout;
+		if (idleTimeout > 0)
+			scheduleIdleTimeout(new IdleTimeout(diameterSession, idleTimeout), idleTimeout);
 		return diameterSession;
 	}
 		
+	/**
+	 * Returns the session with the given id and records its access.
+	 */
 	public Session get(String id)
 	{
-		synchronized(_sessions)
-		{
-			return _sessions.get(id);
-		}
+		Session session = _sessions.get(id);
+		if (session != null)
+			session.access();
+		return session;
 	}
 		
 	public SessionScope openScope(SipApplicationSession session)
@@ -68,17 +118,34 @@ public class SessionManager
 		
 	public void removeSession(Session session)
 	{
-		synchronized(_sessions)
+		if (_sessions.remove(session.getId(), session) && _node.isStatsOn())
 		{
-			_sessions.remove(session.getId());
-			if (_node.isStatsOn())
-				_sessionsCounter.decrement();
+			_removed.incrementAndGet();
+			_sessionsCounter.decrement();
 		}
 	}
 	
-	protected synchronized String newSessionId()
+	protected void expire(Session session)
+	{
+		if (session.expire())
+		{
+			Log.debug("Diameter session {} expired", session.getId());
+			if (_node.isStatsOn())
+				_expired.incrementAndGet();
+			removeSession(session);
+			if (_node.getHandler() instanceof DiameterContext)
+				((DiameterContext) _node.getHandler()).fireSessionExpired(session);
+		}
+	}
+
+	protected void scheduleIdleTimeout(Runnable timeout, long ms)
+	{
+		_node.scheduleTimeout(timeout, ms);
+	}
+
+	protected String newSessionId()
 	{
-		return _node.getIdentity() + ";" + _startTimestamp + ";" + (++_id);
+		return _node.getIdentity() + ";" + _startTimestamp + ";" + _id.incrementAndGet();
 	}
 	
 	public void setNode(Node node)
@@ -86,9 +153,23 @@ public class SessionManager
 		_node = node;
 	}
 	
+	public long getIdleTimeout()
+	{
+		return _idleTimeout;
+	}
+
+	/**
+	 * Sets the time in milliseconds after which a session not accessed is invalidated.
+	 * If <code>0</code>, sessions do not expire. Applies to the sessions created afterwards.
+	 */
+	public void setIdleTimeout(long idleTimeout)
+	{
+		_idleTimeout = idleTimeout;
+	}
+
 	public long getCurrentSessions()
 	{
-		return _sessionsCounter.getCurrent();
+		return _sessions.size();
 	}
 	
 	public long getMaxSessions()
@@ -101,9 +182,59 @@ public class SessionManager
 		return _sessionsCounter.getTotal();
 	}
 	
+	/**
+	 * @return the number of sessions created since last reset.
+	 */
+	public long getSessionsCreated()
+	{
+		return _created.get();
+	}
+
+	/**
+	 * @return the number of sessions invalidated or expired since last reset.
+	 */
+	public long getSessionsRemoved()
+	{
+		return _removed.get();
+	}
+
+	/**
+	 * @return the number of sessions expired since last reset.
+	 */
+	public long getSessionsExpired()
+	{
+		return _expired.get();
+	}
+
 	public void statsReset()
     {
-        _sessionsCounter.reset();
+        _sessionsCounter.reset(_sessions.size());
+        _created.set(0);
+        _removed.set(0);
+        _expired.set(0);
     }
 	
+	class IdleTimeout implements Runnable
+	{
+		private final Session _session;
+		private final long _idleTimeout;
+
+		IdleTimeout(Session session, long idleTimeout)
+		{
+			_session = session;
+			_idleTimeout = idleTimeout;
+		}
+
+		public void run()
+		{
+			if (!_session.isValid())
+				return;
+
+			long idle = System.currentTimeMillis() - _session.getLastAccessedTime();
+			if (idle >= _idleTimeout)
+				expire(_session);
+			else
+				scheduleIdleTimeout(new IdleTimeout(_session, _idleTimeout), _idleTimeout - idle);
+		}
+	}
 }
@@ -0,0 +1,50 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+package org.cipango.diameter.router;
+
+import org.cipango.diameter.node.DiameterAnswer;
+import org.cipango.diameter.node.DiameterRequest;
+import org.cipango.diameter.node.Peer;
+
+/**
+ * Router informed of the outcome of the requests sent to the peers it selected, so that
+ * requests that could not be delivered are sent to another peer.
+ */
+public interface FailoverRouter extends DiameterRouter
+{
+	/**
+	 * Returns a peer to send again a request that could not be delivered.
+	 *
+	 * @param request the request that could not be delivered.
+	 * @return an open peer the request has not been sent to yet or <code>null</code> if none.
+	 * @see DiameterRequest#hasBeenSentTo(Peer)
+	 */
+	public Peer getFailoverRoute(DiameterRequest request);
+
+	/**
+	 * Called when the request could not be written to the peer.
+	 */
+	public void sendFailed(Peer peer, DiameterRequest request);
+
+	/**
+	 * Called when an answer to a request sent by this node is received from the peer.
+	 */
+	public void answerReceived(Peer peer, DiameterRequest request, DiameterAnswer answer);
+
+	/**
+	 * Called when no answer to a request sent by this node has been received from the peer
+	 * before the request timeout.
+	 */
+	public void noAnswerReceived(Peer peer, DiameterRequest request);
+}
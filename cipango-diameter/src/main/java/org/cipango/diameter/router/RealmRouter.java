@@ -0,0 +1,503 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+package org.cipango.diameter.router;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cipango.diameter.ResultCode;
+import org.cipango.diameter.base.Common;
+import org.cipango.diameter.node.DiameterAnswer;
+import org.cipango.diameter.node.DiameterRequest;
+import org.cipango.diameter.node.Peer;
+import org.eclipse.jetty.util.log.Log;
+
+/**
+ * Router using a realm-based routing table as defined in RFC 6733 section 2.7.
+ * <p>
+ * Requests with a Destination-Host are sent to that peer if it is open. Other requests are
+ * routed on Destination-Realm and application id to one of the peers of the matching
+ * route entries. A route with the Relay application id matches all applications and a
+ * route with the realm <code>*</code> is the default route.
+ * <p>
+ * The peers of the lowest priority value are used first. Among them, the open peer with
+ * the least pending requests relative to its weight is selected. Requests that could not
+ * be written to a peer or answered with DIAMETER_UNABLE_TO_DELIVER are sent to another
+ * peer. A peer with <code>failureThreshold</code> consecutive failures (transport failure,
+ * DIAMETER_UNABLE_TO_DELIVER, DIAMETER_TOO_BUSY or no answer) is not used for
+ * <code>openTime</code> ms, then a single request is sent to it to probe whether it
+ * recovered.
+ * <p>
+ * Routes may be added and removed while running.
+ */
+public class RealmRouter implements FailoverRouter
+{
+	public static final int ANY_APPLICATION = 0xffffffff;
+	public static final String DEFAULT_REALM = "*";
+
+	private static final long WEIGHT_SCALE = 1000;
+
+	private final Map<String, PeerState> _peers = new ConcurrentHashMap<String, PeerState>();
+	private final List<Route> _routeList = new ArrayList<Route>();
+	private volatile Map<String, RealmRoutes> _realms = Collections.emptyMap();
+	private final AtomicInteger _next = new AtomicInteger();
+
+	private int _failureThreshold = 5;
+	private long _openTime = 30000;
+
+	public Peer getRoute(DiameterRequest request)
+	{
+		Peer hostPeer = null;
+		String host = request.getDestinationHost();
+		if (host != null)
+		{
+			PeerState state = _peers.get(host);
+			if (state != null)
+				hostPeer = state._peer;
+			if (hostPeer != null && hostPeer.isOpen())
+				return hostPeer;
+		}
+		Peer peer = getRealmRoute(request);
+		return peer != null ? peer : hostPeer;
+	}
+
+	public Peer getFailoverRoute(DiameterRequest request)
+	{
+		return getRealmRoute(request);
+	}
+
+	protected Peer getRealmRoute(DiameterRequest request)
+	{
+		String realm = request.getDestinationRealm();
+		if (realm == null)
+			return null;
+
+		Route[] routes = getRoutes(realm, request.getApplicationId());
+		if (routes == null)
+			return null;
+		return select(routes, request);
+	}
+
+	protected Route[] getRoutes(String realm, int applicationId)
+	{
+		Map<String, RealmRoutes> realms = _realms;
+		RealmRoutes routes = realms.get(realm);
+		if (routes == null)
+			routes = realms.get(realm.toLowerCase(Locale.ENGLISH));
+		if (routes != null)
+		{
+			Route[] r = routes.get(applicationId);
+			if (r != null)
+				return r;
+		}
+		routes = realms.get(DEFAULT_REALM);
+		return routes == null ? null : routes.get(applicationId);
+	}
+
+	/**
+	 * Selects in the routes, sorted by priority, the least loaded available peer the request
+	 * has not been sent to.
+	 */
+	protected Peer select(Route[] routes, DiameterRequest request)
+	{
+		long now = System.currentTimeMillis();
+		// rotate the first peer examined so that peers with the same load share the traffic
+		int start = _next.getAndIncrement() & Integer.MAX_VALUE;
+
+		int i = 0;
+		while (i < routes.length)
+		{
+			int end = i + 1;
+			while (end < routes.length && routes[end]._priority == routes[i]._priority)
+				end++;
+			int n = end - i;
+
+			PeerState best = null;
+			Peer bestPeer = null;
+			long bestLoad = Long.MAX_VALUE;
+			for (int j = 0; j < n; j++)
+			{
+				Route route = routes[i + (start + j) % n];
+				PeerState state = _peers.get(route._host);
+				if (state == null)
+					continue;
+				Peer peer = state._peer;
+				if (peer == null || !peer.isOpen() || request.hasBeenSentTo(peer) || !state.isAvailable(now))
+					continue;
+
+				long load = (peer.getPendings() + 1L) * WEIGHT_SCALE / route._weight;
+				if (load < bestLoad)
+				{
+					best = state;
+					bestPeer = peer;
+					bestLoad = load;
+				}
+			}
+			if (best != null && best.acquire(now))
+				return bestPeer;
+			i = end;
+		}
+		return null;
+	}
+
+	public void sendFailed(Peer peer, DiameterRequest request)
+	{
+		failure(peer);
+	}
+
+	public void answerReceived(Peer peer, DiameterRequest request, DiameterAnswer answer)
+	{
+		ResultCode rc = answer.getResultCode();
+		if (rc != null && !rc.isExperimentalResultCode()
+				&& (rc.getCode() == Common.DIAMETER_UNABLE_TO_DELIVER_ORDINAL
+						|| rc.getCode() == Common.DIAMETER_TOO_BUSY_ORDINAL))
+			failure(peer);
+		else
+			success(peer);
+	}
+
+	public void noAnswerReceived(Peer peer, DiameterRequest request)
+	{
+		failure(peer);
+	}
+
+	protected void success(Peer peer)
+	{
+		PeerState state = _peers.get(peer.getHost());
+		if (state != null)
+			state.success();
+	}
+
+	protected void failure(Peer peer)
+	{
+		PeerState state = _peers.get(peer.getHost());
+		if (state != null)
+			state.failure(System.currentTimeMillis());
+	}
+
+	public void peerAdded(Peer peer)
+	{
+		PeerState state = _peers.get(peer.getHost());
+		if (state == null)
+			_peers.put(peer.getHost(), new PeerState(peer));
+		else
+			state._peer = peer;
+	}
+
+	public void peerRemoved(Peer peer)
+	{
+		_peers.remove(peer.getHost());
+	}
+
+	/**
+	 * Adds a route entry.
+	 *
+	 * @param realm the destination realm or <code>*</code> for the default route.
+	 * @param applicationId the application id or {@link #ANY_APPLICATION}.
+	 * @param host the identity of the peer.
+	 * @param priority the peers with the lowest value are used first.
+	 * @param weight the relative share of the requests sent to the peer among the peers of
+	 * 	the same priority.
+	 */
+	public void addRoute(String realm, int applicationId, String host, int priority, int weight)
+	{
+		if (weight <= 0)
+			throw new IllegalArgumentException("weight: " + weight);
+		synchronized (_routeList)
+		{
+			removeRoute(realm, applicationId, host);
+			_routeList.add(new Route(realm.toLowerCase(Locale.ENGLISH), applicationId, host, priority, weight));
+			updateRoutes();
+		}
+	}
+
+	public void addRoute(String realm, String host)
+	{
+		addRoute(realm, ANY_APPLICATION, host, 0, 1);
+	}
+
+	public void removeRoute(String realm, int applicationId, String host)
+	{
+		synchronized (_routeList)
+		{
+			Iterator<Route> it = _routeList.iterator();
+			while (it.hasNext())
+			{
+				Route route = it.next();
+				if (route._realm.equalsIgnoreCase(realm) && route._applicationId == applicationId
+						&& route._host.equals(host))
+					it.remove();
+			}
+			updateRoutes();
+		}
+	}
+
+	public void removeRoutes(String realm)
+	{
+		synchronized (_routeList)
+		{
+			Iterator<Route> it = _routeList.iterator();
+			while (it.hasNext())
+			{
+				if (it.next()._realm.equalsIgnoreCase(realm))
+					it.remove();
+			}
+			updateRoutes();
+		}
+	}
+
+	/**
+	 * @return a description of the routes and of the circuit state of their peer.
+	 */
+	public String[] getRoutes()
+	{
+		synchronized (_routeList)
+		{
+			String[] routes = new String[_routeList.size()];
+			long now = System.currentTimeMillis();
+			for (int i = 0; i < routes.length; i++)
+			{
+				Route route = _routeList.get(i);
+				PeerState state = _peers.get(route._host);
+				routes[i] = route + " " + (state == null ? "no peer" : state.getState(now));
+			}
+			return routes;
+		}
+	}
+
+	private void updateRoutes()
+	{
+		List<Route> sorted = new ArrayList<Route>(_routeList);
+		Collections.sort(sorted, new Comparator<Route>()
+		{
+			public int compare(Route r1, Route r2)
+			{
+				return r1._priority < r2._priority ? -1 : r1._priority == r2._priority ? 0 : 1;
+			}
+		});
+
+		Map<String, Map<Integer, List<Route>>> byRealm = new HashMap<String, Map<Integer, List<Route>>>();
+		for (Route route : sorted)
+		{
+			Map<Integer, List<Route>> byApplication = byRealm.get(route._realm);
+			if (byApplication == null)
+			{
+				byApplication = new HashMap<Integer, List<Route>>();
+				byRealm.put(route._realm, byApplication);
+			}
+			List<Route> routes = byApplication.get(route._applicationId);
+			if (routes == null)
+			{
+				routes = new ArrayList<Route>();
+				byApplication.put(route._applicationId, routes);
+			}
+			routes.add(route);
+		}
+
+		Map<String, RealmRoutes> realms = new HashMap<String, RealmRoutes>();
+		for (Map.Entry<String, Map<Integer, List<Route>>> entry : byRealm.entrySet())
+			realms.put(entry.getKey(), new RealmRoutes(entry.getValue()));
+		_realms = realms;
+	}
+
+	public int getFailureThreshold()
+	{
+		return _failureThreshold;
+	}
+
+	/**
+	 * Sets the number of consecutive failures after which a peer is not used.
+	 */
+	public void setFailureThreshold(int failureThreshold)
+	{
+		_failureThreshold = failureThreshold;
+	}
+
+	public long getOpenTime()
+	{
+		return _openTime;
+	}
+
+	/**
+	 * Sets the time in milliseconds a failing peer is not used.
+	 */
+	public void setOpenTime(long openTime)
+	{
+		_openTime = openTime;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "RealmRouter[" + _routeList.size() + " routes]";
+	}
+
+	public static class Route
+	{
+		private final String _realm;
+		private final int _applicationId;
+		private final String _host;
+		private final int _priority;
+		private final int _weight;
+
+		public Route(String realm, int applicationId, String host, int priority, int weight)
+		{
+			_realm = realm;
+			_applicationId = applicationId;
+			_host = host;
+			_priority = priority;
+			_weight = weight;
+		}
+
+		public String getRealm()
+		{
+			return _realm;
+		}
+
+		public int getApplicationId()
+		{
+			return _applicationId;
+		}
+
+		public String getHost()
+		{
+			return _host;
+		}
+
+		public int getPriority()
+		{
+			return _priority;
+		}
+
+		public int getWeight()
+		{
+			return _weight;
+		}
+
+		@Override
+		public String toString()
+		{
+			return _realm + "/" + (_applicationId == ANY_APPLICATION ? "*" : String.valueOf(_applicationId & 0xffffffffL))
+				+ " -> " + _host + " priority=" + _priority + " weight=" + _weight;
+		}
+	}
+
+	/**
+	 * Immutable routes of a realm by application id.
+	 */
+	static class RealmRoutes
+	{
+		private final int[] _applicationIds;
+		private final Route[][] _routes;
+		private final Route[] _anyApplication;
+
+		RealmRoutes(Map<Integer, List<Route>> routes)
+		{
+			List<Route> any = routes.remove(ANY_APPLICATION);
+			_anyApplication = any == null ? null : any.toArray(new Route[any.size()]);
+			_applicationIds = new int[routes.size()];
+			_routes = new Route[routes.size()][];
+			int i = 0;
+			for (Map.Entry<Integer, List<Route>> entry : routes.entrySet())
+			{
+				_applicationIds[i] = entry.getKey();
+				_routes[i] = entry.getValue().toArray(new Route[entry.getValue().size()]);
+				i++;
+			}
+		}
+
+		Route[] get(int applicationId)
+		{
+			for (int i = 0; i < _applicationIds.length; i++)
+			{
+				if (_applicationIds[i] == applicationId)
+					return _routes[i];
+			}
+			return _anyApplication;
+		}
+	}
+
+	/**
+	 * Circuit breaker of a peer.
+	 */
+	class PeerState
+	{
+		private volatile Peer _peer;
+		private final AtomicInteger _failures = new AtomicInteger();
+		private volatile long _openUntil;
+		private final AtomicBoolean _probing = new AtomicBoolean();
+
+		PeerState(Peer peer)
+		{
+			_peer = peer;
+		}
+
+		boolean isAvailable(long now)
+		{
+			long openUntil = _openUntil;
+			return openUntil == 0 || (now >= openUntil && !_probing.get());
+		}
+
+		boolean acquire(long now)
+		{
+			long openUntil = _openUntil;
+			if (openUntil == 0)
+				return true;
+			// a single request probes the peer once the open time elapsed
+			return now >= openUntil && _probing.compareAndSet(false, true);
+		}
+
+		void success()
+		{
+			_failures.set(0);
+			if (_openUntil != 0)
+			{
+				Log.info("Peer {} recovered, routing requests to it", _peer);
+				_openUntil = 0;
+				_probing.set(false);
+			}
+		}
+
+		void failure(long now)
+		{
+			if (_openUntil != 0)
+			{
+				_openUntil = now + _openTime;
+				_probing.set(false);
+			}
+			else if (_failures.incrementAndGet() >= _failureThreshold)
+			{
+				Log.warn("Too many failures on peer {}, not routing requests to it for {} ms", _peer, _openTime);
+				_openUntil = now + _openTime;
+			}
+		}
+
+		String getState(long now)
+		{
+			long openUntil = _openUntil;
+			if (openUntil == 0)
+				return "failures=" + _failures.get();
+			return now < openUntil ? "open" : "probing";
+		}
+	}
+}
@@ -0,0 +1,133 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.diameter.io;
+
+import java.io.InputStream;
+
+import org.cipango.diameter.AVP;
+import org.cipango.diameter.AVPList;
+import org.cipango.diameter.Dictionary;
+import org.cipango.diameter.base.Common;
+import org.cipango.diameter.ims.Cx;
+import org.cipango.diameter.ims.IMS;
+import org.cipango.diameter.ims.Sh;
+import org.cipango.diameter.node.DiameterAnswer;
+import org.cipango.diameter.node.DiameterMessage;
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+
+/**
+ * Compares full and lazy AVP decoding on the captured Cx messages and on a Sh User-Data
+ * answer, when reading the routing AVPs only (relay) and when forwarding the message.
+ * <p>
+ * Usage: <code>AVPDecodingBenchmark [iterations] [rounds]</code>
+ */
+public class AVPDecodingBenchmark
+{
+	private static volatile Object __sink;
+
+	public static void main(String[] args) throws Exception
+	{
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		Dictionary.getInstance().load(Common.class);
+		Dictionary.getInstance().load(IMS.class);
+		Dictionary.getInstance().load(Cx.class);
+		Dictionary.getInstance().load(Sh.class);
+
+		String[] names = { "sar.dat", "mar.dat", "lia.dat", "uda" };
+		byte[][] messages = { load("sar.dat"), load("mar.dat"), load("lia.dat"), newUDA() };
+
+		for (int r = 0; r < rounds; r++)
+		{
+			System.out.println("round " + r);
+			for (int i = 0; i < messages.length; i++)
+			{
+				run(names[i], "full", Codecs.__message, messages[i], iterations, false);
+				run(names[i], "lazy", Codecs.__lazyMessage, messages[i], iterations, false);
+				run(names[i], "full fwd", Codecs.__message, messages[i], iterations, true);
+				run(names[i], "lazy fwd", Codecs.__lazyMessage, messages[i], iterations, true);
+			}
+		}
+	}
+
+	static void run(String name, String mode, DiameterCodec<DiameterMessage> codec, byte[] bytes,
+			int iterations, boolean forward) throws Exception
+	{
+		Buffer out = new ByteArrayBuffer(bytes.length * 2);
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+		{
+			DiameterMessage message = codec.decode(new ByteArrayBuffer(bytes));
+			__sink = message.get(Common.SESSION_ID);
+			__sink = message.get(Common.ORIGIN_HOST);
+			__sink = message.get(Common.DESTINATION_REALM);
+			__sink = message.get(Common.RESULT_CODE);
+			if (forward)
+			{
+				out.clear();
+				__sink = Codecs.__message.encode(out, message);
+			}
+		}
+		long time = System.nanoTime() - start;
+		System.out.printf("%-8s %5d bytes %-9s %7.0f ns/message%n", name, bytes.length, mode,
+				time / (double) iterations);
+	}
+
+	static byte[] load(String name) throws Exception
+	{
+		InputStream in = AVPDecodingBenchmark.class.getClassLoader().getResourceAsStream(name);
+		byte[] b = new byte[in.available()];
+		int read = 0;
+		while (read < b.length)
+			read += in.read(b, read, b.length - read);
+		in.close();
+		return b;
+	}
+
+	/**
+	 * @return a Sh UDA with a 4 KB User-Data and a few grouped AVPs.
+	 */
+	static byte[] newUDA() throws Exception
+	{
+		DiameterAnswer answer = new DiameterAnswer();
+		answer.setCommand(Sh.UDA);
+		AVPList avps = new AVPList();
+		answer.setAVPList(avps);
+		avps.add(Common.SESSION_ID, "hss1.home1.net;1234567890;42");
+		AVPList vsai = new AVPList();
+		vsai.add(Common.VENDOR_ID, IMS.IMS_VENDOR_ID);
+		vsai.add(Common.AUTH_APPLICATION_ID, Sh.SH_APPLICATION_ID.getId());
+		avps.add(Common.VENDOR_SPECIFIC_APPLICATION_ID, vsai);
+		avps.add(Common.DIAMETER_SUCCESS.getAVP());
+		avps.add(Common.AUTH_SESSION_STATE, Common.AuthSessionState.NO_STATE_MAINTAINED);
+		avps.add(Common.ORIGIN_HOST, "hss1.home1.net");
+		avps.add(Common.ORIGIN_REALM, "home1.net");
+		for (int i = 0; i < 4; i++)
+		{
+			AVPList supported = new AVPList();
+			supported.add(Common.VENDOR_ID, IMS.IMS_VENDOR_ID);
+			avps.add(Cx.SUPPORTED_FEATURES, supported);
+		}
+		StringBuilder userData = new StringBuilder("<Sh-Data><RepositoryData>");
+		while (userData.length() < 4096)
+			userData.append("<ServiceData>dGhpcyBpcyB0cmFuc3BhcmVudCBkYXRh</ServiceData>");
+		userData.append("</RepositoryData></Sh-Data>");
+		avps.add(new AVP<byte[]>(Sh.USER_DATA, userData.toString().getBytes()));
+
+		return Codecs.__message.encode(new ByteArrayBuffer(8192), answer).asArray();
+	}
+}
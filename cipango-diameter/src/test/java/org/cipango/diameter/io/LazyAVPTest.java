@@ -0,0 +1,158 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.diameter.io;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.Arrays;
+
+import org.cipango.diameter.AVP;
+import org.cipango.diameter.AVPList;
+import org.cipango.diameter.Dictionary;
+import org.cipango.diameter.base.Common;
+import org.cipango.diameter.ims.Cx;
+import org.cipango.diameter.ims.IMS;
+import org.cipango.diameter.node.DiameterMessage;
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LazyAVPTest
+{
+	@Before
+	public void setUp()
+	{
+		Dictionary.getInstance().load(Common.class);
+		Dictionary.getInstance().load(IMS.class);
+		Dictionary.getInstance().load(Cx.class);
+	}
+
+	protected Buffer load(String name) throws Exception
+	{
+		URL url = getClass().getClassLoader().getResource(name);
+		File file = new File(url.toURI());
+		FileInputStream fin = new FileInputStream(file);
+		byte[] b = new byte[(int) file.length()];
+		fin.read(b);
+		fin.close();
+		return new ByteArrayBuffer(b);
+	}
+
+	@Test
+	public void testSameValues() throws Exception
+	{
+		for (String name : new String[] { "sar.dat", "mar.dat", "lia.dat" })
+		{
+			DiameterMessage eager = Codecs.__message.decode(load(name));
+			DiameterMessage lazy = Codecs.__lazyMessage.decode(load(name));
+
+			assertEquals(eager.getCommand(), lazy.getCommand());
+			assertEquals(eager.getHopByHopId(), lazy.getHopByHopId());
+			assertSameAVPs(eager.getAVPs(), lazy.getAVPs());
+		}
+	}
+
+	protected void assertSameAVPs(AVPList expected, AVPList avps)
+	{
+		assertEquals(expected.size(), avps.size());
+		for (int i = 0; i < expected.size(); i++)
+		{
+			AVP<?> avp = avps.get(i);
+			assertEquals(expected.get(i).getType().getCode(), avp.getType().getCode());
+			assertEquals(expected.get(i).getType().getVendorId(), avp.getType().getVendorId());
+			Object value = expected.get(i).getValue();
+			if (value instanceof AVPList)
+				assertSameAVPs((AVPList) value, (AVPList) avp.getValue());
+			else if (value instanceof byte[])
+				assertTrue(Arrays.equals((byte[]) value, (byte[]) avp.getValue()));
+			else
+				assertEquals(value, avp.getValue());
+		}
+	}
+
+	@Test
+	public void testLazy() throws Exception
+	{
+		DiameterMessage message = Codecs.__lazyMessage.decode(load("sar.dat"));
+
+		assertEquals("scscf1.home1.net", message.get(Common.ORIGIN_HOST));
+
+		for (AVP<?> avp : message.getAVPs())
+			assertTrue(((LazyAVP<?>) avp).isRaw());
+
+		AVPList vsai = message.get(Common.VENDOR_SPECIFIC_APPLICATION_ID);
+		assertEquals(IMS.IMS_VENDOR_ID, (int) vsai.getValue(Common.VENDOR_ID));
+		assertEquals(Cx.CX_APPLICATION_ID.getId(), (int) vsai.getValue(Common.AUTH_APPLICATION_ID));
+		assertFalse(((LazyAVP<?>) message.getAVPs().get(Common.VENDOR_SPECIFIC_APPLICATION_ID)).isRaw());
+	}
+
+	@Test
+	public void testForward() throws Exception
+	{
+		Buffer original = load("sar.dat");
+		byte[] bytes = original.asArray();
+
+		DiameterMessage message = Codecs.__lazyMessage.decode(original);
+		message.get(Common.ORIGIN_HOST);
+		message.get(Common.VENDOR_SPECIFIC_APPLICATION_ID);
+
+		// not modified AVPs are copied as received
+		Buffer buffer = Codecs.__message.encode(new ByteArrayBuffer(64), message);
+		assertEquals(bytes.length, buffer.length());
+		byte[] encoded = buffer.asArray();
+		for (int i = 20; i < bytes.length; i++)
+			assertEquals("at " + i, bytes[i], encoded[i]);
+	}
+
+	@Test
+	public void testModified() throws Exception
+	{
+		DiameterMessage message = Codecs.__lazyMessage.decode(load("sar.dat"));
+		message.getAVPs().get(Common.ORIGIN_HOST).setValue("scscf2.home1.net");
+		message.get(Common.VENDOR_SPECIFIC_APPLICATION_ID).add(Common.ACCT_APPLICATION_ID, 3);
+
+		Buffer buffer = Codecs.__message.encode(new ByteArrayBuffer(64), message);
+		DiameterMessage forwarded = Codecs.__message.decode(buffer);
+		assertEquals("scscf2.home1.net", forwarded.get(Common.ORIGIN_HOST));
+		assertEquals("home1.net", forwarded.get(Common.ORIGIN_REALM));
+		AVPList vsai = forwarded.get(Common.VENDOR_SPECIFIC_APPLICATION_ID);
+		assertEquals(IMS.IMS_VENDOR_ID, (int) vsai.getValue(Common.VENDOR_ID));
+		assertEquals(3, (int) vsai.getValue(Common.ACCT_APPLICATION_ID));
+	}
+
+	@Test
+	public void testInvalidLength() throws Exception
+	{
+		byte[] bytes = load("sar.dat").asArray();
+		// first AVP length beyond the message
+		bytes[20 + 5] = (byte) 0xff;
+		try
+		{
+			Codecs.__lazyMessage.decode(new ByteArrayBuffer(bytes));
+			fail();
+		}
+		catch (IOException e)
+		{
+		}
+	}
+}
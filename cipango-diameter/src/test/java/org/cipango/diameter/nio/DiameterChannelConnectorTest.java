@@ -0,0 +1,182 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.diameter.nio;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cipango.diameter.AVP;
+import org.cipango.diameter.AVPList;
+import org.cipango.diameter.api.DiameterServletAnswer;
+import org.cipango.diameter.api.DiameterServletRequest;
+import org.cipango.diameter.base.Common;
+import org.cipango.diameter.base.Common.AuthSessionState;
+import org.cipango.diameter.ims.Cx;
+import org.cipango.diameter.ims.Sh;
+import org.cipango.diameter.ims.Sh.DataReference;
+import org.cipango.diameter.node.DiameterConnector;
+import org.cipango.diameter.node.DiameterMessage;
+import org.cipango.diameter.node.DiameterRequest;
+import org.cipango.diameter.node.Node;
+import org.cipango.diameter.node.NodeTest.TestDiameterHandler;
+import org.cipango.diameter.node.Peer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DiameterChannelConnectorTest
+{
+	private Node _client;
+	private Node _server;
+	private Peer _peer;
+	private AtomicInteger _sessionIds = new AtomicInteger();
+
+	@Before
+	public void setUp() throws Exception
+	{
+		_client = newNode("client", 38691);
+
+		_peer = new Peer("server");
+		_peer.setAddress(InetAddress.getByName("127.0.0.1"));
+		_peer.setPort(38690);
+		_client.addPeer(_peer);
+
+		_server = newNode("server", 38690);
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		_server.stop();
+		_client.stop();
+	}
+
+	private Node newNode(String identity, int port)
+	{
+		Node node = new Node();
+		DiameterChannelConnector connector = new DiameterChannelConnector();
+		connector.setHost("127.0.0.1");
+		connector.setPort(port);
+		// small buffers to test reads of partial and large messages
+		connector.setReadBufferSize(64);
+		node.setConnectors(new DiameterConnector[] { connector });
+		node.setIdentity(identity);
+		return node;
+	}
+
+	@Test
+	public void testConnect() throws Exception
+	{
+		_server.start();
+		_client.start();
+
+		waitPeerOpened();
+
+		_peer.stop();
+		Thread.sleep(100);
+		assertTrue(_peer.isClosed());
+	}
+
+	@Test
+	public void testPipelined() throws Throwable
+	{
+		final int threads = 8;
+		final int requests = 250;
+
+		TestDiameterHandler serverHandler = new TestDiameterHandler()
+		{
+			@Override
+			public void doHandle(DiameterMessage message) throws Throwable
+			{
+				DiameterServletRequest request = (DiameterServletRequest) message;
+				assertEquals(Sh.UDR, request.getCommand());
+				request.createAnswer(Common.DIAMETER_SUCCESS).send();
+			}
+		};
+		_server.setHandler(serverHandler);
+		_server.start();
+
+		TestDiameterHandler clientHandler = new TestDiameterHandler()
+		{
+			@Override
+			public void doHandle(DiameterMessage message) throws Throwable
+			{
+				DiameterServletAnswer uda = (DiameterServletAnswer) message;
+				assertFalse(message.isRequest());
+				assertEquals(Sh.UDA, uda.getCommand());
+				assertEquals(Common.DIAMETER_SUCCESS, uda.getResultCode());
+				assertEquals(uda.getRequest().getSessionId(), uda.getSessionId());
+			}
+		};
+		_client.setHandler(clientHandler);
+		_client.start();
+
+		waitPeerOpened();
+
+		Thread[] senders = new Thread[threads];
+		final Throwable[] error = new Throwable[1];
+		for (int i = 0; i < threads; i++)
+		{
+			senders[i] = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						for (int j = 0; j < requests; j++)
+							newUdr().send();
+					}
+					catch (Throwable t)
+					{
+						error[0] = t;
+					}
+				}
+			};
+			senders[i].start();
+		}
+		for (Thread sender : senders)
+			sender.join();
+		if (error[0] != null)
+			throw error[0];
+
+		serverHandler.assertDone(threads * requests);
+		clientHandler.assertDone(threads * requests);
+	}
+
+	private DiameterRequest newUdr()
+	{
+		DiameterRequest udr = new DiameterRequest(_client, Sh.UDR, Sh.SH_APPLICATION_ID.getId(), "client;" + _sessionIds.incrementAndGet());
+		udr.getAVPs().add(Common.DESTINATION_REALM, "server");
+		udr.getAVPs().add(Common.DESTINATION_HOST, "server");
+		udr.getAVPs().add(Sh.DATA_REFERENCE, DataReference.SCSCFName);
+		AVP<AVPList> userIdentity = new AVP<AVPList>(Sh.USER_IDENTITY, new AVPList());
+		userIdentity.getValue().add(Cx.PUBLIC_IDENTITY, "sip:alice@cipango.org");
+		udr.getAVPs().add(userIdentity);
+		udr.getAVPs().add(Common.AUTH_SESSION_STATE, AuthSessionState.NO_STATE_MAINTAINED);
+		return udr;
+	}
+
+	private void waitPeerOpened() throws InterruptedException
+	{
+		for (int i = 0; i < 100 && !_peer.isOpen(); i++)
+			Thread.sleep(20);
+		assertTrue(_peer.isOpen());
+	}
+}
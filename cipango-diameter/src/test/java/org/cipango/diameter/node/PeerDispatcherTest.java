@@ -0,0 +1,197 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.diameter.node;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.cipango.diameter.base.Common;
+import org.cipango.diameter.ims.Sh;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PeerDispatcherTest
+{
+	private QueuedThreadPool _threadPool;
+	private TestNode _node;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		_threadPool = new QueuedThreadPool();
+		_threadPool.start();
+		_node = new TestNode();
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		_threadPool.stop();
+	}
+
+	@Test
+	public void testSessionOrder() throws Exception
+	{
+		PeerDispatcher dispatcher = new PeerDispatcher(_node, _threadPool, 4, 10000);
+		int sessions = 20;
+		int messages = 100;
+		_node._expected = new CountDownLatch(sessions * messages);
+
+		for (int i = 0; i < messages; i++)
+			for (int j = 0; j < sessions; j++)
+				assertTrue(dispatcher.dispatch(newRequest("session-" + j, i)));
+
+		assertTrue(_node._expected.await(5, TimeUnit.SECONDS));
+		awaitHandled(dispatcher, sessions * messages);
+		assertEquals(sessions, _node._handled.size());
+		for (List<Integer> list : _node._handled.values())
+		{
+			assertEquals(messages, list.size());
+			for (int i = 0; i < messages; i++)
+				assertEquals(i, list.get(i).intValue());
+		}
+		assertEquals(sessions * messages, dispatcher.getHandled());
+		assertEquals(0, dispatcher.getQueued());
+	}
+
+	@Test
+	public void testSlowHandler() throws Exception
+	{
+		PeerDispatcher dispatcher = new PeerDispatcher(_node, _threadPool, 16, 10000);
+		_node._blocked = "slow";
+		_node._expected = new CountDownLatch(10);
+
+		DiameterRequest slow = newRequest("slow", 0);
+		dispatcher.dispatch(slow);
+		for (int i = 0, sent = 0; sent < 10; i++)
+		{
+			DiameterRequest fast = newRequest("fast-" + i, 0);
+			if (dispatcher.lane(fast) != dispatcher.lane(slow))
+			{
+				dispatcher.dispatch(fast);
+				sent++;
+			}
+		}
+
+		// messages of other lanes are handled while the slow one is blocked
+		assertTrue(_node._expected.await(2, TimeUnit.SECONDS));
+		assertEquals(10, _node._handled.size());
+
+		_node._release.countDown();
+		awaitHandled(dispatcher, 11);
+		assertEquals(0, dispatcher.getQueued());
+		assertEquals(11, dispatcher.getHandled());
+		assertTrue(dispatcher.getHandleTimeMax() > 0);
+	}
+
+	@Test
+	public void testBound() throws Exception
+	{
+		PeerDispatcher dispatcher = new PeerDispatcher(_node, _threadPool, 1, 3);
+		_node._blocked = "slow";
+
+		assertTrue(dispatcher.dispatch(newRequest("slow", 0)));
+		assertTrue(_node._blockedEntered.await(2, TimeUnit.SECONDS)); // first message is in the handler
+
+		for (int i = 1; i <= 3; i++)
+			assertTrue(dispatcher.dispatch(newRequest("slow", i)));
+		assertFalse(dispatcher.dispatch(newRequest("slow", 4)));
+		assertEquals(1, dispatcher.getRejected());
+		assertEquals(3, dispatcher.getQueued());
+		assertEquals(3, dispatcher.getMaxQueued());
+
+		// answers are queued over the bound so that they stay in order
+		assertTrue(dispatcher.dispatch(newRequest("slow", 5).createAnswer(Common.DIAMETER_SUCCESS)));
+		assertEquals(1, dispatcher.getRejected());
+		assertEquals(4, dispatcher.getQueued());
+
+		_node._release.countDown();
+		awaitHandled(dispatcher, 5);
+		assertEquals(5, dispatcher.getHandled());
+		assertEquals(0, dispatcher.getQueued());
+		List<Integer> handled = _node._handled.get("slow");
+		for (int i = 0; i < 4; i++)
+			assertEquals(i, handled.get(i).intValue());
+		assertEquals(5, handled.get(4).intValue());
+		assertTrue(dispatcher.dispatch(newRequest("slow", 6)));
+	}
+
+	/**
+	 * Waits for the dispatcher to count the handled messages, which it does after the node 
+	 * has handled them.
+	 */
+	private void awaitHandled(PeerDispatcher dispatcher, long handled) throws InterruptedException
+	{
+		long end = System.currentTimeMillis() + 5000;
+		while ((dispatcher.getHandled() < handled || dispatcher.getQueued() > 0) 
+				&& System.currentTimeMillis() < end)
+			Thread.sleep(10);
+	}
+
+	private DiameterRequest newRequest(String sessionId, int index)
+	{
+		DiameterRequest request = new DiameterRequest(_node, Sh.UDR, Sh.SH_APPLICATION_ID.getId(), sessionId);
+		request.setHopByHopId(index);
+		return request;
+	}
+
+	static class TestNode extends Node
+	{
+		Map<String, List<Integer>> _handled = new HashMap<String, List<Integer>>();
+		CountDownLatch _expected = new CountDownLatch(0);
+		CountDownLatch _release = new CountDownLatch(1);
+		CountDownLatch _blockedEntered = new CountDownLatch(1);
+		String _blocked;
+
+		@Override
+		public void handle(DiameterMessage message)
+		{
+			String sessionId = message.getSessionId();
+			if (sessionId.equals(_blocked))
+			{
+				_blockedEntered.countDown();
+				try
+				{
+					_release.await(5, TimeUnit.SECONDS);
+				}
+				catch (InterruptedException e)
+				{
+				}
+			}
+
+			synchronized (_handled)
+			{
+				List<Integer> list = _handled.get(sessionId);
+				if (list == null)
+				{
+					list = new ArrayList<Integer>();
+					_handled.put(sessionId, list);
+				}
+				list.add(message.getHopByHopId());
+			}
+			_expected.countDown();
+		}
+	}
+}
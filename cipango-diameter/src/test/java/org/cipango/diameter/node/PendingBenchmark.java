@@ -0,0 +1,209 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.diameter.node;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cipango.util.TimerTask;
+import org.cipango.util.TimingWheel;
+
+/**
+ * Measures the send to answer overhead of tracking pending requests, comparing a
+ * synchronized map with a scheduled future per request to {@link PendingTable} with
+ * {@link TimingWheel}.
+ * <p>
+ * Each thread keeps <code>inFlight / threads</code> requests pending: it registers a new
+ * request then answers its oldest one.
+ * <p>
+ * Usage: <code>PendingBenchmark [inFlight] [requests] [threads] [rounds]</code>
+ */
+public class PendingBenchmark
+{
+	private static final long TIMEOUT = 10000;
+
+	public static void main(String[] args) throws Exception
+	{
+		int inFlight = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int requests = args.length > 1 ? Integer.parseInt(args[1]) : 2000000;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+		int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+		for (int r = 0; r < rounds; r++)
+		{
+			run(new LegacyPendings(), inFlight, requests, threads);
+			run(new WheelPendings(inFlight), inFlight, requests, threads);
+		}
+	}
+
+	static void run(final Pendings pendings, int inFlight, int requests, int threads) throws Exception
+	{
+		final AtomicInteger ids = new AtomicInteger();
+		final int window = inFlight / threads;
+		final int perThread = requests / threads;
+
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++)
+		{
+			workers[t] = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					int[] sent = new int[window];
+					for (int i = 0; i < window; i++)
+					{
+						sent[i] = ids.getAndIncrement();
+						pendings.send(sent[i]);
+					}
+					for (int i = 0; i < perThread; i++)
+					{
+						int index = i % window;
+						if (!pendings.answer(sent[index]))
+							throw new IllegalStateException("No pending request " + sent[index]);
+						sent[index] = ids.getAndIncrement();
+						pendings.send(sent[index]);
+					}
+					for (int i = 0; i < window; i++)
+						pendings.answer(sent[i]);
+				}
+			};
+		}
+
+		long start = System.nanoTime();
+		for (Thread worker : workers)
+			worker.start();
+		for (Thread worker : workers)
+			worker.join();
+		long time = System.nanoTime() - start;
+		pendings.stop();
+
+		System.out.printf("%-8s %d in flight, %d threads: %6.1f ns/request  %8.0f requests/s%n",
+				pendings.getName(), window * threads, threads,
+				time / (double) requests,
+				requests * 1e9 / time);
+	}
+
+	interface Pendings
+	{
+		String getName();
+		void send(int id);
+		boolean answer(int id);
+		void stop();
+	}
+
+	/**
+	 * Pending requests as tracked before: a map guarded by a lock and a scheduled future
+	 * per request.
+	 */
+	static class LegacyPendings implements Pendings
+	{
+		private ScheduledThreadPoolExecutor _scheduler = new ScheduledThreadPoolExecutor(1);
+		private Map<Integer, ScheduledFuture<?>> _pendings = new HashMap<Integer, ScheduledFuture<?>>();
+		private Runnable _task = new Runnable() { public void run() { } };
+
+		public String getName()
+		{
+			return "legacy";
+		}
+
+		public void send(int id)
+		{
+			synchronized (_pendings)
+			{
+				_pendings.put(id, _scheduler.schedule(_task, TIMEOUT, TimeUnit.MILLISECONDS));
+			}
+		}
+
+		public boolean answer(int id)
+		{
+			ScheduledFuture<?> future;
+			synchronized (_pendings)
+			{
+				future = _pendings.remove(id);
+			}
+			if (future == null)
+				return false;
+			future.cancel(false);
+			return true;
+		}
+
+		public void stop()
+		{
+			_scheduler.shutdownNow();
+		}
+	}
+
+	static class WheelPendings implements Pendings
+	{
+		private PendingTable<TimerTask> _pendings;
+		private TimingWheel _timeouts = new TimingWheel(100, System.currentTimeMillis());
+		private ScheduledThreadPoolExecutor _scheduler = new ScheduledThreadPoolExecutor(1);
+		private Runnable _task = new Runnable() { public void run() { } };
+
+		public WheelPendings(int capacity)
+		{
+			_pendings = new PendingTable<TimerTask>(capacity);
+			_scheduler.scheduleAtFixedRate(new Runnable()
+			{
+				public void run()
+				{
+					List<TimerTask> expired = new ArrayList<TimerTask>();
+					synchronized (_timeouts)
+					{
+						_timeouts.expire(System.currentTimeMillis(), expired);
+					}
+				}
+			}, 100, 100, TimeUnit.MILLISECONDS);
+		}
+
+		public String getName()
+		{
+			return "wheel";
+		}
+
+		public void send(int id)
+		{
+			TimerTask timeout = new TimerTask(_task, System.currentTimeMillis() + TIMEOUT);
+			synchronized (_timeouts)
+			{
+				_timeouts.schedule(timeout);
+			}
+			_pendings.put(id, timeout);
+		}
+
+		public boolean answer(int id)
+		{
+			TimerTask timeout = _pendings.remove(id);
+			if (timeout == null)
+				return false;
+			synchronized (_timeouts)
+			{
+				return _timeouts.cancel(timeout);
+			}
+		}
+
+		public void stop()
+		{
+			_scheduler.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,112 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.diameter.node;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class PendingTableTest
+{
+	@Test
+	public void testPutRemove()
+	{
+		PendingTable<String> table = new PendingTable<String>(16);
+		String[] values = new String[10];
+		for (int i = 0; i < 10; i++)
+		{
+			values[i] = "r" + i;
+			table.put(Integer.MAX_VALUE - 5 + i, values[i]);
+		}
+		assertEquals(10, table.size());
+		assertEquals(0, table.getOverflowSize());
+
+		assertEquals("r3", table.get(Integer.MAX_VALUE - 2));
+		assertEquals("r3", table.remove(Integer.MAX_VALUE - 2));
+		assertNull(table.remove(Integer.MAX_VALUE - 2));
+		assertNull(table.get(Integer.MAX_VALUE - 2));
+
+		assertFalse(table.remove(Integer.MAX_VALUE - 1, "other"));
+		assertTrue(table.remove(Integer.MAX_VALUE - 1, values[4]));
+		assertEquals(8, table.size());
+	}
+
+	@Test
+	public void testOverflow()
+	{
+		PendingTable<Integer> table = new PendingTable<Integer>(16);
+		for (int i = 0; i < 100; i++)
+			table.put(i, i);
+		assertEquals(100, table.size());
+		assertTrue(table.getOverflowSize() > 0);
+
+		for (int i = 0; i < 100; i++)
+			assertEquals(i, table.get(i).intValue());
+		for (int i = 99; i >= 0; i--)
+			assertEquals(i, table.remove(i).intValue());
+		assertEquals(0, table.size());
+		assertEquals(0, table.getOverflowSize());
+	}
+
+	@Test
+	public void testConcurrent() throws Exception
+	{
+		final PendingTable<Integer> table = new PendingTable<Integer>(1024);
+		final AtomicInteger ids = new AtomicInteger();
+		final AtomicInteger errors = new AtomicInteger();
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int t = 0; t < 8; t++)
+		{
+			Thread thread = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					List<Integer> inFlight = new ArrayList<Integer>();
+					for (int i = 0; i < 100000; i++)
+					{
+						int id = ids.getAndIncrement();
+						table.put(id, id);
+						inFlight.add(id);
+						if (inFlight.size() > 100)
+						{
+							Integer removed = table.remove(inFlight.remove(0));
+							if (removed == null)
+								errors.incrementAndGet();
+						}
+					}
+					for (Integer id : inFlight)
+						if (table.remove(id) == null)
+							errors.incrementAndGet();
+				}
+			};
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+
+		assertEquals(0, errors.get());
+		assertEquals(0, table.size());
+	}
+}
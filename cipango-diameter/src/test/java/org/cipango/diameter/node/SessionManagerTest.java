@@ -0,0 +1,204 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.diameter.node;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cipango.diameter.api.DiameterSessionEvent;
+import org.cipango.diameter.api.DiameterSessionListener;
+import org.cipango.diameter.app.DiameterContext;
+import org.cipango.diameter.ims.Sh;
+import org.cipango.sipapp.SipAppContext;
+import org.cipango.util.TimerTask;
+import org.cipango.util.TimingWheel;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SessionManagerTest
+{
+	private Node _node;
+	private TestSessionManager _manager;
+
+	@Before
+	public void setUp()
+	{
+		_node = new Node();
+		_node.setIdentity("scscf1.home1.net");
+		_node.setStatsOn(true);
+		_manager = new TestSessionManager();
+		_manager.setNode(_node);
+		_node.setSessionManager(_manager);
+	}
+
+	protected Session newSession(String id)
+	{
+		return _manager.createSession(new DiameterRequest(_node, Sh.UDR, Sh.SH_APPLICATION_ID.getId(), id));
+	}
+
+	@Test
+	public void testCreateRemove()
+	{
+		Session session = newSession("s1");
+		assertSame(session, _manager.get("s1"));
+		assertEquals(1, _manager.getCurrentSessions());
+
+		session.invalidate();
+		assertNull(_manager.get("s1"));
+		assertEquals(0, _manager.getCurrentSessions());
+		assertEquals(1, _manager.getSessionsCreated());
+		assertEquals(1, _manager.getSessionsRemoved());
+	}
+
+	@Test
+	public void testIdleTimeout() throws Exception
+	{
+		_manager.setIdleTimeout(300);
+		Session idle = newSession("idle");
+		Session active = newSession("active");
+
+		Thread.sleep(150);
+		_manager.get("active");
+		Thread.sleep(200);
+		// the wheel is advanced past the deadlines, rounded up to the tick
+		_manager.advance(System.currentTimeMillis() + 100);
+		assertFalse(idle.isValid());
+		assertNull(_manager.get("idle"));
+		// accessed after creation: timeout scheduled again for the remaining time
+		assertTrue(active.isValid());
+		assertEquals(1, _manager.getTimeouts().getSize());
+		assertEquals(1, _manager.getSessionsExpired());
+
+		Thread.sleep(200);
+		_manager.advance(System.currentTimeMillis() + 300);
+		assertFalse(active.isValid());
+		assertEquals(2, _manager.getSessionsExpired());
+		assertEquals(0, _manager.getCurrentSessions());
+	}
+
+	@Test
+	public void testExpiredListener() throws Exception
+	{
+		SipAppContext context = new SipAppContext();
+		context.setContextPath("/test");
+		final List<DiameterSessionEvent> events = new ArrayList<DiameterSessionEvent>();
+		((DiameterContext) _node.getHandler()).addSessionListener(context, new DiameterSessionListener()
+		{
+			public void sessionExpired(DiameterSessionEvent e)
+			{
+				events.add(e);
+			}
+		});
+
+		_manager.setIdleTimeout(100);
+		DiameterRequest request = new DiameterRequest(_node, Sh.UDR, Sh.SH_APPLICATION_ID.getId(), "expired");
+		request.setContext(context);
+		Session session = _manager.createSession(request);
+		Session invalidated = newSession("invalidated");
+		invalidated.invalidate();
+
+		Thread.sleep(150);
+		_manager.advance(System.currentTimeMillis() + 300);
+		assertFalse(session.isValid());
+		assertEquals(1, events.size());
+		assertSame(session, events.get(0).getSession());
+	}
+
+	@Test
+	public void testStress() throws Exception
+	{
+		final int threads = 8;
+		final int sessions = 20000;
+		final AtomicInteger errors = new AtomicInteger();
+
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++)
+		{
+			final int id = t;
+			workers[t] = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					String[] ids = new String[64];
+					for (int i = 0; i < sessions; i++)
+					{
+						int index = i % ids.length;
+						if (ids[index] != null)
+						{
+							Session session = _manager.get(ids[index]);
+							if (session == null)
+								errors.incrementAndGet();
+							else
+								session.invalidate();
+						}
+						ids[index] = id + ";" + i;
+						newSession(ids[index]);
+						// look up sessions of the other threads
+						_manager.get(((id + 1) % threads) + ";" + i);
+					}
+					for (String sessionId : ids)
+					{
+						Session session = _manager.get(sessionId);
+						if (session == null)
+							errors.incrementAndGet();
+						else
+							session.invalidate();
+					}
+				}
+			};
+		}
+		for (Thread worker : workers)
+			worker.start();
+		for (Thread worker : workers)
+			worker.join();
+
+		assertEquals(0, errors.get());
+		assertEquals(0, _manager.getCurrentSessions());
+		assertEquals(threads * sessions, _manager.getSessionsCreated());
+		assertEquals(threads * sessions, _manager.getSessionsRemoved());
+	}
+
+	static class TestSessionManager extends SessionManager
+	{
+		private TimingWheel _timeouts = new TimingWheel(100, System.currentTimeMillis());
+
+		@Override
+		protected void scheduleIdleTimeout(Runnable timeout, long ms)
+		{
+			_timeouts.schedule(new TimerTask(timeout, System.currentTimeMillis() + ms));
+		}
+
+		public TimingWheel getTimeouts()
+		{
+			return _timeouts;
+		}
+
+		public void advance(long now)
+		{
+			List<TimerTask> expired = new ArrayList<TimerTask>();
+			_timeouts.expire(now, expired);
+			for (TimerTask task : expired)
+				task.getRunnable().run();
+		}
+	}
+}
@@ -0,0 +1,238 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+package org.cipango.diameter.router;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.cipango.diameter.base.Common;
+import org.cipango.diameter.ims.Cx;
+import org.cipango.diameter.node.DiameterAnswer;
+import org.cipango.diameter.node.DiameterRequest;
+import org.cipango.diameter.node.Node;
+import org.cipango.diameter.node.Peer;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RealmRouterTest
+{
+	private static final int CX = Cx.CX_APPLICATION_ID.getId();
+
+	private Node _node;
+	private RealmRouter _router;
+	private TestPeer _hss1;
+	private TestPeer _hss2;
+	private TestPeer _hss3;
+
+	@Before
+	public void setUp()
+	{
+		_node = new Node();
+		_node.setIdentity("scscf1.home1.net");
+		_router = new RealmRouter();
+		_node.setDiameterRouter(_router);
+
+		_hss1 = newPeer("hss1.home1.net");
+		_hss2 = newPeer("hss2.home1.net");
+		_hss3 = newPeer("hss3.home1.net");
+	}
+
+	protected TestPeer newPeer(String host)
+	{
+		TestPeer peer = new TestPeer(host);
+		peer.setNode(_node);
+		_router.peerAdded(peer);
+		return peer;
+	}
+
+	protected DiameterRequest newRequest(String realm, String host)
+	{
+		DiameterRequest request = new DiameterRequest(_node, Cx.SAR, CX, "session");
+		request.setUac(true);
+		if (host != null)
+			request.add(Common.DESTINATION_HOST, host);
+		if (realm != null)
+			request.add(Common.DESTINATION_REALM, realm);
+		return request;
+	}
+
+	@Test
+	public void testDestinationHost()
+	{
+		_router.addRoute("home1.net", _hss1.getHost());
+		assertSame(_hss2, _router.getRoute(newRequest("home1.net", _hss2.getHost())));
+
+		_hss2._open = false;
+		assertSame(_hss1, _router.getRoute(newRequest("home1.net", _hss2.getHost())));
+		// no route: closed peer is still returned so that the request waits for it
+		assertSame(_hss2, _router.getRoute(newRequest("home2.net", _hss2.getHost())));
+		assertNull(_router.getRoute(newRequest("home2.net", null)));
+	}
+
+	@Test
+	public void testRealmAndApplication()
+	{
+		_router.addRoute("home1.net", CX, _hss1.getHost(), 0, 1);
+		_router.addRoute("home1.net", RealmRouter.ANY_APPLICATION, _hss2.getHost(), 0, 1);
+		_router.addRoute(RealmRouter.DEFAULT_REALM, RealmRouter.ANY_APPLICATION, _hss3.getHost(), 0, 1);
+
+		assertSame(_hss1, _router.getRoute(newRequest("home1.net", null)));
+		assertSame(_hss1, _router.getRoute(newRequest("HOME1.net", null)));
+
+		DiameterRequest request = newRequest("home1.net", null);
+		request.setApplicationId(16777217);
+		assertSame(_hss2, _router.getRoute(request));
+
+		assertSame(_hss3, _router.getRoute(newRequest("home2.net", null)));
+
+		_router.removeRoutes(RealmRouter.DEFAULT_REALM);
+		assertNull(_router.getRoute(newRequest("home2.net", null)));
+		assertEquals(2, _router.getRoutes().length);
+	}
+
+	@Test
+	public void testLeastPending()
+	{
+		_router.addRoute("home1.net", CX, _hss1.getHost(), 0, 1);
+		_router.addRoute("home1.net", CX, _hss2.getHost(), 0, 1);
+
+		_hss1._pendings = 10;
+		_hss2._pendings = 2;
+		for (int i = 0; i < 10; i++)
+			assertSame(_hss2, _router.getRoute(newRequest("home1.net", null)));
+
+		// weight 3 with 5 pendings is less loaded than weight 1 with 2 pendings
+		_router.addRoute("home1.net", CX, _hss1.getHost(), 0, 3);
+		_hss1._pendings = 5;
+		for (int i = 0; i < 10; i++)
+			assertSame(_hss1, _router.getRoute(newRequest("home1.net", null)));
+	}
+
+	@Test
+	public void testSpread()
+	{
+		_router.addRoute("home1.net", CX, _hss1.getHost(), 0, 1);
+		_router.addRoute("home1.net", CX, _hss2.getHost(), 0, 1);
+		_router.addRoute("home1.net", CX, _hss3.getHost(), 0, 1);
+
+		Set<Peer> peers = new HashSet<Peer>();
+		for (int i = 0; i < 10; i++)
+			peers.add(_router.getRoute(newRequest("home1.net", null)));
+		assertEquals(3, peers.size());
+	}
+
+	@Test
+	public void testPriority()
+	{
+		_router.addRoute("home1.net", CX, _hss1.getHost(), 1, 1);
+		_router.addRoute("home1.net", CX, _hss2.getHost(), 2, 1);
+
+		_hss1._pendings = 100;
+		assertSame(_hss1, _router.getRoute(newRequest("home1.net", null)));
+		_hss1._open = false;
+		assertSame(_hss2, _router.getRoute(newRequest("home1.net", null)));
+	}
+
+	@Test
+	public void testCircuitBreaker() throws Exception
+	{
+		_router.setFailureThreshold(3);
+		_router.setOpenTime(100);
+		_router.addRoute("home1.net", CX, _hss1.getHost(), 1, 1);
+		_router.addRoute("home1.net", CX, _hss2.getHost(), 2, 1);
+
+		DiameterRequest request = newRequest("home1.net", null);
+		for (int i = 0; i < 3; i++)
+			_router.noAnswerReceived(_hss1, request);
+		assertSame(_hss2, _router.getRoute(newRequest("home1.net", null)));
+
+		Thread.sleep(150);
+		// a single request probes the peer
+		assertSame(_hss1, _router.getRoute(newRequest("home1.net", null)));
+		assertSame(_hss2, _router.getRoute(newRequest("home1.net", null)));
+
+		_router.answerReceived(_hss1, request, request.createAnswer(Common.DIAMETER_TOO_BUSY));
+		assertSame(_hss2, _router.getRoute(newRequest("home1.net", null)));
+
+		Thread.sleep(150);
+		assertSame(_hss1, _router.getRoute(newRequest("home1.net", null)));
+		DiameterAnswer answer = request.createAnswer(Common.DIAMETER_SUCCESS);
+		_router.answerReceived(_hss1, request, answer);
+		assertSame(_hss1, _router.getRoute(newRequest("home1.net", null)));
+		assertSame(_hss1, _router.getRoute(newRequest("home1.net", null)));
+	}
+
+	@Test
+	public void testFailover() throws Exception
+	{
+		_router.setFailureThreshold(2);
+		_router.addRoute("home1.net", CX, _hss1.getHost(), 0, 1);
+		_router.addRoute("home1.net", CX, _hss2.getHost(), 0, 1);
+
+		// test peers have no connection: sending fails
+		DiameterRequest request = newRequest("home1.net", null);
+		try
+		{
+			_node.send(request);
+			fail();
+		}
+		catch (IOException e)
+		{
+		}
+		assertTrue(request.hasBeenSentTo(_hss1));
+		assertTrue(request.hasBeenSentTo(_hss2));
+		assertNull(_router.getFailoverRoute(request));
+
+		try
+		{
+			_node.send(newRequest("home1.net", null));
+			fail();
+		}
+		catch (IOException e)
+		{
+		}
+		// both peers failed twice
+		assertNull(_router.getRoute(newRequest("home1.net", null)));
+	}
+
+	static class TestPeer extends Peer
+	{
+		volatile boolean _open = true;
+		volatile int _pendings;
+
+		public TestPeer(String host)
+		{
+			super(host);
+		}
+
+		@Override
+		public boolean isOpen()
+		{
+			return _open;
+		}
+
+		@Override
+		public int getPendings()
+		{
+			return _pendings;
+		}
+	}
+}
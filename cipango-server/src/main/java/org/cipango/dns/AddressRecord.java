@@ -0,0 +1,50 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.dns;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * A or AAAA record.
+ */
+public class AddressRecord extends Record
+{
+	private InetAddress _address;
+	
+	public AddressRecord(String name, long ttl, InetAddress address)
+	{
+		super(address instanceof Inet6Address ? AAAA : A, name, ttl);
+		_address = address;
+	}
+	
+	public InetAddress getAddress()
+	{
+		return _address;
+	}
+	
+	@Override
+	protected void writeData(ByteBuffer buffer)
+	{
+		buffer.put(_address.getAddress());
+	}
+	
+	@Override
+	public String toString()
+	{
+		return super.toString() + " " + _address.getHostAddress();
+	}
+}
@@ -0,0 +1,45 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.dns;
+
+import java.nio.ByteBuffer;
+
+public class CnameRecord extends Record
+{
+	private String _target;
+	
+	public CnameRecord(String name, long ttl, String target)
+	{
+		super(CNAME, name, ttl);
+		_target = DnsMessage.normalize(target);
+	}
+	
+	public String getTarget()
+	{
+		return _target;
+	}
+	
+	@Override
+	protected void writeData(ByteBuffer buffer)
+	{
+		DnsMessage.writeName(buffer, _target);
+	}
+	
+	@Override
+	public String toString()
+	{
+		return super.toString() + " " + _target;
+	}
+}
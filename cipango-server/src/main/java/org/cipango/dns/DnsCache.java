@@ -0,0 +1,165 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.dns;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * DNS cache. Entries expire after the smallest TTL of their records, bounded by 
+ * <code>maxTtl</code>. Names that do not exist or have no record of the requested 
+ * type are cached as empty entries for the negative TTL (RFC 2308).
+ */
+public class DnsCache
+{
+	private ConcurrentMap<String, Entry> _entries = new ConcurrentHashMap<String, Entry>();
+	private long _maxTtl = 86400;
+	private long _negativeTtl = 300;
+	private int _maxEntries = 10000;
+	
+	/**
+	 * @return the cached records, an empty list for a negative entry or <code>null</code> if 
+	 * 	the entry is not in the cache or has expired.
+	 */
+	public List<Record> get(String name, int type)
+	{
+		String key = key(name, type);
+		Entry entry = _entries.get(key);
+		if (entry == null)
+			return null;
+		if (entry._expires <= now())
+		{
+			_entries.remove(key, entry);
+			return null;
+		}
+		return entry._records;
+	}
+	
+	public void put(String name, int type, List<Record> records)
+	{
+		if (records.isEmpty())
+		{
+			putNegative(name, type, _negativeTtl);
+			return;
+		}
+		long ttl = _maxTtl;
+		for (Record record : records)
+			ttl = Math.min(ttl, record.getTtl());
+		put(name, type, Collections.unmodifiableList(records), ttl);
+	}
+	
+	/**
+	 * @param ttl the time to live in seconds, or <code>-1</code> for the default negative TTL.
+	 */
+	public void putNegative(String name, int type, long ttl)
+	{
+		if (ttl < 0 || ttl > _negativeTtl)
+			ttl = _negativeTtl;
+		put(name, type, Collections.<Record>emptyList(), ttl);
+	}
+	
+	private void put(String name, int type, List<Record> records, long ttl)
+	{
+		if (ttl <= 0)
+			return;
+		if (_entries.size() >= _maxEntries)
+			purge();
+		_entries.put(key(name, type), new Entry(records, now() + ttl * 1000));
+	}
+	
+	/**
+	 * Removes expired entries, and all entries if the cache is still full.
+	 */
+	public void purge()
+	{
+		long now = now();
+		Iterator<Entry> it = _entries.values().iterator();
+		while (it.hasNext())
+		{
+			if (it.next()._expires <= now)
+				it.remove();
+		}
+		if (_entries.size() >= _maxEntries)
+			_entries.clear();
+	}
+	
+	public void clear()
+	{
+		_entries.clear();
+	}
+	
+	public int size()
+	{
+		return _entries.size();
+	}
+	
+	public long getMaxTtl()
+	{
+		return _maxTtl;
+	}
+	
+	public void setMaxTtl(long maxTtl)
+	{
+		_maxTtl = maxTtl;
+	}
+	
+	public long getNegativeTtl()
+	{
+		return _negativeTtl;
+	}
+	
+	/**
+	 * Sets the maximum time in seconds negative answers are cached.
+	 */
+	public void setNegativeTtl(long negativeTtl)
+	{
+		_negativeTtl = negativeTtl;
+	}
+	
+	public int getMaxEntries()
+	{
+		return _maxEntries;
+	}
+	
+	public void setMaxEntries(int maxEntries)
+	{
+		_maxEntries = maxEntries;
+	}
+	
+	protected long now()
+	{
+		return System.currentTimeMillis();
+	}
+	
+	private String key(String name, int type)
+	{
+		return type + ":" + DnsMessage.normalize(name);
+	}
+	
+	static class Entry
+	{
+		private List<Record> _records;
+		private long _expires;
+		
+		Entry(List<Record> records, long expires)
+		{
+			_records = records;
+			_expires = expires;
+		}
+	}
+}
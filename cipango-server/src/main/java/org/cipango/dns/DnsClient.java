@@ -0,0 +1,217 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.dns;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.eclipse.jetty.util.log.Log;
+
+/**
+ * Blocking DNS stub client. Queries are sent over UDP to each configured name server in turn 
+ * and retried over TCP when the response is truncated.
+ */
+public class DnsClient
+{
+	public static final int DEFAULT_PORT = 53;
+	
+	private InetSocketAddress[] _nameServers;
+	private int _timeout = 2000;
+	private int _retries = 2;
+	private Random _random = new Random();
+	
+	public DnsClient()
+	{
+		_nameServers = getSystemNameServers();
+	}
+	
+	public DnsClient(InetSocketAddress... nameServers)
+	{
+		_nameServers = nameServers;
+	}
+	
+	public InetSocketAddress[] getNameServers()
+	{
+		return _nameServers;
+	}
+	
+	public void setNameServers(InetSocketAddress[] nameServers)
+	{
+		_nameServers = nameServers;
+	}
+	
+	public int getTimeout()
+	{
+		return _timeout;
+	}
+	
+	/**
+	 * Sets the time in milliseconds to wait for a response from a name server.
+	 */
+	public void setTimeout(int timeout)
+	{
+		_timeout = timeout;
+	}
+	
+	public int getRetries()
+	{
+		return _retries;
+	}
+	
+	public void setRetries(int retries)
+	{
+		_retries = retries;
+	}
+	
+	public DnsMessage query(String name, int type) throws IOException
+	{
+		if (_nameServers == null || _nameServers.length == 0)
+			throw new IOException("No name server configured");
+		
+		DnsMessage query;
+		synchronized (_random)
+		{
+			query = DnsMessage.newQuery(_random.nextInt(), name, type);
+		}
+		
+		IOException exception = null;
+		for (int i = 0; i <= _retries; i++)
+		{
+			for (InetSocketAddress nameServer : _nameServers)
+			{
+				try
+				{
+					DnsMessage response = queryUdp(query, nameServer);
+					if (response.isTruncated())
+						response = queryTcp(query, nameServer);
+					if (response.getRcode() != DnsMessage.RCODE_SERVFAIL)
+						return response;
+					exception = new IOException("Server failure from " + nameServer + " for " + name);
+				}
+				catch (IOException e)
+				{
+					Log.ignore(e);
+					exception = e;
+				}
+			}
+		}
+		throw exception;
+	}
+	
+	protected DnsMessage queryUdp(DnsMessage query, InetSocketAddress nameServer) throws IOException
+	{
+		DatagramSocket socket = new DatagramSocket();
+		try
+		{
+			ByteBuffer buffer = query.encode();
+			socket.setSoTimeout(_timeout);
+			socket.send(new DatagramPacket(buffer.array(), buffer.limit(), nameServer));
+			
+			byte[] b = new byte[DnsMessage.MAX_UDP_SIZE];
+			long end = System.currentTimeMillis() + _timeout;
+			while (true)
+			{
+				DatagramPacket packet = new DatagramPacket(b, b.length);
+				socket.receive(packet);
+				DnsMessage response = DnsMessage.parse(ByteBuffer.wrap(b, 0, packet.getLength()));
+				if (response.getId() == query.getId() && response.isResponse())
+					return response;
+				
+				int remaining = (int) (end - System.currentTimeMillis());
+				if (remaining <= 0)
+					throw new InterruptedIOException("DNS query timeout");
+				socket.setSoTimeout(remaining);
+			}
+		}
+		finally
+		{
+			socket.close();
+		}
+	}
+	
+	protected DnsMessage queryTcp(DnsMessage query, InetSocketAddress nameServer) throws IOException
+	{
+		Socket socket = new Socket();
+		try
+		{
+			socket.connect(nameServer, _timeout);
+			socket.setSoTimeout(_timeout);
+			ByteBuffer buffer = query.encode();
+			DataOutputStream os = new DataOutputStream(socket.getOutputStream());
+			os.writeShort(buffer.limit());
+			os.write(buffer.array(), 0, buffer.limit());
+			os.flush();
+			
+			DataInputStream is = new DataInputStream(socket.getInputStream());
+			byte[] b = new byte[is.readUnsignedShort()];
+			is.readFully(b);
+			return DnsMessage.parse(ByteBuffer.wrap(b));
+		}
+		finally
+		{
+			socket.close();
+		}
+	}
+	
+	/**
+	 * @return the name servers found in <code>/etc/resolv.conf</code>.
+	 */
+	public static InetSocketAddress[] getSystemNameServers()
+	{
+		List<InetSocketAddress> nameServers = new ArrayList<InetSocketAddress>();
+		File file = new File("/etc/resolv.conf");
+		if (file.exists())
+		{
+			BufferedReader reader = null;
+			try
+			{
+				reader = new BufferedReader(new FileReader(file));
+				String line;
+				while ((line = reader.readLine()) != null)
+				{
+					line = line.trim();
+					if (line.startsWith("nameserver"))
+					{
+						String host = line.substring("nameserver".length()).trim();
+						nameServers.add(new InetSocketAddress(InetAddress.getByName(host), DEFAULT_PORT));
+					}
+				}
+			}
+			catch (IOException e)
+			{
+				Log.warn("Could not read name servers from " + file + ": " + e);
+			}
+			finally
+			{
+				try { if (reader != null) reader.close(); } catch (IOException e) { Log.ignore(e); }
+			}
+		}
+		return nameServers.toArray(new InetSocketAddress[nameServers.size()]);
+	}
+}
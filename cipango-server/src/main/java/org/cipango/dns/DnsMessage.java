@@ -0,0 +1,340 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.dns;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * DNS message (RFC 1035). Supports the record types used for SIP server location 
+ * (RFC 3263), other records are skipped when parsing.
+ */
+public class DnsMessage
+{
+	public static final int MAX_UDP_SIZE = 512;
+	
+	public static final int RCODE_NOERROR = 0;
+	public static final int RCODE_SERVFAIL = 2;
+	public static final int RCODE_NXDOMAIN = 3;
+	
+	private static final int FLAG_QR = 0x8000;
+	private static final int FLAG_TC = 0x0200;
+	private static final int FLAG_RD = 0x0100;
+	private static final int FLAG_RA = 0x0080;
+	
+	private int _id;
+	private int _flags;
+	private String _questionName;
+	private int _questionType;
+	private List<Record> _answers = new ArrayList<Record>();
+	private List<Record> _authority = new ArrayList<Record>();
+	private List<Record> _additional = new ArrayList<Record>();
+	
+	public static DnsMessage newQuery(int id, String name, int type)
+	{
+		DnsMessage query = new DnsMessage();
+		query._id = id & 0xffff;
+		query._flags = FLAG_RD;
+		query._questionName = normalize(name);
+		query._questionType = type;
+		return query;
+	}
+	
+	public static DnsMessage newResponse(DnsMessage query, int rcode)
+	{
+		DnsMessage response = new DnsMessage();
+		response._id = query._id;
+		response._flags = FLAG_QR | FLAG_RD | FLAG_RA | (rcode & 0xf);
+		response._questionName = query._questionName;
+		response._questionType = query._questionType;
+		return response;
+	}
+	
+	public int getId()
+	{
+		return _id;
+	}
+	
+	public boolean isResponse()
+	{
+		return (_flags & FLAG_QR) != 0;
+	}
+	
+	public boolean isTruncated()
+	{
+		return (_flags & FLAG_TC) != 0;
+	}
+	
+	public int getRcode()
+	{
+		return _flags & 0xf;
+	}
+	
+	public String getQuestionName()
+	{
+		return _questionName;
+	}
+	
+	public int getQuestionType()
+	{
+		return _questionType;
+	}
+	
+	public List<Record> getAnswers()
+	{
+		return _answers;
+	}
+	
+	public List<Record> getAuthority()
+	{
+		return _authority;
+	}
+	
+	public List<Record> getAdditional()
+	{
+		return _additional;
+	}
+	
+	/**
+	 * @return the negative caching TTL from the SOA record in the authority section 
+	 * 	(RFC 2308), or <code>-1</code> if none.
+	 */
+	public long getNegativeTtl()
+	{
+		for (Record record : _authority)
+		{
+			if (record instanceof SoaRecord)
+				return Math.min(record.getTtl(), ((SoaRecord) record).getMinimum());
+		}
+		return -1;
+	}
+	
+	public ByteBuffer encode()
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(MAX_UDP_SIZE);
+		buffer.putShort((short) _id);
+		buffer.putShort((short) _flags);
+		buffer.putShort((short) (_questionName == null ? 0 : 1));
+		buffer.putShort((short) _answers.size());
+		buffer.putShort((short) _authority.size());
+		buffer.putShort((short) _additional.size());
+		if (_questionName != null)
+		{
+			writeName(buffer, _questionName);
+			buffer.putShort((short) _questionType);
+			buffer.putShort((short) Record.CLASS_IN);
+		}
+		writeRecords(buffer, _answers);
+		writeRecords(buffer, _authority);
+		writeRecords(buffer, _additional);
+		buffer.flip();
+		return buffer;
+	}
+	
+	private void writeRecords(ByteBuffer buffer, List<Record> records)
+	{
+		for (Record record : records)
+		{
+			writeName(buffer, record.getName());
+			buffer.putShort((short) record.getType());
+			buffer.putShort((short) Record.CLASS_IN);
+			buffer.putInt((int) record.getTtl());
+			int lengthPosition = buffer.position();
+			buffer.putShort((short) 0);
+			record.writeData(buffer);
+			buffer.putShort(lengthPosition, (short) (buffer.position() - lengthPosition - 2));
+		}
+	}
+	
+	public static DnsMessage parse(ByteBuffer buffer) throws IOException
+	{
+		try
+		{
+			DnsMessage message = new DnsMessage();
+			message._id = buffer.getShort() & 0xffff;
+			message._flags = buffer.getShort() & 0xffff;
+			int qdCount = buffer.getShort() & 0xffff;
+			int anCount = buffer.getShort() & 0xffff;
+			int nsCount = buffer.getShort() & 0xffff;
+			int arCount = buffer.getShort() & 0xffff;
+			
+			for (int i = 0; i < qdCount; i++)
+			{
+				String name = readName(buffer);
+				int type = buffer.getShort() & 0xffff;
+				buffer.getShort(); // class
+				if (i == 0)
+				{
+					message._questionName = name;
+					message._questionType = type;
+				}
+			}
+			
+			if (message.isTruncated())
+				return message;
+			
+			readRecords(buffer, anCount, message._answers);
+			readRecords(buffer, nsCount, message._authority);
+			readRecords(buffer, arCount, message._additional);
+			return message;
+		}
+		catch (BufferUnderflowException e)
+		{
+			throw new IOException("Truncated DNS message");
+		}
+		catch (IndexOutOfBoundsException e)
+		{
+			throw new IOException("Invalid DNS message: " + e.getMessage());
+		}
+	}
+	
+	private static void readRecords(ByteBuffer buffer, int count, List<Record> records) throws IOException
+	{
+		for (int i = 0; i < count; i++)
+		{
+			String name = readName(buffer);
+			int type = buffer.getShort() & 0xffff;
+			buffer.getShort(); // class
+			long ttl = buffer.getInt() & 0xffffffffL;
+			int length = buffer.getShort() & 0xffff;
+			int end = buffer.position() + length;
+			
+			switch (type)
+			{
+			case Record.A:
+			case Record.AAAA:
+				byte[] addr = new byte[type == Record.A ? 4 : 16];
+				buffer.get(addr);
+				records.add(new AddressRecord(name, ttl, InetAddress.getByAddress(name, addr)));
+				break;
+			case Record.CNAME:
+				records.add(new CnameRecord(name, ttl, readName(buffer)));
+				break;
+			case Record.SRV:
+				int priority = buffer.getShort() & 0xffff;
+				int weight = buffer.getShort() & 0xffff;
+				int port = buffer.getShort() & 0xffff;
+				records.add(new SrvRecord(name, ttl, priority, weight, port, readName(buffer)));
+				break;
+			case Record.NAPTR:
+				int order = buffer.getShort() & 0xffff;
+				int preference = buffer.getShort() & 0xffff;
+				String flags = readString(buffer);
+				String service = readString(buffer);
+				String regexp = readString(buffer);
+				records.add(new NaptrRecord(name, ttl, order, preference, flags, service, regexp, readName(buffer)));
+				break;
+			case Record.SOA:
+				String mname = readName(buffer);
+				String rname = readName(buffer);
+				records.add(new SoaRecord(name, ttl, mname, rname, buffer.getInt() & 0xffffffffL, 
+						buffer.getInt() & 0xffffffffL, buffer.getInt() & 0xffffffffL,
+						buffer.getInt() & 0xffffffffL, buffer.getInt() & 0xffffffffL));
+				break;
+			default:
+				break;
+			}
+			buffer.position(end);
+		}
+	}
+	
+	public static String normalize(String name)
+	{
+		if (name == null)
+			return null;
+		if (name.endsWith(".") && name.length() > 1)
+			name = name.substring(0, name.length() - 1);
+		return name.toLowerCase();
+	}
+	
+	static String readName(ByteBuffer buffer) throws IOException
+	{
+		StringBuilder sb = new StringBuilder();
+		int position = -1;
+		int jumps = 0;
+		while (true)
+		{
+			int length = buffer.get() & 0xff;
+			if (length == 0)
+				break;
+			if ((length & 0xc0) == 0xc0)
+			{
+				int offset = ((length & 0x3f) << 8) | (buffer.get() & 0xff);
+				if (position == -1)
+					position = buffer.position();
+				if (++jumps > 64)
+					throw new IOException("DNS name compression loop");
+				buffer.position(offset);
+				continue;
+			}
+			if (sb.length() > 0)
+				sb.append('.');
+			for (int i = 0; i < length; i++)
+				sb.append((char) (buffer.get() & 0xff));
+		}
+		if (position != -1)
+			buffer.position(position);
+		return sb.length() == 0 ? "." : sb.toString().toLowerCase();
+	}
+	
+	static void writeName(ByteBuffer buffer, String name)
+	{
+		if (name != null && !".".equals(name))
+		{
+			int start = 0;
+			while (start < name.length())
+			{
+				int end = name.indexOf('.', start);
+				if (end == -1)
+					end = name.length();
+				buffer.put((byte) (end - start));
+				for (int i = start; i < end; i++)
+					buffer.put((byte) name.charAt(i));
+				start = end + 1;
+			}
+		}
+		buffer.put((byte) 0);
+	}
+	
+	static String readString(ByteBuffer buffer)
+	{
+		int length = buffer.get() & 0xff;
+		StringBuilder sb = new StringBuilder(length);
+		for (int i = 0; i < length; i++)
+			sb.append((char) (buffer.get() & 0xff));
+		return sb.toString();
+	}
+	
+	static void writeString(ByteBuffer buffer, String s)
+	{
+		buffer.put((byte) s.length());
+		for (int i = 0; i < s.length(); i++)
+			buffer.put((byte) s.charAt(i));
+	}
+	
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append(isResponse() ? "response " : "query ").append(_id);
+		sb.append(" ").append(_questionName).append(" ").append(Record.typeToString(_questionType));
+		if (isResponse())
+			sb.append(" rcode=").append(getRcode()).append(" answers=").append(_answers);
+		return sb.toString();
+	}
+}
@@ -0,0 +1,652 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.dns;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.sip.SipURI;
+
+import org.cipango.server.SipConnectors;
+import org.cipango.sip.Via;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.component.LifeCycle;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+/**
+ * RFC 3263 resolver using NAPTR, SRV, A and AAAA records.
+ * <p>
+ * Each resolution is first computed from the cache only. If a record is missing, 
+ * the resolution is handed to the resolver thread pool which queries the name 
+ * servers, so that SIP threads never wait for the DNS.
+ * <p>
+ * When a name has no address record, the system resolver is used as a fallback 
+ * so that names only known from <code>/etc/hosts</code> are still resolved.
+ */
+public class DnsResolver extends AbstractLifeCycle implements Resolver
+{
+	private static final CacheMiss __cacheMiss = new CacheMiss();
+	
+	/**
+	 * Pseudo record type for addresses given by the system resolver.
+	 */
+	private static final int SYSTEM = 0;
+	
+	private static final String[] __naptrServices = { null, "SIP+D2U", "SIP+D2T", "SIPS+D2T" };
+	private static final String[] __srvPrefixes = { null, "_sip._udp.", "_sip._tcp.", "_sips._tcp." };
+	private static final int[] __transports = { SipConnectors.UDP_ORDINAL, SipConnectors.TCP_ORDINAL, SipConnectors.TLS_ORDINAL };
+	
+	private DnsClient _client;
+	private DnsCache _cache = new DnsCache();
+	private ThreadPool _threadPool;
+	private boolean _ownThreadPool;
+	private int[] _transports;
+	private boolean _systemFallback = true;
+	private long _systemTtl = 60;
+	private Random _random = new Random();
+	
+	private final AtomicLong _cacheHits = new AtomicLong();
+	private final AtomicLong _cacheMisses = new AtomicLong();
+	private final AtomicLong _queries = new AtomicLong();
+	private final AtomicLong _failures = new AtomicLong();
+	
+	@Override
+	protected void doStart() throws Exception
+	{
+		if (_client == null)
+			_client = new DnsClient();
+		if (_threadPool == null)
+		{
+			QueuedThreadPool threadPool = new QueuedThreadPool();
+			threadPool.setName("dns");
+			threadPool.setMaxThreads(16);
+			_threadPool = threadPool;
+			_ownThreadPool = true;
+		}
+		if (_threadPool instanceof LifeCycle)
+			((LifeCycle) _threadPool).start();
+		super.doStart();
+	}
+	
+	@Override
+	protected void doStop() throws Exception
+	{
+		super.doStop();
+		if (_threadPool instanceof LifeCycle)
+			((LifeCycle) _threadPool).stop();
+		if (_ownThreadPool)
+		{
+			_threadPool = null;
+			_ownThreadPool = false;
+		}
+		_cache.clear();
+	}
+	
+	public List<Hop> resolve(SipURI uri, ResolveListener listener) throws IOException
+	{
+		String host = uri.getMAddrParam();
+		if (host == null)
+			host = uri.getHost();
+		int transport = -1;
+		if (uri.getTransportParam() != null)
+		{
+			transport = SipConnectors.getOrdinal(uri.getTransportParam());
+			if (transport == -1)
+				throw new IOException("Unsupported transport " + uri.getTransportParam());
+		}
+		return resolve(new Resolution(host, uri.getPort(), transport, uri.isSecure(), listener));
+	}
+	
+	public List<Hop> resolve(Via via, ResolveListener listener) throws IOException
+	{
+		int transport = SipConnectors.getOrdinal(via.getTransport());
+		if (transport == -1)
+			throw new IOException("Unsupported transport " + via.getTransport());
+		
+		String host;
+		int port = via.getPort();
+		if (via.getReceived() != null)
+		{
+			host = via.getReceived();
+			String rport = via.getRport();
+			if (rport != null && rport.length() > 0)
+				port = Integer.parseInt(rport);
+		}
+		else if (via.getMAddr() != null)
+			host = via.getMAddr();
+		else
+			host = via.getHost();
+		
+		return resolve(new Resolution(host, port, transport, false, listener));
+	}
+	
+	protected List<Hop> resolve(Resolution resolution) throws IOException
+	{
+		if (isNumeric(resolution._host))
+			return resolution.lookup(true);
+		
+		try
+		{
+			List<Hop> hops = resolution.lookup(true);
+			_cacheHits.incrementAndGet();
+			if (hops.isEmpty())
+			{
+				_failures.incrementAndGet();
+				throw new UnknownHostException(resolution._host);
+			}
+			return hops;
+		}
+		catch (CacheMiss e)
+		{
+			_cacheMisses.incrementAndGet();
+			if (!isRunning() || !_threadPool.dispatch(resolution))
+			{
+				_failures.incrementAndGet();
+				throw new IOException("Could not dispatch resolution of " + resolution._host);
+			}
+			return null;
+		}
+	}
+	
+	/**
+	 * @return the records of the given type, from the cache or the name servers.
+	 * @throws CacheMiss if <code>cacheOnly</code> and the records are not cached.
+	 */
+	protected List<Record> lookup(String name, int type, boolean cacheOnly) throws IOException
+	{
+		List<Record> records = _cache.get(name, type);
+		if (records != null)
+			return records;
+		if (cacheOnly)
+			throw __cacheMiss;
+		
+		DnsMessage response;
+		try
+		{
+			_queries.incrementAndGet();
+			response = _client.query(name, type);
+		}
+		catch (IOException e)
+		{
+			if (Log.isDebugEnabled())
+				Log.debug("DNS query " + name + " " + Record.typeToString(type) + " failed: " + e);
+			return Collections.emptyList();
+		}
+		
+		int rcode = response.getRcode();
+		if (rcode != DnsMessage.RCODE_NOERROR && rcode != DnsMessage.RCODE_NXDOMAIN)
+			return Collections.emptyList();
+		
+		records = new ArrayList<Record>();
+		for (Record record : response.getAnswers())
+		{
+			if (record.getType() == type)
+				records.add(record);
+		}
+		cacheAdditional(response.getAdditional());
+		
+		if (records.isEmpty())
+			_cache.putNegative(name, type, response.getNegativeTtl());
+		else
+			_cache.put(name, type, records);
+		return records;
+	}
+	
+	private void cacheAdditional(List<Record> additional)
+	{
+		if (additional.isEmpty())
+			return;
+		
+		Map<String, List<Record>> byName = new HashMap<String, List<Record>>();
+		for (Record record : additional)
+		{
+			if (record.getType() != Record.A && record.getType() != Record.AAAA)
+				continue;
+			String key = record.getType() + ":" + record.getName();
+			List<Record> records = byName.get(key);
+			if (records == null)
+			{
+				records = new ArrayList<Record>();
+				byName.put(key, records);
+			}
+			records.add(record);
+		}
+		for (List<Record> records : byName.values())
+		{
+			Record record = records.get(0);
+			if (_cache.get(record.getName(), record.getType()) == null)
+				_cache.put(record.getName(), record.getType(), records);
+		}
+	}
+	
+	protected List<Record> systemLookup(String name, boolean cacheOnly) throws IOException
+	{
+		List<Record> records = _cache.get(name, SYSTEM);
+		if (records != null)
+			return records;
+		if (cacheOnly)
+			throw __cacheMiss;
+		
+		records = new ArrayList<Record>();
+		try
+		{
+			for (InetAddress address : InetAddress.getAllByName(name))
+				records.add(new AddressRecord(name, _systemTtl, address));
+			_cache.put(name, SYSTEM, records);
+		}
+		catch (UnknownHostException e)
+		{
+			_cache.putNegative(name, SYSTEM, -1);
+		}
+		return records;
+	}
+	
+	protected List<SrvRecord> sort(List<Record> records)
+	{
+		List<SrvRecord> srvs = new ArrayList<SrvRecord>(records.size());
+		for (Record record : records)
+			srvs.add((SrvRecord) record);
+		
+		// Zero weight records first within a priority (RFC 2782)
+		Collections.sort(srvs, new Comparator<SrvRecord>()
+		{
+			public int compare(SrvRecord r1, SrvRecord r2)
+			{
+				if (r1.getPriority() != r2.getPriority())
+					return r1.getPriority() - r2.getPriority();
+				return (r1.getWeight() == 0 ? 0 : 1) - (r2.getWeight() == 0 ? 0 : 1);
+			}
+		});
+		
+		List<SrvRecord> sorted = new ArrayList<SrvRecord>(srvs.size());
+		int i = 0;
+		while (i < srvs.size())
+		{
+			int j = i;
+			while (j < srvs.size() && srvs.get(j).getPriority() == srvs.get(i).getPriority())
+				j++;
+			
+			List<SrvRecord> group = new ArrayList<SrvRecord>(srvs.subList(i, j));
+			while (!group.isEmpty())
+			{
+				int total = 0;
+				for (SrvRecord srv : group)
+					total += srv.getWeight();
+				
+				int n;
+				synchronized (_random)
+				{
+					n = _random.nextInt(total + 1);
+				}
+				int sum = 0;
+				int index = 0;
+				for (; index < group.size() - 1; index++)
+				{
+					sum += group.get(index).getWeight();
+					if (sum >= n)
+						break;
+				}
+				sorted.add(group.remove(index));
+			}
+			i = j;
+		}
+		return sorted;
+	}
+	
+	protected boolean isSupported(int transport)
+	{
+		if (_transports == null)
+			return true;
+		for (int i = 0; i < _transports.length; i++)
+		{
+			if (_transports[i] == transport)
+				return true;
+		}
+		return false;
+	}
+	
+	public static boolean isNumeric(String host)
+	{
+		if (host.length() == 0)
+			return false;
+		if (host.charAt(0) == '[' || host.indexOf(':') != -1)
+			return true;
+		for (int i = 0; i < host.length(); i++)
+		{
+			char c = host.charAt(i);
+			if (c != '.' && (c < '0' || c > '9'))
+				return false;
+		}
+		return true;
+	}
+	
+	public DnsCache getCache()
+	{
+		return _cache;
+	}
+	
+	public void setCache(DnsCache cache)
+	{
+		_cache = cache;
+	}
+	
+	public DnsClient getClient()
+	{
+		return _client;
+	}
+	
+	public void setClient(DnsClient client)
+	{
+		_client = client;
+	}
+	
+	public ThreadPool getThreadPool()
+	{
+		return _threadPool;
+	}
+	
+	public void setThreadPool(ThreadPool threadPool)
+	{
+		if (isRunning())
+			throw new IllegalStateException("running");
+		_threadPool = threadPool;
+		_ownThreadPool = false;
+	}
+	
+	/**
+	 * Sets the transports that may be selected, by order of preference when no NAPTR 
+	 * record is found. If not set, UDP, TCP and TLS are used.
+	 * 
+	 * @param transports transport ordinals as defined in {@link SipConnectors}.
+	 */
+	public void setTransports(int[] transports)
+	{
+		_transports = transports;
+	}
+	
+	public int[] getTransports()
+	{
+		return _transports;
+	}
+	
+	public boolean isSystemFallback()
+	{
+		return _systemFallback;
+	}
+	
+	public void setSystemFallback(boolean systemFallback)
+	{
+		_systemFallback = systemFallback;
+	}
+	
+	public long getSystemTtl()
+	{
+		return _systemTtl;
+	}
+	
+	/**
+	 * Sets the time in seconds addresses given by the system resolver are cached.
+	 */
+	public void setSystemTtl(long systemTtl)
+	{
+		_systemTtl = systemTtl;
+	}
+	
+	public String[] getNameServers()
+	{
+		if (_client == null)
+			return null;
+		String[] nameServers = new String[_client.getNameServers().length];
+		for (int i = 0; i < nameServers.length; i++)
+			nameServers[i] = _client.getNameServers()[i].toString();
+		return nameServers;
+	}
+	
+	public long getCacheHits()
+	{
+		return _cacheHits.get();
+	}
+	
+	public long getCacheMisses()
+	{
+		return _cacheMisses.get();
+	}
+	
+	public long getQueries()
+	{
+		return _queries.get();
+	}
+	
+	public long getFailures()
+	{
+		return _failures.get();
+	}
+	
+	public int getCacheSize()
+	{
+		return _cache.size();
+	}
+	
+	public void statsReset()
+	{
+		_cacheHits.set(0);
+		_cacheMisses.set(0);
+		_queries.set(0);
+		_failures.set(0);
+	}
+	
+	public void clearCache()
+	{
+		_cache.clear();
+	}
+	
+	class Resolution implements Runnable
+	{
+		private String _host;
+		private int _port;
+		private int _transport;
+		private boolean _secure;
+		private ResolveListener _listener;
+		
+		Resolution(String host, int port, int transport, boolean secure, ResolveListener listener)
+		{
+			if (host.startsWith("[") && host.endsWith("]"))
+				host = host.substring(1, host.length() - 1);
+			_host = host;
+			_port = port;
+			_secure = secure;
+			_transport = (secure && transport == SipConnectors.TCP_ORDINAL) ? SipConnectors.TLS_ORDINAL : transport;
+			_listener = listener;
+		}
+		
+		/**
+		 * @return the hops following RFC 3263 section 4.
+		 */
+		List<Hop> lookup(boolean cacheOnly) throws IOException
+		{
+			int transport = _transport != -1 ? _transport : 
+				(_secure ? SipConnectors.TLS_ORDINAL : SipConnectors.UDP_ORDINAL);
+			
+			if (isNumeric(_host))
+			{
+				int port = _port != -1 ? _port : SipConnectors.getDefaultPort(transport);
+				return Collections.singletonList(new Hop(transport, InetAddress.getByName(_host), port));
+			}
+			
+			if (_port != -1)
+				return addressHops(_host, transport, _port, cacheOnly);
+			
+			List<Hop> hops;
+			if (_transport == -1)
+			{
+				hops = naptrHops(cacheOnly);
+				if (!hops.isEmpty())
+					return hops;
+				
+				int[] transports = _transports != null ? _transports : __transports;
+				for (int i = 0; i < transports.length; i++)
+				{
+					int t = transports[i];
+					if (_secure && t != SipConnectors.TLS_ORDINAL)
+						continue;
+					hops = srvHops(__srvPrefixes[t] + _host, t, cacheOnly);
+					if (!hops.isEmpty())
+						return hops;
+				}
+			}
+			else
+			{
+				hops = srvHops(__srvPrefixes[transport] + _host, transport, cacheOnly);
+				if (!hops.isEmpty())
+					return hops;
+			}
+			return addressHops(_host, transport, SipConnectors.getDefaultPort(transport), cacheOnly);
+		}
+		
+		private List<Hop> naptrHops(boolean cacheOnly) throws IOException
+		{
+			List<NaptrRecord> naptrs = new ArrayList<NaptrRecord>();
+			for (Record record : DnsResolver.this.lookup(_host, Record.NAPTR, cacheOnly))
+			{
+				NaptrRecord naptr = (NaptrRecord) record;
+				int transport = getTransport(naptr.getService());
+				if ("s".equalsIgnoreCase(naptr.getFlags()) && transport != -1 && isSupported(transport)
+						&& (!_secure || transport == SipConnectors.TLS_ORDINAL))
+					naptrs.add(naptr);
+			}
+			if (naptrs.isEmpty())
+				return Collections.emptyList();
+			
+			Collections.sort(naptrs, new Comparator<NaptrRecord>()
+			{
+				public int compare(NaptrRecord r1, NaptrRecord r2)
+				{
+					if (r1.getOrder() != r2.getOrder())
+						return r1.getOrder() - r2.getOrder();
+					return r1.getPreference() - r2.getPreference();
+				}
+			});
+			
+			List<Hop> hops = new ArrayList<Hop>();
+			for (NaptrRecord naptr : naptrs)
+				hops.addAll(srvHops(naptr.getReplacement(), getTransport(naptr.getService()), cacheOnly));
+			return hops;
+		}
+		
+		private List<Hop> srvHops(String name, int transport, boolean cacheOnly) throws IOException
+		{
+			List<Record> records = DnsResolver.this.lookup(name, Record.SRV, cacheOnly);
+			if (records.isEmpty())
+				return Collections.emptyList();
+			
+			List<Hop> hops = new ArrayList<Hop>();
+			for (SrvRecord srv : sort(records))
+			{
+				if (!".".equals(srv.getTarget()))
+					hops.addAll(addressHops(srv.getTarget(), transport, srv.getPort(), cacheOnly));
+			}
+			return hops;
+		}
+		
+		private List<Hop> addressHops(String name, int transport, int port, boolean cacheOnly) throws IOException
+		{
+			List<Record> records = DnsResolver.this.lookup(name, Record.A, cacheOnly);
+			if (records.isEmpty())
+				records = DnsResolver.this.lookup(name, Record.AAAA, cacheOnly);
+			if (records.isEmpty() && _systemFallback)
+				records = systemLookup(name, cacheOnly);
+			
+			List<Hop> hops = new ArrayList<Hop>(records.size());
+			for (Record record : records)
+				hops.add(new Hop(transport, ((AddressRecord) record).getAddress(), port));
+			return hops;
+		}
+		
+		private int getTransport(String service)
+		{
+			for (int i = 1; i < __naptrServices.length; i++)
+			{
+				if (__naptrServices[i].equalsIgnoreCase(service))
+					return i;
+			}
+			return -1;
+		}
+		
+		public void run()
+		{
+			List<Hop> hops;
+			try
+			{
+				hops = lookup(false);
+			}
+			catch (IOException e)
+			{
+				_failures.incrementAndGet();
+				failed(e);
+				return;
+			}
+			
+			if (hops.isEmpty())
+			{
+				_failures.incrementAndGet();
+				failed(new UnknownHostException(_host));
+				return;
+			}
+			
+			try
+			{
+				_listener.resolved(hops);
+			}
+			catch (Throwable t)
+			{
+				Log.warn(t);
+			}
+		}
+		
+		private void failed(IOException e)
+		{
+			try
+			{
+				_listener.failed(e);
+			}
+			catch (Throwable t)
+			{
+				Log.warn(t);
+			}
+		}
+	}
+	
+	static class CacheMiss extends IOException
+	{
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		public Throwable fillInStackTrace()
+		{
+			return this;
+		}
+	}
+}
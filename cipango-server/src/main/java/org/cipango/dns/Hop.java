@@ -0,0 +1,72 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.dns;
+
+import java.net.InetAddress;
+
+import org.cipango.server.SipConnectors;
+
+/**
+ * Next hop resolved for a SIP URI or a Via: transport, address and port.
+ */
+public class Hop
+{
+	private int _transport;
+	private InetAddress _address;
+	private int _port;
+	
+	public Hop(int transport, InetAddress address, int port)
+	{
+		_transport = transport;
+		_address = address;
+		_port = port;
+	}
+	
+	/**
+	 * @return the transport ordinal as defined in {@link SipConnectors}.
+	 */
+	public int getTransport()
+	{
+		return _transport;
+	}
+	
+	public InetAddress getAddress()
+	{
+		return _address;
+	}
+	
+	public int getPort()
+	{
+		return _port;
+	}
+	
+	public boolean equals(Object o)
+	{
+		if (!(o instanceof Hop))
+			return false;
+		Hop hop = (Hop) o;
+		return _transport == hop._transport && _port == hop._port && _address.equals(hop._address);
+	}
+	
+	public int hashCode()
+	{
+		return _address.hashCode() ^ (_port << 2) ^ _transport;
+	}
+	
+	public String toString()
+	{
+		return SipConnectors.getName(_transport) + "/" + _address.getHostAddress() + ":" + _port;
+	}
+}
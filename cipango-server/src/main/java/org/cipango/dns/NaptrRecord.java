@@ -0,0 +1,90 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.dns;
+
+import java.nio.ByteBuffer;
+
+/**
+ * NAPTR record (RFC 3403).
+ */
+public class NaptrRecord extends Record
+{
+	private int _order;
+	private int _preference;
+	private String _flags;
+	private String _service;
+	private String _regexp;
+	private String _replacement;
+	
+	public NaptrRecord(String name, long ttl, int order, int preference, String flags, String service, 
+			String regexp, String replacement)
+	{
+		super(NAPTR, name, ttl);
+		_order = order;
+		_preference = preference;
+		_flags = flags;
+		_service = service;
+		_regexp = regexp;
+		_replacement = DnsMessage.normalize(replacement);
+	}
+	
+	public int getOrder()
+	{
+		return _order;
+	}
+	
+	public int getPreference()
+	{
+		return _preference;
+	}
+	
+	public String getFlags()
+	{
+		return _flags;
+	}
+	
+	public String getService()
+	{
+		return _service;
+	}
+	
+	public String getRegexp()
+	{
+		return _regexp;
+	}
+	
+	public String getReplacement()
+	{
+		return _replacement;
+	}
+	
+	@Override
+	protected void writeData(ByteBuffer buffer)
+	{
+		buffer.putShort((short) _order);
+		buffer.putShort((short) _preference);
+		DnsMessage.writeString(buffer, _flags);
+		DnsMessage.writeString(buffer, _service);
+		DnsMessage.writeString(buffer, _regexp);
+		DnsMessage.writeName(buffer, _replacement);
+	}
+	
+	@Override
+	public String toString()
+	{
+		return super.toString() + " " + _order + " " + _preference + " \"" + _flags + "\" \"" + _service 
+			+ "\" \"" + _regexp + "\" " + _replacement;
+	}
+}
@@ -0,0 +1,89 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.dns;
+
+import java.nio.ByteBuffer;
+
+/**
+ * DNS resource record.
+ */
+public abstract class Record
+{
+	public static final int A = 1;
+	public static final int CNAME = 5;
+	public static final int SOA = 6;
+	public static final int AAAA = 28;
+	public static final int SRV = 33;
+	public static final int NAPTR = 35;
+	
+	public static final int CLASS_IN = 1;
+	
+	private String _name;
+	private int _type;
+	private long _ttl;
+	
+	protected Record(int type, String name, long ttl)
+	{
+		_type = type;
+		_name = DnsMessage.normalize(name);
+		_ttl = ttl;
+	}
+	
+	public String getName()
+	{
+		return _name;
+	}
+	
+	public int getType()
+	{
+		return _type;
+	}
+	
+	/**
+	 * @return the time to live in seconds.
+	 */
+	public long getTtl()
+	{
+		return _ttl;
+	}
+	
+	protected abstract void writeData(ByteBuffer buffer);
+	
+	public static String typeToString(int type)
+	{
+		switch (type)
+		{
+		case A:
+			return "A";
+		case CNAME:
+			return "CNAME";
+		case SOA:
+			return "SOA";
+		case AAAA:
+			return "AAAA";
+		case SRV:
+			return "SRV";
+		case NAPTR:
+			return "NAPTR";
+		default:
+			return "TYPE" + type;
+		}
+	}
+	
+	public String toString()
+	{
+		return _name + " " + _ttl + " IN " + typeToString(_type);
+	}
+}
@@ -0,0 +1,33 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.dns;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Receives the result of an asynchronous resolution.
+ * 
+ * @see Resolver
+ */
+public interface ResolveListener
+{
+	/**
+	 * @param hops the hops to try in order, never empty.
+	 */
+	void resolved(List<Hop> hops);
+	
+	void failed(IOException e);
+}
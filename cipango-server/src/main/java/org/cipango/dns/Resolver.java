@@ -0,0 +1,50 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.dns;
+
+import java.io.IOException;
+import java.util.List;
+
+import javax.servlet.sip.SipURI;
+
+import org.cipango.sip.Via;
+
+/**
+ * Locates SIP servers (RFC 3263). 
+ * <p>
+ * Resolution never blocks the calling thread: when the hops are known without 
+ * querying the DNS (numeric host or cached records), they are returned immediately.
+ * Otherwise <code>null</code> is returned and the listener is notified later, from 
+ * another thread.
+ */
+public interface Resolver
+{
+	/**
+	 * Resolves the hops to use for sending a request to <code>uri</code> (RFC 3263 section 4).
+	 * 
+	 * @return the hops to try in order, or <code>null</code> if the result will be 
+	 * 	given to <code>listener</code>.
+	 * @throws IOException if the URI could be resolved immediately and no hop was found.
+	 */
+	List<Hop> resolve(SipURI uri, ResolveListener listener) throws IOException;
+	
+	/**
+	 * Resolves the hops to use for sending a response according to <code>via</code>
+	 * (RFC 3263 section 5).
+	 * 
+	 * @see #resolve(SipURI, ResolveListener)
+	 */
+	List<Hop> resolve(Via via, ResolveListener listener) throws IOException;
+}
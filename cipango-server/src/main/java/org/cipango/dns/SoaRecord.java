@@ -0,0 +1,61 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.dns;
+
+import java.nio.ByteBuffer;
+
+/**
+ * SOA record. Only used for its minimum field, which gives the negative caching TTL (RFC 2308).
+ */
+public class SoaRecord extends Record
+{
+	private String _mname;
+	private String _rname;
+	private long _serial;
+	private long _refresh;
+	private long _retry;
+	private long _expire;
+	private long _minimum;
+	
+	public SoaRecord(String name, long ttl, String mname, String rname, long serial, long refresh, 
+			long retry, long expire, long minimum)
+	{
+		super(SOA, name, ttl);
+		_mname = mname;
+		_rname = rname;
+		_serial = serial;
+		_refresh = refresh;
+		_retry = retry;
+		_expire = expire;
+		_minimum = minimum;
+	}
+	
+	public long getMinimum()
+	{
+		return _minimum;
+	}
+	
+	@Override
+	protected void writeData(ByteBuffer buffer)
+	{
+		DnsMessage.writeName(buffer, _mname);
+		DnsMessage.writeName(buffer, _rname);
+		buffer.putInt((int) _serial);
+		buffer.putInt((int) _refresh);
+		buffer.putInt((int) _retry);
+		buffer.putInt((int) _expire);
+		buffer.putInt((int) _minimum);
+	}
+}
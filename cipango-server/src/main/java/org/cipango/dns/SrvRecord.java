@@ -0,0 +1,72 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.dns;
+
+import java.nio.ByteBuffer;
+
+/**
+ * SRV record (RFC 2782).
+ */
+public class SrvRecord extends Record
+{
+	private int _priority;
+	private int _weight;
+	private int _port;
+	private String _target;
+	
+	public SrvRecord(String name, long ttl, int priority, int weight, int port, String target)
+	{
+		super(SRV, name, ttl);
+		_priority = priority;
+		_weight = weight;
+		_port = port;
+		_target = DnsMessage.normalize(target);
+	}
+	
+	public int getPriority()
+	{
+		return _priority;
+	}
+	
+	public int getWeight()
+	{
+		return _weight;
+	}
+	
+	public int getPort()
+	{
+		return _port;
+	}
+	
+	public String getTarget()
+	{
+		return _target;
+	}
+	
+	@Override
+	protected void writeData(ByteBuffer buffer)
+	{
+		buffer.putShort((short) _priority);
+		buffer.putShort((short) _weight);
+		buffer.putShort((short) _port);
+		DnsMessage.writeName(buffer, _target);
+	}
+	
+	@Override
+	public String toString()
+	{
+		return super.toString() + " " + _priority + " " + _weight + " " + _port + " " + _target;
+	}
+}
@@ -0,0 +1,384 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.io;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.io.Buffers;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.eclipse.jetty.io.nio.DirectNIOBuffer;
+import org.eclipse.jetty.io.nio.NIOBuffer;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+
+/**
+ * Pool of buffers shared by the SIP and Diameter connectors.
+ * <p>
+ * Buffers are pooled by size classes. The capacity of the buffers of a class is a power
+ * of two, from <code>minSize</code> to <code>maxSize</code>, and a request is served by
+ * the smallest class able to hold it, so that messages larger than usual still reuse
+ * buffers. Requests larger than <code>maxSize</code> are not pooled.
+ * <p>
+ * Each thread caches up to <code>threadCacheSize</code> buffers per class, so that
+ * buffers taken and returned by the same thread do not contend with other threads.
+ * Others go to a shared queue per class holding up to <code>maxBuffers</code> buffers.
+ * <p>
+ * Direct buffers are only given by {@link #getDirectBuffer(int)}, to code that does
+ * not need a backing array, and only if the pool is configured with <code>direct</code>.
+ * Buffers are not pooled while the pool is not started.
+ */
+public class BufferPool extends AbstractLifeCycle implements Buffers
+{
+	private int _minSize = 1024;
+	private int _maxSize = 256 * 1024;
+	private int _threadCacheSize = 4;
+	private int _maxBuffers = 256;
+	private boolean _direct = false;
+
+	private Arena _heap;
+	private Arena _directArena;
+
+	private final AtomicLong _hits = new AtomicLong();
+	private final AtomicLong _misses = new AtomicLong();
+	private final AtomicLong _unpooled = new AtomicLong();
+	private final AtomicLong _outstanding = new AtomicLong();
+
+	@Override
+	protected void doStart() throws Exception
+	{
+		int classes = log2(_maxSize) - log2(_minSize) + 1;
+		_heap = new Arena(classes, false);
+		_directArena = _direct ? new Arena(classes, true) : null;
+		_outstanding.set(0);
+		super.doStart();
+	}
+
+	@Override
+	protected void doStop() throws Exception
+	{
+		super.doStop();
+		_heap = null;
+		_directArena = null;
+	}
+
+	/**
+	 * @return a heap buffer of at least <code>size</code> bytes.
+	 */
+	public Buffer getBuffer(int size)
+	{
+		return getBuffer(_heap, size);
+	}
+
+	/**
+	 * @return a direct buffer of at least <code>size</code> bytes if the pool is configured
+	 * 	with direct buffers, a heap buffer otherwise.
+	 */
+	public Buffer getDirectBuffer(int size)
+	{
+		Arena arena = _directArena;
+		return getBuffer(arena != null ? arena : _heap, size);
+	}
+
+	public Buffer getBuffer()
+	{
+		return getBuffer(_minSize);
+	}
+
+	public Buffer getHeader()
+	{
+		return getBuffer(_minSize);
+	}
+
+	public void returnBuffer(Buffer buffer)
+	{
+		if (buffer.isImmutable() || buffer.isVolatile())
+			return;
+
+		boolean direct = buffer instanceof NIOBuffer && ((NIOBuffer) buffer).isDirect();
+		Arena arena = direct ? _directArena : _heap;
+		int index = index(buffer.capacity());
+		if (arena == null || index < 0 || index >= arena._queues.length || classSize(index) != buffer.capacity())
+			return;
+
+		_outstanding.decrementAndGet();
+		buffer.clear();
+		arena.release(index, buffer);
+	}
+
+	private Buffer getBuffer(Arena arena, int size)
+	{
+		int index = index(size);
+		if (arena == null || index >= arena._queues.length)
+		{
+			_unpooled.incrementAndGet();
+			return new ByteArrayBuffer(size);
+		}
+
+		_outstanding.incrementAndGet();
+		Buffer buffer = arena.acquire(index);
+		if (buffer != null)
+		{
+			_hits.incrementAndGet();
+			return buffer;
+		}
+		_misses.incrementAndGet();
+		return arena._direct ? new DirectNIOBuffer(classSize(index)) : new ByteArrayBuffer(classSize(index));
+	}
+
+	private int index(int size)
+	{
+		if (size <= _minSize)
+			return 0;
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - log2(_minSize);
+	}
+
+	private int classSize(int index)
+	{
+		return _minSize << index;
+	}
+
+	private static int log2(int size)
+	{
+		return 31 - Integer.numberOfLeadingZeros(size);
+	}
+
+	private static int roundUp(int size)
+	{
+		return size <= 1 ? 1 : Integer.highestOneBit(size - 1) << 1;
+	}
+
+	/**
+	 * Sets the capacity of the smallest buffers. It is rounded up to a power of two.
+	 */
+	public void setMinSize(int minSize)
+	{
+		if (isRunning())
+			throw new IllegalStateException("running");
+		_minSize = roundUp(minSize);
+	}
+
+	public int getMinSize()
+	{
+		return _minSize;
+	}
+
+	/**
+	 * Sets the capacity of the largest pooled buffers. It is rounded up to a power of two.
+	 */
+	public void setMaxSize(int maxSize)
+	{
+		if (isRunning())
+			throw new IllegalStateException("running");
+		_maxSize = roundUp(maxSize);
+	}
+
+	public int getMaxSize()
+	{
+		return _maxSize;
+	}
+
+	public void setThreadCacheSize(int threadCacheSize)
+	{
+		if (isRunning())
+			throw new IllegalStateException("running");
+		_threadCacheSize = threadCacheSize;
+	}
+
+	public int getThreadCacheSize()
+	{
+		return _threadCacheSize;
+	}
+
+	/**
+	 * Sets the maximum number of buffers per size class in the shared queues.
+	 */
+	public void setMaxBuffers(int maxBuffers)
+	{
+		if (isRunning())
+			throw new IllegalStateException("running");
+		_maxBuffers = maxBuffers;
+	}
+
+	public int getMaxBuffers()
+	{
+		return _maxBuffers;
+	}
+
+	public void setDirect(boolean direct)
+	{
+		if (isRunning())
+			throw new IllegalStateException("running");
+		_direct = direct;
+	}
+
+	public boolean isDirect()
+	{
+		return _direct;
+	}
+
+	/**
+	 * @return the number of requests served by a pooled buffer.
+	 */
+	public long getHits()
+	{
+		return _hits.get();
+	}
+
+	/**
+	 * @return the number of requests that needed a new buffer of a pooled size.
+	 */
+	public long getMisses()
+	{
+		return _misses.get();
+	}
+
+	/**
+	 * @return the number of requests too large to be pooled or made while the pool was stopped.
+	 */
+	public long getUnpooled()
+	{
+		return _unpooled.get();
+	}
+
+	/**
+	 * @return the percentage of the requests served by a pooled buffer.
+	 */
+	public double getHitRate()
+	{
+		long hits = _hits.get();
+		long total = hits + _misses.get() + _unpooled.get();
+		return total == 0 ? 0 : 100.0 * hits / total;
+	}
+
+	/**
+	 * @return the number of pooled buffers taken and not returned.
+	 */
+	public long getOutstanding()
+	{
+		return _outstanding.get();
+	}
+
+	/**
+	 * @return the number of buffers in the shared queues.
+	 */
+	public int getIdle()
+	{
+		int idle = 0;
+		Arena[] arenas = { _heap, _directArena };
+		for (Arena arena : arenas)
+		{
+			for (int i = 0; arena != null && i < arena._queued.length; i++)
+				idle += arena._queued[i].get();
+		}
+		return idle;
+	}
+
+	public void statsReset()
+	{
+		_hits.set(0);
+		_misses.set(0);
+		_unpooled.set(0);
+	}
+
+	@Override
+	public String toString()
+	{
+		return "BufferPool@" + Integer.toHexString(hashCode()) + "[" + _minSize + "-" + _maxSize + (_direct ? ",direct]" : "]");
+	}
+
+	class Arena
+	{
+		private final boolean _direct;
+		private final Queue<Buffer>[] _queues;
+		private final AtomicInteger[] _queued;
+		private final ThreadLocal<ThreadCache> _caches = new ThreadLocal<ThreadCache>()
+		{
+			@Override
+			protected ThreadCache initialValue()
+			{
+				return new ThreadCache(_queues.length);
+			}
+		};
+
+		@SuppressWarnings("unchecked")
+		Arena(int classes, boolean direct)
+		{
+			_direct = direct;
+			_queues = new Queue[classes];
+			_queued = new AtomicInteger[classes];
+			for (int i = 0; i < classes; i++)
+			{
+				_queues[i] = new ConcurrentLinkedQueue<Buffer>();
+				_queued[i] = new AtomicInteger();
+			}
+		}
+
+		Buffer acquire(int index)
+		{
+			Buffer buffer = _caches.get().poll(index);
+			if (buffer != null)
+				return buffer;
+
+			buffer = _queues[index].poll();
+			if (buffer != null)
+				_queued[index].decrementAndGet();
+			return buffer;
+		}
+
+		void release(int index, Buffer buffer)
+		{
+			if (_caches.get().offer(index, buffer))
+				return;
+
+			if (_queued[index].incrementAndGet() <= _maxBuffers)
+				_queues[index].offer(buffer);
+			else
+				_queued[index].decrementAndGet();
+		}
+	}
+
+	class ThreadCache
+	{
+		private final Buffer[][] _buffers;
+		private final int[] _sizes;
+
+		ThreadCache(int classes)
+		{
+			_buffers = new Buffer[classes][_threadCacheSize];
+			_sizes = new int[classes];
+		}
+
+		Buffer poll(int index)
+		{
+			if (_sizes[index] == 0)
+				return null;
+			Buffer[] buffers = _buffers[index];
+			Buffer buffer = buffers[--_sizes[index]];
+			buffers[_sizes[index]] = null;
+			return buffer;
+		}
+
+		boolean offer(int index, Buffer buffer)
+		{
+			if (_sizes[index] == _buffers[index].length)
+				return false;
+			_buffers[index][_sizes[index]++] = buffer;
+			return true;
+		}
+	}
+}
@@ -33,7 +33,7 @@ import org.eclipse.jetty.util.component.AggregateLifeCycle;
 import org.eclipse.jetty.util.component.Dumpable;
 import org.eclipse.jetty.util.component.LifeCycle;
 import org.eclipse.jetty.io.Buffer;
-import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.eclipse.jetty.io.View;
 import org.eclipse.jetty.io.BufferCache.CachedBuffer;
 import org.eclipse.jetty.util.log.Log;
 import org.eclipse.jetty.util.thread.ThreadPool;
@@ -285,6 +285,16 @@ public abstract class AbstractSipConnector extends AbstractLifeCycle implements
         return _server;
     }
     
+    /**
+     * @return the pool of the buffers datagrams are received in, or <code>null</code> if the 
+     * 	connector is not attached to a server. A received datagram is copied out of its receive 
+     * 	buffer before being parsed as the message keeps views over its bytes.
+     */
+    protected ConnectorManager getBufferPool()
+    {
+    	return _server == null ? null : _server.getConnectorManager();
+    }
+    
     public ThreadPool getThreadPool()
     {
         return _threadPool;
@@ -476,7 +486,7 @@ public abstract class AbstractSipConnector extends AbstractLifeCycle implements
 	            }
 	            
 				request.setMethod(method.toString());
-				request.setRequestURI(uri);
+				request.setRequestURI(new View(uri, uri.getIndex(), uri.getIndex(), uri.putIndex(), Buffer.READONLY));
 				msg = request;
 			} 
 			catch (Exception e)
@@ -520,7 +530,7 @@ public abstract class AbstractSipConnector extends AbstractLifeCycle implements
 		public void content(Buffer buffer) throws IOException
 		{
 			if (buffer.length() > 0)
-				msg.setRawContent(buffer.asArray()); // TODO buffer
+				msg.setRawContent(new View(buffer, buffer.getIndex(), buffer.getIndex(), buffer.putIndex(), Buffer.READONLY));
 		}
 		
 		public void reset()
@@ -529,13 +539,6 @@ public abstract class AbstractSipConnector extends AbstractLifeCycle implements
 			exception = null;
 		}
 		
-		private byte[] asArray(byte[] src, int index, int length)
-		{
-			byte[] bytes = new byte[length];
-			System.arraycopy(src, index, bytes, 0, length);
-			return bytes;
-		}
-		
 		public void add(Buffer name, Buffer value) 
 	    {
 			if (!name.isImmutable())
@@ -568,26 +571,19 @@ public abstract class AbstractSipConnector extends AbstractLifeCycle implements
 	                    
 	                    while (startValue < endValue && b[startValue] <= ' ') startValue++;
 	                    
-	                    byte[] bValue = asArray(b, startValue, endValue - startValue);
-	                    
-	                    //Buffer buffer = new View(value, startValue, startValue, endValue, Buffer.READONLY);
-	                    msg.getFields().addBuffer(name, new ByteArrayBuffer(bValue));
-	                    
-	                    //value = new View(value, i + 1, i + 1, end, Buffer.READONLY);
+	                    Buffer buffer = new View(value, startValue, startValue, endValue, Buffer.READONLY);
+	                    msg.getFields().addBuffer(name, buffer);
 	                    
 	                    startValue = i + 1;
 	                }
 	            }
 	            while (startValue < end && b[startValue] <= ' ') startValue++;
 	            
-	            byte[] bValue = asArray(b, startValue, end - startValue);
-	            msg.getFields().addBuffer(name, new ByteArrayBuffer(bValue));
-	            
-	            //value = new View(value, startValue, startValue, end, Buffer.READONLY);
+	            msg.getFields().addBuffer(name, new View(value, startValue, startValue, end, Buffer.READONLY));
 	        }
 	        else
 	        {	
-	        	msg.getFields().addBuffer(name, new ByteArrayBuffer(value.asArray())); 
+	        	msg.getFields().addBuffer(name, new View(value, value.getIndex(), value.getIndex(), value.putIndex(), Buffer.READONLY)); 
 	        }
 		}
 		
@@ -18,8 +18,8 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 
 import javax.servlet.ServletException;
 import javax.servlet.sip.Address;
@@ -28,7 +28,12 @@ import javax.servlet.sip.SipServletResponse;
 import javax.servlet.sip.SipURI;
 import javax.servlet.sip.URI;
 
+import org.cipango.dns.Hop;
+import org.cipango.dns.ResolveListener;
+import org.cipango.io.BufferPool;
 import org.cipango.server.log.AccessLog;
+import org.cipango.server.session.CallSession;
+import org.cipango.server.session.SessionManager.CallTask;
 import org.cipango.sip.NameAddr;
 import org.cipango.sip.SipGenerator;
 import org.cipango.sip.SipHeaders;
@@ -64,7 +69,7 @@ public class ConnectorManager extends AbstractLifeCycle implements Buffers, SipH
     private transient long _messagesSent;
     private transient long _nbParseErrors;
     
-    private ArrayList<Buffer> _buffers;
+    private BufferPool _bufferPool = new BufferPool();
     private int _messageSize = 10000;
     
     private int _largeMessageSize = MAX_MESSAGE_SIZE;
@@ -110,6 +115,8 @@ public class ConnectorManager extends AbstractLifeCycle implements Buffers, SipH
     public void setServer(org.eclipse.jetty.server.Server server)
     {
     	_server = (Server) server;
+    	if (_server != null)
+    		_server.getContainer().update(this, null, _bufferPool, "bufferPool", false);
     }
     
     public Server getServer()
@@ -134,10 +141,7 @@ public class ConnectorManager extends AbstractLifeCycle implements Buffers, SipH
     {
     	super.doStart();
 
-        if (_buffers != null)
-    		_buffers.clear();
-    	else
-    		_buffers = new ArrayList<Buffer>();
+        _bufferPool.start();
         
         _sipGenerator = new SipGenerator();
         
@@ -186,6 +190,8 @@ public class ConnectorManager extends AbstractLifeCycle implements Buffers, SipH
     	if (_accessLog instanceof LifeCycle)
     		try { ((LifeCycle) _accessLog).stop(); } catch (Throwable t) { Log.warn(t); }
         
+    	try { _bufferPool.stop(); } catch (Throwable t) { Log.warn(t); }
+    	
         super.doStop();
         
         mex.ifExceptionThrow();
@@ -317,16 +323,28 @@ public class ConnectorManager extends AbstractLifeCycle implements Buffers, SipH
     
     public void send(SipMessage message, SipConnection connection) throws IOException
     {
-    	Buffer buffer = getBuffer(_messageSize); 
+    	send(message, connection, false);
+    }
+    
+    /**
+     * Sends the message and, if <code>keep</code> is set, returns a copy of the encoded message 
+     * so that it can be retransmitted with {@link #resend(SipMessage, byte[], SipConnection)}.
+     */
+    public byte[] send(SipMessage message, SipConnection connection, boolean keep) throws IOException
+    {
+    	// the content may be larger than the usual message size
+    	Buffer buffer = getBuffer(_messageSize + Math.max(0, message.getContentLength())); 
     	_sipGenerator.generate(buffer, message);
     	
     	try
     	{
+    		byte[] encoded = keep ? buffer.asArray() : null;
     		connection.write(buffer);
     		
     		if (_accessLog != null)
     			_accessLog.messageSent(message, connection);
             messageSent();
+            return encoded;
     	}
     	finally
     	{
@@ -334,7 +352,30 @@ public class ConnectorManager extends AbstractLifeCycle implements Buffers, SipH
     	}
     }
     
+    /**
+     * Retransmits a message already encoded by {@link #send(SipMessage, SipConnection, boolean)}.
+     */
+    public void resend(SipMessage message, byte[] encoded, SipConnection connection) throws IOException
+    {
+    	connection.write(new ByteArrayBuffer(encoded));
+    	
+		if (_accessLog != null)
+			_accessLog.messageSent(message, connection);
+        messageSent();
+    }
+    
     public SipConnection sendRequest(SipRequest request, int transport, InetAddress address, int port) throws IOException
+    {   
+        SipConnection connection = getRequestConnection(request, transport, address, port);
+        send(request, connection);
+        
+        return connection;
+    }
+    
+    /**
+     * Sets the top Via of the request for the connector and returns the connection to send it.
+     */
+    public SipConnection getRequestConnection(SipRequest request, int transport, InetAddress address, int port) throws IOException
     {   
     	SipConnector connector = findConnector(transport, address);
     	
@@ -349,10 +390,7 @@ public class ConnectorManager extends AbstractLifeCycle implements Buffers, SipH
                 
         // TODO > 1300
 
-        SipConnection connection = connector.getConnection(address, port);
-        send(request, connection);
-        
-        return connection;
+        return connector.getConnection(address, port);
     }
     
     public void sendResponse(SipResponse response) throws IOException
@@ -368,25 +406,31 @@ public class ConnectorManager extends AbstractLifeCycle implements Buffers, SipH
     
     public void sendResponse(SipResponse response, SipConnection connection) throws IOException
     {
-    	if (connection == null || !connection.getConnector().isReliable() || !connection.isOpen())
+    	connection = getResponseConnection(response, connection);
+    	if (connection != null)
+    		send(response, connection);
+    }
+    
+    /**
+     * Returns the connection to send the response on, given the connection of the request. 
+     * Returns <code>null</code> if the Via address is being resolved: the response is then sent 
+     * once resolved.
+     */
+    public SipConnection getResponseConnection(SipResponse response, SipConnection connection) throws IOException
+    {
+    	if (connection == null)
+    	{
+    		List<Hop> hops = _server.getResolver().resolve(response.getTopVia(), new ResponseResolution(response));
+    		if (hops == null)
+    			return null;
+    		connection = getConnection(hops.get(0));
+    	}
+    	else if (!connection.getConnector().isReliable() || !connection.isOpen())
     	{
     		Via via = response.getTopVia();
     		
-    		SipConnector connector = null;
-    		InetAddress address = null;
-    		
-    		if (connection != null)
-    		{
-    			connector = connection.getConnector();
-    			address = connection.getRemoteAddress();
-    		}
-    		else
-    		{
-    			int transport = SipConnectors.getOrdinal(via.getTransport());
-    			address = InetAddress.getByName(via.getHost());
-    			
-    			connector = findConnector(transport, address);
-    		}
+    		SipConnector connector = connection.getConnector();
+    		InetAddress address = connection.getRemoteAddress();
     		
 			int port = -1;
 			
@@ -403,7 +447,61 @@ public class ConnectorManager extends AbstractLifeCycle implements Buffers, SipH
 	        }
 	        connection = connector.getConnection(address, port);
     	}
-    	send(response, connection);
+    	return connection;
+    }
+    
+    private SipConnection getConnection(Hop hop) throws IOException
+    {
+    	SipConnector connector = findConnector(hop.getTransport(), hop.getAddress());
+    	return connector.getConnection(hop.getAddress(), hop.getPort());
+    }
+    
+    /**
+     * Sends a response once the address of the Via has been resolved (RFC 3263 section 5). 
+     * The response is sent in its call session as the resolution completes on a resolver thread.
+     */
+    class ResponseResolution implements ResolveListener
+    {
+    	private SipResponse _response;
+    	
+    	ResponseResolution(SipResponse response)
+    	{
+    		_response = response;
+    	}
+    	
+		public void resolved(final List<Hop> hops)
+		{
+			CallSession callSession = _response.getCallSession();
+			if (callSession == null)
+			{
+				send(hops);
+				return;
+			}
+			_server.getSessionManager().execute(callSession.getId(), new CallTask()
+			{
+				public void run(CallSession callSession)
+				{
+					send(hops);
+				}
+			});
+		}
+		
+		private void send(List<Hop> hops)
+		{
+			try
+			{
+				ConnectorManager.this.send(_response, getConnection(hops.get(0)));
+			}
+			catch (IOException e)
+			{
+				Log.debug("Could not send response {}: {}", _response, e);
+			}
+		}
+		
+		public void failed(IOException e)
+		{
+			Log.debug("Could not resolve Via {}: {}", _response.getTopVia(), e);
+		}
     }
     
     /*
@@ -504,30 +602,31 @@ public class ConnectorManager extends AbstractLifeCycle implements Buffers, SipH
     
     public Buffer getBuffer(int size) 
     {
-		if (size == _messageSize)
-		{
-			synchronized (_buffers)
-			{
-				if (_buffers.size() == 0)
-					return newBuffer(size);
-	            return (Buffer) _buffers.remove(_buffers.size() - 1);
-            }
-        }
-		else 
-			return newBuffer(size);
+    	return _bufferPool.getBuffer(size);
     }
     
     public void returnBuffer(Buffer buffer)
     {
-        buffer.clear();
-        int c = buffer.capacity();
-        if (c == _messageSize)
-        {
-	        synchronized (_buffers)
-	        {
-	            _buffers.add(buffer);
-	        }
-        }
+    	_bufferPool.returnBuffer(buffer);
+    }
+    
+    /**
+     * Sets the pool of the buffers used to receive and send messages. It is shared with 
+     * the Diameter connectors of the same server.
+     */
+    public void setBufferPool(BufferPool bufferPool)
+    {
+    	if (isRunning())
+    		throw new IllegalStateException("running");
+    	
+    	if (getServer() != null)
+            getServer().getContainer().update(this, _bufferPool, bufferPool, "bufferPool", false);
+    	_bufferPool = bufferPool;
+    }
+    
+    public BufferPool getBufferPool()
+    {
+    	return _bufferPool;
     }
     
     public Buffer newBuffer(int size)
@@ -707,14 +806,14 @@ public class ConnectorManager extends AbstractLifeCycle implements Buffers, SipH
 		return _accessLog;
 	}
 
-	public Buffer getBuffer() {
-		// TODO Auto-generated method stub
-		return null;
+	public Buffer getBuffer()
+	{
+		return _bufferPool.getBuffer();
 	}
 
-	public Buffer getHeader() {
-		// TODO Auto-generated method stub
-		return null;
+	public Buffer getHeader()
+	{
+		return _bufferPool.getHeader();
 	}
 
 
@@ -27,6 +27,8 @@ import javax.servlet.sip.SipURI;
 import javax.servlet.sip.ar.SipApplicationRouter;
 import javax.servlet.sip.ar.SipApplicationRouterInfo;
 
+import org.cipango.dns.DnsResolver;
+import org.cipango.dns.Resolver;
 import org.cipango.log.event.Events;
 import org.cipango.server.ar.ApplicationRouterLoader;
 import org.cipango.server.ar.RouterInfoUtil;
@@ -60,6 +62,7 @@ public class Server extends org.eclipse.jetty.server.Server implements SipHandle
     private TransactionManager _transactionManager = new TransactionManager();
     
     private SessionManager _sessionManager;    
+    private Resolver _resolver;
     private SipApplicationRouter _applicationRouter;
 
     private long _statsStartedAt = -1;
@@ -87,6 +90,9 @@ public class Server extends org.eclipse.jetty.server.Server implements SipHandle
 		if (_sessionManager == null)
 			setSessionManager(new SessionManager());
 		
+		if (_resolver == null)
+			setResolver(new DnsResolver());
+		
 		try
 		{
 			super.doStart();
@@ -114,6 +120,11 @@ public class Server extends org.eclipse.jetty.server.Server implements SipHandle
 			_sessionManager.start();
 			_connectorManager.start();
 			
+			if (_resolver instanceof DnsResolver && ((DnsResolver) _resolver).getTransports() == null)
+				((DnsResolver) _resolver).setTransports(getTransports());
+			if (_resolver instanceof LifeCycle)
+				((LifeCycle) _resolver).start();
+			
 			if (contexts != null)
 			{
 				for (SipAppContext context : contexts)
@@ -139,6 +150,8 @@ public class Server extends org.eclipse.jetty.server.Server implements SipHandle
         	_applicationRouter.destroy();
         	_connectorManager.stop();
     		_sessionManager.stop();
+    		if (_resolver instanceof LifeCycle)
+    			((LifeCycle) _resolver).stop();
 		} 
         catch (Throwable e) { mex.add(e); }
 
@@ -287,6 +300,32 @@ public class Server extends org.eclipse.jetty.server.Server implements SipHandle
 		_sessionManager.setServer(this);
 	}
 	
+	public void setResolver(Resolver resolver)
+	{
+		getContainer().update(this, _resolver, resolver, "resolver", true);
+		_resolver = resolver;
+	}
+	
+	public Resolver getResolver()
+	{
+		return _resolver;
+	}
+	
+	private int[] getTransports()
+	{
+		List<Integer> transports = new ArrayList<Integer>();
+		SipConnector[] connectors = _connectorManager.getConnectors();
+		for (int i = 0; connectors != null && i < connectors.length; i++)
+		{
+			if (!transports.contains(connectors[i].getTransportOrdinal()))
+				transports.add(connectors[i].getTransportOrdinal());
+		}
+		int[] ordinals = new int[transports.size()];
+		for (int i = 0; i < ordinals.length; i++)
+			ordinals[i] = transports.get(i);
+		return ordinals;
+	}
+	
 	public ThreadPool getSipThreadPool()
 	{
 		return _sipThreadPool;
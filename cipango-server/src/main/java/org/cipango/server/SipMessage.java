@@ -69,6 +69,7 @@ public abstract class SipMessage implements SipServletMessage, Cloneable
     
     protected SipFields _fields = new SipFields();
 	private byte[] _content;
+	private Buffer _contentBuffer;
 	
 	private SipConnection _connection;
 	
@@ -376,18 +377,19 @@ public abstract class SipMessage implements SipServletMessage, Cloneable
 	public Object getContent() throws UnsupportedEncodingException
     {
         String contentType = getContentType();
-        if (_content != null && contentType != null
+        byte[] content = getRawContent();
+        if (content != null && contentType != null
         		&& (StringUtil.startsWithIgnoreCase(contentType, "text") || contentType.equalsIgnoreCase("application/sdp")))
         {
             String charset = getCharacterEncoding();
             if (charset == null)
                 charset = StringUtil.__UTF8;
             
-            return new String(_content, charset);
+            return new String(content, charset);
         }
         else 
         {
-            return _content;
+            return content;
         }
 	}
 	
@@ -411,7 +413,9 @@ public abstract class SipMessage implements SipServletMessage, Cloneable
 		int length = (int) _fields.getLong(SipHeaders.CONTENT_LENGTH_BUFFER);
 		if (length == -1) 
 		{
-			if (_content == null) 
+			if (_contentBuffer != null)
+				return _contentBuffer.length();
+			else if (_content == null) 
 				return 0;
 			else 
 				return _content.length;
@@ -504,9 +508,20 @@ public abstract class SipMessage implements SipServletMessage, Cloneable
 	 */
 	public byte[] getRawContent() 
 	{
+		if (_content == null && _contentBuffer != null)
+			_content = _contentBuffer.asArray();
 		return _content;
 	}
 	
+	/**
+	 * @return the received content, or <code>null</code> if the message was not received 
+	 * 	or its content has been set since.
+	 */
+	public Buffer getContentBuffer()
+	{
+		return _contentBuffer;
+	}
+	
 	/**
 	 * @see SipServletMessage#getRemoteAddr()
 	 */
@@ -670,6 +685,7 @@ public abstract class SipMessage implements SipServletMessage, Cloneable
 		if (isCommitted())
 			throw new IllegalStateException("Is committed");
 		
+		_contentBuffer = null;
 		if (o == null)
 		{
 			_content = null;
@@ -1105,6 +1121,7 @@ public abstract class SipMessage implements SipServletMessage, Cloneable
 	
 	public void setRawContent(byte[] content)
 	{
+		_contentBuffer = null;
 		_content = content;
 	}
 	
@@ -1149,6 +1166,16 @@ public abstract class SipMessage implements SipServletMessage, Cloneable
     	return _handled;
     }
     
+    /**
+     * Sets the content as a view on the received buffer. The bytes are only copied 
+     * if the content is read with {@link #getRawContent()}.
+     */
+    public void setRawContent(Buffer content)
+    {
+    	_content = null;
+    	_contentBuffer = content;
+    }
+    
     public abstract String getRequestLine();
     
     public String toString() 
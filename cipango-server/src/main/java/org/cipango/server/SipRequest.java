@@ -67,13 +67,13 @@ public class SipRequest extends SipMessage implements SipServletRequest
 {
     private String _method;
     private URI _requestUri;
-    private String _sRequestUri;
+    private Buffer _bRequestUri;
     private boolean _initial = false;
     private SipProxy _proxy;
     
     private Address _poppedRoute;
     private Address _initialPoppedRoute;
-
+
     private Serializable _stateInfo;
     private SipApplicationRouterInfo _nextRouterInfo;
   
@@ -179,12 +179,12 @@ public class SipRequest extends SipMessage implements SipServletRequest
      */
     public URI getRequestURI() 
     {
-    	if (_requestUri == null && _sRequestUri != null)
+    	if (_requestUri == null && _bRequestUri != null)
     	{
 			try
 			{
-				_requestUri = URIFactory.parseURI(_sRequestUri);
-				_sRequestUri = null;
+				_requestUri = URIFactory.parseURI(_bRequestUri);
+				_bRequestUri = null;
 			}
 			catch (ServletParseException e)
 			{
@@ -316,6 +316,7 @@ public class SipRequest extends SipMessage implements SipServletRequest
     	if (uri == null)
     		throw new NullPointerException("Null uri");
 		this._requestUri = uri;
+		_bRequestUri = null;
 	}
     
 	public boolean isRequest() 
@@ -449,7 +450,7 @@ public class SipRequest extends SipMessage implements SipServletRequest
 	 */
 	public String getScheme() 
     {
-		return _requestUri.getScheme();
+		return getRequestURI().getScheme();
 	}
 	
 	/**
@@ -487,8 +488,8 @@ public class SipRequest extends SipMessage implements SipServletRequest
 	{
 		if (_poppedRoute != null)
 			return (SipURI) _poppedRoute.getURI();
-		else if (_requestUri.isSipURI())
-			return (SipURI) _requestUri;
+		else if (getRequestURI().isSipURI())
+			return (SipURI) getRequestURI();
 		else
 			return null;
 	}
@@ -624,9 +625,12 @@ public class SipRequest extends SipMessage implements SipServletRequest
         return _poppedRoute; 
     }
     
+    /**
+     * Sets the request-URI as received. It is parsed when first read.
+     */
     public void setRequestURI(Buffer buffer)
     {
-    	_sRequestUri = buffer.toString();
+    	_bRequestUri = buffer;
 	}
     
     public String getRequestURIAsString()
@@ -634,7 +638,7 @@ public class SipRequest extends SipMessage implements SipServletRequest
     	if (_requestUri != null)
     		return _requestUri.toString();
     	else
-    		return _sRequestUri;
+    		return _bRequestUri == null ? null : _bRequestUri.toString();
     }
     
     // 
@@ -721,7 +725,7 @@ public class SipRequest extends SipMessage implements SipServletRequest
 		clone._subscriberURI = null;
 		clone._proxy = null;
 		clone._initialPoppedRoute = null;
-		clone._requestUri = _requestUri.clone();
+		clone._requestUri = getRequestURI().clone();
 		return clone;
 	}
 	
@@ -18,13 +18,12 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 
 import org.cipango.server.AbstractSipConnector;
+import org.cipango.server.ConnectorManager;
 import org.cipango.server.SipConnection;
 import org.cipango.server.SipConnector;
 import org.cipango.server.SipConnectors;
@@ -59,7 +58,6 @@ public class TcpConnector extends AbstractSipConnector //implements Buffers
     private int _backlogSize = 50;
     
     private ThreadPool _tcpThreadPool;
-    private List<Buffer> _buffers = new ArrayList<Buffer>();
 		
 	protected void doStart() throws Exception 
 	{
@@ -165,24 +163,15 @@ public class TcpConnector extends AbstractSipConnector //implements Buffers
 	
 	public Buffer getBuffer(int size) 
     {
-        synchronized (_buffers)
-        {
-            if (_buffers.size() == 0)
-            {
-                //System.out.println("Creating new buffer");
-                return newBuffer(10);
-            }
-            return (Buffer) _buffers.remove(_buffers.size() - 1);
-        }
+		ConnectorManager pool = getBufferPool();
+		return pool != null ? pool.getBuffer(size) : newBuffer(size);
     }
     
     public void returnBuffer(Buffer buffer)
     {
-        synchronized (_buffers)
-        {
-            buffer.clear();
-            _buffers.add(buffer);
-        }
+    	ConnectorManager pool = getBufferPool();
+    	if (pool != null)
+    		pool.returnBuffer(buffer);
     }
     
 	public Buffer newBuffer(int size) 
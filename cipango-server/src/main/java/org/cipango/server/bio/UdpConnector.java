@@ -19,24 +19,16 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 
-import javax.servlet.sip.URI;
-
 import org.cipango.server.AbstractSipConnector;
 import org.cipango.server.SipConnection;
 import org.cipango.server.SipConnector;
 import org.cipango.server.SipConnectors;
 import org.cipango.server.SipMessage;
-import org.cipango.server.SipRequest;
-import org.cipango.server.SipResponse;
-import org.cipango.sip.SipHeaders;
 import org.cipango.sip.SipParser;
-import org.cipango.sip.URIFactory;
-import org.cipango.sip.SipParser.EventHandler;
 import org.cipango.util.HexString;
 
 import org.eclipse.jetty.io.Buffer;
 import org.eclipse.jetty.io.ByteArrayBuffer;
-import org.eclipse.jetty.io.View;
 import org.eclipse.jetty.util.log.Log;
 
 public class UdpConnector extends AbstractSipConnector
@@ -251,106 +243,5 @@ public class UdpConnector extends AbstractSipConnector
 			return "udp/" + _remoteAddr.getHostAddress() + ":" + _remotePort; 
 		}
 	}
-	
-	class EventHandler extends SipParser.EventHandler
-	{
-		private SipMessage _message;
-		
-		@Override
-		public void startRequest(Buffer method, Buffer uri, Buffer version) throws IOException
-		{
-			try
-			{
-				URI ruri = URIFactory.parseURI(uri.toString());
-				SipRequest request = new SipRequest();
-				request.setMethod(method.toString());
-				request.setRequestURI(ruri);
-				_message = request;
-			}
-			catch (Exception e)
-			{
-				throw new IOException("Parsing error: " + e.getMessage());
-			}
-		}
-		
-		@Override
-		public void startResponse(Buffer version, int status, Buffer reason) throws IOException
-		{
-			SipResponse response = new SipResponse();
-			response.setStatus(status, reason.toString());
-			_message = response;
-		}
-		
-		public SipMessage getMessage()
-		{
-			return _message;
-		}
-		
-		@Override
-		public void header(Buffer name, Buffer value) throws IOException
-		{
-			if (_message == null)
-				throw new IOException("no status line");
-			
-			if (SipHeaders.getType(name).isList())
-	        {
-	            boolean quote = false;
-	    
-	            int start = value.getIndex();
-	            int end = value.putIndex();
-	            byte[] b = value.array();
-	            
-	            //if (value == null) value = _value.asArray();
-	            
-	            int startValue = start;
-	            int endValue = end;
-	            
-	            while (end > start && b[end -1] <= ' ') end--;
-	                    
-	            for (int i = start; i < end; i++)
-	            {
-	                int c = b[i];
-	                if (c == '"') quote = !quote;
-	    
-	                if (c == ',' && !quote)
-	                {
-	                    endValue = i;
-	                    while (endValue > start && b[endValue -1] <= ' ') endValue--;
-	                    
-	                    while (startValue < endValue && b[startValue] <= ' ') startValue++;
-	                    
-	                    //byte[] bValue = asArray(b, startValue, endValue - startValue);
-	                    
-	                    Buffer buffer = new View(value, startValue, startValue, endValue, Buffer.READONLY);
-	                    _message.getFields().addBuffer(name, buffer);
-	                    
-	                    //value = new View(value, i + 1, i + 1, end, Buffer.READONLY);
-	                    
-	                    startValue = i + 1;
-	                }
-	            }
-	            while (startValue < end && b[startValue] <= ' ') startValue++;
-	            
-	            value = new View(value, startValue, startValue, end, Buffer.READONLY);
-	            
-	            //byte[] bValue = asArray(b, startValue, end - startValue);
-	            _message.getFields().addBuffer(name, value);
-	            
-	            //value = new View(value, startValue, startValue, end, Buffer.READONLY);
-	        }
-	        else
-	        {
-	        	_message.getFields().addBuffer(name, value);
-	        	//msg.getFields().addBuffer(name, new ByteArrayBuffer(value.asArray())); 
-	        }
-		}
-		
-		@Override
-		public void content(Buffer buffer) throws IOException
-		{
-			if (buffer.length() > 0)
-				_message.setRawContent(buffer.asArray()); // TODO buffer
-		}
-	}
 
 }
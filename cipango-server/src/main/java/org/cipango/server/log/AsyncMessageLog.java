@@ -0,0 +1,432 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server.log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.cipango.server.SipConnection;
+import org.cipango.server.SipMessage;
+import org.cipango.sip.SipGenerator;
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.eclipse.jetty.util.RolloverFileOutputStream;
+import org.eclipse.jetty.util.StringUtil;
+import org.eclipse.jetty.util.log.Log;
+
+/**
+ * SIP message log writing in a background thread.
+ * <p>
+ * The thread logging a message only takes a copy of its bytes, the bytes received when
+ * the message has been parsed without copy or the generated message otherwise, and
+ * pushes it to a bounded ring. When the ring is full, the message is not logged and
+ * counted as dropped, so that logging never blocks the SIP threads.
+ * <p>
+ * The writer thread formats the info lines and writes the messages by batches,
+ * flushing the file after each batch. The file can also be synced to the disk after
+ * each batch ({@link #FSYNC_BATCH}), at most every <code>fsyncInterval</code>
+ * milliseconds ({@link #FSYNC_INTERVAL}) or never ({@link #FSYNC_NEVER}).
+ * <p>
+ * Can be used in place of {@link FileMessageLog} as connector manager access log.
+ */
+public class AsyncMessageLog extends AbstractMessageLog
+{
+	public static final int FSYNC_NEVER = 0;
+	public static final int FSYNC_BATCH = 1;
+	public static final int FSYNC_INTERVAL = 2;
+
+	private static final int MESSAGE_SIZE = 16 * 1024;
+	private static final byte[] LINE_SEPARATOR = StringUtil.__LINE_SEPARATOR.getBytes();
+
+	private String _filename;
+	private boolean _append = true;
+	private int _retainDays = 31;
+	private int _capacity = 8192;
+	private int _batchSize = 256;
+	private int _fsyncPolicy = FSYNC_NEVER;
+	private long _fsyncInterval = 1000;
+	private long _idleWait = 10;
+
+	private OutputStream _out;
+	private SyncableOutputStream _file;
+
+	private AtomicReferenceArray<Entry> _ring;
+	private int _mask;
+	private final AtomicLong _head = new AtomicLong();
+	private final AtomicLong _tail = new AtomicLong();
+
+	private volatile Thread _writer;
+	private volatile boolean _running;
+
+	private final AtomicLong _logged = new AtomicLong();
+	private final AtomicLong _dropped = new AtomicLong();
+	private final AtomicLong _batches = new AtomicLong();
+	private final AtomicLong _fsyncs = new AtomicLong();
+
+	private final SipGenerator _generator = new SipGenerator();
+	private final ThreadLocal<Buffer> _buffers = new ThreadLocal<Buffer>();
+
+	@Override
+	protected void doStart() throws Exception
+	{
+		int capacity = Integer.highestOneBit(Math.max(2, _capacity - 1)) << 1;
+		_ring = new AtomicReferenceArray<Entry>(capacity);
+		_mask = capacity - 1;
+		_head.set(0);
+		_tail.set(0);
+
+		if (_filename != null)
+		{
+			File file = new File(_filename);
+			if (file.getParentFile() != null)
+				file.getParentFile().mkdirs();
+			_file = new SyncableOutputStream(_filename, _append, _retainDays);
+			_out = new BufferedOutputStream(_file, 64 * 1024);
+		}
+		else
+		{
+			_file = null;
+			_out = new BufferedOutputStream(System.out, 64 * 1024);
+		}
+
+		super.doStart();
+
+		_running = true;
+		_writer = new Thread(new Writer(), "AsyncMessageLog-" + (_filename == null ? "stdout" : file()));
+		_writer.setDaemon(true);
+		_writer.start();
+
+		Log.info("Access log started in {}", _filename == null ? "stdout" : file());
+	}
+
+	@Override
+	protected void doStop() throws Exception
+	{
+		super.doStop();
+
+		_running = false;
+		Thread writer = _writer;
+		_writer = null;
+		if (writer != null)
+		{
+			LockSupport.unpark(writer);
+			writer.join(5000);
+		}
+
+		if (_file != null)
+			_file.close();
+		else
+			_out.flush();
+		_out = null;
+		_file = null;
+	}
+
+	private String file()
+	{
+		return _file != null ? _file.getDatedFilename() : _filename;
+	}
+
+	@Override
+	public void doLog(SipMessage message, int direction, SipConnection connection) throws IOException
+	{
+		long head = _head.get();
+		if (head - _tail.get() > _mask)
+		{
+			_dropped.incrementAndGet();
+			return;
+		}
+
+		Entry entry = new Entry(System.currentTimeMillis(), direction, connection, snapshot(message));
+
+		while (true)
+		{
+			head = _head.get();
+			if (head - _tail.get() > _mask)
+			{
+				_dropped.incrementAndGet();
+				return;
+			}
+			if (_head.compareAndSet(head, head + 1))
+			{
+				_ring.set((int) head & _mask, entry);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return a copy of the bytes of the message, as the message may be modified once logged.
+	 */
+	protected byte[] snapshot(SipMessage message)
+	{
+		int size = MESSAGE_SIZE + Math.max(0, message.getContentLength());
+		Buffer buffer = _buffers.get();
+		if (buffer == null || buffer.capacity() < size)
+		{
+			buffer = new ByteArrayBuffer(Math.max(size, MESSAGE_SIZE * 2));
+			_buffers.set(buffer);
+		}
+		buffer.clear();
+		_generator.generate(buffer, message);
+		return buffer.asArray();
+	}
+
+	private int write(int max) throws IOException
+	{
+		int written = 0;
+		long tail = _tail.get();
+		while (written < max)
+		{
+			int index = (int) tail & _mask;
+			Entry entry = _ring.get(index);
+			if (entry == null)
+				break; // empty, or claimed but not yet published
+			_ring.set(index, null);
+			_tail.lazySet(++tail);
+
+			_out.write(generateInfoLine(entry._direction, entry._connection, entry._time).getBytes());
+			_out.write(entry._bytes);
+			_out.write(LINE_SEPARATOR);
+			written++;
+		}
+		return written;
+	}
+
+	public void setFilename(String filename)
+	{
+		if (filename != null)
+		{
+			filename = filename.trim();
+			if (filename.length() == 0)
+				filename = null;
+		}
+		_filename = filename;
+	}
+
+	public String getFilename()
+	{
+		return _filename;
+	}
+
+	public boolean isAppend()
+	{
+		return _append;
+	}
+
+	public void setAppend(boolean append)
+	{
+		_append = append;
+	}
+
+	public int getRetainDays()
+	{
+		return _retainDays;
+	}
+
+	public void setRetainDays(int days)
+	{
+		_retainDays = days;
+	}
+
+	/**
+	 * Sets the maximum number of messages waiting to be written. Rounded up to a power of two.
+	 */
+	public void setCapacity(int capacity)
+	{
+		if (isRunning())
+			throw new IllegalStateException("running");
+		_capacity = capacity;
+	}
+
+	public int getCapacity()
+	{
+		return _capacity;
+	}
+
+	/**
+	 * Sets the maximum number of messages written before the file is flushed.
+	 */
+	public void setBatchSize(int batchSize)
+	{
+		_batchSize = batchSize;
+	}
+
+	public int getBatchSize()
+	{
+		return _batchSize;
+	}
+
+	/**
+	 * @param fsyncPolicy one of {@link #FSYNC_NEVER}, {@link #FSYNC_BATCH} or {@link #FSYNC_INTERVAL}.
+	 */
+	public void setFsyncPolicy(int fsyncPolicy)
+	{
+		if (fsyncPolicy < FSYNC_NEVER || fsyncPolicy > FSYNC_INTERVAL)
+			throw new IllegalArgumentException("Invalid fsync policy: " + fsyncPolicy);
+		_fsyncPolicy = fsyncPolicy;
+	}
+
+	public int getFsyncPolicy()
+	{
+		return _fsyncPolicy;
+	}
+
+	/**
+	 * Sets the minimum time in milliseconds between two syncs with {@link #FSYNC_INTERVAL}.
+	 */
+	public void setFsyncInterval(long fsyncInterval)
+	{
+		_fsyncInterval = fsyncInterval;
+	}
+
+	public long getFsyncInterval()
+	{
+		return _fsyncInterval;
+	}
+
+	/**
+	 * Sets the time in milliseconds the writer waits when there is no message to write.
+	 */
+	public void setIdleWait(long idleWait)
+	{
+		_idleWait = idleWait;
+	}
+
+	public long getIdleWait()
+	{
+		return _idleWait;
+	}
+
+	public long getLogged()
+	{
+		return _logged.get();
+	}
+
+	public long getDropped()
+	{
+		return _dropped.get();
+	}
+
+	public long getBatches()
+	{
+		return _batches.get();
+	}
+
+	public long getFsyncs()
+	{
+		return _fsyncs.get();
+	}
+
+	public int getPending()
+	{
+		return (int) Math.max(0, _head.get() - _tail.get());
+	}
+
+	public void statsReset()
+	{
+		_logged.set(0);
+		_dropped.set(0);
+		_batches.set(0);
+		_fsyncs.set(0);
+	}
+
+	static class Entry
+	{
+		final long _time;
+		final int _direction;
+		final SipConnection _connection;
+		final byte[] _bytes;
+
+		Entry(long time, int direction, SipConnection connection, byte[] bytes)
+		{
+			_time = time;
+			_direction = direction;
+			_connection = connection;
+			_bytes = bytes;
+		}
+	}
+
+	class Writer implements Runnable
+	{
+		private long _lastFsync = System.currentTimeMillis();
+
+		public void run()
+		{
+			while (true)
+			{
+				boolean running = _running;
+				try
+				{
+					int written = write(_batchSize);
+					if (written > 0)
+					{
+						_out.flush();
+						_logged.addAndGet(written);
+						_batches.incrementAndGet();
+						fsync();
+					}
+					else if (!running)
+						break;
+					else
+						LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(_idleWait));
+				}
+				catch (Throwable t)
+				{
+					Log.warn("Failed to write messages", t);
+					if (!running)
+						break;
+				}
+			}
+		}
+
+		private void fsync() throws IOException
+		{
+			if (_file == null || _fsyncPolicy == FSYNC_NEVER)
+				return;
+
+			long now = System.currentTimeMillis();
+			if (_fsyncPolicy == FSYNC_INTERVAL && now - _lastFsync < _fsyncInterval)
+				return;
+
+			_file.sync();
+			_lastFsync = now;
+			_fsyncs.incrementAndGet();
+		}
+	}
+
+	static class SyncableOutputStream extends RolloverFileOutputStream
+	{
+		SyncableOutputStream(String filename, boolean append, int retainDays) throws IOException
+		{
+			super(filename, append, retainDays);
+		}
+
+		/**
+		 * Forces the bytes written to the current file to the disk.
+		 */
+		public synchronized void sync() throws IOException
+		{
+			if (out instanceof FileOutputStream)
+				((FileOutputStream) out).getFD().sync();
+		}
+	}
+}
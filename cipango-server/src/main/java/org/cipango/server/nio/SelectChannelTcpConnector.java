@@ -0,0 +1,802 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server.nio;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.cipango.server.AbstractSipConnector;
+import org.cipango.server.SipConnection;
+import org.cipango.server.SipConnector;
+import org.cipango.server.SipConnectors;
+import org.cipango.server.SipMessage;
+import org.cipango.server.transaction.Transaction;
+import org.cipango.sip.BufferOverflowException;
+import org.cipango.sip.SipParser;
+
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.eclipse.jetty.io.EofException;
+import org.eclipse.jetty.io.nio.ChannelEndPoint;
+import org.eclipse.jetty.util.log.Log;
+
+/**
+ * TCP connector multiplexing all connections over a small set of selectors.
+ * <p>
+ * Unlike {@link org.cipango.server.bio.TcpConnector}, no thread is associated to
+ * a connection: each selector thread reads available bytes and feeds them
+ * incrementally to the connection {@link SipParser}. Complete messages are then
+ * dispatched to the SIP thread pool. The number of threads used by this connector
+ * is thus <code>acceptors + selectSets</code> whatever the number of connections.
+ */
+public class SelectChannelTcpConnector extends AbstractSipConnector
+{
+	public static final int DEFAULT_PORT = 5060;
+	public static final boolean RELIABLE = true;
+
+	public static final int DEFAULT_TCP_MESSAGE = 1024 * 2;
+	public static final int MAX_TCP_MESSAGE = 1024 * 400;
+
+	public static final int DEFAULT_SO_TIMEOUT = 2 * Transaction.__T1 * 64;
+
+	private static final long SELECT_TIMEOUT = 1000;
+
+	private ServerSocketChannel _acceptChannel;
+	private InetAddress _addr;
+	private ConcurrentMap<String, SelectChannelConnection> _connections;
+	private int _connectionTimeout = DEFAULT_SO_TIMEOUT;
+	private int _backlogSize = 50;
+	private int _bufferSize = DEFAULT_TCP_MESSAGE;
+
+	private int _nbSelectSets = 2;
+	private SelectSet[] _selectSets;
+	private AtomicInteger _nextSet = new AtomicInteger();
+
+	protected void doStart() throws Exception
+	{
+		_connections = new ConcurrentHashMap<String, SelectChannelConnection>();
+
+		_selectSets = new SelectSet[_nbSelectSets];
+		for (int i = 0; i < _selectSets.length; i++)
+			_selectSets[i] = new SelectSet(i);
+
+		super.doStart();
+
+		for (int i = 0; i < _selectSets.length; i++)
+		{
+			if (!getThreadPool().dispatch(_selectSets[i]))
+				throw new IllegalStateException("insufficient maxThreads configured for " + this);
+		}
+	}
+
+	protected void doStop() throws Exception
+	{
+		SelectSet[] selectSets = _selectSets;
+		_selectSets = null;
+
+		if (selectSets != null)
+		{
+			for (int i = 0; i < selectSets.length; i++)
+				selectSets[i].stop();
+		}
+
+		super.doStop();
+
+		Iterator<SelectChannelConnection> it = _connections.values().iterator();
+		while (it.hasNext())
+		{
+			try
+			{
+				it.next().close();
+			}
+			catch (Exception e)
+			{
+				Log.ignore(e);
+			}
+		}
+	}
+
+	public InetAddress getAddr()
+	{
+		return _addr;
+	}
+
+	public void open() throws IOException
+	{
+		_acceptChannel = ServerSocketChannel.open();
+		_acceptChannel.configureBlocking(true);
+
+		InetSocketAddress address = getHost() == null ?
+				new InetSocketAddress(getPort()) :
+				new InetSocketAddress(InetAddress.getByName(getHost()), getPort());
+		_acceptChannel.socket().setReuseAddress(true);
+		_acceptChannel.socket().bind(address, _backlogSize);
+
+		_addr = _acceptChannel.socket().getInetAddress();
+	}
+
+	public void close() throws IOException
+	{
+		if (_acceptChannel != null)
+			_acceptChannel.close();
+		_acceptChannel = null;
+	}
+
+	public int getLocalPort()
+	{
+		if (_acceptChannel == null || !_acceptChannel.isOpen())
+			return -1;
+		return _acceptChannel.socket().getLocalPort();
+	}
+
+	public Object getConnection()
+	{
+		return _acceptChannel;
+	}
+
+	public void accept(int acceptorId) throws IOException, InterruptedException
+	{
+		ServerSocketChannel acceptChannel = _acceptChannel;
+		if (acceptChannel == null)
+			return;
+
+		SocketChannel channel = acceptChannel.accept();
+		if (channel == null)
+			return;
+
+		configure(channel);
+
+		SelectChannelConnection connection = newConnection(channel, false);
+		addConnection(connection);
+		nextSelectSet().register(connection);
+	}
+
+	protected void configure(SocketChannel channel) throws IOException
+	{
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+	}
+
+	public SipConnection getConnection(InetAddress addr, int port) throws IOException
+	{
+		String key = key(addr, port);
+		SelectChannelConnection connection = _connections.get(key);
+		if (connection != null)
+			return connection;
+
+		// connect outside the lock so that a slow peer does not stall other lookups
+		SocketChannel channel = SocketChannel.open(new InetSocketAddress(addr, port));
+		boolean registered = false;
+		try
+		{
+			configure(channel);
+			synchronized (_connections)
+			{
+				connection = _connections.get(key);
+				if (connection == null)
+				{
+					connection = newConnection(channel, true);
+					addConnection(connection);
+					nextSelectSet().register(connection);
+					registered = true;
+				}
+			}
+		}
+		finally
+		{
+			// lost the race against a concurrent connect or failed
+			if (!registered)
+				channel.close();
+		}
+		return connection;
+	}
+
+	protected SelectChannelConnection newConnection(SocketChannel channel, boolean outbound) throws IOException
+	{
+		return new SelectChannelConnection(channel);
+	}
+
+	protected void addConnection(SelectChannelConnection connection)
+	{
+		_connections.put(key(connection.getRemoteAddress(), connection.getRemotePort()), connection);
+		connectionOpened(connection);
+	}
+
+	protected SelectSet nextSelectSet()
+	{
+		SelectSet[] selectSets = _selectSets;
+		if (selectSets == null)
+			throw new IllegalStateException("!started");
+
+		int index = (_nextSet.getAndIncrement() & Integer.MAX_VALUE) % selectSets.length;
+		return selectSets[index];
+	}
+
+	public void connectionOpened(SelectChannelConnection connection)
+	{
+		if (_statsStartedAt >= 0)
+		{
+			synchronized (_statsLock)
+			{
+				_connectionsOpen++;
+				if (_connectionsOpen > _connectionsOpenMax)
+					_connectionsOpenMax = _connectionsOpen;
+			}
+		}
+	}
+
+	public void connectionClosed(SelectChannelConnection connection)
+	{
+		if (_statsStartedAt >= 0)
+		{
+			synchronized (_statsLock)
+			{
+				_connectionsOpen--;
+			}
+		}
+		// a newer connection to the same peer may have replaced this one
+		String key = key(connection.getRemoteAddress(), connection.getRemotePort());
+		_connections.remove(key, connection);
+	}
+
+	protected Map<String, SelectChannelConnection> getConnections()
+	{
+		return _connections;
+	}
+
+	private String key(InetAddress addr, int port)
+	{
+		return addr.getHostAddress() + ":" + port;
+	}
+
+	public Buffer newBuffer(int size)
+	{
+		return new ByteArrayBuffer(size);
+	}
+
+	public int getDefaultPort()
+	{
+		return DEFAULT_PORT;
+	}
+
+	public boolean isReliable()
+	{
+		return RELIABLE;
+	}
+
+	public boolean isSecure()
+	{
+		return false;
+	}
+
+	public int getTransportOrdinal()
+	{
+		return SipConnectors.TCP_ORDINAL;
+	}
+
+	public int getBacklogSize()
+	{
+		return _backlogSize;
+	}
+
+	public void setBacklogSize(int backlogSize)
+	{
+		_backlogSize = backlogSize;
+	}
+
+	public int getConnectionTimeout()
+	{
+		return _connectionTimeout;
+	}
+
+	public void setConnectionTimeout(int connectionTimeout)
+	{
+		_connectionTimeout = connectionTimeout;
+	}
+
+	/**
+	 * Sets the initial size of the per-connection parsing buffer. The buffer
+	 * is extended up to {@link #MAX_TCP_MESSAGE} when a larger message is received.
+	 */
+	public void setBufferSize(int bufferSize)
+	{
+		_bufferSize = bufferSize;
+	}
+
+	public int getBufferSize()
+	{
+		return _bufferSize;
+	}
+
+	/**
+	 * Sets the number of selectors, and so of threads, used to multiplex connections.
+	 */
+	public void setSelectSets(int selectSets)
+	{
+		if (isRunning())
+			throw new IllegalStateException("running");
+		_nbSelectSets = selectSets;
+	}
+
+	public int getSelectSets()
+	{
+		return _nbSelectSets;
+	}
+
+	public class SelectSet implements Runnable
+	{
+		private int _id;
+		private Selector _selector;
+		private ConcurrentLinkedQueue<SelectChannelConnection> _changes = new ConcurrentLinkedQueue<SelectChannelConnection>();
+		private volatile Thread _thread;
+		private volatile boolean _stopped;
+		private long _idleCheck;
+
+		public SelectSet(int id) throws IOException
+		{
+			_id = id;
+			_selector = Selector.open();
+		}
+
+		/**
+		 * Requests the selector thread to register the connection or to
+		 * update its interest set.
+		 */
+		public void register(SelectChannelConnection connection)
+		{
+			_changes.add(connection);
+			_selector.wakeup();
+		}
+
+		public boolean isSelectThread()
+		{
+			return Thread.currentThread() == _thread;
+		}
+
+		public void stop()
+		{
+			_stopped = true;
+			_selector.wakeup();
+		}
+
+		public void run()
+		{
+			_thread = Thread.currentThread();
+			String name = _thread.getName();
+			_thread.setName(name + " - Selector" + _id + " " + SelectChannelTcpConnector.this);
+			try
+			{
+				while (!_stopped && isRunning())
+				{
+					try
+					{
+						doSelect();
+					}
+					catch (IOException e)
+					{
+						Log.warn(e);
+					}
+					catch (Exception e)
+					{
+						Log.warn(e);
+					}
+				}
+			}
+			finally
+			{
+				Iterator<SelectionKey> it = _selector.keys().iterator();
+				while (it.hasNext())
+				{
+					SelectChannelConnection connection = (SelectChannelConnection) it.next().attachment();
+					try
+					{
+						connection.close();
+					}
+					catch (IOException e)
+					{
+						Log.ignore(e);
+					}
+				}
+				try
+				{
+					_selector.close();
+				}
+				catch (IOException e)
+				{
+					Log.ignore(e);
+				}
+				_thread.setName(name);
+				_thread = null;
+			}
+		}
+
+		protected void doSelect() throws IOException
+		{
+			SelectChannelConnection change;
+			while ((change = _changes.poll()) != null)
+			{
+				try
+				{
+					change.updateKey(_selector, this);
+				}
+				catch (IOException e)
+				{
+					Log.debug(e);
+					change.close();
+				}
+			}
+
+			_selector.select(SELECT_TIMEOUT);
+
+			Iterator<SelectionKey> it = _selector.selectedKeys().iterator();
+			while (it.hasNext())
+			{
+				SelectionKey key = it.next();
+				it.remove();
+
+				SelectChannelConnection connection = (SelectChannelConnection) key.attachment();
+				if (!key.isValid())
+				{
+					connection.close();
+					continue;
+				}
+				if (key.isWritable())
+					connection.writable();
+				if (key.isValid() && key.isReadable())
+					connection.readable();
+			}
+
+			long now = System.currentTimeMillis();
+			if (now - _idleCheck >= SELECT_TIMEOUT)
+			{
+				_idleCheck = now;
+				it = _selector.keys().iterator();
+				while (it.hasNext())
+				{
+					SelectChannelConnection connection = (SelectChannelConnection) it.next().attachment();
+					if (_connectionTimeout > 0 && now - connection.getLastActive() > _connectionTimeout)
+					{
+						Log.debug("Idle timeout: {}", connection);
+						connection.close();
+					}
+				}
+			}
+		}
+	}
+
+	public class SelectChannelConnection extends ChannelEndPoint implements SipConnection
+	{
+		protected SocketChannel _channel;
+		private InetAddress _local;
+		private InetAddress _remote;
+		private int _remotePort;
+
+		private volatile SelectSet _selectSet;
+		private SelectionKey _key;
+		private volatile boolean _writeBlocked;
+		private ByteBuffer _pending;
+		private volatile long _lastActive = System.currentTimeMillis();
+		private AtomicInteger _closed = new AtomicInteger();
+
+		private EventHandler _handler;
+		private SipParser _parser;
+		private Buffer _buffer;
+
+		public SelectChannelConnection(SocketChannel channel) throws IOException
+		{
+			super(channel);
+			_channel = channel;
+			_local = channel.socket().getLocalAddress();
+			_remote = channel.socket().getInetAddress();
+			_remotePort = channel.socket().getPort();
+
+			_handler = new EventHandler();
+			_buffer = newBuffer(_bufferSize);
+			_parser = new SipParser(_buffer, this, _handler);
+		}
+
+		public InetAddress getLocalAddress()
+		{
+			return _local;
+		}
+
+		public InetAddress getRemoteAddress()
+		{
+			return _remote;
+		}
+
+		public int getRemotePort()
+		{
+			return _remotePort;
+		}
+
+		public long getLastActive()
+		{
+			return _lastActive;
+		}
+
+		protected SelectSet getSelectSet()
+		{
+			return _selectSet;
+		}
+
+		/**
+		 * Called by the selector thread to register the channel or update the interest set.
+		 */
+		protected void updateKey(Selector selector, SelectSet selectSet) throws IOException
+		{
+			if (!_channel.isOpen())
+				return;
+
+			if (_key == null)
+				_selectSet = selectSet;
+
+			int ops = SelectionKey.OP_READ;
+			if (_writeBlocked)
+				ops |= SelectionKey.OP_WRITE;
+
+			if (_key == null)
+				_key = _channel.register(selector, ops, this);
+			else if (_key.isValid())
+				_key.interestOps(ops);
+		}
+
+		public int fill(Buffer buffer) throws IOException
+		{
+			byte[] array = buffer.array();
+			ByteBuffer bb = ByteBuffer.wrap(array, buffer.putIndex(), buffer.space());
+			int filled = _channel.read(bb);
+			if (filled > 0)
+				buffer.setPutIndex(bb.position());
+			return filled;
+		}
+
+		/**
+		 * Called by the selector thread when the channel is readable. Parses as many
+		 * messages as available and dispatches them to the SIP thread pool.
+		 */
+		protected void readable()
+		{
+			_lastActive = System.currentTimeMillis();
+			try
+			{
+				while (isOpen())
+				{
+					if (_parser.isStart() && _buffer.length() == 0)
+						_buffer.clear();
+
+					int filled;
+					try
+					{
+						filled = _parser.parseNext();
+					}
+					catch (BufferOverflowException e)
+					{
+						int size = _buffer.capacity() * 2;
+						if (size > MAX_TCP_MESSAGE)
+							throw new IOException("Message too large");
+						_buffer = newBuffer(size);
+						_parser.setBuffer(_buffer, true);
+						continue;
+					}
+
+					if (_parser.isComplete())
+					{
+						SipMessage message = _handler.getMessage();
+						message.setConnection(this);
+
+						_buffer = newBuffer(_bufferSize);
+						_parser.setBuffer(_buffer);
+
+						process(message);
+					}
+					else if (filled == 0)
+						return;
+				}
+			}
+			catch (EofException e)
+			{
+				Log.debug("EOF: {}", this);
+				closeQuietly();
+			}
+			catch (Throwable e)
+			{
+				if (_statsStartedAt != -1)
+				{
+					synchronized (_statsLock)
+					{
+						_nbParseErrors++;
+					}
+				}
+				Log.warn("TCP handle failed", e);
+				if (_handler.hasException())
+					Log.warn(_handler.getException());
+				closeQuietly();
+			}
+		}
+
+		/**
+		 * Called by the selector thread when the queued bytes may be written.
+		 */
+		protected void writable() throws IOException
+		{
+			synchronized (this)
+			{
+				try
+				{
+					if (_pending != null)
+					{
+						if (_channel.write(_pending) > 0)
+							_lastActive = System.currentTimeMillis();
+						if (_pending.hasRemaining())
+							return;
+						_pending = null;
+					}
+				}
+				catch (IOException e)
+				{
+					Log.debug("Write failed on {}: {}", this, e);
+					closeQuietly();
+					return;
+				}
+				_writeBlocked = false;
+				notifyAll();
+				if (_key.isValid())
+					_key.interestOps(SelectionKey.OP_READ);
+			}
+		}
+
+		public void write(Buffer buffer) throws IOException
+		{
+			synchronized (this)
+			{
+				byte[] array = buffer.array();
+				ByteBuffer bb = array != null ?
+						ByteBuffer.wrap(array, buffer.getIndex(), buffer.length()) :
+						ByteBuffer.wrap(buffer.asArray());
+				flushChannel(bb);
+			}
+		}
+
+		/**
+		 * Writes all the bytes to the channel. The bytes that do not fit in the socket send 
+		 * buffer are queued, after the bytes already queued, and written by the selector thread 
+		 * when the channel becomes writable. The selector thread never waits for them to be written, 
+		 * so that a slow peer does not stall the other connections of its select set, while the 
+		 * other threads wait up to the connection timeout. Caller must hold the connection lock.
+		 */
+		protected void flushChannel(ByteBuffer bb) throws IOException
+		{
+			if (!_channel.isOpen())
+				throw new EofException();
+
+			while (_pending == null && bb.hasRemaining())
+			{
+				int written = _channel.write(bb);
+				if (written == 0)
+					break;
+				_lastActive = System.currentTimeMillis();
+			}
+			if (!bb.hasRemaining())
+				return;
+
+			queue(bb);
+			SelectSet selectSet = _selectSet;
+			if (selectSet == null || !selectSet.isSelectThread())
+				waitWritten();
+		}
+
+		private void queue(ByteBuffer bb)
+		{
+			int pending = _pending == null ? 0 : _pending.remaining();
+			ByteBuffer queued = ByteBuffer.allocate(pending + bb.remaining());
+			if (_pending != null)
+				queued.put(_pending);
+			queued.put(bb);
+			queued.flip();
+			_pending = queued;
+
+			if (!_writeBlocked)
+			{
+				_writeBlocked = true;
+				// not yet registered: the interest set is computed on registration
+				SelectSet selectSet = _selectSet;
+				if (selectSet != null)
+					selectSet.register(this);
+			}
+		}
+
+		private void waitWritten() throws IOException
+		{
+			long end = System.currentTimeMillis() + _connectionTimeout;
+			try
+			{
+				while (_pending != null && _channel.isOpen())
+				{
+					long remaining = end - System.currentTimeMillis();
+					if (remaining <= 0)
+						throw new IOException("Write timeout on " + this);
+					wait(remaining);
+				}
+			}
+			catch (InterruptedException e)
+			{
+				throw new InterruptedIOException();
+			}
+			if (_pending != null)
+				throw new EofException();
+		}
+
+		public void close() throws IOException
+		{
+			try
+			{
+				super.close();
+			}
+			finally
+			{
+				if (_closed.getAndIncrement() == 0)
+				{
+					connectionClosed(this);
+					synchronized (this)
+					{
+						notifyAll();
+					}
+				}
+			}
+		}
+
+		protected void closeQuietly()
+		{
+			try
+			{
+				close();
+			}
+			catch (IOException e)
+			{
+				Log.ignore(e);
+			}
+		}
+
+		public SipConnector getConnector()
+		{
+			return SelectChannelTcpConnector.this;
+		}
+
+		@Override
+		public String toString()
+		{
+			StringBuilder sb = new StringBuilder();
+			sb.append("TCP Connection ");
+			sb.append(_local.getHostAddress()).append(":").append(getLocalPort());
+			sb.append(" - ");
+			sb.append(_remote.getHostAddress()).append(":").append(getRemotePort());
+			return sb.toString();
+		}
+	}
+}
@@ -0,0 +1,614 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server.nio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+
+import org.cipango.server.SipConnectors;
+import org.cipango.server.SipMessage;
+
+import org.eclipse.jetty.http.security.Password;
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.io.EofException;
+import org.eclipse.jetty.util.log.Log;
+import org.eclipse.jetty.util.resource.Resource;
+
+/**
+ * TLS version of {@link SelectChannelTcpConnector}. Encryption is done with a
+ * non-blocking {@link SSLEngine} per connection: records are unwrapped by the selector
+ * thread before being fed to the parser and wrapped by the sending thread.
+ */
+public class SelectChannelTlsConnector extends SelectChannelTcpConnector
+{
+	public static final int DEFAULT_PORT = 5061;
+
+	/** Default value for the keystore location path. */
+	public static final String DEFAULT_KEYSTORE = System.getProperty("user.home") + File.separator
+			+ ".keystore";
+	/** String name of key password property. */
+	public static final String KEYPASSWORD_PROPERTY = "jetty.ssl.keypassword";
+
+	/** String name of keystore password property. */
+	public static final String PASSWORD_PROPERTY = "jetty.ssl.password";
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private String _excludeCipherSuites[] = null;
+
+	private String _keystore = DEFAULT_KEYSTORE;
+	private String _keystoreType = "JKS";
+
+	private boolean _needClientAuth = false;
+	private boolean _wantClientAuth = false;
+	private transient Password _password;
+	private transient Password _keyPassword;
+	private transient Password _trustPassword;
+	private String _provider;
+	private String _secureRandomAlgorithm;
+	private String _sslKeyManagerFactoryAlgorithm = (Security.getProperty("ssl.KeyManagerFactory.algorithm") == null ? "SunX509"
+			: Security.getProperty("ssl.KeyManagerFactory.algorithm"));
+	private String _sslTrustManagerFactoryAlgorithm = (Security.getProperty("ssl.TrustManagerFactory.algorithm") == null ? "SunX509"
+			: Security.getProperty("ssl.TrustManagerFactory.algorithm"));
+
+	private String _truststore;
+	private String _truststoreType = "JKS";
+
+	private SSLContext _context;
+
+	@Override
+	public void open() throws IOException
+	{
+		try
+		{
+			if (_context == null)
+				_context = createSSLContext();
+		}
+		catch (IOException e)
+		{
+			throw e;
+		}
+		catch (Exception e)
+		{
+			Log.warn(e.toString());
+			Log.debug(e);
+			throw new IOException("!SSLContext: " + e);
+		}
+		super.open();
+	}
+
+	protected SSLContext createSSLContext() throws Exception
+	{
+		if (_truststore == null)
+		{
+			_truststore = _keystore;
+			_truststoreType = _keystoreType;
+		}
+
+		KeyManager[] keyManagers = null;
+		InputStream keystoreInputStream = null;
+		if (_keystore != null)
+			keystoreInputStream = Resource.newResource(_keystore).getInputStream();
+		KeyStore keyStore = KeyStore.getInstance(_keystoreType);
+		keyStore.load(keystoreInputStream, _password == null ? null : _password.toString().toCharArray());
+
+		KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(_sslKeyManagerFactoryAlgorithm);
+		keyManagerFactory.init(keyStore, _keyPassword == null ? null : _keyPassword.toString().toCharArray());
+		keyManagers = keyManagerFactory.getKeyManagers();
+
+		TrustManager[] trustManagers = null;
+		InputStream truststoreInputStream = null;
+		if (_truststore != null)
+			truststoreInputStream = Resource.newResource(_truststore).getInputStream();
+		KeyStore trustStore = KeyStore.getInstance(_truststoreType);
+		trustStore.load(truststoreInputStream, _trustPassword == null ? null : _trustPassword.toString()
+				.toCharArray());
+
+		TrustManagerFactory trustManagerFactory = TrustManagerFactory
+				.getInstance(_sslTrustManagerFactoryAlgorithm);
+		trustManagerFactory.init(trustStore);
+		trustManagers = trustManagerFactory.getTrustManagers();
+
+		SecureRandom secureRandom = _secureRandomAlgorithm == null ? null : SecureRandom
+				.getInstance(_secureRandomAlgorithm);
+
+		SSLContext context = _provider == null ? SSLContext.getInstance(SipConnectors.TLS) : SSLContext
+				.getInstance(SipConnectors.TLS, _provider);
+
+		context.init(keyManagers, trustManagers, secureRandom);
+
+		return context;
+	}
+
+	protected SSLEngine newSslEngine(SocketChannel channel, boolean outbound)
+	{
+		SSLEngine engine = _context.createSSLEngine(
+				channel.socket().getInetAddress().getHostAddress(),
+				channel.socket().getPort());
+		engine.setUseClientMode(outbound);
+
+		if (!outbound)
+		{
+			if (_wantClientAuth)
+				engine.setWantClientAuth(_wantClientAuth);
+			if (_needClientAuth)
+				engine.setNeedClientAuth(_needClientAuth);
+		}
+
+		if (_excludeCipherSuites != null && _excludeCipherSuites.length > 0)
+		{
+			List<String> enabled = new ArrayList<String>(Arrays.asList(engine.getEnabledCipherSuites()));
+			enabled.removeAll(Arrays.asList(_excludeCipherSuites));
+			engine.setEnabledCipherSuites(enabled.toArray(new String[enabled.size()]));
+		}
+		return engine;
+	}
+
+	@Override
+	protected SelectChannelConnection newConnection(SocketChannel channel, boolean outbound) throws IOException
+	{
+		return new SslConnection(channel, newSslEngine(channel, outbound));
+	}
+
+	@Override
+	public void process(SipMessage message)
+	{
+		SslConnection connection = (SslConnection) message.getConnection();
+		SSLSession sslSession = connection.getSSLEngine().getSession();
+
+		try
+		{
+			X509Certificate[] certs = (X509Certificate[]) sslSession.getValue(X509Certificate.class.getName());
+			if (certs == null)
+			{
+				certs = getCertChain(sslSession);
+				sslSession.putValue(X509Certificate.class.getName(), certs);
+			}
+
+			if (certs.length > 0)
+				message.setAttribute("javax.servlet.request.X509Certificate", certs);
+			else if (_needClientAuth) // Sanity check
+				throw new IllegalStateException("no client auth");
+		}
+		catch (Exception e)
+		{
+			Log.warn(Log.EXCEPTION, e);
+		}
+
+		super.process(message);
+	}
+
+	private static X509Certificate[] getCertChain(SSLSession sslSession)
+	{
+		try
+		{
+			Certificate[] certs = sslSession.getPeerCertificates();
+			List<X509Certificate> chain = new ArrayList<X509Certificate>(certs.length);
+			for (int i = 0; i < certs.length; i++)
+			{
+				if (certs[i] instanceof X509Certificate)
+					chain.add((X509Certificate) certs[i]);
+			}
+			return chain.toArray(new X509Certificate[chain.size()]);
+		}
+		catch (SSLPeerUnverifiedException e)
+		{
+			return new X509Certificate[0];
+		}
+	}
+
+	@Override
+	public boolean isSecure()
+	{
+		return true;
+	}
+
+	@Override
+	public int getDefaultPort()
+	{
+		return DEFAULT_PORT;
+	}
+
+	@Override
+	public int getTransportOrdinal()
+	{
+		return SipConnectors.TLS_ORDINAL;
+	}
+
+	public String[] getExcludeCipherSuites()
+	{
+		return _excludeCipherSuites;
+	}
+
+	public void setExcludeCipherSuites(String[] cipherSuites)
+	{
+		_excludeCipherSuites = cipherSuites;
+	}
+
+	public String getKeystore()
+	{
+		return _keystore;
+	}
+
+	/**
+	 * @param keystore
+	 *            The resource path to the keystore, or null for built in
+	 *            keystores.
+	 */
+	public void setKeystore(String keystore)
+	{
+		_keystore = keystore;
+	}
+
+	public String getKeystoreType()
+	{
+		return _keystoreType;
+	}
+
+	public void setKeystoreType(String keystoreType)
+	{
+		_keystoreType = keystoreType;
+	}
+
+	public boolean getNeedClientAuth()
+	{
+		return _needClientAuth;
+	}
+
+	public void setNeedClientAuth(boolean needClientAuth)
+	{
+		_needClientAuth = needClientAuth;
+	}
+
+	public boolean getWantClientAuth()
+	{
+		return _wantClientAuth;
+	}
+
+	public void setWantClientAuth(boolean wantClientAuth)
+	{
+		_wantClientAuth = wantClientAuth;
+	}
+
+	public void setPassword(String password)
+	{
+		_password = Password.getPassword(PASSWORD_PROPERTY, password, null);
+	}
+
+	public void setKeyPassword(String password)
+	{
+		_keyPassword = Password.getPassword(KEYPASSWORD_PROPERTY, password, null);
+	}
+
+	public void setTrustPassword(String password)
+	{
+		_trustPassword = Password.getPassword(PASSWORD_PROPERTY, password, null);
+	}
+
+	public String getProvider()
+	{
+		return _provider;
+	}
+
+	public void setProvider(String provider)
+	{
+		_provider = provider;
+	}
+
+	public String getSecureRandomAlgorithm()
+	{
+		return _secureRandomAlgorithm;
+	}
+
+	public void setSecureRandomAlgorithm(String algorithm)
+	{
+		_secureRandomAlgorithm = algorithm;
+	}
+
+	public String getSslKeyManagerFactoryAlgorithm()
+	{
+		return _sslKeyManagerFactoryAlgorithm;
+	}
+
+	public void setSslKeyManagerFactoryAlgorithm(String algorithm)
+	{
+		_sslKeyManagerFactoryAlgorithm = algorithm;
+	}
+
+	public String getSslTrustManagerFactoryAlgorithm()
+	{
+		return _sslTrustManagerFactoryAlgorithm;
+	}
+
+	public void setSslTrustManagerFactoryAlgorithm(String algorithm)
+	{
+		_sslTrustManagerFactoryAlgorithm = algorithm;
+	}
+
+	public String getTruststore()
+	{
+		return _truststore;
+	}
+
+	public void setTruststore(String truststore)
+	{
+		_truststore = truststore;
+	}
+
+	public String getTruststoreType()
+	{
+		return _truststoreType;
+	}
+
+	public void setTruststoreType(String truststoreType)
+	{
+		_truststoreType = truststoreType;
+	}
+
+	public SSLContext getSslContext()
+	{
+		return _context;
+	}
+
+	public void setSslContext(SSLContext context)
+	{
+		_context = context;
+	}
+
+	public class SslConnection extends SelectChannelConnection
+	{
+		private SSLEngine _engine;
+		private ByteBuffer _inNet;
+		private ByteBuffer _inApp;
+		private ByteBuffer _outNet;
+		private volatile boolean _handshook;
+
+		public SslConnection(SocketChannel channel, SSLEngine engine) throws IOException
+		{
+			super(channel);
+			_engine = engine;
+
+			SSLSession session = engine.getSession();
+			_inNet = ByteBuffer.allocate(session.getPacketBufferSize());
+			_inApp = ByteBuffer.allocate(session.getApplicationBufferSize());
+			_outNet = ByteBuffer.allocate(session.getPacketBufferSize());
+
+			_engine.beginHandshake();
+		}
+
+		public SSLEngine getSSLEngine()
+		{
+			return _engine;
+		}
+
+		/**
+		 * Reads and decrypts available records. Called by the parser on the selector thread.
+		 */
+		@Override
+		public int fill(Buffer buffer) throws IOException
+		{
+			int filled = drain(buffer);
+			if (filled > 0)
+				return filled;
+
+			while (true)
+			{
+				int read = _channel.read(_inNet);
+
+				_inNet.flip();
+				SSLEngineResult result;
+				try
+				{
+					result = _engine.unwrap(_inNet, _inApp);
+				}
+				finally
+				{
+					_inNet.compact();
+				}
+
+				if (result.getStatus() == Status.CLOSED)
+				{
+					close();
+					return -1;
+				}
+
+				boolean progress = result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+				if (handshake(result.getHandshakeStatus()))
+					progress = true;
+
+				filled = drain(buffer);
+				if (filled > 0)
+					return filled;
+				if (read < 0)
+					return -1;
+				if (!progress && read == 0)
+					return 0;
+			}
+		}
+
+		private int drain(Buffer buffer)
+		{
+			if (_inApp.position() == 0)
+				return 0;
+
+			_inApp.flip();
+			int length = Math.min(_inApp.remaining(), buffer.space());
+			_inApp.get(buffer.array(), buffer.putIndex(), length);
+			buffer.setPutIndex(buffer.putIndex() + length);
+			_inApp.compact();
+			return length;
+		}
+
+		/**
+		 * Runs the handshake tasks and sends the handshake records if needed.
+		 * @return <code>true</code> if some progress has been made.
+		 */
+		private boolean handshake(HandshakeStatus status) throws IOException
+		{
+			boolean progress = false;
+			if (status == HandshakeStatus.FINISHED)
+			{
+				handshook();
+				return true;
+			}
+
+			while (true)
+			{
+				switch (_engine.getHandshakeStatus())
+				{
+				case NEED_TASK:
+					Runnable task;
+					while ((task = _engine.getDelegatedTask()) != null)
+						task.run();
+					progress = true;
+					break;
+
+				case NEED_WRAP:
+					synchronized (this)
+					{
+						wrap(EMPTY);
+					}
+					progress = true;
+					break;
+
+				default:
+					if (progress && _engine.getHandshakeStatus() == HandshakeStatus.NOT_HANDSHAKING)
+						handshook();
+					return progress;
+				}
+			}
+		}
+
+		/**
+		 * Wakes up the threads waiting for the handshake to complete before sending.
+		 */
+		private void handshook()
+		{
+			synchronized (this)
+			{
+				_handshook = true;
+				notifyAll();
+			}
+		}
+
+		public boolean isHandshook()
+		{
+			return _handshook;
+		}
+
+		/**
+		 * Encrypts and sends <code>src</code>. Caller must hold the connection lock.
+		 */
+		private SSLEngineResult wrap(ByteBuffer src) throws IOException
+		{
+			_outNet.clear();
+			SSLEngineResult result = _engine.wrap(src, _outNet);
+			_outNet.flip();
+			flushChannel(_outNet);
+
+			if (result.getStatus() == Status.CLOSED)
+				throw new EofException();
+			return result;
+		}
+
+		@Override
+		public void write(Buffer buffer) throws IOException
+		{
+			synchronized (this)
+			{
+				byte[] array = buffer.array();
+				ByteBuffer src = array != null ?
+						ByteBuffer.wrap(array, buffer.getIndex(), buffer.length()) :
+						ByteBuffer.wrap(buffer.asArray());
+
+				long end = System.currentTimeMillis() + getConnectionTimeout();
+				while (src.hasRemaining())
+				{
+					SSLEngineResult result = wrap(src);
+					if (result.bytesConsumed() == 0
+							&& result.getHandshakeStatus() == HandshakeStatus.NEED_UNWRAP)
+					{
+						// Wait for the selector thread to receive the peer handshake records
+						long remaining = end - System.currentTimeMillis();
+						if (remaining <= 0 || !isOpen())
+							throw new SSLException("Handshake timeout on " + this);
+						try
+						{
+							wait(remaining);
+						}
+						catch (InterruptedException e)
+						{
+							throw new SSLException("Handshake interrupted on " + this);
+						}
+					}
+					else if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK)
+					{
+						Runnable task;
+						while ((task = _engine.getDelegatedTask()) != null)
+							task.run();
+					}
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			try
+			{
+				_engine.closeOutbound();
+			}
+			finally
+			{
+				super.close();
+			}
+		}
+
+		@Override
+		public String toString()
+		{
+			StringBuilder sb = new StringBuilder();
+			sb.append("TLS Connection ");
+			sb.append(getLocalAddress().getHostAddress()).append(":").append(getLocalPort());
+			sb.append(" - ");
+			sb.append(getRemoteAddress().getHostAddress()).append(":").append(getRemotePort());
+			return sb.toString();
+		}
+	}
+}
@@ -0,0 +1,482 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server.nio;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.cipango.server.AbstractSipConnector;
+import org.cipango.server.ConnectorManager;
+import org.cipango.server.SipConnection;
+import org.cipango.server.SipConnector;
+import org.cipango.server.SipConnectors;
+import org.cipango.server.SipMessage;
+import org.cipango.sip.SipParser;
+import org.cipango.util.HexString;
+
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.eclipse.jetty.io.nio.NIOBuffer;
+import org.eclipse.jetty.util.log.Log;
+
+/**
+ * UDP connector based on {@link DatagramChannel}.
+ * <p>
+ * Each acceptor has its own receive loop, reading in a direct buffer it owns
+ * and parsing the message on the receive thread. When the platform supports
+ * <code>SO_REUSEPORT</code> (Java 9 and later), each acceptor binds its own socket on
+ * the connector port so that the kernel spreads the datagrams over the sockets.
+ * Otherwise all the acceptors share a single socket.
+ * <p>
+ * Parsed messages are dispatched to the SIP thread pool as with
+ * {@link org.cipango.server.bio.UdpConnector}. Optionally, they can be handed to 
+ * <code>workers</code> dedicated threads chosen by hashing the Call-ID, so that all 
+ * the messages of a call are handled in order by the same thread.
+ */
+public class UdpChannelConnector extends AbstractSipConnector
+{
+	public static final int MAX_UDP_SIZE = 65536;
+	public static final int DEFAULT_PORT = 5060;
+	public static final boolean RELIABLE = false;
+
+	private static final Object __reusePortOption;
+	private static final Method __setOption;
+
+	static
+	{
+		Object option = null;
+		Method setOption = null;
+		try
+		{
+			Class<?> socketOption = Class.forName("java.net.SocketOption");
+			option = Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT").get(null);
+			setOption = DatagramChannel.class.getMethod("setOption", socketOption, Object.class);
+		}
+		catch (Exception e)
+		{
+			Log.ignore(e);
+			option = null;
+			setOption = null;
+		}
+		__reusePortOption = option;
+		__setOption = setOption;
+	}
+
+	private DatagramChannel[] _channels;
+	private ByteBuffer[] _receiveBuffers;
+	private Buffer[] _pooledReceiveBuffers;
+	private InetAddress _localAddr;
+	private boolean _reusePort = true;
+
+	private int _workers = 0;
+	private int _workerQueueSize = 4096;
+	private Worker[] _workerThreads;
+
+	private transient long _messagesDropped;
+
+	public static boolean isReusePortSupported()
+	{
+		return __setOption != null;
+	}
+
+	protected void doStart() throws Exception
+	{
+		ConnectorManager pool = getBufferPool();
+		_receiveBuffers = new ByteBuffer[getAcceptors()];
+		_pooledReceiveBuffers = pool == null ? null : new Buffer[getAcceptors()];
+		for (int i = 0; i < _receiveBuffers.length; i++)
+		{
+			if (pool != null)
+			{
+				Buffer buffer = pool.getBufferPool().getDirectBuffer(MAX_UDP_SIZE);
+				_pooledReceiveBuffers[i] = buffer;
+				_receiveBuffers[i] = buffer instanceof NIOBuffer ? 
+						((NIOBuffer) buffer).getByteBuffer() : ByteBuffer.wrap(buffer.array());
+			}
+			else
+				_receiveBuffers[i] = ByteBuffer.allocateDirect(MAX_UDP_SIZE);
+		}
+
+		if (_workers > 0)
+		{
+			_workerThreads = new Worker[_workers];
+			for (int i = 0; i < _workerThreads.length; i++)
+			{
+				_workerThreads[i] = new Worker(i);
+				_workerThreads[i].start();
+			}
+		}
+		super.doStart();
+	}
+
+	protected void doStop() throws Exception
+	{
+		super.doStop();
+
+		Worker[] workers = _workerThreads;
+		_workerThreads = null;
+		for (int i = 0; workers != null && i < workers.length; i++)
+			workers[i].interrupt();
+		
+		Buffer[] pooled = _pooledReceiveBuffers;
+		_pooledReceiveBuffers = null;
+		for (int i = 0; pooled != null && i < pooled.length; i++)
+			getBufferPool().returnBuffer(pooled[i]);
+	}
+
+	public void open() throws IOException
+	{
+		int nbChannels = 1;
+		if (_reusePort && getAcceptors() > 1)
+		{
+			if (isReusePortSupported())
+				nbChannels = getAcceptors();
+			else
+				Log.info("SO_REUSEPORT not supported, using a single socket for {}", this);
+		}
+
+		InetSocketAddress address = getHost() == null ?
+				new InetSocketAddress(getPort()) :
+				new InetSocketAddress(InetAddress.getByName(getHost()), getPort());
+
+		_channels = new DatagramChannel[nbChannels];
+		for (int i = 0; i < nbChannels; i++)
+		{
+			DatagramChannel channel = DatagramChannel.open();
+			if (nbChannels > 1)
+				setReusePort(channel);
+			channel.socket().bind(address);
+			_channels[i] = channel;
+		}
+		_localAddr = _channels[0].socket().getLocalAddress();
+	}
+
+	private void setReusePort(DatagramChannel channel) throws IOException
+	{
+		try
+		{
+			__setOption.invoke(channel, __reusePortOption, Boolean.TRUE);
+		}
+		catch (Exception e)
+		{
+			throw new IOException("Could not set SO_REUSEPORT: " + e);
+		}
+	}
+
+	public void close() throws IOException
+	{
+		DatagramChannel[] channels = _channels;
+		for (int i = 0; channels != null && i < channels.length; i++)
+			channels[i].close();
+	}
+
+	public boolean isOpen()
+	{
+		return _channels != null && _channels[0].isOpen();
+	}
+
+	public int getLocalPort()
+	{
+		if (!isOpen())
+			return -1;
+		return _channels[0].socket().getLocalPort();
+	}
+
+	public Object getConnection()
+	{
+		return isOpen() ? _channels[0] : null;
+	}
+
+	public void accept(int acceptorID) throws IOException, InterruptedException
+	{
+		DatagramChannel channel = _channels[acceptorID % _channels.length];
+
+		ByteBuffer receiveBuffer = _receiveBuffers[acceptorID];
+		receiveBuffer.clear();
+
+		InetSocketAddress remote = (InetSocketAddress) channel.receive(receiveBuffer);
+
+		int length = receiveBuffer.position();
+		if (remote == null || length == 2 || length == 4)
+			return;
+
+		// Messages keep views over the bytes so they get their own array.
+		byte[] b = new byte[length];
+		receiveBuffer.flip();
+		receiveBuffer.get(b);
+		Buffer buffer = new ByteArrayBuffer(b);
+
+		EventHandler handler = new EventHandler();
+		SipParser parser = new SipParser(buffer, handler);
+
+		try
+		{
+			parser.parse();
+
+			SipMessage message = handler.getMessage();
+			message.setConnection(new UdpConnection(channel, remote.getAddress(), remote.getPort()));
+
+			process(message);
+		}
+		catch (Throwable t)
+		{
+			if (_statsStartedAt != -1)
+			{
+				synchronized (_statsLock)
+				{
+					_nbParseErrors++;
+				}
+			}
+			Log.warn(t);
+
+			if (Log.isDebugEnabled())
+				Log.debug("Buffer content: \r\n" + HexString.toDetailedHexString(buffer.array(), length));
+		}
+	}
+
+	@Override
+	public void process(SipMessage message)
+	{
+		Worker[] workers = _workerThreads;
+		if (workers == null)
+		{
+			super.process(message);
+			return;
+		}
+
+		if (!isRunning())
+			return;
+
+		String callId = message.getCallId();
+		int hash = callId == null ? 0 : callId.hashCode();
+		Worker worker = workers[(hash & Integer.MAX_VALUE) % workers.length];
+
+		if (!worker.offer(message))
+		{
+			if (_statsStartedAt != -1)
+			{
+				synchronized (_statsLock)
+				{
+					_messagesDropped++;
+				}
+			}
+			Log.warn("Worker queue full, dropping message from {}:{}",
+					message.getRemoteAddr(), message.getRemotePort());
+		}
+	}
+
+	public SipConnection getConnection(InetAddress address, int port)
+	{
+		DatagramChannel[] channels = _channels;
+		int index = ((address.hashCode() ^ port) & Integer.MAX_VALUE) % channels.length;
+		return new UdpConnection(channels[index], address, port);
+	}
+
+	public int getDefaultPort()
+	{
+		return DEFAULT_PORT;
+	}
+
+	public InetAddress getAddr()
+	{
+		return _localAddr;
+	}
+
+	public int getTransportOrdinal()
+	{
+		return SipConnectors.UDP_ORDINAL;
+	}
+
+	public boolean isReliable()
+	{
+		return RELIABLE;
+	}
+
+	public boolean isSecure()
+	{
+		return false;
+	}
+
+	/**
+	 * Sets whether one socket per acceptor should be bound using <code>SO_REUSEPORT</code>.
+	 */
+	public void setReusePort(boolean reusePort)
+	{
+		if (isRunning())
+			throw new IllegalStateException("running");
+		_reusePort = reusePort;
+	}
+
+	public boolean isReusePort()
+	{
+		return _reusePort;
+	}
+
+	public int getSockets()
+	{
+		DatagramChannel[] channels = _channels;
+		return channels == null ? 0 : channels.length;
+	}
+
+	/**
+	 * Sets the number of dedicated threads handling the messages. If <code>0</code> 
+	 * (the default), the SIP thread pool is used instead.
+	 */
+	public void setWorkers(int workers)
+	{
+		if (isRunning())
+			throw new IllegalStateException("running");
+		_workers = workers;
+	}
+
+	public int getWorkers()
+	{
+		return _workers;
+	}
+
+	public void setWorkerQueueSize(int workerQueueSize)
+	{
+		if (isRunning())
+			throw new IllegalStateException("running");
+		_workerQueueSize = workerQueueSize;
+	}
+
+	public int getWorkerQueueSize()
+	{
+		return _workerQueueSize;
+	}
+
+	public long getMessagesDropped()
+	{
+		return _messagesDropped;
+	}
+
+	@Override
+	public void statsReset()
+	{
+		super.statsReset();
+		_messagesDropped = 0;
+	}
+
+	class Worker extends Thread
+	{
+		private BlockingQueue<SipMessage> _queue = new ArrayBlockingQueue<SipMessage>(_workerQueueSize);
+
+		Worker(int id)
+		{
+			super("udp-worker-" + id + " " + UdpChannelConnector.this);
+			setDaemon(true);
+		}
+
+		boolean offer(SipMessage message)
+		{
+			return _queue.offer(message);
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				while (_workerThreads != null)
+				{
+					SipMessage message = _queue.take();
+					try
+					{
+						getHandler().handle(message);
+					}
+					catch (Throwable t)
+					{
+						Log.warn(t);
+					}
+				}
+			}
+			catch (InterruptedException e)
+			{
+				Log.ignore(e);
+			}
+		}
+	}
+
+	class UdpConnection implements SipConnection
+	{
+		private DatagramChannel _channel;
+		private InetSocketAddress _remote;
+
+		public UdpConnection(DatagramChannel channel, InetAddress remoteAddr, int remotePort)
+		{
+			_channel = channel;
+			_remote = new InetSocketAddress(remoteAddr, remotePort);
+		}
+
+		public SipConnector getConnector()
+		{
+			return UdpChannelConnector.this;
+		}
+
+		public InetAddress getLocalAddress()
+		{
+			return _localAddr;
+		}
+
+		public int getLocalPort()
+		{
+			return _channel.socket().getLocalPort();
+		}
+
+		public InetAddress getRemoteAddress()
+		{
+			return _remote.getAddress();
+		}
+
+		public int getRemotePort()
+		{
+			return _remote.getPort();
+		}
+
+		public void write(Buffer buffer) throws IOException
+		{
+			byte[] array = buffer.array();
+			ByteBuffer bb;
+			if (array != null)
+				bb = ByteBuffer.wrap(array, buffer.getIndex(), buffer.length());
+			else if (buffer instanceof NIOBuffer)
+			{
+				bb = ((NIOBuffer) buffer).getByteBuffer().duplicate();
+				bb.limit(buffer.putIndex());
+				bb.position(buffer.getIndex());
+			}
+			else
+				bb = ByteBuffer.wrap(buffer.asArray());
+			_channel.send(bb, _remote);
+		}
+
+		public boolean isOpen()
+		{
+			return _channel.isOpen();
+		}
+
+		public String toString()
+		{
+			return "udp/" + _remote.getAddress().getHostAddress() + ":" + _remote.getPort();
+		}
+	}
+}
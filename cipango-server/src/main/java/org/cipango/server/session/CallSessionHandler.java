@@ -15,8 +15,6 @@
 package org.cipango.server.session;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
 
 import javax.servlet.ServletException;
 import javax.servlet.sip.SipServletMessage;
@@ -27,19 +25,22 @@ import org.cipango.server.Server;
 import org.cipango.server.SipHandler;
 import org.cipango.server.SipMessage;
 import org.cipango.server.SipRequest;
+import org.cipango.server.transaction.ClientTransaction;
+import org.cipango.server.transaction.ServerTransaction;
 import org.cipango.sipapp.SipAppContext;
 
 import org.eclipse.jetty.server.handler.HandlerWrapper;
-import org.eclipse.jetty.util.LazyList;
 import org.eclipse.jetty.util.log.Log;
 
 /**
  * Performs call lock for received messages. 
+ * 
+ * Messages are queued on their call session and handled by whichever thread holds 
+ * the call session, so that no thread waits for a busy call.
  */
 public class CallSessionHandler extends HandlerWrapper implements SipHandler 
 {
 	private Server _server;
-	private Map<String, Queue> _queues = new HashMap<String, Queue>();
 	
 	@Override
 	protected void doStart() throws Exception
@@ -80,124 +81,71 @@ public class CallSessionHandler extends HandlerWrapper implements SipHandler
 		return ID.getCallSessionId(message.getCallId());
 	}
 	
+	private String getTransactionKey(SipMessage message)
+	{
+		String branch = message.getTopVia().getBranch();
+		if (branch == null)
+			return null;
+		return message.isCancel() ? "cancel-" + branch : branch;
+	}
+	
 	public void handle(SipServletMessage message) throws IOException, ServletException
 	{
 		SipMessage baseMessage = (SipMessage) message;
 	
-		String id = getCallSessionId(baseMessage);
-		
-		if (Log.isDebugEnabled())
-			Log.debug("handling message {} for call session: {}", baseMessage.getRequestLine(), id);
-			
-		Queue queue = null;
-		synchronized (_queues) 
+		String id;
+		if (baseMessage.isRequest())
+		{
+			String key = getTransactionKey(baseMessage);
+			ServerTransaction transaction = key != null ? _server.getSessionManager().getServerTransaction(key) : null;
+			id = transaction != null ? transaction.getCallSession().getId() : getCallSessionId(baseMessage);
+		}
+		else
 		{
-			queue = _queues.get(id);
-			if (queue == null)
+			// responses can only be handled by a client transaction, stray ones do not need a call session
+			String key = getTransactionKey(baseMessage);
+			ClientTransaction transaction = key != null ? _server.getSessionManager().getClientTransaction(key) : null;
+			if (transaction == null)
 			{
-				queue = new Queue(id);
-				_queues.put(id, queue);
+				if (Log.isDebugEnabled())
+					Log.debug("did not find client transaction for response {}", baseMessage);
+				
+				_server.getTransactionManager().transactionNotFound();
+				return;
 			}
-			queue.add(baseMessage);
+			id = transaction.getCallSession().getId();
 		}
-		queue.handle();
+		
+		if (Log.isDebugEnabled())
+			Log.debug("handling message {} for call session: {}", baseMessage.getRequestLine(), id);
+			
+		_server.getSessionManager().execute(id, new MessageTask(baseMessage));
 	}
 	
-	class Queue
+	/**
+	 * Handles a message with the call session locked. Messages of a call are run in the
+	 * order they were received by the call session executor.
+	 */
+	class MessageTask implements CallTask
 	{
-		private static final int INITIAL = 0;
-		private static final int HANDLING = 1;
-		private static final int DONE = 2;
-		
-		private String _id;
-		private Object _messages;
-		
-		private int _state = INITIAL;
-		
-		public Queue(String id)
-		{
-			_id = id;
-		}
+		private SipMessage _message;
 		
-		public synchronized void add(SipMessage message)
+		public MessageTask(SipMessage message)
 		{
-			_messages = LazyList.add(_messages, message);
+			_message = message;
 		}
 		
-		public synchronized SipMessage poll()
+		public void run(CallSession callSession)
 		{
-			if (LazyList.size(_messages) == 0)
-				return null;
-			SipMessage message = (SipMessage) LazyList.get(_messages, 0);
-			_messages = LazyList.remove(_messages, 0);
-			return message;
-		}
-		
-		private boolean isDone()
-		{
-			synchronized (_queues) 
+			try
 			{
-				synchronized (this)
-				{
-					if (LazyList.size(_messages) == 0)
-					{
-						_queues.remove(_id);
-						_state = DONE;
-						return true;
-					}
-				}
+				_message.setCallSession(callSession);
+				((SipHandler) getHandler()).handle(_message);
 			}
-			return false;
-		}
-		
-		public void handle()
-		{
-			synchronized (this)
+			catch (Exception e)
 			{
-				if (_state != INITIAL)
-					return;
-				else
-					_state = HANDLING;
-			}
-			
-			do
-			{
-				CallSession callSession = null;
-				SessionScope scope = null;
-				
-				while (callSession == null)
-				{	
-					scope = _server.getSessionManager().openScope(_id);
-					
-					callSession = scope.getCallSession();
-					
-					if (callSession == null)
-						try { Thread.sleep(20); } catch (InterruptedException e) { } // TODO
-				}
-				
-				try
-				{
-					SipMessage message = null;
-				
-					while ((message = poll()) != null)
-					{
-						try
-						{
-							message.setCallSession(callSession);
-							((SipHandler) getHandler()).handle(message);
-						}
-						catch (Exception e)
-						{
-							Log.ignore(e);
-						}
-					}
-				}
-				finally 
-				{
-					scope.close();
-				}
+				Log.ignore(e);
 			}
-			while (!isDone());
 		}
 	}
 }
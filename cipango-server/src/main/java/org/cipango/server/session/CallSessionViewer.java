@@ -50,13 +50,13 @@ public class CallSessionViewer
 			while (it.hasNext())
 				printAppSession(sb, it.next());
 			
-			Iterator<ClientTransaction> it2 = cSession._clientTransactions.iterator();
+			Iterator<ClientTransaction> it2 = cSession._clientTransactions.values().iterator();
 			if (it2.hasNext())
 				sb.append("\t+ [clientTransaction]\n");
 			while (it2.hasNext())
 				sb.append("\t\t+ ").append(it2.next()).append('\n');
 			
-			Iterator<ServerTransaction> it3 = cSession._serverTransactions.iterator();
+			Iterator<ServerTransaction> it3 = cSession._serverTransactions.values().iterator();
 			if (it3.hasNext())
 				sb.append("\t+ [serverTransaction]\n");
 			while (it3.hasNext())
@@ -142,9 +142,6 @@ public class CallSessionViewer
 	
 	public List<String> getCallIds()
 	{
-		synchronized (_sessionManager._callSessions)
-		{
-			return new ArrayList<String>(_sessionManager._callSessions.keySet());
-		}
+		return new ArrayList<String>(_sessionManager._callSessions.keySet());
 	}
 }
@@ -20,9 +20,10 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -35,14 +36,14 @@ import org.cipango.server.SipRequest;
 import org.cipango.server.SipResponse;
 import org.cipango.server.transaction.ClientTransaction;
 import org.cipango.server.transaction.ServerTransaction;
-import org.cipango.server.transaction.Transaction;
 import org.cipango.sipapp.SipAppContext;
-import org.cipango.util.TimerList;
-import org.cipango.util.TimerQueue;
 import org.cipango.util.TimerTask;
+import org.cipango.util.TimingWheel;
 import org.eclipse.jetty.util.component.AbstractLifeCycle;
 import org.eclipse.jetty.util.log.Log;
 import org.eclipse.jetty.util.statistic.CounterStatistic;
+import org.eclipse.jetty.util.statistic.SampleStatistic;
+import org.eclipse.jetty.util.thread.ThreadPool;
 
 /**
  * Holds and manages all SIP related sessions.
@@ -53,13 +54,25 @@ import org.eclipse.jetty.util.statistic.CounterStatistic;
  * 
  * Call session is a container structure (not exposed in Sip Servlets API) used to group all data related to a SIP call.
  * Call sessions are processed in a pseudo-transactional manner to control concurrency and may be scheduled for execution.  
+ * 
+ * Each call session also acts as a serial executor: tasks submitted with {@link #execute(String, CallTask)} 
+ * are queued on the call session and run in order by whichever thread holds it. A thread that finds the 
+ * call session busy does not wait, the holder runs the pending tasks when closing its scope.
+ * 
+ * Call session timers are held in hierarchical timing wheels, each one advanced by its own scheduler 
+ * thread. A call session always uses the same wheel and its expired timers are run through the call 
+ * session executor.
  */
 public class SessionManager extends AbstractLifeCycle
 {   
-    protected Map<String, CSession> _callSessions = new HashMap<String, CSession>(1024);
-    protected TimerQueue<CSession> _queue = new TimerQueue<CSession>(1024);
+    protected ConcurrentMap<String, CSession> _callSessions = new ConcurrentHashMap<String, CSession>(1024);
+    
+    // server-wide transaction index
+    private ConcurrentMap<String, ServerTransaction> _serverTransactionIndex = new ConcurrentHashMap<String, ServerTransaction>(1024);
+    private ConcurrentMap<String, ClientTransaction> _clientTransactionIndex = new ConcurrentHashMap<String, ClientTransaction>(1024);
     
-    private Thread _scheduler;
+    private Scheduler[] _schedulers;
+    private long _tickDuration = 10;
     private int _priorityOffset;
     
     private File _storeDir;
@@ -68,10 +81,12 @@ public class SessionManager extends AbstractLifeCycle
     // statistics 
     private AtomicLong _statsStartedAt = new AtomicLong(-1);
     private CounterStatistic _sessionsStats = new CounterStatistic();
+    private SampleStatistic _timerLagStats = new SampleStatistic();
     private int _callsThreshold = 0;
     	
     public SessionManager()
     { 
+    	setSchedulerThreads(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
     }
     
     @Override
@@ -85,7 +100,8 @@ public class SessionManager extends AbstractLifeCycle
             restoreSessions();
         }
     	
-        new Thread(new Scheduler()).start();
+        for (int i = 0; i < _schedulers.length; i++)
+        	new Thread(_schedulers[i], "session-scheduler-" + i).start();
         super.doStart();
     }
     
@@ -94,8 +110,12 @@ public class SessionManager extends AbstractLifeCycle
     {
     	super.doStop();
     	
-    	if (_scheduler != null)
-    		_scheduler.interrupt();
+    	for (int i = 0; i < _schedulers.length; i++)
+    	{
+    		Thread thread = _schedulers[i]._thread;
+    		if (thread != null)
+    			thread.interrupt();
+    	}
     	
     	_callSessions.clear();
     }
@@ -105,32 +125,162 @@ public class SessionManager extends AbstractLifeCycle
     	_priorityOffset = priorityOffset;
     }
     
+    /**
+     * Sets the number of scheduler threads, each one advancing its own timing wheel.
+     */
+    public void setSchedulerThreads(int threads)
+    {
+    	if (isRunning())
+    		throw new IllegalStateException("running");
+    	if (threads < 1)
+    		throw new IllegalArgumentException("threads: " + threads);
+    	
+    	_schedulers = new Scheduler[threads];
+    	for (int i = 0; i < threads; i++)
+    		_schedulers[i] = new Scheduler();
+    }
+    
+    public int getSchedulerThreads()
+    {
+    	return _schedulers.length;
+    }
+    
+    /**
+     * Sets the timer resolution in milliseconds.
+     */
+    public void setTickDuration(long tickDuration)
+    {
+    	if (isRunning())
+    		throw new IllegalStateException("running");
+    	_tickDuration = tickDuration;
+    	setSchedulerThreads(_schedulers.length);
+    }
+    
+    public long getTickDuration()
+    {
+    	return _tickDuration;
+    }
+    
     public void setStoreDir(File storeDir)
     {
     	_storeDir = storeDir;
     }
     
-    public SessionScope openScope(String id)
+    protected CSession getOrCreate(String id)
     {
-    	CSession callSession = null;
-    	
-    	synchronized (_callSessions)
+    	CSession callSession = _callSessions.get(id);
+    	if (callSession == null)
     	{
-    		callSession =  _callSessions.get(id);
+    		CSession newCallSession = newCall(id);
+    		
+    		callSession = _callSessions.putIfAbsent(id, newCallSession);
     		if (callSession == null)
     		{
-    			callSession = newCall(id);
-    			
-    			_callSessions.put(callSession.getId(), callSession);
+    			callSession = newCallSession;
     			
     			if (_statsStartedAt.get() > 0)
-					_sessionsStats.increment();
+    				_sessionsStats.increment();
     			
     			if (_callsThreshold > 0 && getCalls() == _callsThreshold)
     				Events.fire(Events.CALLS_THRESHOLD_READCHED, "Calls threashlod reached: " + getCalls());
     		}
     	}
-    	return new SessionScope(callSession._lock.tryLock() ? callSession : null);
+    	return callSession;
+    }
+    
+    public SessionScope openScope(String id)
+    {
+    	while (true)
+    	{
+    		CSession callSession = getOrCreate(id);
+    		callSession._lock.lock();
+    		
+    		if (!callSession._removed)
+    			return new SessionScope(callSession);
+    		
+    		callSession._lock.unlock();
+    	}
+    }
+    
+    /**
+     * Queues the task on the call session with the given id and runs the pending tasks of this 
+     * call session in the current thread if it is not held by another thread. Otherwise returns
+     * immediately, the task being run when the holder closes its scope.
+     */
+    public void execute(String id, CallTask task)
+    {
+    	while (true)
+    	{
+	    	CSession callSession = getOrCreate(id);
+	    	callSession._tasks.offer(task);
+	    	
+	    	if (!callSession._removed)
+	    	{
+	    		runTasks(callSession);
+	    		return;
+	    	}
+	    	// the call session has been removed concurrently, take the task back and retry
+	    	if (!callSession._tasks.remove(task))
+	    		return;
+    	}
+    }
+    
+    protected void runTasks(CSession callSession)
+    {
+    	while (!callSession._tasks.isEmpty())
+    	{
+    		if (!callSession._lock.tryLock())
+    			return;
+    		
+    		if (callSession._lock.getHoldCount() > 1)
+    		{
+    			// tasks are run when the outer scope is closed
+    			callSession._lock.unlock();
+    			return;
+    		}
+    		
+    		if (callSession._removed)
+    		{
+    			// submitters take their tasks back
+    			callSession._lock.unlock();
+    			return;
+    		}
+    		
+    		try
+    		{
+    			CallTask task;
+    			while ((task = callSession._tasks.poll()) != null)
+    			{
+    				try
+    				{
+    					task.run(callSession);
+    				}
+    				catch (Throwable t)
+    				{
+    					Log.warn(t);
+    				}
+    			}
+    		}
+    		finally
+    		{
+    			close(callSession, false);
+    		}
+    	}
+    }
+    
+    protected void dispatch(final CSession callSession)
+    {
+    	ThreadPool threadPool = _server != null ? _server.getSipThreadPool() : null;
+    	
+    	Runnable runnable = new Runnable()
+    	{
+    		public void run()
+    		{
+    			runTasks(callSession);
+    		}
+    	};
+    	if (threadPool == null || !threadPool.dispatch(runnable))
+    		runTasks(callSession);
     }
     
     public SessionScope openScope(CallSession callSession)
@@ -141,6 +291,11 @@ public class SessionManager extends AbstractLifeCycle
     }
     
     public void close(CSession callSession)
+    {
+    	close(callSession, true);
+    }
+    
+    private void close(CSession callSession, boolean dispatch)
     {
     	try
     	{
@@ -150,30 +305,7 @@ public class SessionManager extends AbstractLifeCycle
 	    	{
 	    		callSession.invalidateSessionsIfReady();
 	    		
-	    		long time = callSession.nextExecutionTime();
-	
-	        	if (time > 0)
-	        	{
-	        		while (time < System.currentTimeMillis())
-	        		{
-	        			callSession.runTimers();
-	        			time = callSession.nextExecutionTime();
-	        			
-	        			if (time < 0)
-	        				break;
-	        		}
-	        		
-	        		if (time > 0)
-	        		{
-	        			synchronized (_queue)
-	        			{
-	        				//_queue.remove(callSession); // TODO O(n) ?
-	        				_queue.offer(callSession, time);
-	        				_queue.notifyAll();
-	        			}
-	        		}
-	        	}
-	        	if (callSession.isDone())
+	        	if (callSession.isDone() && markRemoved(callSession))
 	        	{
 	        		boolean removed = removeSession(callSession);
 	        		if (removed && _statsStartedAt.get() > 0)
@@ -189,6 +321,23 @@ public class SessionManager extends AbstractLifeCycle
     	{
     		callSession._lock.unlock();
     	}
+    	
+    	if (dispatch && !callSession._tasks.isEmpty() && !callSession._lock.isHeldByCurrentThread())
+    		dispatch(callSession);
+    }
+    
+    /**
+     * Marks the call session as removed unless a task has been queued concurrently. Submitters queue 
+     * their task before checking the flag, so that either the task is seen here or the submitter sees 
+     * the call session removed.
+     */
+    private boolean markRemoved(CSession callSession)
+    {
+    	callSession._removed = true;
+    	if (callSession._tasks.isEmpty())
+    		return true;
+    	callSession._removed = false;
+    	return false;
     }
     
     /**
@@ -199,10 +348,7 @@ public class SessionManager extends AbstractLifeCycle
     	if (Log.isDebugEnabled())
 			Log.debug("CallSession " + callSession.getId() + " is done.");
 		
-		synchronized (_callSessions)
-    	{
-    		return _callSessions.remove(callSession.getId()) != null;
-    	}
+		return _callSessions.remove(callSession.getId(), callSession);
     }
     
     protected CSession newCall(String id)
@@ -210,26 +356,38 @@ public class SessionManager extends AbstractLifeCycle
     	return new CSession(id);
     }
     
-    public CallSession get(String callId)
+    /**
+     * Returns the server transaction with the given key, whatever its call session. 
+     * The call session of the transaction is not locked.
+     */
+    public ServerTransaction getServerTransaction(String key)
     {
-    	synchronized (_callSessions)
-    	{
-			return (CallSession) _callSessions.get(callId);
-		}
+    	return _serverTransactionIndex.get(key);
     }
     
-    private void runTimers(CSession csession)
-	{
-    	csession._lock.lock();
-		try
-		{
-			csession.runTimers(); // TODO thread pool for app timers at least
-		}
-		finally
-		{
-			close(csession);
-		}
-	}
+    /**
+     * Returns the client transaction with the given key, whatever its call session. 
+     * The call session of the transaction is not locked.
+     */
+    public ClientTransaction getClientTransaction(String key)
+    {
+    	return _clientTransactionIndex.get(key);
+    }
+    
+    public int getServerTransactions()
+    {
+    	return _serverTransactionIndex.size();
+    }
+    
+    public int getClientTransactions()
+    {
+    	return _clientTransactionIndex.size();
+    }
+    
+    public CallSession get(String callId)
+    {
+		return (CallSession) _callSessions.get(callId);
+    }
     
     public void saveSession(CSession session)
     {
@@ -341,10 +499,51 @@ public class SessionManager extends AbstractLifeCycle
 		_callsThreshold = callsThreshold;
 	}
 	
+    /**
+     * @return the number of timers scheduled in the timing wheels.
+     */
+    public int getTimers()
+    {
+    	int timers = 0;
+    	for (int i = 0; i < _schedulers.length; i++)
+    	{
+    		TimingWheel wheel = _schedulers[i]._wheel;
+    		synchronized (wheel)
+    		{
+    			timers += wheel.getSize();
+    		}
+    	}
+    	return timers;
+    }
+    
+    public long getTimersRun()
+    {
+    	return _timerLagStats.getCount();
+    }
+    
+    /**
+     * @return the maximum delay in milliseconds between the expected and the actual execution time of timers.
+     */
+    public long getTimerLagMax()
+    {
+    	return _timerLagStats.getMax();
+    }
+    
+    public double getTimerLagMean()
+    {
+    	return _timerLagStats.getMean();
+    }
+    
+    public double getTimerLagStdDev()
+    {
+    	return _timerLagStats.getStdDev();
+    }
+    
     public void statsReset() 
     {
         _statsStartedAt.set(_statsStartedAt.get() == -1 ? -1l : System.currentTimeMillis());
         _sessionsStats.reset();
+        _timerLagStats.reset();
     }
     
     public void setStatsOn(boolean on) 
@@ -361,6 +560,14 @@ public class SessionManager extends AbstractLifeCycle
 		return _statsStartedAt.get() != -1;
 	}
 	
+	/**
+	 * Task run with its call session locked.
+	 */
+	public interface CallTask
+	{
+		void run(CallSession callSession);
+	}
+	
 	/**
 	 * Pseudo-transactional scope for session processing. 
 	 */
@@ -387,56 +594,55 @@ public class SessionManager extends AbstractLifeCycle
 	
     class Scheduler implements Runnable
     {
+    	private TimingWheel _wheel = new TimingWheel(_tickDuration, System.currentTimeMillis());
+    	private Thread _thread;
+    	
     	public void run()
     	{
-    		_scheduler = Thread.currentThread();
-    		String name = _scheduler.getName();
-    		_scheduler.setName("session-scheduler");
-    		int priority = _scheduler.getPriority();
+    		_thread = Thread.currentThread();
+    		int priority = _thread.getPriority();
+    		List<TimerTask> expired = new ArrayList<TimerTask>();
     		
     		try
     		{
-    			_scheduler.setPriority(priority + _priorityOffset);
+    			_thread.setPriority(priority + _priorityOffset);
     			do
     			{
     				try
     				{
-    					CSession csession;
-    					long timeout;
+    					long next;
+    					synchronized (_wheel)
+    					{
+    						_wheel.expire(System.currentTimeMillis(), expired);
+    						next = _wheel.getNextTickTime();
+    					}
+    					
+    					CSession previous = null;
+    					for (int i = 0; i < expired.size(); i++)
+    					{
+    						CallTimer timer = (CallTimer) expired.get(i);
+    						timer._callSession._tasks.offer(timer);
+    						if (timer._callSession != previous && previous != null)
+    							dispatch(previous);
+    						previous = timer._callSession;
+    					}
+    					if (previous != null)
+    						dispatch(previous);
+    					expired.clear();
     					
-						synchronized (_queue)
-						{
-							csession = (CSession) _queue.peek();
-							timeout = (csession != null ? csession.nextExecutionTime() - System.currentTimeMillis() : Long.MAX_VALUE);
-							
-							if (timeout > 0)
-							{
-								if (Log.isDebugEnabled())
-									Log.debug("waiting {} ms for call session: {}", timeout, csession);
-								_queue.wait(timeout);
-							} 
-							else
-							{
-								_queue.poll();
-							}
-						}
-						if (timeout <= 0)
-						{
-							if (Log.isDebugEnabled())
-								Log.debug("running timers for call session: {}", csession);
-							runTimers(csession);
-						}
+    					long timeout = next - System.currentTimeMillis();
+    					if (timeout > 0)
+    						Thread.sleep(timeout);
     				}
     				catch (InterruptedException e) { continue; }
-    				catch (Throwable t) { Log.warn(t); }
+    				catch (Throwable t) { Log.warn(t); expired.clear(); }
     			}
     			while (isRunning()); 
     		}
     		finally
     		{
-    			_scheduler.setName(name);
-    			_scheduler.setPriority(priority);
-    			_scheduler = null;
+    			_thread.setPriority(priority);
+    			_thread = null;
     			
     			String exit = "session-scheduler exited";
     			if (isStarted())
@@ -447,21 +653,45 @@ public class SessionManager extends AbstractLifeCycle
     	}
     }
     
-    public class CSession extends TimerQueue.Node implements CallSession
+    /**
+     * Timer of a call session, run through the call session executor once expired.
+     */
+    static class CallTimer extends TimerTask implements CallTask
+    {
+    	private CSession _callSession;
+    	private int _index = -1;
+    	
+    	public CallTimer(CSession callSession, Runnable runnable, long executionTime)
+    	{
+    		super(runnable, executionTime);
+    		_callSession = callSession;
+    	}
+    	
+    	public void run(CallSession callSession)
+    	{
+    		_callSession.runTimer(this);
+    	}
+    }
+    
+    public class CSession implements CallSession
     {
     	protected String _id;
     	
-    	protected TimerList _timers = new TimerList();
+    	protected List<TimerTask> _timers = new ArrayList<TimerTask>(3);
     	
-    	protected List<ServerTransaction> _serverTransactions = new ArrayList<ServerTransaction>(1);
-    	protected List<ClientTransaction> _clientTransactions = new ArrayList<ClientTransaction>(1);
+    	protected TransactionTable<ServerTransaction> _serverTransactions = new TransactionTable<ServerTransaction>();
+    	protected TransactionTable<ClientTransaction> _clientTransactions = new TransactionTable<ClientTransaction>();
     	protected List<AppSession> _appSessions = new ArrayList<AppSession>(1);
     	
     	private ReentrantLock _lock = new ReentrantLock();
+    	private ConcurrentLinkedQueue<CallTask> _tasks = new ConcurrentLinkedQueue<CallTask>();
+    	private volatile boolean _removed;
+    	private Scheduler _scheduler;
     	
     	public CSession(String id)
     	{
     		_id = id;
+    		_scheduler = _schedulers[(id.hashCode() & Integer.MAX_VALUE) % _schedulers.length];
     	}
     	
     	public String getId()
@@ -478,8 +708,15 @@ public class SessionManager extends AbstractLifeCycle
     	{
     		assertLocked();
     		
-    		TimerTask timer = new TimerTask(runnable, System.currentTimeMillis() + delay);
-    		_timers.addTimer(timer);
+    		CallTimer timer = new CallTimer(this, runnable, System.currentTimeMillis() + delay);
+    		timer._index = _timers.size();
+    		_timers.add(timer);
+    		
+    		TimingWheel wheel = _scheduler._wheel;
+    		synchronized (wheel)
+    		{
+    			wheel.schedule(timer);
+    		}
     		
     		if (Log.isDebugEnabled())
     			Log.debug("scheduled timer {} for call session: {}", timer, _id);
@@ -497,93 +734,80 @@ public class SessionManager extends AbstractLifeCycle
     		if (timer != null)
     		{
     			timer.cancel();
-    			_timers.remove(timer);
+    			if (timer instanceof CallTimer)
+    			{
+    				TimingWheel wheel = _scheduler._wheel;
+    				synchronized (wheel)
+    				{
+    					wheel.cancel(timer);
+    				}
+    				removeTimer((CallTimer) timer);
+    			}
     		}
 		}
+    	
+    	private void removeTimer(CallTimer timer)
+    	{
+    		int index = timer._index;
+    		if (index < 0 || _timers.get(index) != timer)
+    			return;
+    		
+    		TimerTask last = _timers.remove(_timers.size() - 1);
+    		if (last != timer)
+    		{
+    			_timers.set(index, last);
+    			((CallTimer) last)._index = index;
+    		}
+    		timer._index = -1;
+    	}
 
     	public void addServerTransaction(ServerTransaction transaction)
     	{
     		_serverTransactions.add(transaction);
+    		_serverTransactionIndex.put(transaction.getKey(), transaction);
     	}
     	
     	public ServerTransaction getServerTransaction(String id)
     	{
-    		for (int i = 0; i < _serverTransactions.size(); i++)
-    		{
-    			ServerTransaction transaction = _serverTransactions.get(i);
-    			if (transaction.getKey().equals(id))
-    				return transaction;
-    		}
-    		return null;
+    		return _serverTransactions.get(id);
     	}
     	
     	public void removeServerTransaction(ServerTransaction transaction)
     	{
     		_serverTransactions.remove(transaction);
+    		_serverTransactionIndex.remove(transaction.getKey(), transaction);
     	}
     	
     	public void addClientTransaction(ClientTransaction transaction)
     	{
     		_clientTransactions.add(transaction);
+    		_clientTransactionIndex.put(transaction.getKey(), transaction);
     	}
     	
     	public ClientTransaction getClientTransaction(String id)
     	{
-    		for (int i = 0; i <  _clientTransactions.size(); i++)
-    		{
-    			ClientTransaction transaction = _clientTransactions.get(i);
-    			if (transaction.getKey().equals(id))
-    				return transaction;
-    		}
-    		return null;
+    		return _clientTransactions.get(id);
     	}
     	
     	public void removeClientTransaction(ClientTransaction transaction)
     	{
     		_clientTransactions.remove(transaction);
+    		_clientTransactionIndex.remove(transaction.getKey(), transaction);
     	}
     	
     	public List<ClientTransaction> getClientTransactions(SipSession session) 
     	{
-			List<ClientTransaction> list = new ArrayList<ClientTransaction>(_clientTransactions.size());
-			for (int i = 0; i < _clientTransactions.size(); i++)
-			{
-				ClientTransaction transaction = _clientTransactions.get(i);
-				if (transaction.getRequest().session().equals(session))
-					list.add(transaction);
-			}
-			return list;
+			return _clientTransactions.get(session);
 		}
 
 		public List<ServerTransaction> getServerTransactions(SipSession session) 
 		{
-			List<ServerTransaction> list = new ArrayList<ServerTransaction>(_serverTransactions.size());
-			for (int i = 0; i < _serverTransactions.size(); i++)
-			{
-				ServerTransaction transaction = _serverTransactions.get(i);
-				if (transaction.getRequest().session().equals(session))
-					list.add(transaction);
-			}
-			return list;			
+			return _serverTransactions.get(session);
 		}
 
 		public boolean hasActiveTransactions(SipSession session) 
 		{
-			for (int i = 0; i < _clientTransactions.size(); i++)
-			{
-				ClientTransaction transaction = _clientTransactions.get(i);
-				if (transaction.getState() < Transaction.STATE_COMPLETED 
-						&& transaction.getRequest().session().equals(session))
-					return true;
-			}
-			for (int i = 0; i < _serverTransactions.size(); i++)
-			{
-				ServerTransaction transaction = _serverTransactions.get(i);
-				if (transaction.getState() < Transaction.STATE_COMPLETED
-						&& transaction.getRequest().session().equals(session))
-					return true;
-			}
-			return false;
+			return _clientTransactions.hasActive(session) || _serverTransactions.hasActive(session);
 		}
 		
 		public AppSession createAppSession(SipAppContext context, String id) 
@@ -665,35 +889,27 @@ public class SessionManager extends AbstractLifeCycle
 			//  - if tx is completed a timer exists
 			//  - else as there is no more timers, no messages are expected to be received and as 
 			//    there is no more sessions, no message could be sent.
-			return (_timers.isEmpty()) && (_appSessions.isEmpty());
-		}
-		
-		protected long nextExecutionTime()
-		{
-			TimerTask timer = _timers.peek();
-			return timer != null ? timer.getExecutionTime() : -1;
+			return (_timers.isEmpty()) && (_appSessions.isEmpty()) && (_tasks.isEmpty());
 		}
 		
-		protected void runTimers()
+		protected void runTimer(CallTimer timer)
 		{
-			long now = System.currentTimeMillis();
-			TimerTask timer = null;
+			removeTimer(timer);
+			if (timer.isCancelled())
+				return;
 			
-			while ((timer = _timers.getExpired(now)) != null)
+			if (_statsStartedAt.get() != -1)
+				_timerLagStats.set(System.currentTimeMillis() - timer.getExecutionTime());
+			
+			if (Log.isDebugEnabled())
+				Log.debug("running timer {} for call session {}", timer, _id);
+			try
 			{
-				if (!timer.isCancelled())
-				{
-					if (Log.isDebugEnabled())
-						Log.debug("running timer {} for call session {}", timer, _id);
-					try
-					{
-						timer.getRunnable().run();
-					}
-					catch(Throwable t)
-					{
-						Log.warn(t);
-					}
-				}
+				timer.getRunnable().run();
+			}
+			catch(Throwable t)
+			{
+				Log.warn(t);
 			}
 		}
 		
@@ -725,8 +941,8 @@ public class SessionManager extends AbstractLifeCycle
         {
         	StringBuffer sb = new StringBuffer();
         	sb.append(_id 
-        		+ "[stxs= " + new ArrayList(_serverTransactions)
-        		+ ", ctxs=" + new ArrayList(_clientTransactions) 
+        		+ "[stxs= " + new ArrayList(_serverTransactions.values())
+        		+ ", ctxs=" + new ArrayList(_clientTransactions.values()) 
         		+ ", timers=" + new ArrayList(_timers) 
         		+ ", sessions=" + new ArrayList(_appSessions) + "]");
         	return sb.toString();
@@ -0,0 +1,148 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server.session;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.sip.SipSession;
+
+import org.cipango.server.transaction.Transaction;
+
+/**
+ * Transactions of a call session indexed by key and by SIP session.
+ * <p>
+ * The session of a transaction may not be known when the transaction is added (a server 
+ * transaction is created before its request is bound to a session), so these transactions 
+ * are indexed by session on the next lookup by session.
+ * <p>
+ * Not thread safe, used with the call session locked.
+ */
+public class TransactionTable<T extends Transaction> 
+{
+	private Map<String, T> _byKey = new HashMap<String, T>(4);
+	private Map<Session, List<T>> _bySession = new HashMap<Session, List<T>>(4);
+	private List<T> _unbound = new ArrayList<T>(1);
+	
+	public void add(T transaction)
+	{
+		_byKey.put(transaction.getKey(), transaction);
+		_unbound.add(transaction);
+	}
+	
+	public T get(String key)
+	{
+		return _byKey.get(key);
+	}
+	
+	public void remove(T transaction)
+	{
+		if (_byKey.get(transaction.getKey()) == transaction)
+			_byKey.remove(transaction.getKey());
+		
+		if (_unbound.remove(transaction))
+			return;
+		
+		Session session = transaction.getRequest().session();
+		List<T> list = session == null ? null : _bySession.get(session);
+		if (list != null && list.remove(transaction))
+		{
+			if (list.isEmpty())
+				_bySession.remove(session);
+			return;
+		}
+		
+		// session has changed since the transaction was indexed
+		for (Iterator<List<T>> it = _bySession.values().iterator(); it.hasNext();)
+		{
+			list = it.next();
+			if (list.remove(transaction))
+			{
+				if (list.isEmpty())
+					it.remove();
+				return;
+			}
+		}
+	}
+	
+	public List<T> get(SipSession sipSession)
+	{
+		List<T> list = getList(sipSession);
+		return list == null ? new ArrayList<T>(0) : new ArrayList<T>(list);
+	}
+	
+	/**
+	 * @return <code>true</code> if a transaction of the session is not in the completed state.
+	 */
+	public boolean hasActive(SipSession sipSession)
+	{
+		List<T> list = getList(sipSession);
+		for (int i = 0; list != null && i < list.size(); i++)
+		{
+			if (list.get(i).getState() < Transaction.STATE_COMPLETED)
+				return true;
+		}
+		return false;
+	}
+	
+	public Collection<T> values()
+	{
+		return _byKey.values();
+	}
+	
+	public int size()
+	{
+		return _byKey.size();
+	}
+	
+	private List<T> getList(SipSession sipSession)
+	{
+		if (!(sipSession instanceof SessionIf))
+			return null;
+		
+		bind();
+		return _bySession.get(((SessionIf) sipSession).getSession());
+	}
+	
+	private void bind()
+	{
+		int unbound = 0;
+		for (int i = 0; i < _unbound.size(); i++)
+		{
+			T transaction = _unbound.get(i);
+			Session session = transaction.getRequest().session();
+			if (session == null)
+			{
+				_unbound.set(unbound++, transaction);
+			}
+			else
+			{
+				List<T> list = _bySession.get(session);
+				if (list == null)
+				{
+					list = new ArrayList<T>(2);
+					_bySession.put(session, list);
+				}
+				list.add(transaction);
+			}
+		}
+		for (int i = _unbound.size(); i-- > unbound;)
+			_unbound.remove(i);
+	}
+}
@@ -16,19 +16,23 @@ package org.cipango.server.transaction;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.util.List;
 
 import javax.servlet.sip.Address;
 import javax.servlet.sip.SipServletResponse;
 import javax.servlet.sip.SipURI;
 import javax.servlet.sip.URI;
 
+import org.cipango.dns.Hop;
+import org.cipango.dns.ResolveListener;
 import org.cipango.server.ID;
 import org.cipango.server.SipConnection;
 import org.cipango.server.SipConnector;
-import org.cipango.server.SipConnectors;
 import org.cipango.server.SipRequest;
 import org.cipango.server.SipResponse;
 import org.cipango.server.log.AccessLog;
+import org.cipango.server.session.CallSession;
+import org.cipango.server.session.SessionManager.CallTask;
 import org.cipango.sip.SipMethods;
 import org.cipango.sip.SipParams;
 import org.cipango.sip.SipVersions;
@@ -73,6 +77,7 @@ public class ClientTransaction extends Transaction
     private SipRequest _pendingCancel;
     
     private boolean _canceled = false;
+    private boolean _resolving = false;
     
 	public ClientTransaction(SipRequest request, ClientTransactionListener listener)
     {
@@ -104,7 +109,7 @@ public class ClientTransaction extends Transaction
 		}
 		try 
         {
-			getServer().getConnectorManager().send(ack, getConnection());
+			sendMessage(ack, getConnection(), false);
 		} 
         catch (IOException e) 
         {
@@ -160,7 +165,7 @@ public class ClientTransaction extends Transaction
 		if (getConnection() != null)
 		{
 			if (getConnection().isOpen())
-				getServer().getConnectorManager().send(_request, getConnection());
+				sendMessage(_request, getConnection(), hasRetransmissionTimer());
 			else
 				Log.debug("Could not sent request {} as the connection {} is closed", _request, getConnection());
 		}
@@ -179,31 +184,93 @@ public class ClientTransaction extends Transaction
 			if (!uri.isSipURI()) 
 				throw new IOException("Cannot route on URI: " + uri);
 			
-			SipURI target = (SipURI) uri;
+			if (_resolving)
+				return;
 			
-			InetAddress address = InetAddress.getByName(target.getHost()); // TODO 3263
-			int transport = SipConnectors.getOrdinal(target.getTransportParam()); // TODO opt
+			List<Hop> hops = getServer().getResolver().resolve((SipURI) uri, new Resolution());
 			
-			if (transport == -1) 
-				transport = SipConnectors.UDP_ORDINAL;
-			
-			int port = target.getPort();
-			if (port == -1) 
-				port = SipConnectors.getDefaultPort(transport);
-		
-
 			Via via = new Via(SipVersions.SIP_2_0, null, null);
 			via.setBranch(getBranch());
 			customizeVia(via);
 			_request.pushVia(via);
 			
-			SipConnection connection = getServer().getConnectorManager().sendRequest(
-					_request,
-					transport,
-					address,
-					port);
-			setConnection(connection);
+			if (hops != null)
+				send(hops);
+			else
+				_resolving = true;
+		}
+	}
+	
+	private void retransmit() throws IOException
+	{
+		if (!resendMessage(_request))
+			doSend();
+	}
+	
+	/**
+	 * Sends the request to the first hop that accepts it (RFC 3263 section 4.3).
+	 */
+	private void send(List<Hop> hops) throws IOException
+	{
+		IOException exception = null;
+		for (Hop hop : hops)
+		{
+			try
+			{
+				SipConnection connection = getServer().getConnectorManager().getRequestConnection(
+						_request,
+						hop.getTransport(),
+						hop.getAddress(),
+						hop.getPort());
+				sendMessage(_request, connection, hasRetransmissionTimer());
+				setConnection(connection);
+				return;
+			}
+			catch (IOException e)
+			{
+				Log.debug("Could not send request to {}: {}", hop, e);
+				exception = e;
+			}
+		}
+		throw exception;
+	}
+	
+	private void startRetransmissionTimer()
+	{
+		if (getConnection() == null || isTransportReliable() || !hasRetransmissionTimer())
+			return;
+		
+		if (isInvite())
+			startTimer(TIMER_A, _aDelay);
+		else
+			startTimer(TIMER_E, _eDelay);
+	}
+	
+	/**
+	 * @return <code>true</code> if the request is retransmitted on timer A or E in the current state
+	 * 	when the transport is unreliable.
+	 */
+	private boolean hasRetransmissionTimer()
+	{
+		if (isInvite())
+			return _state == STATE_CALLING;
+		return !isAck() && _state == STATE_TRYING;
+	}
+	
+	/**
+	 * Reports a transport error as a 503 response (RFC 3261 section 8.1.3.1).
+	 */
+	private void sendFailed(IOException e)
+	{
+		Log.debug("Could not send request {}: {}", _request, e);
+		cancelTimer(TIMER_B); cancelTimer(TIMER_F);
+		if (!isAck())
+		{
+			SipResponse response = createResponse(SipServletResponse.SC_SERVICE_UNAVAILABLE);
+			if (!_cancel)
+				_listener.handleResponse(response);
 		}
+		terminate();
 	}
 	
 	protected void customizeVia(Via via)
@@ -222,24 +289,52 @@ public class ClientTransaction extends Transaction
         if (isInvite()) 
         {
 			setState(STATE_CALLING);
-			doSend();
-			startTimer(TIMER_B, 64L*__T1);
-			if (!isTransportReliable())
-				startTimer(TIMER_A, _aDelay);
+			if (!start(TIMER_B))
+				return;
+			startRetransmissionTimer();
 		} 
         else if (isAck()) 
         {
 			setState(STATE_TRYING);
-			doSend();
+			start(-1);
 		} 
         else 
         {
 			setState(STATE_TRYING);
+			if (!start(TIMER_F))
+				return;
+			startRetransmissionTimer();
+		}
+	}
+	
+	/**
+	 * Sends the request and starts the transaction timeout timer. A request that could not be 
+	 * sent is answered with a 503 in the call session, as when the resolution of its next hop 
+	 * fails asynchronously.
+	 * 
+	 * @return <code>false</code> if the request could not be sent.
+	 */
+	private boolean start(int timer)
+	{
+		try
+		{
 			doSend();
-			startTimer(TIMER_F, 64L*__T1);
-			if (!isTransportReliable()) 
-				startTimer(TIMER_E, _eDelay);
 		}
+		catch (final IOException e)
+		{
+			getServer().getSessionManager().execute(_callSession.getId(), new CallTask()
+			{
+				public void run(CallSession callSession)
+				{
+					if (_state != STATE_TERMINATED)
+						sendFailed(e);
+				}
+			});
+			return false;
+		}
+		if (timer != -1)
+			startTimer(timer, 64L*__T1);
+		return true;
 	}
 	
 	public void handleResponse(SipResponse response) 
@@ -367,6 +462,7 @@ public class ClientTransaction extends Transaction
 	
 	public void terminate() 
     {
+		clearSentMessage();
 		setState(STATE_TERMINATED);
 		getCallSession().removeClientTransaction(this);
     }
@@ -383,7 +479,7 @@ public class ClientTransaction extends Transaction
 		case TIMER_A:
 			try 
             {
-            	doSend();
+            	retransmit();
 			} 
             catch (IOException e) 
             {
@@ -407,7 +503,7 @@ public class ClientTransaction extends Transaction
         case TIMER_E:
             try 
             {
-                doSend();
+                retransmit();
             }
             catch (IOException e)
             {
@@ -438,45 +534,101 @@ public class ClientTransaction extends Transaction
 	}
 
 	public SipResponse create408()
+	{
+		return createResponse(SipServletResponse.SC_REQUEST_TIMEOUT);
+	}
+	
+	private SipResponse createResponse(int status)
 	{
 		// could not use request.createResponse() because the request is committed. 
-		SipResponse responseB = new SipResponse(_request, SipServletResponse.SC_REQUEST_TIMEOUT, null);
-		if (responseB.getTo().getParameter(SipParams.TAG) == null)
-			responseB.setToTag(ID.newTag());
+		SipResponse response = new SipResponse(_request, status, null);
+		if (response.getTo().getParameter(SipParams.TAG) == null)
+			response.setToTag(ID.newTag());
 		
 		AccessLog accessLog = getServer().getConnectorManager().getAccessLog();
 		if (accessLog != null)
-			accessLog.messageReceived(responseB, new TimeoutConnection());
+			accessLog.messageReceived(response, new TimeoutConnection());
 		
-		return responseB;
+		return response;
 	}
 	
+	/**
+	 * Completes an asynchronous resolution in the call session of the transaction.
+	 */
+	class Resolution implements ResolveListener
+	{
+		public void resolved(final List<Hop> hops)
+		{
+			getServer().getSessionManager().execute(_callSession.getId(), new CallTask()
+			{
+				public void run(CallSession callSession)
+				{
+					_resolving = false;
+					if (_state == STATE_TERMINATED)
+						return;
+					try
+					{
+						send(hops);
+						startRetransmissionTimer();
+					}
+					catch (IOException e)
+					{
+						sendFailed(e);
+					}
+				}
+			});
+		}
+		
+		public void failed(final IOException e)
+		{
+			getServer().getSessionManager().execute(_callSession.getId(), new CallTask()
+			{
+				public void run(CallSession callSession)
+				{
+					_resolving = false;
+					if (_state != STATE_TERMINATED)
+						sendFailed(e);
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Connection of locally generated responses. Uses the default connector when the request 
+	 * has not been sent.
+	 */
 	class TimeoutConnection implements SipConnection
 	{
 		
 		public SipConnector getConnector()
 		{
+			if (getConnection() == null)
+				return getServer().getConnectorManager().getDefaultConnector();
 			return getConnection().getConnector();
 		}
 
 		public InetAddress getLocalAddress()
 		{
+			if (getConnection() == null)
+				return getConnector().getAddr();
 			return getConnection().getLocalAddress();
 		}
 
 		public int getLocalPort()
 		{
+			if (getConnection() == null)
+				return getConnector().getLocalPort();
 			return getConnection().getLocalPort();
 		}
 
 		public InetAddress getRemoteAddress()
 		{
-			return getConnection().getLocalAddress();
+			return getLocalAddress();
 		}
 
 		public int getRemotePort()
 		{
-			return getConnection().getLocalPort();
+			return getLocalPort();
 		}
 
 		public void write(Buffer buffer) throws IOException
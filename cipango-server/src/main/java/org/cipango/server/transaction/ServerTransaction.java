@@ -16,6 +16,7 @@ package org.cipango.server.transaction;
 
 import java.io.IOException;
 
+import org.cipango.server.SipConnection;
 import org.cipango.server.SipRequest;
 import org.cipango.server.SipResponse;
 import org.cipango.util.TimerTask;
@@ -109,7 +110,7 @@ public class ServerTransaction extends Transaction
     	{
     		try
     		{
-    			doSend(response);
+    			retransmit(response);
     		}
     		catch (Exception e)
     		{
@@ -190,7 +191,8 @@ public class ServerTransaction extends Transaction
 		
 		try 
         {
-			doSend(response);
+			// 2xx and reliable 1xx are retransmitted by the session through this method
+			retransmit(response);
         }
 		catch (IOException e) 
         {
@@ -200,7 +202,25 @@ public class ServerTransaction extends Transaction
 	
 	private void doSend(SipResponse response) throws IOException 
     {
-		getServer().getConnectorManager().sendResponse(response, getConnection());
+		SipConnection connection = getServer().getConnectorManager().getResponseConnection(response, getConnection());
+		if (connection != null)
+			sendMessage(response, connection, isRetransmitted(response));
+	}
+	
+	private void retransmit(SipResponse response) throws IOException
+	{
+		if (!resendMessage(response))
+			doSend(response);
+	}
+	
+	/**
+	 * @return <code>true</code> if the response may be sent again when the transport is unreliable: 
+	 * 	a final response on timer G or for each absorbed request retransmission until the transaction 
+	 * 	terminates, or a reliable provisional response to an INVITE on the session timers.
+	 */
+	private boolean isRetransmitted(SipResponse response)
+	{
+		return response.getStatus() >= 200 || (isInvite() && response.isReliable1xx());
 	}
 	
 	public void timeout(int id) 
@@ -210,7 +230,7 @@ public class ServerTransaction extends Transaction
 		case TIMER_G:
 			try 
             {
-				doSend(_finalResponse);
+				retransmit(_finalResponse);
 			} 
             catch (IOException e) 
             {
@@ -237,6 +257,7 @@ public class ServerTransaction extends Transaction
 	public void terminate()
     {
 		_provisionalResponse = _finalResponse = null;
+		clearSentMessage();
         setState(STATE_TERMINATED);
         getCallSession().removeServerTransaction(this);
         
@@ -14,8 +14,11 @@
 
 package org.cipango.server.transaction;
 
+import java.io.IOException;
+
 import org.cipango.server.Server;
 import org.cipango.server.SipConnection;
+import org.cipango.server.SipMessage;
 import org.cipango.server.SipRequest;
 import org.cipango.server.session.CallSession;
 import org.cipango.util.TimerTask;
@@ -69,6 +72,10 @@ public abstract class Transaction
     
     private SipConnection _connection;
     
+    private SipMessage _sentMessage;
+    private byte[] _sentBytes;
+    private SipConnection _sentConnection;
+    
     public Transaction(SipRequest request, String branch)
     {
         _request = request;
@@ -175,6 +182,48 @@ public abstract class Transaction
     
     public abstract void timeout(int id);
     
+    /**
+     * Sends the message on the connection. When the message may be retransmitted over an 
+     * unreliable transport, the encoded message and the connection are kept until another message 
+     * is sent or the transaction terminates, so that these retransmissions are sent by 
+     * {@link #resendMessage(SipMessage)} without encoding the message or resolving its destination again.
+     */
+    protected void sendMessage(SipMessage message, SipConnection connection, boolean retransmitted) throws IOException
+    {
+    	if (!retransmitted || connection.getConnector().isReliable())
+    	{
+    		clearSentMessage();
+    		getServer().getConnectorManager().send(message, connection);
+    	}
+    	else
+    	{
+    		_sentBytes = getServer().getConnectorManager().send(message, connection, true);
+    		_sentMessage = message;
+    		_sentConnection = connection;
+    	}
+    }
+    
+    /**
+     * Retransmits the message if it is the last one kept by {@link #sendMessage(SipMessage, SipConnection, boolean)}.
+     * @return <code>false</code> if the message has not been kept and must be sent again.
+     */
+    protected boolean resendMessage(SipMessage message) throws IOException
+    {
+    	if (message == null || message != _sentMessage || !_sentConnection.isOpen())
+    		return false;
+    	
+    	getServer().getConnectorManager().resend(message, _sentBytes, _sentConnection);
+    	getServer().getTransactionManager().cachedRetransmission();
+    	return true;
+    }
+    
+    protected void clearSentMessage()
+    {
+    	_sentMessage = null;
+    	_sentBytes = null;
+    	_sentConnection = null;
+    }
+    
     /**
      * SIP transaction timer
      */
@@ -39,6 +39,7 @@ public class TransactionManager extends HandlerWrapper implements SipHandler
     
     private CounterStatistic _retransStats = new CounterStatistic();
     private CounterStatistic _notFoundStats = new CounterStatistic();
+    private CounterStatistic _cachedRetransStats = new CounterStatistic();
 	
 	public void handle(SipServletMessage message) throws ServletException, IOException 
     {
@@ -207,7 +208,7 @@ public class TransactionManager extends HandlerWrapper implements SipHandler
 		_retransStats.increment();
 	}
 	
-	protected void transactionNotFound()
+	public void transactionNotFound()
 	{
 		if (_statsStartedAt.get() == -1)
 			return;
@@ -219,6 +220,24 @@ public class TransactionManager extends HandlerWrapper implements SipHandler
 		return _retransStats.getCurrent();
 	}
 	
+	/**
+	 * Called when a transaction retransmits a message from its encoded bytes.
+	 */
+	public void cachedRetransmission()
+	{
+		if (_statsStartedAt.get() == -1)
+			return;
+		_cachedRetransStats.increment();
+	}
+	
+	/**
+	 * Returns the number of retransmissions sent without encoding the message again.
+	 */
+	public long getCachedRetransmissions()
+	{
+		return _cachedRetransStats.getCurrent();
+	}
+	
 	public long getNotFoundTransactions()
 	{
 		return _notFoundStats.getCurrent();
@@ -230,6 +249,7 @@ public class TransactionManager extends HandlerWrapper implements SipHandler
 
         _retransStats.reset();
         _notFoundStats.reset();
+        _cachedRetransStats.reset();
     }
 	
 	public void setStatsOn(boolean on)
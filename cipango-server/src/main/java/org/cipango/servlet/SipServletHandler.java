@@ -39,6 +39,8 @@ import org.cipango.server.SipMessage;
 import org.cipango.server.session.Session;
 import org.cipango.sipapp.SipAppContext;
 import org.cipango.sipapp.SipServletMapping;
+import org.cipango.sipapp.rules.CompiledRules;
+import org.cipango.sipapp.rules.MatchingRule;
 
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.handler.ContextHandler;
@@ -59,6 +61,7 @@ public class SipServletHandler extends ServletHandler implements SipHandler
     private SipServletHolder _mainServlet;
 	private SipServletHolder[] _sipServlets;
 	private SipServletMapping[] _sipServletMappings;
+	private CompiledRules _sipServletRules;
 	private Map _sipServletNameMap;
     
     private SipAppContext _context;
@@ -244,14 +247,13 @@ public class SipServletHandler extends ServletHandler implements SipHandler
 		if (_mainServlet != null)
 			return _mainServlet;
 		
-		if (_sipServletMappings != null)
+		SipServletMapping[] mappings = _sipServletMappings;
+		CompiledRules rules = _sipServletRules;
+		if (mappings != null && rules != null)
 		{
-			for (int i = 0; i < _sipServletMappings.length; i++)
-			{
-				SipServletMapping mapping = _sipServletMappings[i];
-				if (mapping.getMatchingRule().matches(request))
-					return (SipServletHolder) _sipServletNameMap.get(mapping.getServletName());
-			}
+			int i = rules.match(request);
+			if (i >= 0)
+				return (SipServletHolder) _sipServletNameMap.get(mappings[i].getServletName());
 		}
 		return null;
 	}
@@ -360,8 +362,24 @@ public class SipServletHandler extends ServletHandler implements SipHandler
             getServer().getContainer().update(this, _sipServletMappings, sipServletMappings, "sipServletMapping", true);
             
         _sipServletMappings = sipServletMappings;
+        _sipServletRules = compile(sipServletMappings);
     }
 	
+	/**
+	 * Compiles the matching rules of the mappings so that finding the servlet of an initial
+	 * request does not evaluate each rule in turn.
+	 */
+	protected CompiledRules compile(SipServletMapping[] mappings)
+	{
+		if (mappings == null)
+			return null;
+		
+		MatchingRule[] rules = new MatchingRule[mappings.length];
+		for (int i = 0; i < mappings.length; i++)
+			rules[i] = mappings[i].getMatchingRule();
+		return new CompiledRules(rules);
+	}
+	
 	public void setMainServletName(String name)
 	{
 		SipServletHolder previous = _mainServlet;
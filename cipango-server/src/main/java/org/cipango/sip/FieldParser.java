@@ -0,0 +1,675 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.sip;
+
+import javax.servlet.sip.Parameterable;
+import javax.servlet.sip.ServletParseException;
+import javax.servlet.sip.URI;
+
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.util.StringUtil;
+
+/**
+ * Parser of URIs, name-addrs, Vias and header parameters working on the bytes of the message.
+ * <p>
+ * Each value is walked forward once, from the buffer view of the header, without intermediate
+ * strings: only the parts kept by the parsed object are converted to strings. Parameter names
+ * are lower-cased, URI parts unescaped and parameter values unquoted only when they contain
+ * upper-case, escaped or quoted characters.
+ */
+public class FieldParser
+{
+	private static final int ESCAPED = 1;
+	private static final int UPPER = 2;
+
+	public static URI parseURI(Buffer buffer) throws ServletParseException
+	{
+		byte[] array = buffer.array();
+		if (array == null)
+			return parseURI(buffer.asArray(), 0, buffer.length());
+		return parseURI(array, buffer.getIndex(), buffer.putIndex());
+	}
+
+	public static NameAddr parseNameAddr(Buffer buffer) throws ServletParseException
+	{
+		NameAddr address = new NameAddr();
+		byte[] array = buffer.array();
+		if (array == null)
+			parseNameAddr(address, buffer.asArray(), 0, buffer.length(), true);
+		else
+			parseNameAddr(address, array, buffer.getIndex(), buffer.putIndex(), true);
+		return address;
+	}
+
+	public static Via parseVia(Buffer buffer) throws ServletParseException
+	{
+		Via via = new Via();
+		byte[] array = buffer.array();
+		if (array == null)
+			parseVia(via, buffer.asArray(), 0, buffer.length());
+		else
+			parseVia(via, array, buffer.getIndex(), buffer.putIndex());
+		return via;
+	}
+
+	public static ParameterableImpl parseParameterable(Buffer buffer) throws ServletParseException
+	{
+		ParameterableImpl parameterable = new ParameterableImpl();
+		byte[] array = buffer.array();
+		if (array == null)
+			parseParameterable(parameterable, buffer.asArray(), 0, buffer.length());
+		else
+			parseParameterable(parameterable, array, buffer.getIndex(), buffer.putIndex());
+		return parameterable;
+	}
+
+	public static URI parseURI(byte[] b, int start, int end) throws ServletParseException
+	{
+		if (startsWith(b, start, end, "sip:") || startsWith(b, start, end, "sips:"))
+		{
+			SipURIImpl uri = new SipURIImpl();
+			parseSipURI(uri, b, start, end);
+			return uri;
+		}
+		else if (startsWith(b, start, end, "tel:") || startsWith(b, start, end, "fax:"))
+			return new TelURLImpl(toString(b, start, end));
+		else
+			return new URIImpl(toString(b, start, end));
+	}
+
+	static void parseSipURI(SipURIImpl uri, byte[] b, int start, int end) throws ServletParseException
+	{
+		int i = indexOf(b, ':', start, end);
+		if (i == -1)
+			throw new ServletParseException("Missing SIP scheme. URI=[" + toString(b, start, end) + "]");
+		if (i - start == 3 && startsWith(b, start, end, "sip"))
+			uri.setSecure(false);
+		else if (i - start == 4 && startsWith(b, start, end, "sips"))
+			uri.setSecure(true);
+		else
+			throw new ServletParseException("Invalid SIP scheme. URI=[" + toString(b, start, end) + "]");
+		i++;
+
+		// '@' is not allowed after the userinfo part
+		int at = -1;
+		int password = -1;
+		for (int j = i; j < end; j++)
+		{
+			int c = b[j] & 0xff;
+			if (c == '@')
+			{
+				at = j;
+				break;
+			}
+			if (c == ':')
+			{
+				if (password == -1)
+					password = j;
+			}
+			else if (!SipGrammar.__user.contains(c) && !SipGrammar.__passwd.contains(c))
+				break;
+		}
+		if (at != -1)
+		{
+			int userEnd = password == -1 ? at : password;
+			int flags = scan(b, i, userEnd, SipGrammar.__user);
+			if (flags == -1)
+				throw new ServletParseException("Invalid user [" + toString(b, i, userEnd)
+						+ "] in URI [" + toString(b, start, end) + "]");
+			uri.setUser(toString(b, i, userEnd, flags & ESCAPED));
+
+			if (password != -1)
+			{
+				flags = scan(b, password + 1, at, SipGrammar.__passwd);
+				if (flags == -1)
+					throw new ServletParseException("Invalid password [" + toString(b, password + 1, at)
+							+ "] in URI [" + toString(b, start, end) + "]");
+				uri.setUserPassword(toString(b, password + 1, at, flags & ESCAPED));
+			}
+			i = at + 1;
+		}
+
+		int hostStart = i;
+		if (i < end && b[i] == '[')
+		{
+			i = indexOf(b, ']', i, end);
+			if (i == -1)
+				throw new ServletParseException("Invalid IPv6 in " + toString(b, start, end));
+		}
+		while (i < end && b[i] != ':' && b[i] != ';' && b[i] != '?')
+			i++;
+		int hostEnd = trimLWS(b, hostStart, i);
+		hostStart = skipLWS(b, hostStart, hostEnd);
+		if (hostStart == hostEnd || scan(b, hostStart, hostEnd, SipGrammar.__host) == -1)
+			throw new ServletParseException("Invalid host [" + toString(b, hostStart, hostEnd)
+					+ "] in URI [" + toString(b, start, end) + "]");
+		uri.setHost(toString(b, hostStart, hostEnd));
+
+		if (i < end && b[i] == ':')
+		{
+			int portStart = i + 1;
+			i = skipLWS(b, portStart, end);
+			int portEnd = indexOf(b, ';', '?', i, end);
+			i = portEnd == -1 ? end : portEnd;
+			int port = parsePort(b, portStart, i);
+			if (port == -1)
+				throw new ServletParseException("Invalid port number [" + toString(b, portStart, i)
+						+ "] in [" + toString(b, start, end) + "]");
+			uri.setPort(port);
+		}
+		else
+			uri.setPort(-1);
+
+		while (i < end && b[i] == ';')
+		{
+			int paramStart = i + 1;
+			int paramEnd = indexOf(b, ';', '?', paramStart, end);
+			i = paramEnd == -1 ? end : paramEnd;
+			if (skipLWS(b, paramStart, i) == i)
+				continue;
+
+			int eq = indexOf(b, '=', paramStart, i);
+			int nameEnd = eq == -1 ? i : eq;
+			int nameStart = skipLWS(b, paramStart, nameEnd);
+			nameEnd = trimLWS(b, nameStart, nameEnd);
+			int nameFlags = scan(b, nameStart, nameEnd, SipGrammar.__param);
+			if (nameFlags == -1)
+				throw new ServletParseException("Invalid parameter name ["
+						+ toString(b, nameStart, nameEnd) + "] in [" + toString(b, start, end) + "]");
+
+			String value = "";
+			if (eq != -1)
+			{
+				int valueStart = skipLWS(b, eq + 1, i);
+				int valueEnd = trimLWS(b, valueStart, i);
+				int valueFlags = scan(b, valueStart, valueEnd, SipGrammar.__param);
+				if (valueFlags == -1)
+					throw new ServletParseException("Invalid parameter value ["
+							+ toString(b, valueStart, valueEnd) + "] in [" + toString(b, start, end) + "]");
+				value = toString(b, valueStart, valueEnd, valueFlags & ESCAPED);
+			}
+			uri.getParameters().put(toString(b, nameStart, nameEnd, nameFlags), value);
+		}
+
+		if (i < end && b[i] == '?')
+		{
+			while (i < end)
+			{
+				int headerStart = i + 1;
+				int headerEnd = indexOf(b, '&', headerStart, end);
+				i = headerEnd == -1 ? end : headerEnd;
+				if (headerStart == i)
+					continue;
+
+				int eq = indexOf(b, '=', headerStart, i);
+				if (eq == -1)
+					throw new ServletParseException("Missing value in header ["
+							+ toString(b, headerStart, i) + "] in uri [" + toString(b, start, end) + "]");
+
+				int nameStart = skipLWS(b, headerStart, eq);
+				int nameEnd = trimLWS(b, nameStart, eq);
+				int nameFlags = scan(b, nameStart, nameEnd, SipGrammar.__header);
+				if (nameFlags == -1)
+					throw new ServletParseException("Invalid header name ["
+							+ toString(b, nameStart, nameEnd) + "] in [" + toString(b, start, end) + "]");
+
+				int valueStart = skipLWS(b, eq + 1, i);
+				int valueEnd = trimLWS(b, valueStart, i);
+				int valueFlags = scan(b, valueStart, valueEnd, SipGrammar.__header);
+				if (valueFlags == -1)
+					throw new ServletParseException("Invalid header value ["
+							+ toString(b, valueStart, valueEnd) + "] in [" + toString(b, start, end) + "]");
+
+				uri.setHeader(toString(b, nameStart, nameEnd, nameFlags & ESCAPED),
+						toString(b, valueStart, valueEnd, valueFlags & ESCAPED));
+			}
+		}
+	}
+
+	/**
+	 * @param parameters <code>false</code> if the parameters following the URI should be ignored.
+	 */
+	static void parseNameAddr(NameAddr address, byte[] b, int start, int end, boolean parameters) throws ServletParseException
+	{
+		start = skipLWS(b, start, end);
+		end = trimLWS(b, start, end);
+
+		if (end - start == 1 && b[start] == '*')
+		{
+			address.setWildcard();
+			return;
+		}
+
+		int uriStart;
+		int uriEnd;
+		if (start < end && b[start] == '"')
+		{
+			int rquote = indexRQuote(b, start + 1, end);
+			if (rquote == -1)
+				throw new ServletParseException("Missing terminating \" in [" + toString(b, start, end) + "]");
+			address.setDisplayName(unquote(b, start, rquote + 1));
+
+			int laquot = indexOf(b, '<', rquote + 1, end);
+			if (laquot == -1)
+				throw new ServletParseException("Missing < in address [" + toString(b, start, end) + "]");
+			int raquot = indexOf(b, '>', laquot + 1, end);
+			if (raquot == -1)
+				throw new ServletParseException("Missing > in address [" + toString(b, start, end) + "]");
+			uriStart = laquot + 1;
+			uriEnd = raquot;
+		}
+		else
+		{
+			int laquot = indexOf(b, '<', start, end);
+			if (laquot != -1)
+			{
+				int displayEnd = trimLWS(b, start, laquot);
+				if (displayEnd > start)
+				{
+					for (int i = start; i < displayEnd; i++)
+					{
+						int c = b[i] & 0xff;
+						if (!SipGrammar.__token.contains(c) && !SipGrammar.__lws.contains(c))
+							throw new ServletParseException("Not token or LWS char in ["
+									+ toString(b, start, displayEnd) + "] in address [" + toString(b, start, end) + "]");
+					}
+					address.setDisplayName(toString(b, start, displayEnd));
+				}
+				int raquot = indexOf(b, '>', laquot + 1, end);
+				if (raquot == -1)
+					throw new ServletParseException("Missing > in address [" + toString(b, start, end) + "]");
+				uriStart = laquot + 1;
+				uriEnd = raquot;
+			}
+			else
+			{
+				uriStart = start;
+				uriEnd = indexOf(b, ';', start, end);
+				if (uriEnd == -1)
+					uriEnd = end;
+			}
+		}
+		address.setURI(parseURI(b, uriStart, uriEnd));
+
+		if (parameters)
+		{
+			int i = indexOf(b, ';', uriEnd, end);
+			if (i != -1)
+				parseParameters(address, b, i + 1, end);
+		}
+	}
+
+	static void parseParameterable(ParameterableImpl parameterable, byte[] b, int start, int end) throws ServletParseException
+	{
+		start = skipLWS(b, start, end);
+		end = trimLWS(b, start, end);
+
+		int i = indexOf(b, ';', start, end);
+		if (i == -1)
+			parameterable.setValue(toString(b, start, end));
+		else
+		{
+			parameterable.setValue(toString(b, start, trimLWS(b, start, i)));
+			parseParameters(parameterable, b, i + 1, end);
+		}
+	}
+
+	/**
+	 * Parses generic header parameters: names are tokens and values are tokens, hosts or
+	 * quoted strings, which may contain semicolons.
+	 */
+	static void parseParameters(Parameterable parameterable, byte[] b, int start, int end) throws ServletParseException
+	{
+		int i = start;
+		while (i < end)
+		{
+			int paramStart = i;
+			int eq = -1;
+			boolean quoted = false;
+			for (; i < end; i++)
+			{
+				int c = b[i];
+				if (quoted)
+				{
+					if (c == '\\')
+						i++;
+					else if (c == '"')
+						quoted = false;
+				}
+				else if (c == '"')
+					quoted = true;
+				else if (c == ';')
+					break;
+				else if (c == '=' && eq == -1)
+					eq = i;
+			}
+			int paramEnd = Math.min(i, end);
+			i++;
+
+			int nameEnd = eq == -1 ? paramEnd : eq;
+			int nameStart = skipLWS(b, paramStart, nameEnd);
+			nameEnd = trimLWS(b, nameStart, nameEnd);
+			if (nameStart == nameEnd && eq == -1)
+				continue;
+			int nameFlags = scan(b, nameStart, nameEnd, SipGrammar.__token);
+			if (nameStart == nameEnd || nameFlags == -1)
+				throw new ServletParseException("Invalid parameter name ["
+						+ toString(b, nameStart, nameEnd) + "] in [" + toString(b, start, end) + "]");
+
+			String value = "";
+			if (eq != -1)
+			{
+				int valueStart = skipLWS(b, eq + 1, paramEnd);
+				int valueEnd = trimLWS(b, valueStart, paramEnd);
+				if (valueEnd - valueStart > 1 && b[valueStart] == '"' && b[valueEnd - 1] == '"')
+					value = unquote(b, valueStart, valueEnd);
+				else
+					value = toString(b, valueStart, valueEnd);
+			}
+			parameterable.setParameter(toString(b, nameStart, nameEnd, nameFlags & UPPER), value);
+		}
+	}
+
+	static void parseVia(Via via, byte[] b, int start, int end) throws ServletParseException
+	{
+		start = skipLWS(b, start, end);
+		end = trimLWS(b, start, end);
+
+		// sent-protocol: name SLASH version SLASH transport, where SLASH may be surrounded by LWS
+		int nameEnd = endOfToken(b, start, end);
+		int versionStart = skipSlash(b, nameEnd, end);
+		int versionEnd = endOfToken(b, versionStart, end);
+		int transportStart = skipSlash(b, versionEnd, end);
+		int transportEnd = endOfToken(b, transportStart, end);
+		if (nameEnd == start || versionEnd == versionStart || transportEnd == transportStart)
+			throw new ServletParseException("Invalid sent protocol in [" + toString(b, start, end) + "]");
+
+		if (versionStart == nameEnd + 1)
+			via.setProtocol(toString(b, start, versionEnd));
+		else
+			via.setProtocol(toString(b, start, nameEnd) + '/' + toString(b, versionStart, versionEnd));
+		via.setTransport(toString(b, transportStart, transportEnd));
+
+		int i = skipLWS(b, transportEnd, end);
+		if (i == transportEnd || i == end)
+			throw new ServletParseException("Missing sent-by in [" + toString(b, start, end) + "]");
+
+		int hostStart = i;
+		if (b[i] == '[')
+		{
+			i = indexOf(b, ']', i, end);
+			if (i == -1)
+				throw new ServletParseException("Invalid IPv6 in " + toString(b, start, end));
+		}
+		while (i < end && b[i] != ':' && b[i] != ';' && !isLWS(b[i]))
+			i++;
+		via.setHost(toString(b, hostStart, i));
+
+		i = skipLWS(b, i, end);
+		if (i < end && b[i] == ':')
+		{
+			int portStart = skipLWS(b, i + 1, end);
+			int portEnd = indexOf(b, ';', portStart, end);
+			i = portEnd == -1 ? end : portEnd;
+			int port = parsePort(b, portStart, i);
+			if (port == -1)
+				throw new ServletParseException("Invalid port [" + toString(b, portStart, i)
+						+ "] in [" + toString(b, start, end) + "]");
+			via.setPort(port);
+		}
+
+		while (i < end && b[i] == ';')
+		{
+			int paramStart = i + 1;
+			int paramEnd = indexOf(b, ';', paramStart, end);
+			i = paramEnd == -1 ? end : paramEnd;
+			if (skipLWS(b, paramStart, i) == i)
+				continue;
+
+			int eq = indexOf(b, '=', paramStart, i);
+			int nameEnd2 = eq == -1 ? i : eq;
+			int nameStart = skipLWS(b, paramStart, nameEnd2);
+			nameEnd2 = trimLWS(b, nameStart, nameEnd2);
+			int nameFlags = scan(b, nameStart, nameEnd2, SipGrammar.__param);
+			if (nameFlags == -1)
+				throw new ServletParseException("Invalid parameter name ["
+						+ toString(b, nameStart, nameEnd2) + "] in [" + toString(b, start, end) + "]");
+
+			String value = "";
+			if (eq != -1)
+			{
+				int valueStart = skipLWS(b, eq + 1, i);
+				int valueEnd = trimLWS(b, valueStart, i);
+				if (scan(b, valueStart, valueEnd, SipGrammar.__param) == -1
+						&& scan(b, valueStart, valueEnd, SipGrammar.__token) == -1)
+					throw new ServletParseException("Invalid parameter value ["
+							+ toString(b, valueStart, valueEnd) + "] in [" + toString(b, start, end) + "]");
+				value = toString(b, valueStart, valueEnd);
+			}
+			via.addParameter(toString(b, nameStart, nameEnd2, nameFlags & UPPER), value);
+		}
+	}
+
+	/**
+	 * Returns <code>-1</code> if a character is not in the charset, otherwise whether the
+	 * characters include escaped or upper-case characters.
+	 */
+	private static int scan(byte[] b, int start, int end, SipCharset charset)
+	{
+		int flags = 0;
+		for (int i = start; i < end; i++)
+		{
+			int c = b[i] & 0xff;
+			if (!charset.contains(c))
+				return -1;
+			if (c == '%')
+				flags |= ESCAPED;
+			else if (c >= 'A' && c <= 'Z')
+				flags |= UPPER;
+		}
+		return flags;
+	}
+
+	private static int parsePort(byte[] b, int start, int end)
+	{
+		end = trimLWS(b, start, end);
+		if (start == end || end - start > 9)
+			return -1;
+		int port = 0;
+		for (int i = start; i < end; i++)
+		{
+			int c = b[i];
+			if (c < '0' || c > '9')
+				return -1;
+			port = port * 10 + c - '0';
+		}
+		return port;
+	}
+
+	private static int indexOf(byte[] b, char c, int start, int end)
+	{
+		for (int i = start; i < end; i++)
+		{
+			if (b[i] == c)
+				return i;
+		}
+		return -1;
+	}
+
+	private static int indexOf(byte[] b, char c1, char c2, int start, int end)
+	{
+		for (int i = start; i < end; i++)
+		{
+			if (b[i] == c1 || b[i] == c2)
+				return i;
+		}
+		return -1;
+	}
+
+	private static int indexRQuote(byte[] b, int start, int end)
+	{
+		for (int i = start; i < end; i++)
+		{
+			if (b[i] == '\\')
+				i++;
+			else if (b[i] == '"')
+				return i;
+		}
+		return -1;
+	}
+
+	private static int endOfToken(byte[] b, int start, int end)
+	{
+		int i = start;
+		while (i < end && SipGrammar.__token.contains(b[i] & 0xff))
+			i++;
+		return i;
+	}
+
+	private static int skipSlash(byte[] b, int start, int end) throws ServletParseException
+	{
+		int i = skipLWS(b, start, end);
+		if (i == end || b[i] != '/')
+			throw new ServletParseException("Invalid sent protocol in [" + toString(b, start, end) + "]");
+		return skipLWS(b, i + 1, end);
+	}
+
+	private static int skipLWS(byte[] b, int start, int end)
+	{
+		while (start < end && isLWS(b[start]))
+			start++;
+		return start;
+	}
+
+	private static int trimLWS(byte[] b, int start, int end)
+	{
+		while (end > start && isLWS(b[end - 1]))
+			end--;
+		return end;
+	}
+
+	private static boolean startsWith(byte[] b, int start, int end, String s)
+	{
+		if (end - start < s.length())
+			return false;
+		for (int i = 0; i < s.length(); i++)
+		{
+			if (b[start + i] != s.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	private static String unquote(byte[] b, int start, int end) throws ServletParseException
+	{
+		if (indexOf(b, '\\', start, end) == -1)
+			return toString(b, start + 1, end - 1);
+		try
+		{
+			return SipGrammar.unquote(toString(b, start, end));
+		}
+		catch (IllegalArgumentException e)
+		{
+			throw new ServletParseException(e.getMessage());
+		}
+	}
+
+	private static boolean isLWS(byte c)
+	{
+		return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+	}
+
+	@SuppressWarnings("deprecation")
+	static String toString(byte[] b, int start, int end)
+	{
+		for (int i = start; i < end; i++)
+		{
+			if (b[i] < 0)
+				return StringUtil.toUTF8String(b, start, end - start);
+		}
+		// ASCII only: the bytes are the chars
+		return new String(b, 0, start, end - start);
+	}
+
+	/**
+	 * Converts the bytes to a string, lower-casing it if {@link #UPPER} is set and unescaping
+	 * it if {@link #ESCAPED} is set. Escaped characters are not lower-cased.
+	 */
+	private static String toString(byte[] b, int start, int end, int flags) throws ServletParseException
+	{
+		if (flags == 0)
+			return toString(b, start, end);
+
+		char[] chars = new char[end - start];
+		int length = 0;
+		for (int i = start; i < end; i++)
+		{
+			int c = b[i];
+			if (c < 0)
+				return convert(toString(b, start, end), flags);
+			if (c == '%' && (flags & ESCAPED) != 0)
+			{
+				int high = i + 2 < end ? Character.digit((char) b[i + 1], 16) : -1;
+				int low = high != -1 ? Character.digit((char) b[i + 2], 16) : -1;
+				if (low == -1)
+					throw new ServletParseException("Invalid escaped char at " + (i - start) 
+							+ " in [" + toString(b, start, end) + "]");
+				c = high << 4 | low;
+				i += 2;
+			}
+			else if ((flags & UPPER) != 0 && c >= 'A' && c <= 'Z')
+				c += 'a' - 'A';
+			chars[length++] = (char) c;
+		}
+		return new String(chars, 0, length);
+	}
+
+	private static String convert(String s, int flags) throws ServletParseException
+	{
+		if ((flags & UPPER) != 0)
+			s = s.toLowerCase();
+		if ((flags & ESCAPED) != 0)
+		{
+			try
+			{
+				s = SipGrammar.unescape(s);
+			}
+			catch (IllegalArgumentException e)
+			{
+				throw new ServletParseException(e.getMessage());
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * Returns the UTF-8 bytes of a string, copying the chars of an ASCII string directly.
+	 */
+	static byte[] getBytes(String s)
+	{
+		int length = s.length();
+		byte[] b = new byte[length];
+		for (int i = 0; i < length; i++)
+		{
+			char c = s.charAt(i);
+			if (c > 0x7f)
+				return StringUtil.getBytes(s, StringUtil.__UTF8);
+			b[i] = (byte) c;
+		}
+		return b;
+	}
+
+	private FieldParser() { }
+}
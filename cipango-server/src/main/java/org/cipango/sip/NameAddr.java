@@ -15,10 +15,8 @@
 package org.cipango.sip;
 
 import java.io.Serializable;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Set;
-import java.util.StringTokenizer;
 import java.util.Map.Entry;
 
 import javax.servlet.sip.Address;
@@ -31,16 +29,21 @@ public class NameAddr implements Address, Serializable
 {
     static final long serialVersionUID = -6854832441383110449L;
     
-	private String _nameAddr;
 	private String _displayName; 
 	private URI _uri;
-	private HashMap<String, String> _params = new HashMap<String, String>();
+	private ParameterMap _params = new ParameterMap();
 	private boolean _wildcard;
 
 	public NameAddr(String address) throws ServletParseException 
 	{
-		_nameAddr = address;
-		parse(_nameAddr, true); 
+		parse(address, true); 
+	}
+	
+	/**
+	 * Used by {@link FieldParser}.
+	 */
+	NameAddr()
+	{
 	}
 	
 	public NameAddr(URI uri) 
@@ -59,119 +62,15 @@ public class NameAddr implements Address, Serializable
 		return HeaderInfo.ADDRESS;
 	}
 	
-	private void parse(String address, boolean parseParam) throws ServletParseException 
+	private void parse(String address, boolean parseParams) throws ServletParseException 
 	{
-		String sURI = null;
-		String sParams = null;
-		address = address.trim();
-		if ("*".equals(address)) 
-		{
-			_wildcard = true;
-			return;
-		}
-		
-		if (address.startsWith("\"")) 
-		{
-			int rQuote = indexRQuote(address, 1);
-			if (rQuote == -1) 
-				throw new ServletParseException("Missing terminating \" in [" + address + "]");
-			
-			String s = address.substring(0, rQuote + 1);
-			_displayName = SipGrammar.unquote(s);
-			int laqIndex = address.indexOf('<', rQuote + 1);
-			if (laqIndex == -1) 
-				throw new ServletParseException("Missing < in address [" + address + "]");
-			
-			int raqIndex = address.indexOf('>');
-			if (raqIndex == -1) 
-				throw new ServletParseException("Missing > in address [" + address + "]");
-			
-			sURI = address.substring(laqIndex + 1, raqIndex);
-			int indexParams = address.indexOf(';', raqIndex + 1);
-			if (indexParams > -1) 
-				sParams = address.substring(indexParams + 1);
-			
-		} 
-		else 
-		{
-			int indexLAQuote = address.indexOf('<');
-			if (indexLAQuote > -1)
-			{
-				if (indexLAQuote > 0) 
-				{
-					String s = address.substring(0, indexLAQuote).trim();
-					if (s.length() > 0) 
-					{
-						if (!SipGrammar.isTokens(s)) 
-							throw new ServletParseException("Not token or LWS char in [" 
-									+ s + "] in address [" + address + "]");
-						_displayName = s;
-					}
-				}
-				int indexRAQuote = address.indexOf('>', indexLAQuote);
-				if (indexRAQuote == -1) 
-					throw new ServletParseException("Missing > in address [" + address + "]");
-				
-				sURI = address.substring(indexLAQuote + 1, indexRAQuote);
-				int indexParams = address.indexOf(';', indexRAQuote + 1);
-				if (indexParams > -1) 
-					sParams = address.substring(indexParams + 1);
-				
-			}
-			else
-			{
-				int indexParams = address.indexOf(';');
-				if (indexParams > -1) 
-				{
-					sURI = address.substring(0, indexParams);
-					sParams = address.substring(indexParams + 1);
-				} 
-				else 
-					sURI = address;
-			}
-		}
-		_uri = URIFactory.parseURI(sURI);
-		if (sParams != null && parseParam) 
-			parseParams(sParams);
+		byte[] b = FieldParser.getBytes(address);
+		FieldParser.parseNameAddr(this, b, 0, b.length, parseParams);
 	}
 	
-	private void parseParams(String sParams) throws ServletParseException 
+	void setWildcard()
 	{
-		StringTokenizer st = new StringTokenizer(sParams, ";");
-		while (st.hasMoreTokens()) 
-		{
-			String param = st.nextToken();
-			String name;
-			String value;
-			int index = param.indexOf('=');
-			
-			if (index < 0) 
-			{
-				name  = param.trim();
-				value = "";
-			} 
-			else 
-			{
-				name  = param.substring(0, index).trim();
-				value = SipGrammar.unquote(param.substring(index + 1).trim());
-			}
-			if (!SipGrammar.isToken(name)) 
-				throw new ServletParseException("Invalid parameter name [" 
-						+ name + "] in [" + _uri + "]");
-			_params.put(name.toLowerCase(), value);
-		}
-	}
-	
-	private int indexRQuote(String s, int start) 
-	{	
-		for (int index = start;; index++) 
-		{
-			if (index >= s.length()) 
-				return -1;
-		
-			if (s.charAt(index) == '"' && s.charAt(index - 1) != '\\') 
-				return index;
-		}
+		_wildcard = true;
 	}
 	
 	public void setDisplayName(String displayName) 
@@ -319,7 +218,7 @@ public class NameAddr implements Address, Serializable
 			throw new RuntimeException("!cloneable " + this);
 		}
 		if (_params != null) 
-			clone._params = (HashMap<String, String>) _params.clone();
+			clone._params = _params.clone();
 		
 		if (_uri != null) 
 			clone._uri = (URI) _uri.clone();
@@ -392,7 +291,6 @@ public class NameAddr implements Address, Serializable
 		{
 			_displayName = null;
 			_wildcard = false;
-			_nameAddr = null;
 			parse(value, false);
 		}
 		catch (ServletParseException e)
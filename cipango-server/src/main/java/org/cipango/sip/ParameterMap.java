@@ -0,0 +1,267 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.sip;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Map of URI or header parameters.
+ * <p>
+ * Parameters are few, so they are kept inline in two arrays and looked up linearly instead of
+ * being hashed. Parameters are iterated in insertion order, which is the order in which they
+ * were parsed.
+ */
+public class ParameterMap extends AbstractMap<String, String> implements Cloneable, Serializable
+{
+	static final long serialVersionUID = 3914085187340224380L;
+
+	private static final String[] EMPTY = new String[0];
+
+	private String[] _names;
+	private String[] _values;
+	private int _size;
+
+	private transient Set<Map.Entry<String, String>> _entrySet;
+
+	/**
+	 * Creates an empty map, which allocates its arrays when the first parameter is added.
+	 */
+	public ParameterMap()
+	{
+		_names = EMPTY;
+		_values = EMPTY;
+	}
+
+	public ParameterMap(int capacity)
+	{
+		_names = new String[capacity];
+		_values = new String[capacity];
+	}
+
+	private int indexOf(Object name)
+	{
+		for (int i = 0; i < _size; i++)
+		{
+			if (_names[i].equals(name))
+				return i;
+		}
+		return -1;
+	}
+
+	@Override
+	public int size()
+	{
+		return _size;
+	}
+
+	@Override
+	public boolean containsKey(Object name)
+	{
+		return indexOf(name) != -1;
+	}
+
+	@Override
+	public String get(Object name)
+	{
+		int i = indexOf(name);
+		return i == -1 ? null : _values[i];
+	}
+
+	@Override
+	public String put(String name, String value)
+	{
+		if (name == null)
+			throw new NullPointerException("Null name");
+
+		int i = indexOf(name);
+		if (i != -1)
+		{
+			String old = _values[i];
+			_values[i] = value;
+			return old;
+		}
+		if (_size == _names.length)
+		{
+			String[] names = new String[_size == 0 ? 4 : _size * 2];
+			String[] values = new String[names.length];
+			System.arraycopy(_names, 0, names, 0, _size);
+			System.arraycopy(_values, 0, values, 0, _size);
+			_names = names;
+			_values = values;
+		}
+		_names[_size] = name;
+		_values[_size] = value;
+		_size++;
+		return null;
+	}
+
+	@Override
+	public String remove(Object name)
+	{
+		int i = indexOf(name);
+		if (i == -1)
+			return null;
+		String old = _values[i];
+		removeAt(i);
+		return old;
+	}
+
+	private void removeAt(int i)
+	{
+		int moved = _size - i - 1;
+		if (moved > 0)
+		{
+			System.arraycopy(_names, i + 1, _names, i, moved);
+			System.arraycopy(_values, i + 1, _values, i, moved);
+		}
+		_size--;
+		_names[_size] = null;
+		_values[_size] = null;
+	}
+
+	@Override
+	public void clear()
+	{
+		for (int i = 0; i < _size; i++)
+		{
+			_names[i] = null;
+			_values[i] = null;
+		}
+		_size = 0;
+	}
+
+	@Override
+	public Set<Map.Entry<String, String>> entrySet()
+	{
+		if (_entrySet == null)
+		{
+			_entrySet = new AbstractSet<Map.Entry<String, String>>()
+			{
+				@Override
+				public Iterator<Map.Entry<String, String>> iterator()
+				{
+					return new EntryIterator();
+				}
+
+				@Override
+				public int size()
+				{
+					return _size;
+				}
+			};
+		}
+		return _entrySet;
+	}
+
+	@Override
+	public ParameterMap clone()
+	{
+		try
+		{
+			ParameterMap clone = (ParameterMap) super.clone();
+			clone._names = _names.clone();
+			clone._values = _values.clone();
+			clone._entrySet = null;
+			return clone;
+		}
+		catch (CloneNotSupportedException e)
+		{
+			throw new RuntimeException("!cloneable " + this);
+		}
+	}
+
+	class EntryIterator implements Iterator<Map.Entry<String, String>>
+	{
+		private int _next;
+		private int _last = -1;
+
+		public boolean hasNext()
+		{
+			return _next < _size;
+		}
+
+		public Map.Entry<String, String> next()
+		{
+			if (_next >= _size)
+				throw new NoSuchElementException();
+			_last = _next++;
+			return new Entry(_last);
+		}
+
+		public void remove()
+		{
+			if (_last == -1)
+				throw new IllegalStateException();
+			removeAt(_last);
+			_next = _last;
+			_last = -1;
+		}
+	}
+
+	class Entry implements Map.Entry<String, String>
+	{
+		private int _index;
+
+		Entry(int index)
+		{
+			_index = index;
+		}
+
+		public String getKey()
+		{
+			return _names[_index];
+		}
+
+		public String getValue()
+		{
+			return _values[_index];
+		}
+
+		public String setValue(String value)
+		{
+			String old = _values[_index];
+			_values[_index] = value;
+			return old;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Map.Entry))
+				return false;
+			Map.Entry<?, ?> other = (Map.Entry<?, ?>) o;
+			return getKey().equals(other.getKey())
+				&& (getValue() == null ? other.getValue() == null : getValue().equals(other.getValue()));
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return getKey().hashCode() ^ (getValue() == null ? 0 : getValue().hashCode());
+		}
+
+		@Override
+		public String toString()
+		{
+			return getKey() + "=" + getValue();
+		}
+	}
+}
@@ -15,10 +15,8 @@
 package org.cipango.sip;
 
 import java.io.Serializable;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Set;
-import java.util.StringTokenizer;
 import java.util.Map.Entry;
 
 import javax.servlet.sip.Parameterable;
@@ -32,50 +30,19 @@ import org.eclipse.jetty.io.ByteArrayBuffer;
 public class ParameterableImpl implements Parameterable, Serializable
 {
 	private String _value;
-	private HashMap<String, String> _parameters = new HashMap<String, String>();
+	private ParameterMap _parameters = new ParameterMap();
 
 	public ParameterableImpl(String s) throws ServletParseException
 	{
-		String parameters = null;
-		
-		int indexParams = s.indexOf(';');
-		if (indexParams > -1) 
-		{
-			_value = s.substring(0, indexParams).trim();
-			parameters = s.substring(indexParams + 1);
-		} 
-		else 
-			_value = s;
-		
-		if (parameters != null)
-			parseParams(parameters);
+		byte[] b = FieldParser.getBytes(s);
+		FieldParser.parseParameterable(this, b, 0, b.length);
 	}
 	
-	private void parseParams(String sParams) throws ServletParseException 
+	/**
+	 * Used by {@link FieldParser}.
+	 */
+	ParameterableImpl()
 	{
-		StringTokenizer st = new StringTokenizer(sParams, ";");
-		while (st.hasMoreTokens()) 
-		{
-			String param = st.nextToken();
-			String name;
-			String value;
-			int index = param.indexOf('=');
-			
-			if (index < 0) 
-			{
-				name  = param.trim();
-				value = "";
-			} 
-			else 
-			{
-				name  = param.substring(0, index).trim();
-				value = SipGrammar.unquote(param.substring(index + 1).trim());
-			}
-			if (!SipGrammar.isToken(name)) 
-				throw new ServletParseException("Invalid parameter name [" 
-						+ name + "] in [" + sParams + "]");
-			_parameters.put(name.toLowerCase(), value);
-		}
 	}
 		
 	public String getParameter(String name)
@@ -395,7 +395,7 @@ public class SipFields implements Cloneable
     		{
     			try
     			{
-    				_value = new NameAddr(getString());
+    				_value = _bvalue != null ? FieldParser.parseNameAddr(_bvalue) : new NameAddr(getString());
     				_bvalue = null;
     			}
     			catch (ServletParseException e)
@@ -412,7 +412,7 @@ public class SipFields implements Cloneable
     		{
     			try
     			{
-    				_value = new ParameterableImpl(getString());
+    				_value = _bvalue != null ? FieldParser.parseParameterable(_bvalue) : new ParameterableImpl(getString());
     				_bvalue = null;
     			}
     			catch (ServletParseException e)
@@ -429,7 +429,7 @@ public class SipFields implements Cloneable
     		{
     			try
     			{
-    				_value = new Via(getString());
+    				_value = _bvalue != null ? FieldParser.parseVia(_bvalue) : new Via(getString());
     				_bvalue = null;
     			}
     			catch (ServletParseException e)
@@ -66,7 +66,9 @@ public class SipGenerator
 		
 		generateHeader(buffer, request.getFields(), false, request.getHeaderForm());
 		
-		if (request.getRawContent() != null) 
+		if (request.getContentBuffer() != null)
+			buffer.put(request.getContentBuffer());
+		else if (request.getRawContent() != null) 
 			buffer.put(request.getRawContent());
 	}
 
@@ -109,7 +111,9 @@ public class SipGenerator
         
         generateHeader(buffer, response.getFields(), true, response.getHeaderForm());
         
-        if (response.getRawContent() != null) 
+        if (response.getContentBuffer() != null)
+        	buffer.put(response.getContentBuffer());
+        else if (response.getRawContent() != null) 
 			buffer.put(response.getRawContent());
     }
 	
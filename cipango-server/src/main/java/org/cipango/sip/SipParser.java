@@ -110,8 +110,18 @@ public class SipParser
 	public int getState() 
 	{
 		return _state;
-	}	
-	
+	}
+
+	public boolean isStart()
+	{
+		return _state == STATE_START;
+	}
+
+	public boolean isComplete()
+	{
+		return _state == STATE_END;
+	}
+
 	public void parse() throws IOException 
 	{
 		if (_state == STATE_END)
@@ -17,7 +17,6 @@ package org.cipango.sip;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.StringTokenizer;
 
 import javax.servlet.sip.ServletParseException;
 import javax.servlet.sip.SipURI;
@@ -39,16 +38,22 @@ public class SipURIImpl extends URIImpl implements SipURI
 	private String _password;
 	private String _host;
 	private String _scheme;
-	private String _uri;
 	private int _port;
 	
-	private HashMap<String, String> _params = new HashMap<String, String>();
-	private HashMap<String, String> _headers = new HashMap<String, String>();
+	private ParameterMap _params = new ParameterMap();
+	private ParameterMap _headers = new ParameterMap();
 	
 	public SipURIImpl(String uri) throws ServletParseException 
 	{
-		_uri = uri;
-		parse();
+		byte[] b = FieldParser.getBytes(uri);
+		FieldParser.parseSipURI(this, b, 0, b.length);
+	}
+	
+	/**
+	 * Used by {@link FieldParser}.
+	 */
+	SipURIImpl()
+	{
 	}
 
 	public SipURIImpl(String user, String host, int port) 
@@ -66,185 +71,6 @@ public class SipURIImpl extends URIImpl implements SipURI
 		return _params;
 	}
 
-	private void parse() throws ServletParseException 
-	{
-		int indexScheme = _uri.indexOf(':');
-		if (indexScheme < 0) 
-			throw new ServletParseException("Missing SIP scheme. URI=[" + _uri + "]");
-		
-		_scheme = _uri.substring(0, indexScheme);
-		if (!_scheme.equals("sip") && !_scheme.equals("sips")) 
-			throw new ServletParseException("Invalid SIP scheme. URI=[" + _uri + "]");
-		
-		int indexUser = _uri.indexOf('@', indexScheme + 1);
-		int indexHost;
-		
-		if (indexUser >= 0) 
-		{
-			int indexPassword = _uri.indexOf(':', indexScheme + 1);
-			String sUser;
-			if (indexPassword >= 0 && indexPassword < indexUser) 
-			{
-				sUser = _uri.substring(indexScheme + 1, indexPassword);
-				String sPassword = _uri.substring(indexPassword + 1, indexUser);
-				if (!SipGrammar.__passwd.containsAll(sPassword)) 
-					throw new ServletParseException("Invalid password [" + sPassword
-							+ "] in URI [" + _uri + "]");
-				
-				_password = SipGrammar.unescape(sPassword);
-			}
-			else 
-			{
-				sUser = _uri.substring(indexScheme + 1, indexUser);
-			}
-			if (!SipGrammar.__user.containsAll(sUser)) 
-				throw new ServletParseException("Invalid user [" + sUser + "] in URI [" + _uri + "]");
-			
-			_user = SipGrammar.unescape(sUser);
-			indexHost = indexUser + 1;
-		} 
-		else 
-		{
-			indexHost = indexScheme + 1;
-		}
-		int indexPort = -1;
-		
-		if (_uri.charAt(indexHost) == '[')
-		{
-			int i = _uri.indexOf(']', indexHost);
-        	if (i < 0)
-        		throw new ServletParseException("Invalid IPv6 in " + _uri);
-        	indexPort = _uri.indexOf(':', i);
-		}
-		else
-		{
-			indexPort = _uri.indexOf(':', indexHost);
-		}
-		int indexParams = _uri.indexOf(';', indexHost);
-		int indexHeaders = _uri.indexOf('?', indexHost);
-		
-		if ((indexPort > indexParams && indexParams > -1)
-				|| (indexPort > indexHeaders && indexHeaders > -1))
-			indexPort = -1;
-		
-		int endHost = indexPort;
-		if (endHost < 0) 
-			endHost = indexParams;
-		
-		if (endHost < 0) 
-			endHost = indexHeaders;
-		
-		String host;
-		if (endHost < 0) 
-			host = _uri.substring(indexHost);
-		else
-			host = _uri.substring(indexHost, endHost);
-		host = host.trim();
-		if (!SipGrammar.__host.containsAll(host)) 
-			throw new ServletParseException("Invalid host [" + host + "] in URI [" + _uri + "]");
-		setHost(host);
-	
-		if (indexPort < 0) 
-		{
-			_port = -1;
-		} 
-		else 
-		{
-			int endPort = indexParams;
-			if (endPort < 0) 
-				endPort = indexHeaders;
-			
-			String sPort; 
-			if (endPort < 0) 
-				sPort = _uri.substring(indexPort + 1);
-			else
-				sPort = _uri.substring(indexPort + 1, endPort);
-			try 
-			{
-				_port = Integer.parseInt(sPort);
-			} 
-			catch (NumberFormatException _) 
-			{
-				throw new ServletParseException("Invalid port number [" + sPort + "] in [" + _uri + "]");
-			}
-		}
-		if (indexParams >= 0) 
-		{
-			String params;
-			if (indexHeaders < 0) 
-				params = _uri.substring(indexParams + 1);
-			else
-				params = _uri.substring(indexParams + 1, indexHeaders);
-			parseParams(params);
-		}
-		if (indexHeaders >= 0) 
-		{
-			String headers = _uri.substring(indexHeaders + 1);
-			parseHeaders(headers);
-		}
-	}
-	
-	private void parseParams(String sParams) throws ServletParseException 
-	{
-		StringTokenizer st = new StringTokenizer(sParams, ";");
-		while (st.hasMoreTokens()) 
-		{
-			String param = st.nextToken();
-			String name;
-			String value;
-			int index = param.indexOf('=');
-			
-			if (index < 0) 
-			{
-				name  = param.trim();
-				value = "";
-			} 
-			else 
-			{
-				name  = param.substring(0, index).trim();
-				value = param.substring(index + 1).trim();
-			}
-			if (!SipGrammar.__param.containsAll(name)) 
-				throw new ServletParseException("Invalid parameter name [" 
-						+ name + "] in [" + _uri + "]");
-			
-			if (!SipGrammar.__param.containsAll(value)) 
-				throw new ServletParseException("Invalid parameter value [" 
-						+ value + "] in [" + _uri + "]");
-			
-			_params.put(SipGrammar.unescape(name.toLowerCase()), SipGrammar.unescape(value));
-		}
-	}
-	
-	private void parseHeaders(String sHeaders) throws ServletParseException 
-	{
-		StringTokenizer st = new StringTokenizer(sHeaders, "&");
-		while (st.hasMoreTokens()) 
-		{
-			String header = st.nextToken();
-			String name;
-			String value;
-			int index = header.indexOf('=');
-			
-			if (index < 0) 
-				throw new ServletParseException("Missing value in header [" 
-						+ header + "] in uri [" + _uri + "]");
-			
-			name  = header.substring(0, index).trim();
-			value = header.substring(index + 1).trim();
-			
-			if (!SipGrammar.__header.containsAll(name)) 
-				throw new ServletParseException("Invalid header name [" 
-						+ name + "] in [" + _uri + "]");
-			
-			if (!SipGrammar.__header.containsAll(value)) 
-				throw new ServletParseException("Invalid header value [" 
-						+ value + "] in [" + _uri + "]");
-		
-			_headers.put(SipGrammar.unescape(name), SipGrammar.unescape(value));
-		}
-	}
-	
 	public boolean isSipURI() 
 	{
 		return true;
@@ -295,7 +121,7 @@ public class SipURIImpl extends URIImpl implements SipURI
 	
 	public void setHost(String host) 
 	{
-		if (host.contains(":") && !host.contains("["))
+		if (host.indexOf(':') != -1 && host.indexOf('[') == -1)
     		_host = "[" + host + "]";
     	else
             _host = host;
@@ -430,7 +256,7 @@ public class SipURIImpl extends URIImpl implements SipURI
 	
 	public void clearHeaders() 
 	{
-		_headers = new HashMap<String, String>();
+		_headers = new ParameterMap();
 	}
 	
 	public String toString() 
@@ -492,14 +318,13 @@ public class SipURIImpl extends URIImpl implements SipURI
 		return sb.toString();
 	}	
 	
-	@SuppressWarnings("unchecked")
 	public SipURIImpl clone() 
 	{
 		SipURIImpl other;
 		other = (SipURIImpl) super.clone();
 		
-		other._params = (HashMap<String, String>) _params.clone();
-		other._headers = (HashMap<String, String>) _headers.clone();
+		other._params = _params.clone();
+		other._headers = _headers.clone();
 		return other;
 	}
 	
@@ -17,6 +17,7 @@ package org.cipango.sip;
 import javax.servlet.sip.ServletParseException;
 import javax.servlet.sip.URI;
 
+import org.eclipse.jetty.io.Buffer;
 
 public abstract class URIFactory
 {
@@ -30,5 +31,10 @@ public abstract class URIFactory
 			return new URIImpl(uri);
 	}
 	
+	public static URI parseURI(Buffer uri) throws ServletParseException 
+	{
+		return FieldParser.parseURI(uri);
+	}
+	
 	private URIFactory() { }
 }
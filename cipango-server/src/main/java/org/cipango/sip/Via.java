@@ -35,18 +35,24 @@ public class Via implements Serializable, Cloneable
     private static final String RECEIVED_PARAM 	= "received";
     private static final String RPORT_PARAM 	= "rport";
     
-    private String _via;
     private String _protocol;
     private String _transport;
     private String _host;
     private int _port = -1;
     
-    private HashMap _params = new HashMap();
+    private ParameterMap _params = new ParameterMap();
     
     public Via(String via) throws ServletParseException 
     {
-    	_via = via;
-    	parse();
+    	byte[] b = FieldParser.getBytes(via);
+    	FieldParser.parseVia(this, b, 0, b.length);
+    }
+    
+    /**
+     * Used by {@link FieldParser}.
+     */
+    Via()
+    {
     }
     
     public int getType()
@@ -54,98 +60,6 @@ public class Via implements Serializable, Cloneable
     	return HeaderInfo.VIA;
     }
 
-    private void parse() throws ServletParseException 
-    {	
-        int indexSp = _via.indexOf(' ');
-        String s = _via.substring(0, indexSp);
-        
-        int indexTransport = s.lastIndexOf('/');
-        _protocol = s.substring(0, indexTransport);
-        _transport = s.substring(indexTransport + 1);
-        
-        while (SipGrammar.isLWS(_via.charAt(indexSp))) 
-        { 
-        	indexSp++;
-        }
-
-        int indexPort = -1;
-        if (_via.charAt(indexSp) == '[')
-        {
-        	int i = _via.indexOf(']', indexSp);
-        	if (i < 0)
-        		throw new ServletParseException("Invalid IPv6 in " + _via);
-        	indexPort = _via.indexOf(':', i);
-        }
-        else 
-        {
-        	 indexPort = _via.indexOf(':', indexSp);
-        }
-        
-        int indexParams = _via.indexOf(';', indexSp);
-        if (indexPort > -1 && (indexPort < indexParams || indexParams < 0)) 
-        {
-            _host = _via.substring(indexSp, indexPort);
-            String sPort;
-            if (indexParams < 0)
-                sPort = _via.substring(indexPort + 1);
-            else 
-                sPort = _via.substring(indexPort + 1, indexParams).trim();
-            try 
-            {
-            	_port = Integer.parseInt(sPort);
-            } 
-            catch (NumberFormatException _) 
-            {
-            	throw new ServletParseException("Invalid port [" + sPort + "] in [" + _via + "]");
-            }
-        } 
-        else 
-        {
-            _port = -1;
-            if (indexParams < 0) 
-                _host = _via.substring(indexSp);
-            else
-                _host = _via.substring(indexSp, indexParams).trim();
-        }
-
-        if (indexParams > 0) 
-            parseParams(_via.substring(indexParams + 1));
-    }
-    
-	private void parseParams(String sParams) throws ServletParseException 
-	{
-		StringTokenizer st = new StringTokenizer(sParams, ";");
-		while (st.hasMoreTokens()) 
-		{
-			String param = st.nextToken();
-			String name;
-			String value;
-			int index = param.indexOf('=');
-			
-			if (index < 0) 
-			{
-				name  = param.trim();
-				value = "";
-			} 
-			else 
-			{
-				name  = param.substring(0, index).trim();
-				value = param.substring(index + 1).trim();
-			}
-			if (!SipGrammar.__param.containsAll(name)) 
-			{
-				throw new ServletParseException("Invalid parameter name [" 
-						+ name + "] in [" + _via + "]");
-			}
-			if (!SipGrammar.__param.containsAll(value) && !SipGrammar.isToken(value)) 
-			{
-				throw new ServletParseException("Invalid parameter value [" 
-						+ value + "] in [" + _via + "]");
-			}			
-			_params.put(name.toLowerCase(), value);
-		}
-	}
-	
     public Via(String protocol, String transport, String host) 
     {
         this(protocol, transport, host, -1);
@@ -164,6 +78,11 @@ public class Via implements Serializable, Cloneable
         return _protocol;
     }
 
+    void setProtocol(String protocol)
+    {
+    	_protocol = protocol;
+    }
+    
     public String getTransport() 
     {
         return _transport;
@@ -250,7 +169,7 @@ public class Via implements Serializable, Cloneable
         {
             Via clone = (Via) super.clone();
             if (_params != null)
-                clone._params = (HashMap) _params.clone();
+                clone._params = _params.clone();
             
             return clone;
         } 
@@ -0,0 +1,642 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.sipapp.rules;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.sip.SipServletRequest;
+
+import org.cipango.sip.SipMethods;
+import org.cipango.sipapp.rules.request.Extractor;
+import org.eclipse.jetty.io.BufferCache.CachedBuffer;
+
+/**
+ * Ordered list of matching rules compiled into a decision structure.
+ * <p>
+ * The variables used by the rules share their extractors, e.g. <code>request.from.uri.user</code>
+ * and <code>request.from.uri.host</code> share <code>request.from.uri</code>, and each
+ * extractor is applied at most once per request.
+ * <p>
+ * A rule that can only match if <code>request.method</code> or another variable equals some
+ * values is indexed by these values: the method selects the candidate rules by its ordinal,
+ * other variables by a hash lookup on the request value. Candidate rules and rules that are
+ * not indexed are then evaluated in their original order, so that {@link #match(SipServletRequest)}
+ * returns the first rule matching the request, as if each rule was evaluated in turn.
+ */
+public class CompiledRules
+{
+	private static final String METHOD = "request.method";
+	private static final Object UNSET = new Object();
+
+	private MatchingRule[] _rules;
+	private Node[] _nodes;
+	private int _paths;
+
+	private int[] _unindexed;
+	private int[][] _byMethod;
+	private Map<String, int[]> _byExtensionMethod;
+	private Index[] _indexes;
+
+	public CompiledRules(MatchingRule[] rules)
+	{
+		_rules = rules;
+
+		Map<String, Path> paths = new HashMap<String, Path>();
+		_nodes = new Node[rules.length];
+		for (int i = 0; i < rules.length; i++)
+			_nodes[i] = compile(rules[i], paths);
+		_paths = paths.size();
+
+		List<Integer> unindexed = new ArrayList<Integer>();
+		Map<Path, Map<String, List<Integer>>> indexes = new LinkedHashMap<Path, Map<String, List<Integer>>>();
+
+		for (int i = 0; i < _nodes.length; i++)
+		{
+			Path path = null;
+			Set<String> keys = null;
+
+			for (Path candidate : getIndexPaths(_nodes[i]))
+			{
+				keys = getKeys(_nodes[i], candidate);
+				if (keys != null)
+				{
+					path = candidate;
+					break;
+				}
+			}
+			if (path == null)
+			{
+				unindexed.add(i);
+			}
+			else
+			{
+				Map<String, List<Integer>> index = indexes.get(path);
+				if (index == null)
+				{
+					index = new HashMap<String, List<Integer>>();
+					indexes.put(path, index);
+				}
+				for (String key : keys)
+				{
+					List<Integer> l = index.get(key);
+					if (l == null)
+					{
+						l = new ArrayList<Integer>();
+						index.put(key, l);
+					}
+					l.add(i);
+				}
+			}
+		}
+
+		_unindexed = toArray(unindexed);
+
+		List<Index> l = new ArrayList<Index>();
+		for (Map.Entry<Path, Map<String, List<Integer>>> entry : indexes.entrySet())
+		{
+			Map<String, int[]> index = new HashMap<String, int[]>();
+			for (Map.Entry<String, List<Integer>> e : entry.getValue().entrySet())
+				index.put(e.getKey(), toArray(e.getValue()));
+
+			if (METHOD.equals(entry.getKey()._var))
+			{
+				_byMethod = new int[SipMethods.UPDATE_ORDINAL + 1][];
+				_byExtensionMethod = new HashMap<String, int[]>();
+				for (Map.Entry<String, int[]> e : index.entrySet())
+				{
+					int ordinal = getMethodOrdinal(e.getKey());
+					if (ordinal != -1)
+						_byMethod[ordinal] = e.getValue();
+					else
+						_byExtensionMethod.put(e.getKey(), e.getValue());
+				}
+			}
+			else
+			{
+				l.add(new Index(entry.getKey(), index));
+			}
+		}
+		_indexes = l.toArray(new Index[l.size()]);
+	}
+
+	/**
+	 * Returns the index of the first rule matching the request or <code>-1</code> if none.
+	 */
+	public int match(SipServletRequest request)
+	{
+		Evaluation evaluation = new Evaluation(request);
+
+		int[][] candidates = new int[_indexes.length + 2][];
+		int n = 0;
+		if (_unindexed.length > 0)
+			candidates[n++] = _unindexed;
+
+		if (_byMethod != null)
+		{
+			int[] c = getByMethod(request.getMethod());
+			if (c != null)
+				candidates[n++] = c;
+		}
+
+		for (int i = 0; i < _indexes.length; i++)
+		{
+			String value = evaluation.getString(_indexes[i]._path);
+			if (value != null)
+			{
+				int[] c = _indexes[i]._rules.get(fold(value));
+				if (c != null)
+					candidates[n++] = c;
+			}
+		}
+
+		if (n == 1)
+		{
+			int[] c = candidates[0];
+			for (int i = 0; i < c.length; i++)
+			{
+				if (_nodes[c[i]].matches(evaluation))
+					return c[i];
+			}
+			return -1;
+		}
+
+		// each rule is in a single candidate list: merge them by rule index
+		int[] positions = new int[n];
+		while (true)
+		{
+			int next = -1;
+			int list = -1;
+			for (int i = 0; i < n; i++)
+			{
+				if (positions[i] < candidates[i].length && (next == -1 || candidates[i][positions[i]] < next))
+				{
+					next = candidates[i][positions[i]];
+					list = i;
+				}
+			}
+			if (next == -1)
+				return -1;
+
+			positions[list]++;
+			if (_nodes[next].matches(evaluation))
+				return next;
+		}
+	}
+
+	public MatchingRule[] getRules()
+	{
+		return _rules;
+	}
+
+	private int[] getByMethod(String method)
+	{
+		if (method == null)
+			return null;
+		int ordinal = getMethodOrdinal(method);
+		if (ordinal != -1)
+			return _byMethod[ordinal];
+		return _byExtensionMethod.get(fold(method));
+	}
+	
+	/**
+	 * Returns the ordinal of a standard method, ignoring case, or <code>-1</code> if the method
+	 * is an extension method.
+	 */
+	private static int getMethodOrdinal(String method)
+	{
+		CachedBuffer buffer = SipMethods.CACHE.get(method);
+		if (buffer == null)
+			buffer = SipMethods.CACHE.get(method.toUpperCase(Locale.ENGLISH));
+		if (buffer != null && buffer.getOrdinal() <= SipMethods.UPDATE_ORDINAL && method.equalsIgnoreCase(buffer.toString()))
+			return buffer.getOrdinal();
+		return -1;
+	}
+
+	private Node compile(MatchingRule rule, Map<String, Path> paths)
+	{
+		if (rule instanceof AndRule)
+		{
+			List<MatchingRule> criteria = ((AndRule) rule).getCriteria();
+			Node[] nodes = new Node[criteria.size()];
+			for (int i = 0; i < nodes.length; i++)
+				nodes[i] = compile(criteria.get(i), paths);
+			return new AndNode(nodes);
+		}
+		else if (rule instanceof OrRule)
+		{
+			List<MatchingRule> criteria = ((OrRule) rule).getCriteria();
+			Node[] nodes = new Node[criteria.size()];
+			for (int i = 0; i < nodes.length; i++)
+				nodes[i] = compile(criteria.get(i), paths);
+			return new OrNode(nodes);
+		}
+		else if (rule instanceof NotRule)
+		{
+			return new NotNode(compile(((NotRule) rule).getCriterion(), paths));
+		}
+		else if (rule instanceof EqualsRule)
+		{
+			EqualsRule equals = (EqualsRule) rule;
+			return new EqualsNode(getPath(equals, paths), equals.getValue(), equals.isIgnoreCase());
+		}
+		else if (rule instanceof ContainsRule)
+		{
+			ContainsRule contains = (ContainsRule) rule;
+			return new ContainsNode(getPath(contains, paths), contains.getValue(), contains.isIgnoreCase());
+		}
+		else if (rule instanceof SubdomainRule)
+		{
+			SubdomainRule subdomain = (SubdomainRule) rule;
+			return new SubdomainNode(getPath(subdomain, paths), subdomain.getValue());
+		}
+		else if (rule instanceof ExistsRule)
+		{
+			return new ExistsNode(getPath((ExistsRule) rule, paths));
+		}
+		return new RuleNode(rule);
+	}
+
+	private Path getPath(RequestRule rule, Map<String, Path> paths)
+	{
+		Path path = null;
+		List<Extractor> extractors = rule.getExtractors();
+		for (int i = 0; i < extractors.size(); i++)
+		{
+			String var = rule.getPath(i);
+			Path p = paths.get(var);
+			if (p == null)
+			{
+				p = new Path(var, paths.size(), path, extractors.get(i));
+				paths.put(var, p);
+			}
+			path = p;
+		}
+		return path;
+	}
+
+	/**
+	 * Returns the variables compared for equality in the rule, <code>request.method</code> first.
+	 */
+	private Set<Path> getIndexPaths(Node node)
+	{
+		Set<Path> paths = new LinkedHashSet<Path>();
+		addIndexPaths(node, paths);
+
+		for (Path path : paths)
+		{
+			if (METHOD.equals(path._var))
+			{
+				Set<Path> ordered = new LinkedHashSet<Path>();
+				ordered.add(path);
+				ordered.addAll(paths);
+				return ordered;
+			}
+		}
+		return paths;
+	}
+
+	private void addIndexPaths(Node node, Set<Path> paths)
+	{
+		if (node instanceof EqualsNode)
+			paths.add(((EqualsNode) node)._path);
+		else if (node instanceof AndNode)
+		{
+			for (Node n : ((AndNode) node)._nodes)
+				addIndexPaths(n, paths);
+		}
+		else if (node instanceof OrNode)
+		{
+			for (Node n : ((OrNode) node)._nodes)
+				addIndexPaths(n, paths);
+		}
+	}
+
+	/**
+	 * Returns the case-folded values the variable must be equal to for the rule to match or
+	 * <code>null</code> if the rule can match other values.
+	 */
+	private Set<String> getKeys(Node node, Path path)
+	{
+		if (node instanceof EqualsNode)
+		{
+			EqualsNode equals = (EqualsNode) node;
+			if (equals._path != path)
+				return null;
+			Set<String> keys = new LinkedHashSet<String>();
+			keys.add(fold(equals._value));
+			return keys;
+		}
+		else if (node instanceof AndNode)
+		{
+			for (Node n : ((AndNode) node)._nodes)
+			{
+				Set<String> keys = getKeys(n, path);
+				if (keys != null)
+					return keys;
+			}
+		}
+		else if (node instanceof OrNode)
+		{
+			Set<String> keys = new LinkedHashSet<String>();
+			for (Node n : ((OrNode) node)._nodes)
+			{
+				Set<String> k = getKeys(n, path);
+				if (k == null)
+					return null;
+				keys.addAll(k);
+			}
+			return keys.isEmpty() ? null : keys;
+		}
+		return null;
+	}
+
+	/**
+	 * Folds the case of the string so that two strings are equal once folded if they are equal
+	 * ignoring case.
+	 * 
+	 * @see String#equalsIgnoreCase(String)
+	 */
+	private static String fold(String s)
+	{
+		char[] chars = null;
+		for (int i = 0; i < s.length(); i++)
+		{
+			char c = s.charAt(i);
+			char folded = Character.toLowerCase(Character.toUpperCase(c));
+			if (folded != c)
+			{
+				if (chars == null)
+					chars = s.toCharArray();
+				chars[i] = folded;
+			}
+		}
+		return chars == null ? s : new String(chars);
+	}
+
+	private static int[] toArray(List<Integer> l)
+	{
+		int[] array = new int[l.size()];
+		for (int i = 0; i < array.length; i++)
+			array[i] = l.get(i);
+		return array;
+	}
+
+	/**
+	 * Variable values of a request, extracted on first use.
+	 */
+	class Evaluation
+	{
+		private SipServletRequest _request;
+		private Object[] _values;
+		private String[] _strings;
+
+		Evaluation(SipServletRequest request)
+		{
+			_request = request;
+			_values = new Object[_paths];
+			_strings = new String[_paths];
+			Arrays.fill(_values, UNSET);
+		}
+
+		Object getValue(Path path)
+		{
+			Object value = _values[path._slot];
+			if (value == UNSET)
+			{
+				Object input = path._parent == null ? _request : getValue(path._parent);
+				value = input == null ? null : path._extractor.extract(input);
+				_values[path._slot] = value;
+			}
+			return value;
+		}
+
+		String getString(Path path)
+		{
+			String s = _strings[path._slot];
+			if (s == null)
+			{
+				Object value = getValue(path);
+				if (value != null)
+				{
+					s = value.toString();
+					_strings[path._slot] = s;
+				}
+			}
+			return s;
+		}
+	}
+
+	static class Path
+	{
+		private String _var;
+		private int _slot;
+		private Path _parent;
+		private Extractor _extractor;
+
+		Path(String var, int slot, Path parent, Extractor extractor)
+		{
+			_var = var;
+			_slot = slot;
+			_parent = parent;
+			_extractor = extractor;
+		}
+	}
+
+	static class Index
+	{
+		private Path _path;
+		private Map<String, int[]> _rules;
+
+		Index(Path path, Map<String, int[]> rules)
+		{
+			_path = path;
+			_rules = rules;
+		}
+	}
+
+	static abstract class Node
+	{
+		abstract boolean matches(Evaluation evaluation);
+	}
+
+	static class AndNode extends Node
+	{
+		private Node[] _nodes;
+
+		AndNode(Node[] nodes)
+		{
+			_nodes = nodes;
+		}
+
+		boolean matches(Evaluation evaluation)
+		{
+			for (int i = 0; i < _nodes.length; i++)
+			{
+				if (!_nodes[i].matches(evaluation))
+					return false;
+			}
+			return true;
+		}
+	}
+
+	static class OrNode extends Node
+	{
+		private Node[] _nodes;
+
+		OrNode(Node[] nodes)
+		{
+			_nodes = nodes;
+		}
+
+		boolean matches(Evaluation evaluation)
+		{
+			for (int i = 0; i < _nodes.length; i++)
+			{
+				if (_nodes[i].matches(evaluation))
+					return true;
+			}
+			return false;
+		}
+	}
+
+	static class NotNode extends Node
+	{
+		private Node _node;
+
+		NotNode(Node node)
+		{
+			_node = node;
+		}
+
+		boolean matches(Evaluation evaluation)
+		{
+			return !_node.matches(evaluation);
+		}
+	}
+
+	static class EqualsNode extends Node
+	{
+		private Path _path;
+		private String _value;
+		private boolean _ignoreCase;
+
+		EqualsNode(Path path, String value, boolean ignoreCase)
+		{
+			_path = path;
+			_value = value;
+			_ignoreCase = ignoreCase;
+		}
+
+		boolean matches(Evaluation evaluation)
+		{
+			if (_ignoreCase)
+				return _value.equalsIgnoreCase(evaluation.getString(_path));
+			return _value.equals(evaluation.getString(_path));
+		}
+	}
+
+	static class ContainsNode extends Node
+	{
+		private Path _path;
+		private String _value;
+		private boolean _ignoreCase;
+
+		ContainsNode(Path path, String value, boolean ignoreCase)
+		{
+			_path = path;
+			_value = value;
+			_ignoreCase = ignoreCase;
+		}
+
+		boolean matches(Evaluation evaluation)
+		{
+			String s = evaluation.getString(_path);
+			if (s == null)
+				return false;
+			if (!_ignoreCase)
+				return s.indexOf(_value) != -1;
+
+			for (int i = 0; i <= s.length() - _value.length(); i++)
+			{
+				if (s.regionMatches(true, i, _value, 0, _value.length()))
+					return true;
+			}
+			return false;
+		}
+	}
+
+	static class SubdomainNode extends Node
+	{
+		private Path _path;
+		private String _value;
+
+		SubdomainNode(Path path, String value)
+		{
+			_path = path;
+			_value = value;
+		}
+
+		boolean matches(Evaluation evaluation)
+		{
+			String s = evaluation.getString(_path);
+			if (s == null || !s.endsWith(_value))
+				return false;
+			int len1 = s.length();
+			int len2 = _value.length();
+			return len1 == len2 || s.charAt(len1 - len2 - 1) == '.';
+		}
+	}
+
+	static class ExistsNode extends Node
+	{
+		private Path _path;
+
+		ExistsNode(Path path)
+		{
+			_path = path;
+		}
+
+		boolean matches(Evaluation evaluation)
+		{
+			return evaluation.getValue(_path) != null;
+		}
+	}
+
+	/**
+	 * Rule that is not known by the compiler, evaluated on the request.
+	 */
+	static class RuleNode extends Node
+	{
+		private MatchingRule _rule;
+
+		RuleNode(MatchingRule rule)
+		{
+			_rule = rule;
+		}
+
+		boolean matches(Evaluation evaluation)
+		{
+			return _rule.matches(evaluation._request);
+		}
+	}
+}
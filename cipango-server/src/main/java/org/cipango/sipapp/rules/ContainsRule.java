@@ -26,10 +26,23 @@ public class ContainsRule extends RequestRule implements MatchingRule
         super(var);
         _value = value;
         if (ignoreCase) 
-        	value = value.toLowerCase();
+        	_value = value.toLowerCase();
         _ignoreCase = ignoreCase;
     }
     
+    /**
+     * Returns the value to look for, lower-cased if the case is ignored.
+     */
+    String getValue()
+    {
+    	return _value;
+    }
+    
+    boolean isIgnoreCase()
+    {
+    	return _ignoreCase;
+    }
+    
     public boolean matches(SipServletRequest request) 
     {
     	String requestValue = getValue(request);
@@ -28,6 +28,16 @@ public class EqualsRule extends RequestRule implements MatchingRule
 		_ignoreCase = ignoreCase;
 	}
 
+	String getValue()
+	{
+		return _value;
+	}
+	
+	boolean isIgnoreCase()
+	{
+		return _ignoreCase;
+	}
+
 	public boolean matches(SipServletRequest request)
 	{
 		if (!_ignoreCase)
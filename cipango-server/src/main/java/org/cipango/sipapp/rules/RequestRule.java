@@ -27,16 +27,19 @@ public abstract class RequestRule implements MatchingRule
 {
     private String _varName;
     private List<Extractor> _extractors;
+    private List<String> _paths;
     
     protected RequestRule(String varName) 
     {
     	_varName = varName;
     	_extractors = new ArrayList<Extractor>();
+    	_paths = new ArrayList<String>();
     	StringTokenizer st = new StringTokenizer(varName, ".");
 		String lastToken = st.nextToken();
 		if (!lastToken.equals("request"))
 			throw new IllegalArgumentException("Expression does not start with request: " + varName);
 		
+		String path = lastToken;
 		while (st.hasMoreTokens()) 
         {
 			String token = st.nextToken();
@@ -69,12 +72,15 @@ public abstract class RequestRule implements MatchingRule
 				
 				String param = st.nextToken();
 				_extractors.add(new Param(lastToken, param));
+				token = token + "." + param;
 				if (st.hasMoreTokens()) 
 					throw new IllegalArgumentException("Invalid var: " + st.nextToken() + " in " + varName);
 				
 			}
             else 
                 throw new IllegalArgumentException("Invalid property: " + token + " in " + varName);
+			path = path + "." + token;
+			_paths.add(path);
 			lastToken = token;
 		}
     }
@@ -91,6 +97,23 @@ public abstract class RequestRule implements MatchingRule
 		return o.toString();
     }
     
+    /**
+     * Returns the extractors applied in sequence to the request to get the value.
+     */
+    List<Extractor> getExtractors()
+    {
+    	return _extractors;
+    }
+    
+    /**
+     * Returns the variable up to the extractor at the given index, e.g. 
+     * <code>request.from.uri</code> for the second extractor of <code>request.from.uri.user</code>.
+     */
+    String getPath(int index)
+    {
+    	return _paths.get(index);
+    }
+    
     public String getVarName() 
     {
     	return _varName;
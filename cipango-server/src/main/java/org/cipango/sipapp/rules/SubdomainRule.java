@@ -26,6 +26,11 @@ public class SubdomainRule extends RequestRule implements MatchingRule
         _value = value;
     }
     
+    String getValue()
+    {
+    	return _value;
+    }
+    
     public boolean matches(SipServletRequest request) 
     {
     	String requestValue = getValue(request);
@@ -40,7 +40,8 @@ public class TimerQueue<E extends TimerQueue.Node>
 	{
 		if (e == null)
 			throw new NullPointerException();
-		if (e._index > 0)
+		Node node = e;
+		if (node._index > 0)
 			remove(e);
 		if (++_size == _heap.length)
 		{
@@ -58,17 +59,18 @@ public class TimerQueue<E extends TimerQueue.Node>
 	
 	public void offer(E e, long value)
 	{
-		if (e._index > 0)
+		Node node = e;
+		if (node._index > 0)
 		{
-			if (_heap[e._index] != e)
+			if (_heap[node._index] != e)
 				throw new IllegalArgumentException("invalid node: " + e);
 			long oldValue = e._value;
 			e._value = value;
 			
 			if (value > oldValue)
-				siftDown(e._index, e);
+				siftDown(node._index, e);
 			else
-				siftUp(e._index, e);
+				siftUp(node._index, e);
 		}
 		else
 		{
@@ -106,13 +108,15 @@ public class TimerQueue<E extends TimerQueue.Node>
 	
 	public void remove(E e)
 	{
-		if (e._index != -1)
+		// accessed through Node as private members are not inherited by the type variable
+		Node node = e;
+		if (node._index != -1)
 		{
-			if (_heap[e._index] != e)
+			if (_heap[node._index] != e)
 				throw new IllegalArgumentException("invalid node: " + e);
-			removeAt(e._index);
+			removeAt(node._index);
 		}
-		e._index = -1;
+		node._index = -1;
 		
 		assert invariant();
 	}
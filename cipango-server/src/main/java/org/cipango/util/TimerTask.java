@@ -9,6 +9,11 @@ public class TimerTask implements Comparable<TimerTask>
 	private long _executionTime;
 	private boolean _cancelled = false;
 	
+	// links in the timing wheel slot
+	TimerTask _next;
+	TimerTask _prev;
+	long _tick;
+	
 	public TimerTask(Runnable runnable, long executionTime)
 	{
 		_runnable = runnable;
@@ -0,0 +1,179 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.util;
+
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel of {@link TimerTask}.
+ * <p>
+ * Time is divided in ticks of <code>tickDuration</code> ms. The wheel has 4 levels of 256 slots: 
+ * level 0 holds the timers expiring in the next 256 ticks, level 1 those expiring in the next 
+ * 65536 ticks and so on. When level 0 has turned, the next slot of level 1 is cascaded to level 0. 
+ * Each slot is a doubly linked list so that scheduling and cancelling are done in constant time.
+ * <p>
+ * The wheel is not thread safe, callers are expected to synchronize on it.
+ */
+public class TimingWheel
+{
+	private static final int SLOT_BITS = 8;
+	private static final int SLOTS = 1 << SLOT_BITS;
+	private static final int SLOT_MASK = SLOTS - 1;
+	private static final int LEVELS = 4;
+	private static final long MAX_DELTA = (1L << (SLOT_BITS * LEVELS)) - 1;
+	
+	private final TimerTask[][] _slots = new TimerTask[LEVELS][SLOTS];
+	private final long _tickDuration;
+	private long _currentTick;
+	private int _size;
+	
+	public TimingWheel(long tickDuration, long now)
+	{
+		if (tickDuration <= 0)
+			throw new IllegalArgumentException("tick duration: " + tickDuration);
+		_tickDuration = tickDuration;
+		_currentTick = now / tickDuration;
+		
+		for (int i = 0; i < LEVELS; i++)
+		{
+			for (int j = 0; j < SLOTS; j++)
+			{
+				TimerTask head = new TimerTask(null, -1);
+				head._next = head._prev = head;
+				_slots[i][j] = head;
+			}
+		}
+	}
+	
+	public long getTickDuration()
+	{
+		return _tickDuration;
+	}
+	
+	public int getSize()
+	{
+		return _size;
+	}
+	
+	/**
+	 * @return the time at which the next tick should be processed.
+	 */
+	public long getNextTickTime()
+	{
+		return (_currentTick + 1) * _tickDuration;
+	}
+	
+	public void schedule(TimerTask task)
+	{
+		if (task._next != null)
+			throw new IllegalStateException("Already scheduled: " + task);
+		
+		// round up so that a timer never expires early
+		long tick = (task.getExecutionTime() + _tickDuration - 1) / _tickDuration;
+		if (tick <= _currentTick)
+			tick = _currentTick + 1;
+		task._tick = tick;
+		add(task);
+		_size++;
+	}
+	
+	/**
+	 * @return <code>true</code> if the task was scheduled in this wheel.
+	 */
+	public boolean cancel(TimerTask task)
+	{
+		if (task._next == null)
+			return false;
+		unlink(task);
+		_size--;
+		return true;
+	}
+	
+	/**
+	 * Advances the wheel up to <code>now</code> and adds the expired timers to <code>expired</code>.
+	 */
+	public void expire(long now, List<TimerTask> expired)
+	{
+		long nowTick = now / _tickDuration;
+		while (_currentTick < nowTick)
+		{
+			long tick = ++_currentTick;
+			
+			int index = (int) (tick & SLOT_MASK);
+			for (int level = 1; index == 0 && level < LEVELS; level++)
+			{
+				index = (int) ((tick >>> (SLOT_BITS * level)) & SLOT_MASK);
+				cascade(_slots[level][index]);
+			}
+			
+			TimerTask head = _slots[0][(int) (tick & SLOT_MASK)];
+			TimerTask task = head._next;
+			while (task != head)
+			{
+				TimerTask next = task._next;
+				unlink(task);
+				if (task._tick <= tick)
+				{
+					_size--;
+					expired.add(task);
+				}
+				else
+				{
+					// timer beyond the wheel range
+					add(task);
+				}
+				task = next;
+			}
+		}
+	}
+	
+	private void cascade(TimerTask head)
+	{
+		TimerTask task = head._next;
+		while (task != head)
+		{
+			TimerTask next = task._next;
+			unlink(task);
+			add(task);
+			task = next;
+		}
+	}
+	
+	private void add(TimerTask task)
+	{
+		long delta = task._tick - _currentTick;
+		if (delta > MAX_DELTA)
+			delta = MAX_DELTA;
+		
+		int level = 0;
+		while (level < LEVELS - 1 && delta >= (1L << (SLOT_BITS * (level + 1))))
+			level++;
+		
+		long tick = _currentTick + delta;
+		TimerTask head = _slots[level][(int) ((tick >>> (SLOT_BITS * level)) & SLOT_MASK)];
+		
+		task._prev = head._prev;
+		task._next = head;
+		head._prev._next = task;
+		head._prev = task;
+	}
+	
+	private void unlink(TimerTask task)
+	{
+		task._prev._next = task._next;
+		task._next._prev = task._prev;
+		task._next = task._prev = null;
+	}
+}
@@ -0,0 +1,276 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.dns;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.cipango.server.SipConnectors;
+import org.cipango.sip.SipURIImpl;
+import org.cipango.sip.Via;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DnsResolverTest
+{
+	private StubDnsServer _dnsServer;
+	private DnsResolver _resolver;
+	private long _now;
+	
+	@Before
+	public void setUp() throws Exception
+	{
+		_dnsServer = new StubDnsServer();
+		_dnsServer.start();
+		
+		DnsClient client = new DnsClient(_dnsServer.getAddress());
+		client.setTimeout(500);
+		client.setRetries(0);
+		
+		_now = System.currentTimeMillis();
+		_resolver = new DnsResolver();
+		_resolver.setClient(client);
+		_resolver.setSystemFallback(false);
+		_resolver.setCache(new DnsCache()
+		{
+			@Override
+			protected long now()
+			{
+				return _now;
+			}
+		});
+		_resolver.start();
+	}
+	
+	@After
+	public void tearDown() throws Exception
+	{
+		_resolver.stop();
+		_dnsServer.stop();
+	}
+	
+	@Test
+	public void testNumeric() throws Exception
+	{
+		List<Hop> hops = _resolver.resolve(new SipURIImpl("sip:192.168.1.1:5070;transport=tcp"), null);
+		assertEquals(1, hops.size());
+		assertEquals(new Hop(SipConnectors.TCP_ORDINAL, InetAddress.getByName("192.168.1.1"), 5070), hops.get(0));
+		
+		hops = _resolver.resolve(new SipURIImpl("sips:[::1]"), null);
+		assertEquals(new Hop(SipConnectors.TLS_ORDINAL, InetAddress.getByName("::1"), 5061), hops.get(0));
+		
+		hops = _resolver.resolve(new SipURIImpl("sip:host.example.com;maddr=10.0.0.1"), null);
+		assertEquals(new Hop(SipConnectors.UDP_ORDINAL, InetAddress.getByName("10.0.0.1"), 5060), hops.get(0));
+		
+		assertEquals(0, _dnsServer.getQueries());
+		assertEquals(0, _resolver.getCacheHits() + _resolver.getCacheMisses());
+	}
+	
+	@Test
+	public void testNaptr() throws Exception
+	{
+		_dnsServer.add(new NaptrRecord("example.com", 3600, 20, 10, "s", "SIP+D2U", "", "_sip._udp.example.com"));
+		_dnsServer.add(new NaptrRecord("example.com", 3600, 10, 10, "s", "SIP+D2T", "", "_sip._tcp.example.com"));
+		_dnsServer.add(new NaptrRecord("example.com", 3600, 5, 10, "s", "FOO+D2X", "", "_foo._tcp.example.com"));
+		_dnsServer.add(new SrvRecord("_sip._tcp.example.com", 3600, 0, 0, 5060, "srv1.example.com"));
+		_dnsServer.add(new SrvRecord("_sip._udp.example.com", 3600, 0, 0, 5070, "srv2.example.com"));
+		_dnsServer.add(new AddressRecord("srv1.example.com", 3600, InetAddress.getByName("10.0.0.1")));
+		_dnsServer.add(new AddressRecord("srv2.example.com", 3600, InetAddress.getByName("10.0.0.2")));
+		
+		List<Hop> hops = resolve("sip:example.com");
+		assertEquals(2, hops.size());
+		assertEquals(new Hop(SipConnectors.TCP_ORDINAL, InetAddress.getByName("10.0.0.1"), 5060), hops.get(0));
+		assertEquals(new Hop(SipConnectors.UDP_ORDINAL, InetAddress.getByName("10.0.0.2"), 5070), hops.get(1));
+		assertEquals(1, _resolver.getCacheMisses());
+		
+		// A records were given in the additional section
+		assertEquals(0, _dnsServer.getQueries("srv1.example.com", Record.A));
+		
+		int queries = _dnsServer.getQueries();
+		hops = _resolver.resolve(new SipURIImpl("sip:alice@example.com"), null);
+		assertNotNull(hops);
+		assertEquals(2, hops.size());
+		assertEquals(1, _resolver.getCacheHits());
+		assertEquals(queries, _dnsServer.getQueries());
+	}
+	
+	@Test
+	public void testTransports() throws Exception
+	{
+		_dnsServer.add(new NaptrRecord("example.com", 3600, 10, 10, "s", "SIP+D2T", "", "_sip._tcp.example.com"));
+		_dnsServer.add(new NaptrRecord("example.com", 3600, 20, 10, "s", "SIP+D2U", "", "_sip._udp.example.com"));
+		_dnsServer.add(new SrvRecord("_sip._tcp.example.com", 3600, 0, 0, 5060, "srv1.example.com"));
+		_dnsServer.add(new SrvRecord("_sip._udp.example.com", 3600, 0, 0, 5060, "srv1.example.com"));
+		_dnsServer.add(new AddressRecord("srv1.example.com", 3600, InetAddress.getByName("10.0.0.1")));
+		
+		_resolver.setTransports(new int[] { SipConnectors.UDP_ORDINAL });
+		List<Hop> hops = resolve("sip:example.com");
+		assertEquals(1, hops.size());
+		assertEquals(SipConnectors.UDP_ORDINAL, hops.get(0).getTransport());
+		
+		hops = resolve("sip:example.com;transport=tcp");
+		assertEquals(1, hops.size());
+		assertEquals(SipConnectors.TCP_ORDINAL, hops.get(0).getTransport());
+	}
+	
+	@Test
+	public void testSrv() throws Exception
+	{
+		_dnsServer.add(new SrvRecord("_sip._udp.example.org", 3600, 20, 0, 5060, "backup.example.org"));
+		_dnsServer.add(new SrvRecord("_sip._udp.example.org", 3600, 10, 1, 5060, "a.example.org"));
+		_dnsServer.add(new SrvRecord("_sip._udp.example.org", 3600, 10, 1, 5060, "b.example.org"));
+		_dnsServer.add(new AddressRecord("a.example.org", 3600, InetAddress.getByName("10.0.1.1")));
+		_dnsServer.add(new AddressRecord("b.example.org", 3600, InetAddress.getByName("10.0.1.2")));
+		_dnsServer.add(new AddressRecord("backup.example.org", 3600, InetAddress.getByName("10.0.1.3")));
+		
+		List<Hop> hops = resolve("sip:example.org");
+		assertEquals(3, hops.size());
+		assertEquals(InetAddress.getByName("10.0.1.3"), hops.get(2).getAddress());
+		
+		// Same priority records are ordered by weight
+		boolean aFirst = false;
+		boolean bFirst = false;
+		for (int i = 0; i < 100; i++)
+		{
+			hops = _resolver.resolve(new SipURIImpl("sip:example.org"), null);
+			assertEquals(InetAddress.getByName("10.0.1.3"), hops.get(2).getAddress());
+			if (hops.get(0).getAddress().equals(InetAddress.getByName("10.0.1.1")))
+				aFirst = true;
+			else
+				bFirst = true;
+		}
+		assertTrue(aFirst && bFirst);
+	}
+	
+	@Test
+	public void testAddress() throws Exception
+	{
+		_dnsServer.add(new AddressRecord("v4.example.net", 3600, InetAddress.getByName("10.0.2.1")));
+		_dnsServer.add(new AddressRecord("v6.example.net", 3600, InetAddress.getByName("2001:db8::1")));
+		
+		List<Hop> hops = resolve("sip:v4.example.net:5080");
+		assertEquals(new Hop(SipConnectors.UDP_ORDINAL, InetAddress.getByName("10.0.2.1"), 5080), hops.get(0));
+		// explicit port: no NAPTR nor SRV lookup
+		assertEquals(0, _dnsServer.getQueries("v4.example.net", Record.NAPTR));
+		assertEquals(1, _dnsServer.getQueries());
+		
+		hops = resolve("sips:v6.example.net");
+		assertEquals(new Hop(SipConnectors.TLS_ORDINAL, InetAddress.getByName("2001:db8::1"), 5061), hops.get(0));
+		assertEquals(1, _dnsServer.getQueries("_sips._tcp.v6.example.net", Record.SRV));
+		assertEquals(0, _dnsServer.getQueries("_sip._udp.v6.example.net", Record.SRV));
+	}
+	
+	@Test
+	public void testNegativeCache() throws Exception
+	{
+		try
+		{
+			resolve("sip:unknown.example.com");
+			fail();
+		}
+		catch (UnknownHostException e)
+		{
+		}
+		int queries = _dnsServer.getQueries();
+		assertTrue(queries > 0);
+		
+		try
+		{
+			_resolver.resolve(new SipURIImpl("sip:unknown.example.com"), null);
+			fail();
+		}
+		catch (UnknownHostException e)
+		{
+		}
+		assertEquals(queries, _dnsServer.getQueries());
+		assertEquals(2, _resolver.getFailures());
+	}
+	
+	@Test
+	public void testTtl() throws Exception
+	{
+		_dnsServer.add(new AddressRecord("ttl.example.net", 10, InetAddress.getByName("10.0.3.1")));
+		
+		resolve("sip:ttl.example.net:5060");
+		assertNotNull(_resolver.resolve(new SipURIImpl("sip:ttl.example.net:5060"), null));
+		
+		_now += 11000;
+		assertNull(_resolver.resolve(new SipURIImpl("sip:ttl.example.net:5060"), new Listener()));
+		assertEquals(2, _resolver.getCacheMisses());
+	}
+	
+	@Test
+	public void testVia() throws Exception
+	{
+		List<Hop> hops = _resolver.resolve(new Via("SIP/2.0/UDP host.example.com:5062;received=192.168.0.1;rport=5090"), null);
+		assertEquals(new Hop(SipConnectors.UDP_ORDINAL, InetAddress.getByName("192.168.0.1"), 5090), hops.get(0));
+		
+		_dnsServer.add(new SrvRecord("_sip._tcp.example.com", 3600, 0, 0, 5080, "srv1.example.com"));
+		_dnsServer.add(new AddressRecord("srv1.example.com", 3600, InetAddress.getByName("10.0.0.1")));
+		
+		Listener listener = new Listener();
+		assertNull(_resolver.resolve(new Via("SIP/2.0/TCP example.com;branch=z9hG4bK1"), listener));
+		hops = listener.get();
+		assertEquals(new Hop(SipConnectors.TCP_ORDINAL, InetAddress.getByName("10.0.0.1"), 5080), hops.get(0));
+		assertEquals(0, _dnsServer.getQueries("example.com", Record.NAPTR));
+	}
+	
+	private List<Hop> resolve(String uri) throws Exception
+	{
+		Listener listener = new Listener();
+		List<Hop> hops = _resolver.resolve(new SipURIImpl(uri), listener);
+		if (hops != null)
+			return hops;
+		return listener.get();
+	}
+	
+	class Listener implements ResolveListener
+	{
+		private CountDownLatch _latch = new CountDownLatch(1);
+		private List<Hop> _hops;
+		private IOException _exception;
+		
+		public void resolved(List<Hop> hops)
+		{
+			_hops = hops;
+			_latch.countDown();
+		}
+		
+		public void failed(IOException e)
+		{
+			_exception = e;
+			_latch.countDown();
+		}
+		
+		List<Hop> get() throws Exception
+		{
+			assertTrue(_latch.await(5, TimeUnit.SECONDS));
+			if (_exception != null)
+				throw _exception;
+			return _hops;
+		}
+	}
+}
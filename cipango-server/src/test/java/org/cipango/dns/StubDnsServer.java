@@ -0,0 +1,164 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.dns;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-process DNS server answering from canned records, for tests.
+ */
+public class StubDnsServer implements Runnable
+{
+	private DatagramSocket _socket;
+	private Thread _thread;
+	private Map<String, List<Record>> _records = new HashMap<String, List<Record>>();
+	private Map<String, AtomicInteger> _queries = new HashMap<String, AtomicInteger>();
+	private long _negativeTtl = 60;
+	
+	public void start() throws IOException
+	{
+		_socket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+		_thread = new Thread(this, "stub-dns");
+		_thread.setDaemon(true);
+		_thread.start();
+	}
+	
+	public void stop() throws InterruptedException
+	{
+		_socket.close();
+		_thread.join(1000);
+	}
+	
+	public InetSocketAddress getAddress()
+	{
+		return (InetSocketAddress) _socket.getLocalSocketAddress();
+	}
+	
+	public synchronized void add(Record record)
+	{
+		String key = key(record.getName(), record.getType());
+		List<Record> records = _records.get(key);
+		if (records == null)
+		{
+			records = new ArrayList<Record>();
+			_records.put(key, records);
+		}
+		records.add(record);
+	}
+	
+	public void setNegativeTtl(long negativeTtl)
+	{
+		_negativeTtl = negativeTtl;
+	}
+	
+	public synchronized int getQueries(String name, int type)
+	{
+		AtomicInteger queries = _queries.get(key(name, type));
+		return queries == null ? 0 : queries.get();
+	}
+	
+	public synchronized int getQueries()
+	{
+		int total = 0;
+		for (AtomicInteger queries : _queries.values())
+			total += queries.get();
+		return total;
+	}
+	
+	public void run()
+	{
+		byte[] b = new byte[DnsMessage.MAX_UDP_SIZE];
+		while (!_socket.isClosed())
+		{
+			try
+			{
+				DatagramPacket packet = new DatagramPacket(b, b.length);
+				_socket.receive(packet);
+				DnsMessage query = DnsMessage.parse(ByteBuffer.wrap(b, 0, packet.getLength()));
+				ByteBuffer response = answer(query).encode();
+				_socket.send(new DatagramPacket(response.array(), response.limit(), packet.getSocketAddress()));
+			}
+			catch (SocketException e)
+			{
+				return;
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	private synchronized DnsMessage answer(DnsMessage query)
+	{
+		String key = key(query.getQuestionName(), query.getQuestionType());
+		AtomicInteger queries = _queries.get(key);
+		if (queries == null)
+		{
+			queries = new AtomicInteger();
+			_queries.put(key, queries);
+		}
+		queries.incrementAndGet();
+		
+		List<Record> records = _records.get(key);
+		if (records == null)
+		{
+			DnsMessage response = DnsMessage.newResponse(query, hasName(query.getQuestionName()) ? 
+					DnsMessage.RCODE_NOERROR : DnsMessage.RCODE_NXDOMAIN);
+			response.getAuthority().add(new SoaRecord(query.getQuestionName(), _negativeTtl, "ns.stub", 
+					"admin.stub", 1, 3600, 600, 86400, _negativeTtl));
+			return response;
+		}
+		
+		DnsMessage response = DnsMessage.newResponse(query, DnsMessage.RCODE_NOERROR);
+		response.getAnswers().addAll(records);
+		for (Record record : records)
+		{
+			if (record instanceof SrvRecord)
+			{
+				List<Record> additional = _records.get(key(((SrvRecord) record).getTarget(), Record.A));
+				if (additional != null)
+					response.getAdditional().addAll(additional);
+			}
+		}
+		return response;
+	}
+	
+	private boolean hasName(String name)
+	{
+		for (String key : _records.keySet())
+		{
+			if (key.endsWith(":" + name))
+				return true;
+		}
+		return false;
+	}
+	
+	private String key(String name, int type)
+	{
+		return type + ":" + DnsMessage.normalize(name);
+	}
+}
@@ -0,0 +1,141 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.io;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.eclipse.jetty.io.nio.NIOBuffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BufferPoolTest
+{
+	private BufferPool _pool;
+	
+	@Before
+	public void setUp() throws Exception
+	{
+		_pool = new BufferPool();
+		_pool.setMinSize(1000);
+		_pool.setMaxSize(64 * 1024);
+		_pool.setThreadCacheSize(2);
+		_pool.setMaxBuffers(4);
+		_pool.start();
+	}
+	
+	@After
+	public void tearDown() throws Exception
+	{
+		_pool.stop();
+	}
+	
+	@Test
+	public void testSizeClasses()
+	{
+		assertEquals(1024, _pool.getMinSize());
+		assertEquals(1024, _pool.getBuffer(1).capacity());
+		assertEquals(1024, _pool.getBuffer(1024).capacity());
+		assertEquals(2048, _pool.getBuffer(1025).capacity());
+		assertEquals(16384, _pool.getBuffer(10000).capacity());
+		assertEquals(65536, _pool.getBuffer(65536).capacity());
+		
+		assertEquals(65537, _pool.getBuffer(65537).capacity());
+		assertEquals(1, _pool.getUnpooled());
+		assertEquals(5, _pool.getOutstanding());
+	}
+	
+	@Test
+	public void testThreadCache()
+	{
+		Buffer buffer = _pool.getBuffer(10000);
+		buffer.put((byte) 'a');
+		_pool.returnBuffer(buffer);
+		assertEquals(0, _pool.getOutstanding());
+		assertEquals(0, _pool.getIdle());
+		
+		Buffer other = _pool.getBuffer(9000);
+		assertSame(buffer, other);
+		assertEquals(0, other.length());
+		assertEquals(1, _pool.getHits());
+		assertEquals(1, _pool.getMisses());
+		assertEquals(50.0, _pool.getHitRate());
+	}
+	
+	@Test
+	public void testSharedQueue() throws Exception
+	{
+		final Buffer[] buffers = new Buffer[8];
+		for (int i = 0; i < buffers.length; i++)
+			buffers[i] = _pool.getBuffer(2048);
+		
+		// returned by another thread: 2 in its cache, 4 in the shared queue, 2 dropped
+		Thread thread = new Thread()
+		{
+			public void run()
+			{
+				for (int i = 0; i < buffers.length; i++)
+					_pool.returnBuffer(buffers[i]);
+			}
+		};
+		thread.start();
+		thread.join();
+		
+		assertEquals(4, _pool.getIdle());
+		for (int i = 0; i < 4; i++)
+			assertNotNull(_pool.getBuffer(2048));
+		assertEquals(0, _pool.getIdle());
+		assertEquals(4, _pool.getHits());
+	}
+	
+	@Test
+	public void testForeignBuffer()
+	{
+		_pool.returnBuffer(new ByteArrayBuffer(10000));
+		assertEquals(0, _pool.getIdle());
+		assertEquals(0, _pool.getOutstanding());
+	}
+	
+	@Test
+	public void testDirect() throws Exception
+	{
+		assertFalse(_pool.getDirectBuffer(1024) instanceof NIOBuffer);
+		
+		_pool.stop();
+		_pool.setDirect(true);
+		_pool.start();
+		
+		Buffer buffer = _pool.getDirectBuffer(1024);
+		assertTrue(((NIOBuffer) buffer).isDirect());
+		_pool.returnBuffer(buffer);
+		assertSame(buffer, _pool.getDirectBuffer(1000));
+		assertFalse(_pool.getBuffer(1024) instanceof NIOBuffer);
+	}
+	
+	@Test
+	public void testStopped() throws Exception
+	{
+		_pool.stop();
+		Buffer buffer = _pool.getBuffer(1024);
+		_pool.returnBuffer(buffer);
+		assertEquals(1, _pool.getUnpooled());
+	}
+}
@@ -0,0 +1,90 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server;
+
+import java.lang.management.ManagementFactory;
+
+import org.cipango.sip.SipParser;
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.eclipse.jetty.util.StringUtil;
+
+/**
+ * Standalone benchmark measuring the bytes allocated to parse an INVITE received in a 
+ * datagram, including the copy of the datagram to its own array. Requires a JVM supporting thread allocated bytes 
+ * (<code>com.sun.management.ThreadMXBean</code>).
+ * <p>
+ * Usage: <code>ParserAllocationBenchmark [iterations]</code>
+ */
+public class ParserAllocationBenchmark
+{
+	public static void main(String[] args) throws Exception
+	{
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		
+		byte[] datagram = new byte[65536];
+		byte[] invite = INVITE.getBytes(StringUtil.__UTF8);
+		System.arraycopy(invite, 0, datagram, 0, invite.length);
+		
+		run(datagram, invite.length, iterations); // warm-up
+		long bytes = run(datagram, invite.length, iterations);
+		System.out.printf("%8d bytes/INVITE%n", bytes / iterations);
+	}
+	
+	static long run(byte[] datagram, int length, int iterations) throws Exception
+	{
+		com.sun.management.ThreadMXBean mxBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long id = Thread.currentThread().getId();
+		long start = mxBean.getThreadAllocatedBytes(id);
+		
+		for (int i = 0; i < iterations; i++)
+		{
+			byte[] b = new byte[length];
+			System.arraycopy(datagram, 0, b, 0, length);
+			Buffer buffer = new ByteArrayBuffer(b);
+			
+			AbstractSipConnector.EventHandler handler = new AbstractSipConnector.EventHandler();
+			new SipParser(buffer, handler).parse();
+			SipMessage message = handler.getMessage();
+			
+			// what is read of each message by the container
+			message.getCallId();
+			message.getTopVia().getBranch();
+		}
+		return mxBean.getThreadAllocatedBytes(id) - start;
+	}
+	
+	private static final String INVITE = 
+		"INVITE sip:bob@biloxi.com SIP/2.0\r\n"
+		+ "Via: SIP/2.0/UDP pc33.atlanta.com;branch=z9hG4bKnashds8\r\n"
+		+ "Max-Forwards: 70\r\n"
+		+ "To: Bob <sip:bob@biloxi.com>\r\n"
+		+ "From: Alice <sip:alice@atlanta.com>;tag=1928301774\r\n"
+		+ "Call-ID: a84b4c76e66710@pc33.atlanta.com\r\n"
+		+ "CSeq: 314159 INVITE\r\n"
+		+ "Contact: <sip:alice@pc33.atlanta.com>\r\n"
+		+ "Supported: replaces, timer, 100rel\r\n"
+		+ "Allow: INVITE, ACK, CANCEL, OPTIONS, BYE, REFER, NOTIFY, MESSAGE\r\n"
+		+ "Content-Type: application/sdp\r\n"
+		+ "Content-Length: 146\r\n"
+		+ "\r\n"
+		+ "v=0\r\n"
+		+ "o=alice 2890844526 2890844526 IN IP4 pc33.atlanta.com\r\n"
+		+ "s=-\r\n"
+		+ "c=IN IP4 pc33.atlanta.com\r\n"
+		+ "t=0 0\r\n"
+		+ "m=audio 49172 RTP/AVP 0\r\n"
+		+ "a=rtpmap:0 PCMU/8000\r\n";
+}
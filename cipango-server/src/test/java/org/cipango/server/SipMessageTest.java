@@ -1,12 +1,16 @@
 package org.cipango.server;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
 
 import javax.servlet.sip.Address;
 import javax.servlet.sip.SipURI;
 
 import org.cipango.sip.NameAddr;
+import org.cipango.sip.SipParser;
 import org.cipango.util.ReadOnlyAddress;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.eclipse.jetty.util.StringUtil;
 import org.junit.Test;
 
 public class SipMessageTest
@@ -23,4 +27,33 @@ public class SipMessageTest
 		Address addr = request.getAddressHeader("p-asserted-identity");
 		assertEquals("alice", ((SipURI) addr.getURI()).getUser());
 	}
+	
+	@Test
+	public void testContentBuffer() throws Exception
+	{
+		AbstractSipConnector.EventHandler handler = new AbstractSipConnector.EventHandler();
+		new SipParser(new ByteArrayBuffer(INVITE.getBytes(StringUtil.__UTF8)), handler).parse();
+		SipMessage message = handler.getMessage();
+		assertEquals(5, message.getContentBuffer().length());
+		assertEquals(5, message.getContentLength());
+		assertEquals("v=0\r\n", new String(message.getRawContent(), StringUtil.__UTF8));
+		
+		message.setContent("foo", "text/plain");
+		assertNull(message.getContentBuffer());
+		assertEquals("foo", new String(message.getRawContent(), StringUtil.__UTF8));
+	}
+	
+	private static final String INVITE = 
+		"INVITE sip:bob@biloxi.com SIP/2.0\r\n"
+		+ "Via: SIP/2.0/UDP pc33.atlanta.com;branch=z9hG4bKnashds8\r\n"
+		+ "Max-Forwards: 70\r\n"
+		+ "To: Bob <sip:bob@biloxi.com>\r\n"
+		+ "From: Alice <sip:alice@atlanta.com>;tag=1928301774\r\n"
+		+ "Call-ID: a84b4c76e66710@pc33.atlanta.com\r\n"
+		+ "CSeq: 314159 INVITE\r\n"
+		+ "Contact: <sip:alice@pc33.atlanta.com>\r\n"
+		+ "Content-Type: application/sdp\r\n"
+		+ "Content-Length: 5\r\n"
+		+ "\r\n"
+		+ "v=0\r\n";
 }
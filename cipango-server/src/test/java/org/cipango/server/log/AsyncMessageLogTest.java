@@ -0,0 +1,180 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server.log;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+
+import org.cipango.server.AbstractSipConnector;
+import org.cipango.server.SipConnection;
+import org.cipango.server.SipConnector;
+import org.cipango.server.SipMessage;
+import org.cipango.server.bio.UdpConnector;
+import org.cipango.sip.SipParser;
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.eclipse.jetty.util.IO;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AsyncMessageLogTest
+{
+	private File _file;
+	private AsyncMessageLog _log;
+	private SipConnection _connection;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		_file = File.createTempFile("async", ".message.log");
+		_file.delete();
+		_log = new AsyncMessageLog();
+		_log.setFilename(_file.getPath());
+		_log.setAppend(false);
+		_connection = new TestConnection();
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		_log.stop();
+		_file.delete();
+	}
+
+	@Test
+	public void testLog() throws Exception
+	{
+		_log.setFsyncPolicy(AsyncMessageLog.FSYNC_BATCH);
+		_log.start();
+		for (int i = 0; i < 100; i++)
+			_log.messageReceived(parse("call-" + i), _connection);
+		for (int i = 0; i < 100; i++)
+			_log.messageSent(parse("call-" + i), _connection);
+		_log.stop();
+
+		assertEquals(200, _log.getLogged());
+		assertEquals(0, _log.getDropped());
+		assertEquals(0, _log.getPending());
+		assertTrue(_log.getFsyncs() > 0);
+
+		String content = IO.toString(new FileInputStream(_file));
+		assertEquals(100, count(content, " IN  UDP "));
+		assertEquals(100, count(content, " OUT UDP "));
+		for (int i = 0; i < 100; i++)
+			assertEquals(2, count(content, "Call-ID: call-" + i + "\r\n"));
+	}
+
+	@Test
+	public void testDrop() throws Exception
+	{
+		_log.setCapacity(4);
+		_log.setIdleWait(60000);
+		_log.start();
+		Thread.sleep(50); // let the writer wait
+
+		for (int i = 0; i < 10; i++)
+			_log.messageReceived(parse("call-" + i), _connection);
+		assertEquals(4, _log.getPending());
+		assertEquals(6, _log.getDropped());
+
+		_log.stop();
+		assertEquals(4, _log.getLogged());
+
+		String content = IO.toString(new FileInputStream(_file));
+		for (int i = 0; i < 4; i++)
+			assertEquals(1, count(content, "Call-ID: call-" + i + "\r\n"));
+		assertEquals(0, count(content, "Call-ID: call-4\r\n"));
+	}
+
+	private int count(String s, String pattern)
+	{
+		int count = 0;
+		int index = s.indexOf(pattern);
+		while (index != -1)
+		{
+			count++;
+			index = s.indexOf(pattern, index + 1);
+		}
+		return count;
+	}
+
+	private SipMessage parse(String callId) throws Exception
+	{
+		String s = "REGISTER sip:127.0.0.1:5070 SIP/2.0\r\n"
+			+ "Call-ID: " + callId + "\r\n"
+			+ "CSeq: 1 REGISTER\r\n"
+			+ "From: <sip:cipango@cipango.org>;tag=9Aaz+gQAAA\r\n"
+			+ "To: <sip:cipango@cipango.org>\r\n"
+			+ "Via: SIP/2.0/UDP 127.0.0.1:6010;branch=z9hG4bK" + callId + "\r\n"
+			+ "Max-Forwards: 70\r\n"
+			+ "Content-Length: 0\r\n\r\n";
+		Buffer buffer = new ByteArrayBuffer(s.getBytes("UTF-8"));
+		AbstractSipConnector.EventHandler handler = new AbstractSipConnector.EventHandler();
+		new SipParser(buffer, handler).parse();
+		return handler.getMessage();
+	}
+
+	class TestConnection implements SipConnection
+	{
+		private SipConnector _connector = new UdpConnector();
+
+		public SipConnector getConnector()
+		{
+			return _connector;
+		}
+
+		public InetAddress getLocalAddress()
+		{
+			return getRemoteAddress();
+		}
+
+		public int getLocalPort()
+		{
+			return 5060;
+		}
+
+		public InetAddress getRemoteAddress()
+		{
+			try
+			{
+				return InetAddress.getByName("127.0.0.1");
+			}
+			catch (IOException e)
+			{
+				throw new IllegalStateException(e);
+			}
+		}
+
+		public int getRemotePort()
+		{
+			return 5061;
+		}
+
+		public void write(Buffer buffer) throws IOException
+		{
+		}
+
+		public boolean isOpen()
+		{
+			return true;
+		}
+	}
+}
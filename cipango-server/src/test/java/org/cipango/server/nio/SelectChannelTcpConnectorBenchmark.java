@@ -0,0 +1,149 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server.nio;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+import javax.servlet.sip.SipServletMessage;
+
+import org.cipango.server.SipHandler;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+/**
+ * Standalone load test of {@link SelectChannelTcpConnector}: opens <code>idle + active</code>
+ * connections, sends rounds of messages on the active ones and checks that the number of
+ * threads does not depend on the number of connections.
+ * <p>
+ * Usage: <code>SelectChannelTcpConnectorBenchmark [idle] [active] [rounds]</code>, 50000 idle
+ * and 5000 active connections by default. The client sockets and the connector are in the same
+ * process so the open files limit must be above <code>2 * (idle + active)</code>. Client
+ * sockets are bound to several loopback addresses so that the ephemeral ports of a single
+ * address do not limit the number of connections.
+ */
+public class SelectChannelTcpConnectorBenchmark
+{
+	private static final int PORT = 5047;
+	private static final int SOCKETS_PER_ADDRESS = 20000;
+
+	public static void main(String[] args) throws Exception
+	{
+		int idle = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+		int active = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+		final AtomicLong received = new AtomicLong();
+
+		SelectChannelTcpConnector connector = new SelectChannelTcpConnector();
+		connector.setHost("127.0.0.1");
+		connector.setPort(PORT);
+		connector.setBacklogSize(4096);
+		connector.setConnectionTimeout(0);
+		QueuedThreadPool threadPool = new QueuedThreadPool();
+		threadPool.setMaxThreads(50);
+		connector.setThreadPool(threadPool);
+		connector.setHandler(new SipHandler()
+		{
+			public void handle(SipServletMessage message) throws IOException, ServletException
+			{
+				message.getCallId();
+				received.incrementAndGet();
+			}
+
+			public Server getServer()
+			{
+				return null;
+			}
+
+			public void setServer(Server server)
+			{
+			}
+		});
+		connector.setStatsOn(true);
+		connector.start();
+
+		List<Socket> sockets = new ArrayList<Socket>(idle + active);
+		try
+		{
+			InetAddress server = InetAddress.getByName("127.0.0.1");
+			sockets.add(newSocket(server, 0));
+			Thread.sleep(200);
+			int threads = Thread.activeCount();
+
+			long start = System.currentTimeMillis();
+			for (int i = 1; i < idle + active; i++)
+				sockets.add(newSocket(server, i));
+			while (connector.getConnectionsOpen() < idle + active && System.currentTimeMillis() - start < 120000)
+				Thread.sleep(50);
+			System.out.println("connections=" + connector.getConnectionsOpen() + " in "
+					+ (System.currentTimeMillis() - start) + " ms");
+			int connected = Thread.activeCount();
+
+			byte[] b = MESSAGE.getBytes("UTF-8");
+			start = System.currentTimeMillis();
+			for (int r = 0; r < rounds; r++)
+			{
+				for (int i = idle; i < idle + active; i++)
+					sockets.get(i).getOutputStream().write(b);
+			}
+			long expected = (long) active * rounds;
+			while (received.get() < expected && System.currentTimeMillis() - start < 120000)
+				Thread.sleep(10);
+			long time = System.currentTimeMillis() - start;
+			System.out.println("messages=" + received.get() + "/" + expected + " in " + time + " ms ("
+					+ (received.get() * 1000 / Math.max(1, time)) + " msg/s)");
+
+			// the SIP thread pool grows with the load, not with the connections
+			int used = Thread.activeCount();
+			System.out.println("threads with 1 connection=" + threads + ", with " + (idle + active)
+					+ " connections=" + connected + ", after messages=" + used);
+			if (connector.getConnectionsOpen() < idle + active || received.get() < expected 
+					|| connected > threads + 5 || used > threads + threadPool.getMaxThreads())
+			{
+				System.out.println("FAILED");
+				System.exit(1);
+			}
+		}
+		finally
+		{
+			for (Socket socket : sockets)
+				socket.close();
+			connector.stop();
+		}
+	}
+
+	private static Socket newSocket(InetAddress server, int index) throws IOException
+	{
+		InetAddress local = InetAddress.getByName("127.0.0." + (2 + index / SOCKETS_PER_ADDRESS));
+		return new Socket(server, PORT, local, 0);
+	}
+
+	static final String MESSAGE =
+		"REGISTER sip:127.0.0.1:5070 SIP/2.0\r\n"
+		+ "Call-ID: c117fdfda2ffd6f4a859a2d504aedb25@127.0.0.1\r\n"
+		+ "CSeq: 2 REGISTER\r\n"
+		+ "From: <sip:cipango@cipango.org>;tag=9Aaz+gQAAA\r\n"
+		+ "To: <sip:cipango@cipango.org>\r\n"
+		+ "Via: SIP/2.0/TCP 127.0.0.1:6010\r\n"
+		+ "Max-Forwards: 70\r\n"
+		+ "Contact: <sip:127.0.0.1:6010;transport=tcp>\r\n"
+		+ "Content-Length: 0\r\n\r\n";
+}
@@ -0,0 +1,250 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server.nio;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.sip.SipServletMessage;
+
+import org.cipango.server.SipHandler;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The load test sizes can be raised with the system properties
+ * <code>nio.test.idle</code> and <code>nio.test.active</code>
+ * (e.g. 50000 and 5000, which requires to raise the open files limit).
+ */
+public class SelectChannelTcpConnectorTest
+{
+	private static final int PORT = 5042;
+
+	SelectChannelTcpConnector _connector;
+	SipServletMessage _message;
+	AtomicInteger _received = new AtomicInteger();
+
+	@Before
+	public void setUp() throws Exception
+	{
+		_connector = new SelectChannelTcpConnector();
+		_connector.setHost("127.0.0.1");
+		_connector.setPort(PORT);
+		_connector.setBacklogSize(1024);
+		QueuedThreadPool threadPool = new QueuedThreadPool();
+		threadPool.setMaxThreads(20);
+		_connector.setThreadPool(threadPool);
+		_connector.setHandler(new TestHandler());
+		_connector.setStatsOn(true);
+		_connector.start();
+		_message = null;
+		_received.set(0);
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		Thread.sleep(40);
+		_connector.stop();
+		Thread.sleep(10);
+	}
+
+	@Test
+	public void testLifeCycle() throws Exception
+	{
+		SelectChannelTcpConnector connector = new SelectChannelTcpConnector();
+		connector.setHost("127.0.0.1");
+		connector.setPort(5072);
+		connector.setThreadPool(new QueuedThreadPool());
+		for (int i = 0; i < 10; i++)
+		{
+			connector.start();
+			assertTrue(connector.isRunning());
+			connector.stop();
+			assertFalse(connector.isRunning());
+			Thread.sleep(10);
+		}
+	}
+
+	@Test
+	public void testMessage() throws Exception
+	{
+		Socket socket = newSocket();
+		OutputStream os = socket.getOutputStream();
+
+		os.write(_msg.getBytes("UTF-8"));
+		os.flush();
+
+		SipServletMessage message = getMessage(1000);
+		assertNotNull(message);
+		assertEquals("REGISTER", message.getMethod());
+		assertEquals("c117fdfda2ffd6f4a859a2d504aedb25@127.0.0.1", message.getCallId());
+		socket.close();
+	}
+
+	@Test
+	public void testFragmented() throws Exception
+	{
+		Socket socket = newSocket();
+		OutputStream os = socket.getOutputStream();
+		byte[] b = (_msg + _msg + _msg).getBytes("UTF-8");
+
+		for (int i = 0; i < b.length; i += 7)
+		{
+			os.write(b, i, Math.min(7, b.length - i));
+			os.flush();
+			if (i % 70 == 0)
+				Thread.sleep(1);
+		}
+		waitReceived(3, 2000);
+		assertEquals(3, _received.get());
+		socket.close();
+	}
+
+	@Test
+	public void testLargeMessage() throws Exception
+	{
+		StringBuilder body = new StringBuilder();
+		while (body.length() < 20000)
+			body.append("a=candidate:1 1 UDP 2130706431 10.0.1.1 8998 typ host\r\n");
+
+		String msg = _msg.replace("Content-Length: 0", "Content-Type: application/sdp\r\nContent-Length: " + body.length())
+				+ body;
+
+		Socket socket = newSocket();
+		socket.getOutputStream().write(msg.getBytes("UTF-8"));
+
+		SipServletMessage message = getMessage(1000);
+		assertNotNull(message);
+		assertEquals(body.length(), message.getContentLength());
+		socket.close();
+	}
+
+	@Test
+	public void testConnections() throws Exception
+	{
+		int idle = Integer.getInteger("nio.test.idle", 500);
+		int active = Integer.getInteger("nio.test.active", 50);
+		int rounds = 5;
+
+		List<Socket> sockets = new ArrayList<Socket>();
+
+		try
+		{
+			Socket first = newSocket();
+			sockets.add(first);
+			Thread.sleep(100);
+			int threads = Thread.activeCount();
+
+			for (int i = 1; i < idle + active; i++)
+				sockets.add(newSocket());
+
+			long start = System.currentTimeMillis();
+			while (_connector.getConnectionsOpen() < idle + active && System.currentTimeMillis() - start < 30000)
+				Thread.sleep(50);
+			assertEquals(idle + active, _connector.getConnectionsOpen());
+
+			byte[] b = _msg.getBytes("UTF-8");
+			for (int r = 0; r < rounds; r++)
+			{
+				for (int i = idle; i < idle + active; i++)
+					sockets.get(i).getOutputStream().write(b);
+			}
+			waitReceived(active * rounds, 30000);
+			assertEquals(active * rounds, _received.get());
+
+			// Threads used by the connector do not depend on the number of connections
+			assertTrue("Too many threads: " + Thread.activeCount(),
+					Thread.activeCount() <= threads + 20);
+		}
+		finally
+		{
+			for (Socket socket : sockets)
+				socket.close();
+		}
+	}
+
+	private Socket newSocket() throws IOException
+	{
+		return new Socket(InetAddress.getByName("127.0.0.1"), PORT);
+	}
+
+	private void waitReceived(int nb, long timeout) throws InterruptedException
+	{
+		long absTimeout = System.currentTimeMillis() + timeout;
+		while (_received.get() < nb && absTimeout - System.currentTimeMillis() > 0)
+			Thread.sleep(20);
+	}
+
+	private SipServletMessage getMessage(long timeout) throws InterruptedException
+	{
+		if (_message != null)
+			return _message;
+		long absTimeout = System.currentTimeMillis() + timeout;
+		while (absTimeout - System.currentTimeMillis() > 0)
+		{
+			Thread.sleep(50);
+			if (_message != null)
+				return _message;
+		}
+		return null;
+	}
+
+	class TestHandler implements SipHandler
+	{
+		public void handle(SipServletMessage message) throws IOException, ServletException
+		{
+			_message = message;
+			_received.incrementAndGet();
+		}
+
+		public Server getServer()
+		{
+			return null;
+		}
+
+		public void setServer(Server server)
+		{
+		}
+	}
+
+	String _msg =
+        "REGISTER sip:127.0.0.1:5070 SIP/2.0\r\n"
+        + "Call-ID: c117fdfda2ffd6f4a859a2d504aedb25@127.0.0.1\r\n"
+        + "CSeq: 2 REGISTER\r\n"
+        + "From: <sip:cipango@cipango.org>;tag=9Aaz+gQAAA\r\n"
+        + "To: <sip:cipango@cipango.org>\r\n"
+        + "Via: SIP/2.0/TCP 127.0.0.1:6010\r\n"
+        + "Max-Forwards: 70\r\n"
+        + "User-Agent: Test Script\r\n"
+        + "Contact: \"Cipango\" <sip:127.0.0.1:6010;transport=tcp>\r\n"
+        + "Allow: INVITE, ACK, BYE, CANCEL, PRACK, REFER, MESSAGE, SUBSCRIBE\r\n"
+        + "MyHeader: toto\r\n"
+        + "Content-Length: 0\r\n\r\n";
+}
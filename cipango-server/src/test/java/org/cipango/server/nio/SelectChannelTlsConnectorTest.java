@@ -0,0 +1,295 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server.nio;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.security.KeyStore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import javax.servlet.ServletException;
+import javax.servlet.sip.SipServletMessage;
+
+import org.cipango.server.SipConnection;
+import org.cipango.server.SipHandler;
+import org.cipango.server.SipMessage;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SelectChannelTlsConnectorTest
+{
+	private static final int PORT = 5062;
+	private static final String KEYSTORE = "keystore";
+	private static final String STORE_PASSWORD = "storepwd";
+	private static final String KEY_PASSWORD = "keypwd";
+
+	SelectChannelTlsConnector _connector;
+	SSLContext _clientContext;
+	volatile SipServletMessage _message;
+	AtomicInteger _received = new AtomicInteger();
+
+	@Before
+	public void setUp() throws Exception
+	{
+		_connector = new SelectChannelTlsConnector();
+		_connector.setHost("127.0.0.1");
+		_connector.setPort(PORT);
+		_connector.setKeystore(getClass().getClassLoader().getResource(KEYSTORE).toString());
+		_connector.setPassword(STORE_PASSWORD);
+		_connector.setKeyPassword(KEY_PASSWORD);
+		_connector.setTrustPassword(STORE_PASSWORD);
+		QueuedThreadPool threadPool = new QueuedThreadPool();
+		threadPool.setMaxThreads(20);
+		_connector.setThreadPool(threadPool);
+		_connector.setHandler(new TestHandler());
+		_connector.start();
+		_clientContext = newContext();
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		_connector.stop();
+		Thread.sleep(10);
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception
+	{
+		SSLSocket socket = newSocket();
+		try
+		{
+			socket.startHandshake();
+			socket.getOutputStream().write(_msg.getBytes("UTF-8"));
+			socket.getOutputStream().flush();
+
+			// the response is written by the handler thread
+			String response = readMessage(socket.getInputStream());
+			assertTrue(response, response.startsWith("SIP/2.0 200 OK\r\n"));
+			assertTrue(response.contains("Call-ID: c117fdfda2ffd6f4a859a2d504aedb25@127.0.0.1\r\n"));
+			assertEquals("REGISTER", _message.getMethod());
+		}
+		finally
+		{
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testSplitRecords() throws Exception
+	{
+		SSLSocket socket = newSocket();
+		try
+		{
+			// each write is sent in its own TLS record
+			OutputStream os = socket.getOutputStream();
+			byte[] b = (_msg + _msg + _msg).getBytes("UTF-8");
+			for (int i = 0; i < b.length; i += 7)
+			{
+				os.write(b, i, Math.min(7, b.length - i));
+				os.flush();
+			}
+			for (int i = 0; i < 3; i++)
+				assertTrue(readMessage(socket.getInputStream()).startsWith("SIP/2.0 200 OK\r\n"));
+			assertEquals(3, _received.get());
+		}
+		finally
+		{
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testLargeMessage() throws Exception
+	{
+		StringBuilder body = new StringBuilder();
+		while (body.length() < 40000)
+			body.append("a=candidate:1 1 UDP 2130706431 10.0.1.1 8998 typ host\r\n");
+		String msg = _msg.replace("Content-Length: 0", "Content-Type: application/sdp\r\nContent-Length: " + body.length())
+				+ body;
+
+		// larger than the maximum record size
+		SSLSocket socket = newSocket();
+		try
+		{
+			socket.getOutputStream().write(msg.getBytes("UTF-8"));
+			assertTrue(readMessage(socket.getInputStream()).startsWith("SIP/2.0 200 OK\r\n"));
+			assertEquals(body.length(), _message.getContentLength());
+		}
+		finally
+		{
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testOutbound() throws Exception
+	{
+		SSLServerSocket server = (SSLServerSocket) _clientContext.getServerSocketFactory().createServerSocket(
+				0, 10, InetAddress.getByName("127.0.0.1"));
+		try
+		{
+			SipConnection connection = _connector.getConnection(InetAddress.getByName("127.0.0.1"), server.getLocalPort());
+			assertNotNull(connection);
+			final SSLSocket socket = (SSLSocket) server.accept();
+			try
+			{
+				// the peer handshakes while reading
+				final String[] request = new String[1];
+				Thread reader = new Thread()
+				{
+					public void run()
+					{
+						try
+						{
+							request[0] = readMessage(socket.getInputStream());
+						}
+						catch (IOException e)
+						{
+							e.printStackTrace();
+						}
+					}
+				};
+				reader.start();
+
+				// the write waits for the handshake driven by the selector thread
+				connection.write(new ByteArrayBuffer(_msg.getBytes("UTF-8")));
+				reader.join(5000);
+				assertNotNull(request[0]);
+				assertTrue(request[0].startsWith("REGISTER sip:127.0.0.1:5070 SIP/2.0\r\n"));
+
+				socket.getOutputStream().write(response().getBytes("UTF-8"));
+				long end = System.currentTimeMillis() + 2000;
+				while (_message == null && System.currentTimeMillis() < end)
+					Thread.sleep(20);
+				assertNotNull(_message);
+				assertFalse(((SipMessage) _message).isRequest());
+			}
+			finally
+			{
+				socket.close();
+			}
+		}
+		finally
+		{
+			server.close();
+		}
+	}
+
+	private SSLContext newContext() throws Exception
+	{
+		KeyStore keyStore = KeyStore.getInstance("JKS");
+		InputStream in = getClass().getClassLoader().getResourceAsStream(KEYSTORE);
+		try
+		{
+			keyStore.load(in, STORE_PASSWORD.toCharArray());
+		}
+		finally
+		{
+			in.close();
+		}
+		KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keyManagerFactory.init(keyStore, KEY_PASSWORD.toCharArray());
+		TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		trustManagerFactory.init(keyStore);
+
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(keyManagerFactory.getKeyManagers(), trustManagerFactory.getTrustManagers(), null);
+		return context;
+	}
+
+	private SSLSocket newSocket() throws IOException
+	{
+		SSLSocket socket = (SSLSocket) _clientContext.getSocketFactory().createSocket(
+				InetAddress.getByName("127.0.0.1"), PORT);
+		socket.setSoTimeout(5000);
+		return socket;
+	}
+
+	/**
+	 * Reads a message without body.
+	 */
+	private String readMessage(InputStream in) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) != -1)
+		{
+			out.write(b);
+			if (out.toString("UTF-8").endsWith("\r\n\r\n"))
+				break;
+		}
+		return out.toString("UTF-8");
+	}
+
+	private String response()
+	{
+		return "SIP/2.0 200 OK\r\n"
+			+ "Call-ID: c117fdfda2ffd6f4a859a2d504aedb25@127.0.0.1\r\n"
+			+ "CSeq: 2 REGISTER\r\n"
+			+ "From: <sip:cipango@cipango.org>;tag=9Aaz+gQAAA\r\n"
+			+ "To: <sip:cipango@cipango.org>;tag=1234\r\n"
+			+ "Via: SIP/2.0/TLS 127.0.0.1:6010\r\n"
+			+ "Content-Length: 0\r\n\r\n";
+	}
+
+	class TestHandler implements SipHandler
+	{
+		public void handle(SipServletMessage message) throws IOException, ServletException
+		{
+			_message = message;
+			_received.incrementAndGet();
+			if (message instanceof SipMessage && ((SipMessage) message).isRequest())
+				((SipMessage) message).getConnection().write(new ByteArrayBuffer(response().getBytes("UTF-8")));
+		}
+
+		public Server getServer()
+		{
+			return null;
+		}
+
+		public void setServer(Server server)
+		{
+		}
+	}
+
+	String _msg =
+        "REGISTER sip:127.0.0.1:5070 SIP/2.0\r\n"
+        + "Call-ID: c117fdfda2ffd6f4a859a2d504aedb25@127.0.0.1\r\n"
+        + "CSeq: 2 REGISTER\r\n"
+        + "From: <sip:cipango@cipango.org>;tag=9Aaz+gQAAA\r\n"
+        + "To: <sip:cipango@cipango.org>\r\n"
+        + "Via: SIP/2.0/TLS 127.0.0.1:6010\r\n"
+        + "Max-Forwards: 70\r\n"
+        + "Contact: <sip:127.0.0.1:6010;transport=tls>\r\n"
+        + "Content-Length: 0\r\n\r\n";
+}
@@ -0,0 +1,272 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server.nio;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.sip.SipServletMessage;
+
+import org.cipango.server.SipHandler;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class UdpChannelConnectorTest
+{
+	private static final int PORT = 5044;
+
+	UdpChannelConnector _connector;
+	Map<String, List<String>> _received;
+	SipServletMessage _message;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		_received = new HashMap<String, List<String>>();
+		_connector = new UdpChannelConnector();
+		_connector.setHost("127.0.0.1");
+		_connector.setPort(PORT);
+		_connector.setAcceptors(1);
+		_connector.setWorkers(4);
+		_connector.setThreadPool(new QueuedThreadPool());
+		_connector.setHandler(new TestHandler());
+		_connector.start();
+		_message = null;
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		Thread.sleep(40);
+		_connector.stop();
+		Thread.sleep(10);
+	}
+
+	@Test
+	public void testLifeCycle() throws Exception
+	{
+		UdpChannelConnector connector = new UdpChannelConnector();
+		connector.setHost("127.0.0.1");
+		connector.setPort(5074);
+		connector.setAcceptors(4);
+		connector.setThreadPool(new QueuedThreadPool());
+		for (int i = 0; i < 10; i++)
+		{
+			connector.start();
+			assertTrue(connector.isRunning());
+			if (UdpChannelConnector.isReusePortSupported())
+				assertEquals(4, connector.getSockets());
+			else
+				assertEquals(1, connector.getSockets());
+			connector.stop();
+			assertFalse(connector.isRunning());
+			Thread.sleep(10);
+		}
+	}
+
+	@Test
+	public void testPing() throws Exception
+	{
+		for (int i = 0; i < 100; i++)
+		{
+			send("\r\n");
+			send("\r\n\r\n");
+		}
+	}
+
+	@Test
+	public void testMessage() throws Exception
+	{
+		send(message("c117fdfda2ffd6f4a859a2d504aedb25@127.0.0.1", 2));
+
+		SipServletMessage message = getMessage(1000);
+		assertNotNull(message);
+		assertEquals("REGISTER", message.getMethod());
+		assertEquals("c117fdfda2ffd6f4a859a2d504aedb25@127.0.0.1", message.getCallId());
+		assertEquals(PORT, message.getLocalPort());
+	}
+
+	@Test
+	public void testDefaultThreadPool() throws Exception
+	{
+		UdpChannelConnector connector = new UdpChannelConnector();
+		assertEquals(0, connector.getWorkers());
+		connector.setHost("127.0.0.1");
+		connector.setPort(0);
+		connector.setThreadPool(new QueuedThreadPool());
+		connector.setHandler(new TestHandler());
+		connector.start();
+		try
+		{
+			int port = connector.getLocalPort();
+			assertTrue(port > 0);
+			assertEquals(port, connector.getConnection(InetAddress.getByName("127.0.0.1"), 6010).getLocalPort());
+
+			DatagramSocket ds = new DatagramSocket();
+			byte[] b = message("c117fdfda2ffd6f4a859a2d504aedb25@127.0.0.1", 2).getBytes("UTF-8");
+			ds.send(new DatagramPacket(b, 0, b.length, InetAddress.getByName("127.0.0.1"), port));
+			ds.close();
+
+			SipServletMessage message = getMessage(1000);
+			assertNotNull(message);
+			assertEquals(port, message.getLocalPort());
+		}
+		finally
+		{
+			connector.stop();
+		}
+	}
+
+	@Test
+	public void testWorkerError() throws Exception
+	{
+		// the worker survives an error thrown by the handler
+		send(message("error", 1));
+		send(message("error", 2));
+
+		long timeout = System.currentTimeMillis() + 1000;
+		while (count() < 2 && System.currentTimeMillis() < timeout)
+			Thread.sleep(50);
+		assertEquals(2, count());
+	}
+
+	@Test
+	public void testCallOrdering() throws Exception
+	{
+		// Single acceptor: messages of a call must be handled in the order they were received
+		int calls = 20;
+		int cseqs = 50;
+		DatagramSocket ds = new DatagramSocket();
+		for (int cseq = 1; cseq <= cseqs; cseq++)
+		{
+			for (int call = 0; call < calls; call++)
+				send(ds, message("call-" + call, cseq));
+			Thread.sleep(5);
+		}
+		ds.close();
+
+		long timeout = System.currentTimeMillis() + 2000;
+		while (count() < calls * cseqs && System.currentTimeMillis() < timeout)
+			Thread.sleep(50);
+
+		// Some datagrams may be dropped by the kernel while the receive loop warms up
+		assertTrue(count() > 0);
+		for (List<String> list : _received.values())
+		{
+			List<String> sorted = new ArrayList<String>(list);
+			Collections.sort(sorted, new java.util.Comparator<String>()
+			{
+				public int compare(String o1, String o2)
+				{
+					return Integer.parseInt(o1) - Integer.parseInt(o2);
+				}
+			});
+			assertEquals(sorted, list);
+		}
+	}
+
+	private int count()
+	{
+		synchronized (_received)
+		{
+			int count = 0;
+			for (List<String> list : _received.values())
+				count += list.size();
+			return count;
+		}
+	}
+
+	private SipServletMessage getMessage(long timeout) throws InterruptedException
+	{
+		long absTimeout = System.currentTimeMillis() + timeout;
+		while (_message == null && absTimeout - System.currentTimeMillis() > 0)
+			Thread.sleep(50);
+		return _message;
+	}
+
+	private void send(String message) throws Exception
+	{
+		DatagramSocket ds = new DatagramSocket();
+		send(ds, message);
+		ds.close();
+	}
+
+	private void send(DatagramSocket ds, String message) throws Exception
+	{
+		byte[] b = message.getBytes("UTF-8");
+		DatagramPacket packet = new DatagramPacket(b, 0, b.length, InetAddress.getByName("127.0.0.1"), PORT);
+		ds.send(packet);
+	}
+
+	class TestHandler implements SipHandler
+	{
+		public void handle(SipServletMessage message) throws IOException, ServletException
+		{
+			_message = message;
+			String cseq = message.getHeader("CSeq");
+			synchronized (_received)
+			{
+				List<String> list = _received.get(message.getCallId());
+				if (list == null)
+				{
+					list = new ArrayList<String>();
+					_received.put(message.getCallId(), list);
+				}
+				list.add(cseq.substring(0, cseq.indexOf(' ')));
+			}
+			if ("error".equals(message.getCallId()) && cseq.startsWith("1 "))
+				throw new Error("handler error");
+		}
+
+		public Server getServer()
+		{
+			return null;
+		}
+
+		public void setServer(Server server)
+		{
+		}
+	}
+
+	static String message(String callId, int cseq)
+	{
+		return "REGISTER sip:127.0.0.1:5070 SIP/2.0\r\n"
+			+ "Call-ID: " + callId + "\r\n"
+			+ "CSeq: " + cseq + " REGISTER\r\n"
+			+ "From: <sip:cipango@cipango.org>;tag=9Aaz+gQAAA\r\n"
+			+ "To: <sip:cipango@cipango.org>\r\n"
+			+ "Via: SIP/2.0/UDP 127.0.0.1:6010;branch=z9hG4bK" + callId.hashCode() + "." + cseq + "\r\n"
+			+ "Max-Forwards: 70\r\n"
+			+ "User-Agent: Test Script\r\n"
+			+ "Contact: \"Cipango\" <sip:127.0.0.1:6010;transport=udp>\r\n"
+			+ "Content-Length: 0\r\n\r\n";
+	}
+}
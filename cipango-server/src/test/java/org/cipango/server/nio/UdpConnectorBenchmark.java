@@ -0,0 +1,165 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server.nio;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletException;
+import javax.servlet.sip.SipServletMessage;
+
+import org.cipango.server.AbstractSipConnector;
+import org.cipango.server.SipHandler;
+import org.cipango.server.bio.UdpConnector;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+/**
+ * Standalone packets per second benchmark comparing {@link UdpConnector} and
+ * {@link UdpChannelConnector}.
+ * <p>
+ * Usage: <code>UdpConnectorBenchmark [senders] [seconds] [acceptors]</code>
+ */
+public class UdpConnectorBenchmark
+{
+	private static final int PORT = 5046;
+
+	public static void main(String[] args) throws Exception
+	{
+		int senders = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		int acceptors = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+		System.out.println("senders=" + senders + " seconds=" + seconds + " acceptors=" + acceptors
+				+ " SO_REUSEPORT=" + UdpChannelConnector.isReusePortSupported());
+
+		UdpConnector bio = new UdpConnector();
+		run("bio.UdpConnector", bio, senders, seconds, acceptors);
+
+		UdpChannelConnector nio = new UdpChannelConnector();
+		run("nio.UdpChannelConnector", nio, senders, seconds, acceptors);
+
+		UdpChannelConnector nioWorkers = new UdpChannelConnector();
+		nioWorkers.setWorkers(Runtime.getRuntime().availableProcessors());
+		run("nio.UdpChannelConnector (workers)", nioWorkers, senders, seconds, acceptors);
+	}
+
+	static void run(String name, AbstractSipConnector connector, int senders, int seconds, int acceptors) throws Exception
+	{
+		final AtomicLong received = new AtomicLong();
+
+		QueuedThreadPool threadPool = new QueuedThreadPool();
+		threadPool.setMaxThreads(100);
+		connector.setHost("127.0.0.1");
+		connector.setPort(PORT);
+		connector.setAcceptors(acceptors);
+		connector.setThreadPool(threadPool);
+		connector.setHandler(new SipHandler()
+		{
+			public void handle(SipServletMessage message) throws IOException, ServletException
+			{
+				message.getCallId();
+				received.incrementAndGet();
+			}
+
+			public Server getServer()
+			{
+				return null;
+			}
+
+			public void setServer(Server server)
+			{
+			}
+		});
+		connector.start();
+
+		Sender[] threads = new Sender[senders];
+		for (int i = 0; i < senders; i++)
+		{
+			threads[i] = new Sender(i);
+			threads[i].start();
+		}
+
+		// warm-up
+		Thread.sleep(1000);
+		long start = System.nanoTime();
+		long startReceived = received.get();
+		long startSent = sent(threads);
+
+		Thread.sleep(seconds * 1000L);
+
+		long elapsed = System.nanoTime() - start;
+		long nbReceived = received.get() - startReceived;
+		long nbSent = sent(threads) - startSent;
+
+		for (int i = 0; i < senders; i++)
+			threads[i]._running = false;
+		for (int i = 0; i < senders; i++)
+			threads[i].join();
+
+		connector.stop();
+		Thread.sleep(500);
+
+		double s = elapsed / 1e9;
+		System.out.printf("%-40s sent: %10.0f msg/s  handled: %10.0f msg/s  (%.1f%% handled)%n",
+				name, nbSent / s, nbReceived / s, nbSent == 0 ? 0 : 100.0 * nbReceived / nbSent);
+	}
+
+	static long sent(Sender[] senders)
+	{
+		long sent = 0;
+		for (int i = 0; i < senders.length; i++)
+			sent += senders[i]._sent;
+		return sent;
+	}
+
+	static class Sender extends Thread
+	{
+		volatile boolean _running = true;
+		volatile long _sent;
+		private int _id;
+
+		Sender(int id)
+		{
+			_id = id;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				DatagramSocket socket = new DatagramSocket();
+				InetAddress address = InetAddress.getByName("127.0.0.1");
+				int call = 0;
+				while (_running)
+				{
+					byte[] b = UdpChannelConnectorTest.message("bench-" + _id + "-" + (call++ % 1000), 1).getBytes("UTF-8");
+					socket.send(new DatagramPacket(b, b.length, address, PORT));
+					_sent++;
+				}
+				socket.close();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+}
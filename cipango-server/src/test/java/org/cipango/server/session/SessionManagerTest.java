@@ -0,0 +1,192 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server.session;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.cipango.server.session.SessionManager.CallTask;
+import org.cipango.server.session.SessionManager.SessionScope;
+import org.cipango.util.TimerTask;
+import org.junit.Test;
+
+public class SessionManagerTest
+{
+	@Test
+	public void testExecute() throws Exception
+	{
+		SessionManager manager = new SessionManager();
+		final List<CallSession> sessions = new ArrayList<CallSession>();
+		
+		manager.execute("call1", new CallTask()
+		{
+			public void run(CallSession callSession)
+			{
+				sessions.add(callSession);
+			}
+		});
+		assertEquals(1, sessions.size());
+		assertEquals("call1", sessions.get(0).getId());
+		
+		// call session without sessions nor timers is removed
+		assertNull(manager.get("call1"));
+	}
+	
+	@Test
+	public void testBusyCallSession() throws Exception
+	{
+		final SessionManager manager = new SessionManager();
+		final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+		
+		SessionScope scope = manager.openScope("call1");
+		final CallSession callSession = scope.getCallSession();
+		
+		Thread thread = new Thread()
+		{
+			public void run()
+			{
+				for (int i = 0; i < 3; i++)
+				{
+					final int index = i;
+					manager.execute("call1", new CallTask()
+					{
+						public void run(CallSession cs)
+						{
+							assertSame(callSession, cs);
+							order.add(index);
+						}
+					});
+				}
+			}
+		};
+		thread.start();
+		// the submitting thread does not wait for the call session
+		thread.join(1000);
+		assertTrue(!thread.isAlive());
+		assertEquals(0, order.size());
+		
+		scope.close();
+		assertEquals(3, order.size());
+		assertEquals(0, order.get(0).intValue());
+		assertEquals(1, order.get(1).intValue());
+		assertEquals(2, order.get(2).intValue());
+	}
+	
+	@Test
+	public void testOrdering() throws Exception
+	{
+		final SessionManager manager = new SessionManager();
+		final int threads = 8;
+		final int tasks = 2000;
+		final List<String> running = Collections.synchronizedList(new ArrayList<String>());
+		final List<List<Integer>> received = new ArrayList<List<Integer>>();
+		for (int i = 0; i < threads; i++)
+			received.add(new ArrayList<Integer>());
+		final CountDownLatch latch = new CountDownLatch(threads);
+		
+		for (int t = 0; t < threads; t++)
+		{
+			final List<Integer> list = received.get(t);
+			new Thread()
+			{
+				public void run()
+				{
+					for (int i = 0; i < tasks; i++)
+					{
+						final int index = i;
+						manager.execute("hot-call", new CallTask()
+						{
+							public void run(CallSession callSession)
+							{
+								if (!running.isEmpty())
+									throw new IllegalStateException("concurrent execution");
+								running.add(callSession.getId());
+								list.add(index);
+								running.remove(0);
+							}
+						});
+					}
+					latch.countDown();
+				}
+			}.start();
+		}
+		assertTrue(latch.await(20, TimeUnit.SECONDS));
+		
+		for (int t = 0; t < threads; t++)
+		{
+			List<Integer> list = received.get(t);
+			assertEquals(tasks, list.size());
+			for (int i = 0; i < tasks; i++)
+				assertEquals(i, list.get(i).intValue());
+		}
+		assertNull(manager.get("hot-call"));
+	}
+	
+	@Test
+	public void testTimers() throws Exception
+	{
+		final SessionManager manager = new SessionManager();
+		manager.setSchedulerThreads(2);
+		manager.setStatsOn(true);
+		manager.start();
+		try
+		{
+			final CountDownLatch latch = new CountDownLatch(1);
+			final List<Boolean> locked = new ArrayList<Boolean>();
+			
+			SessionScope scope = manager.openScope("call1");
+			final CallSession callSession = scope.getCallSession();
+			callSession.schedule(new Runnable()
+			{
+				public void run()
+				{
+					locked.add(((SessionManager.CSession) callSession).getLock().isHeldByCurrentThread());
+					latch.countDown();
+				}
+			}, 50);
+			TimerTask cancelled = callSession.schedule(new Runnable()
+			{
+				public void run()
+				{
+					locked.add(false);
+				}
+			}, 20);
+			callSession.cancel(cancelled);
+			assertEquals(1, manager.getTimers());
+			scope.close();
+			
+			assertTrue(latch.await(2, TimeUnit.SECONDS));
+			Thread.sleep(50);
+			assertEquals(1, locked.size());
+			assertTrue(locked.get(0));
+			assertEquals(0, manager.getTimers());
+			assertEquals(1, manager.getTimersRun());
+			assertTrue(manager.getTimerLagMax() >= 0);
+			assertNull(manager.get("call1"));
+		}
+		finally
+		{
+			manager.stop();
+		}
+	}
+}
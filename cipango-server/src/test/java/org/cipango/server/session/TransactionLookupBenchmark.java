@@ -0,0 +1,110 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server.session;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.cipango.server.transaction.ServerTransaction;
+import org.cipango.server.transaction.Transaction;
+
+/**
+ * Compares transaction lookups with {@link TransactionTable} and with the linear scans it 
+ * replaces, for calls with 1, 10 and 100 transactions spread over 2 SIP sessions.
+ * <p>
+ * Usage: <code>TransactionLookupBenchmark [iterations]</code>
+ */
+public class TransactionLookupBenchmark
+{
+	private static volatile Object __sink;
+	
+	public static void main(String[] args) throws Exception
+	{
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+		
+		for (int round = 0; round < 3; round++)
+		{
+			System.out.println("round " + round);
+			for (int nb : new int[] { 1, 10, 100 })
+				run(nb, iterations);
+		}
+	}
+	
+	static void run(int nb, int iterations) throws Exception
+	{
+		Session[] sessions = new Session[] { new Session(null, "1"), new Session(null, "2") };
+		
+		List<ServerTransaction> list = new ArrayList<ServerTransaction>();
+		TransactionTable<ServerTransaction> table = new TransactionTable<ServerTransaction>();
+		String[] keys = new String[nb];
+		for (int i = 0; i < nb; i++)
+		{
+			ServerTransaction tx = TransactionTableTest.newTransaction("z9hG4bK-benchmark-branch-" + i, "INFO");
+			tx.getRequest().setSession(sessions[i % 2]);
+			tx.setState(Transaction.STATE_COMPLETED);
+			keys[i] = tx.getKey();
+			list.add(tx);
+			table.add(tx);
+		}
+		
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+			__sink = scan(list, keys[i % nb]);
+		long scanKey = System.nanoTime() - start;
+		
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+			__sink = table.get(keys[i % nb]);
+		long tableKey = System.nanoTime() - start;
+		
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+			__sink = scanActive(list, sessions[i % 2]);
+		long scanSession = System.nanoTime() - start;
+		
+		start = System.nanoTime();
+		for (int i = 0; i < iterations; i++)
+			__sink = table.hasActive(sessions[i % 2]);
+		long tableSession = System.nanoTime() - start;
+		
+		System.out.printf("%3d transactions  by key: scan %7.1f ns  index %7.1f ns   active by session: scan %7.1f ns  index %7.1f ns%n",
+				nb,
+				scanKey / (double) iterations, tableKey / (double) iterations,
+				scanSession / (double) iterations, tableSession / (double) iterations);
+	}
+	
+	static ServerTransaction scan(List<ServerTransaction> list, String key)
+	{
+		for (int i = 0; i < list.size(); i++)
+		{
+			ServerTransaction transaction = list.get(i);
+			if (transaction.getKey().equals(key))
+				return transaction;
+		}
+		return null;
+	}
+	
+	static boolean scanActive(List<ServerTransaction> list, Session session)
+	{
+		for (int i = 0; i < list.size(); i++)
+		{
+			ServerTransaction transaction = list.get(i);
+			if (transaction.getState() < Transaction.STATE_COMPLETED 
+					&& transaction.getRequest().session().equals(session))
+				return true;
+		}
+		return false;
+	}
+}
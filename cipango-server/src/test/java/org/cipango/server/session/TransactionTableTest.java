@@ -0,0 +1,107 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server.session;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+
+import org.cipango.server.SipRequest;
+import org.cipango.server.SipRequestTest;
+import org.cipango.server.session.scope.ScopedSession;
+import org.cipango.server.transaction.ServerTransaction;
+import org.cipango.server.transaction.Transaction;
+import org.junit.Test;
+
+public class TransactionTableTest
+{
+	@Test
+	public void testKey() throws Exception
+	{
+		TransactionTable<ServerTransaction> table = new TransactionTable<ServerTransaction>();
+		ServerTransaction tx1 = newTransaction("z9hG4bK1", "INVITE");
+		ServerTransaction tx2 = newTransaction("z9hG4bK2", "INFO");
+		ServerTransaction cancel = newTransaction("z9hG4bK1", "CANCEL");
+		table.add(tx1);
+		table.add(tx2);
+		table.add(cancel);
+		
+		assertEquals(3, table.size());
+		assertSame(tx1, table.get("z9hG4bK1"));
+		assertSame(tx2, table.get("z9hG4bK2"));
+		assertSame(cancel, table.get("cancel-z9hG4bK1"));
+		assertNull(table.get("z9hG4bK3"));
+		
+		table.remove(tx1);
+		assertNull(table.get("z9hG4bK1"));
+		assertEquals(2, table.size());
+	}
+	
+	@Test
+	public void testSession() throws Exception
+	{
+		TransactionTable<ServerTransaction> table = new TransactionTable<ServerTransaction>();
+		Session session1 = new Session(null, "1");
+		Session session2 = new Session(null, "2");
+		
+		ServerTransaction tx1 = newTransaction("z9hG4bK1", "INVITE");
+		ServerTransaction tx2 = newTransaction("z9hG4bK2", "INFO");
+		ServerTransaction tx3 = newTransaction("z9hG4bK3", "UPDATE");
+		
+		// session is set after the transaction has been added
+		table.add(tx1);
+		table.add(tx2);
+		table.add(tx3);
+		tx1.getRequest().setSession(session1);
+		tx2.getRequest().setSession(session1);
+		
+		assertEquals(2, table.get(session1).size());
+		assertSame(tx1, table.get(session1).get(0));
+		assertSame(tx2, table.get(session1).get(1));
+		assertEquals(2, table.get(new ScopedSession(session1)).size());
+		assertEquals(0, table.get(session2).size());
+		
+		tx3.getRequest().setSession(session2);
+		assertEquals(1, table.get(session2).size());
+		
+		assertTrue(table.hasActive(session1));
+		tx1.setState(Transaction.STATE_COMPLETED);
+		tx2.setState(Transaction.STATE_TERMINATED);
+		assertFalse(table.hasActive(session1));
+		assertTrue(table.hasActive(session2));
+		
+		table.remove(tx1);
+		table.remove(tx2);
+		assertEquals(0, table.get(session1).size());
+		table.remove(tx3);
+		assertEquals(0, table.size());
+	}
+	
+	static ServerTransaction newTransaction(String branch, String method) throws Exception
+	{
+		SipRequest request = (SipRequest) SipRequestTest.getMessage(
+				method + " sip:alice@cipango.org SIP/2.0\r\n"
+				+ "Via: SIP/2.0/UDP 192.168.1.1:5060;branch=" + branch + "\r\n"
+				+ "From: <sip:bob@cipango.org>;tag=1234\r\n"
+				+ "To: <sip:alice@cipango.org>\r\n"
+				+ "Call-ID: 1234@192.168.1.1\r\n"
+				+ "CSeq: 1 " + method + "\r\n"
+				+ "Max-Forwards: 70\r\n"
+				+ "Content-Length: 0\r\n\r\n");
+		return new ServerTransaction(request);
+	}
+}
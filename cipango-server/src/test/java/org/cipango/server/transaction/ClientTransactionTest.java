@@ -0,0 +1,183 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server.transaction;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.sip.SipServletResponse;
+import javax.servlet.sip.SipURI;
+
+import org.cipango.dns.Hop;
+import org.cipango.dns.ResolveListener;
+import org.cipango.dns.Resolver;
+import org.cipango.server.Server;
+import org.cipango.server.SipRequest;
+import org.cipango.server.SipRequestTest;
+import org.cipango.server.SipResponse;
+import org.cipango.server.session.SessionManager;
+import org.cipango.server.session.SessionManager.SessionScope;
+import org.cipango.sip.Via;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ClientTransactionTest
+{
+	private Server _server;
+	private SessionManager _sessionManager;
+	private TestResolver _resolver;
+	private TestListener _listener;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		_server = new Server();
+		_server.getConnectorManager().start();
+		_resolver = new TestResolver();
+		_server.setResolver(_resolver);
+		_sessionManager = new SessionManager();
+		_server.setSessionManager(_sessionManager);
+		_sessionManager.start();
+		_listener = new TestListener();
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		_sessionManager.stop();
+		_server.getConnectorManager().stop();
+	}
+
+	@Test
+	public void testResolutionFailure() throws Exception
+	{
+		_resolver._exception = new UnknownHostException("unknown.cipango.org");
+
+		SessionScope scope = _sessionManager.openScope("call1");
+		ClientTransaction tx;
+		try
+		{
+			tx = new ClientTransaction(newRequest(scope), _listener);
+			tx.start();
+
+			// reported once the call session is released, as an asynchronous failure
+			assertEquals(0, _listener.getResponses().size());
+		}
+		finally
+		{
+			scope.close();
+		}
+		assertServiceUnavailable(tx);
+	}
+
+	@Test
+	public void testAsyncResolutionFailure() throws Exception
+	{
+		SessionScope scope = _sessionManager.openScope("call2");
+		ClientTransaction tx;
+		try
+		{
+			tx = new ClientTransaction(newRequest(scope), _listener);
+			tx.start();
+		}
+		finally
+		{
+			scope.close();
+		}
+		assertNotNull(_resolver._listener);
+		assertEquals(0, _listener.getResponses().size());
+
+		final ResolveListener listener = _resolver._listener;
+		Thread thread = new Thread()
+		{
+			public void run()
+			{
+				listener.failed(new UnknownHostException("unknown.cipango.org"));
+			}
+		};
+		thread.start();
+		thread.join();
+
+		assertServiceUnavailable(tx);
+	}
+
+	private void assertServiceUnavailable(ClientTransaction tx)
+	{
+		List<SipResponse> responses = _listener.getResponses();
+		assertEquals(1, responses.size());
+		assertEquals(SipServletResponse.SC_SERVICE_UNAVAILABLE, responses.get(0).getStatus());
+		assertEquals(Transaction.STATE_TERMINATED, tx.getState());
+	}
+
+	private SipRequest newRequest(SessionScope scope) throws Exception
+	{
+		SipRequest request = (SipRequest) SipRequestTest.getMessage(
+				"INVITE sip:alice@unknown.cipango.org SIP/2.0\r\n"
+				+ "From: <sip:bob@cipango.org>;tag=1234\r\n"
+				+ "To: <sip:alice@cipango.org>\r\n"
+				+ "Call-ID: " + scope.getCallSession().getId() + "\r\n"
+				+ "CSeq: 1 INVITE\r\n"
+				+ "Max-Forwards: 70\r\n"
+				+ "Content-Length: 0\r\n\r\n");
+		request.setCallSession(scope.getCallSession());
+		return request;
+	}
+
+	class TestResolver implements Resolver
+	{
+		IOException _exception;
+		ResolveListener _listener;
+
+		public List<Hop> resolve(SipURI uri, ResolveListener listener) throws IOException
+		{
+			if (_exception != null)
+				throw _exception;
+			_listener = listener;
+			return null;
+		}
+
+		public List<Hop> resolve(Via via, ResolveListener listener) throws IOException
+		{
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	class TestListener implements ClientTransactionListener
+	{
+		private List<SipResponse> _responses = new ArrayList<SipResponse>();
+
+		public synchronized void handleResponse(SipResponse response)
+		{
+			assertTrue(response.getCallSession() != null);
+			_responses.add(response);
+		}
+
+		public void transactionTerminated(Transaction transaction)
+		{
+		}
+
+		public synchronized List<SipResponse> getResponses()
+		{
+			return new ArrayList<SipResponse>(_responses);
+		}
+	}
+}
@@ -0,0 +1,257 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.server.transaction;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.cipango.server.AbstractSipConnector;
+import org.cipango.server.Server;
+import org.cipango.server.SipConnection;
+import org.cipango.server.SipConnector;
+import org.cipango.server.SipRequest;
+import org.cipango.server.SipRequestTest;
+import org.cipango.server.SipResponse;
+import org.cipango.server.session.SessionManager;
+import org.cipango.server.session.SessionManager.SessionScope;
+import org.eclipse.jetty.io.Buffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ServerTransactionTest
+{
+	private Server _server;
+	private SessionManager _sessionManager;
+	private TestConnection _connection;
+	private int _t1;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		_t1 = Transaction.__T1;
+		Transaction.__T1 = 50;
+
+		_server = new Server();
+		_server.getConnectorManager().start();
+		_server.getTransactionManager().setStatsOn(true);
+		_sessionManager = new SessionManager();
+		_sessionManager.setServer(_server);
+		_sessionManager.start();
+		_connection = new TestConnection();
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		_sessionManager.stop();
+		_server.getConnectorManager().stop();
+		Transaction.__T1 = _t1;
+	}
+
+	@Test
+	public void testNonInviteRetransmission() throws Exception
+	{
+		SessionScope scope = _sessionManager.openScope("call1");
+		try
+		{
+			SipRequest request = newRequest("MESSAGE", scope);
+			ServerTransaction tx = new ServerTransaction(request);
+			tx.send(new SipResponse(request, 200, "OK"));
+			assertEquals(1, _connection.getSent().size());
+
+			// absorbed request retransmissions are answered with the encoded final response
+			tx.handleRetransmission(request);
+			tx.handleRetransmission(request);
+			assertEquals(2, _server.getTransactionManager().getCachedRetransmissions());
+			assertSent(3);
+		}
+		finally
+		{
+			scope.close();
+		}
+	}
+
+	@Test
+	public void testInviteTimerG() throws Exception
+	{
+		SessionScope scope = _sessionManager.openScope("call2");
+		try
+		{
+			SipRequest request = newRequest("INVITE", scope);
+			ServerTransaction tx = new ServerTransaction(request);
+			tx.send(new SipResponse(request, 486, "Busy Here"));
+		}
+		finally
+		{
+			scope.close();
+		}
+
+		long end = System.currentTimeMillis() + 2000;
+		while (_server.getTransactionManager().getCachedRetransmissions() < 2
+				&& System.currentTimeMillis() < end)
+			Thread.sleep(10);
+
+		// timer G retransmissions
+		assertTrue(_server.getTransactionManager().getCachedRetransmissions() >= 2);
+		assertSent(_connection.getSent().size());
+	}
+
+	private void assertSent(int count)
+	{
+		List<byte[]> sent = _connection.getSent();
+		assertTrue(sent.size() >= count);
+		for (int i = 1; i < count; i++)
+			assertTrue(Arrays.equals(sent.get(0), sent.get(i)));
+	}
+
+	private SipRequest newRequest(String method, SessionScope scope) throws Exception
+	{
+		SipRequest request = (SipRequest) SipRequestTest.getMessage(
+				method + " sip:alice@cipango.org SIP/2.0\r\n"
+				+ "Via: SIP/2.0/UDP 192.168.1.1:5060;branch=z9hG4bK" + method + "\r\n"
+				+ "From: <sip:bob@cipango.org>;tag=1234\r\n"
+				+ "To: <sip:alice@cipango.org>\r\n"
+				+ "Call-ID: " + scope.getCallSession().getId() + "\r\n"
+				+ "CSeq: 1 " + method + "\r\n"
+				+ "Max-Forwards: 70\r\n"
+				+ "Content-Length: 0\r\n\r\n");
+		request.setCallSession(scope.getCallSession());
+		request.setConnection(_connection);
+		return request;
+	}
+
+	class TestConnection implements SipConnection
+	{
+		private TestConnector _connector = new TestConnector(this);
+		private List<byte[]> _sent = new ArrayList<byte[]>();
+
+		public SipConnector getConnector()
+		{
+			return _connector;
+		}
+
+		public InetAddress getLocalAddress()
+		{
+			return _connector.getAddr();
+		}
+
+		public int getLocalPort()
+		{
+			return 5060;
+		}
+
+		public InetAddress getRemoteAddress()
+		{
+			return _connector.getAddr();
+		}
+
+		public int getRemotePort()
+		{
+			return 5060;
+		}
+
+		public synchronized void write(Buffer buffer) throws IOException
+		{
+			_sent.add(buffer.asArray());
+		}
+
+		public boolean isOpen()
+		{
+			return true;
+		}
+
+		public synchronized List<byte[]> getSent()
+		{
+			return new ArrayList<byte[]>(_sent);
+		}
+	}
+
+	class TestConnector extends AbstractSipConnector
+	{
+		private TestConnection _connection;
+
+		public TestConnector(TestConnection connection)
+		{
+			_connection = connection;
+		}
+
+		public void close() throws IOException
+		{
+		}
+
+		public InetAddress getAddr()
+		{
+			try
+			{
+				return InetAddress.getByName("192.168.1.1");
+			}
+			catch (IOException e)
+			{
+				throw new IllegalStateException(e);
+			}
+		}
+
+		public int getDefaultPort()
+		{
+			return 5060;
+		}
+
+		public int getTransportOrdinal()
+		{
+			return 0;
+		}
+
+		public boolean isReliable()
+		{
+			return false;
+		}
+
+		public void open() throws IOException
+		{
+		}
+
+		@Override
+		public void accept(int acceptorID) throws IOException, InterruptedException
+		{
+		}
+
+		public SipConnection getConnection(InetAddress address, int port)
+		{
+			return _connection;
+		}
+
+		public Object getConnection()
+		{
+			return null;
+		}
+
+		public int getLocalPort()
+		{
+			return 5060;
+		}
+
+		public boolean isSecure()
+		{
+			return false;
+		}
+	}
+}
@@ -0,0 +1,119 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+package org.cipango.sip;
+
+import java.lang.management.ManagementFactory;
+
+import org.eclipse.jetty.io.Buffer;
+
+/**
+ * Standalone benchmark of the parsing of the URIs, addresses and Vias of the RFC 4475 torture
+ * test messages, from strings as done by applications and from received buffer views with
+ * {@link FieldParser}. Reports the time and the bytes allocated per value. Requires a JVM
+ * supporting thread allocated bytes (<code>com.sun.management.ThreadMXBean</code>).
+ * <p>
+ * Usage: <code>FieldParserBenchmark [iterations]</code>
+ */
+public class FieldParserBenchmark
+{
+	static final String[] URIS = {
+		"sip:vivekg@chair-dnrc.example.com;unknownparam",
+		"sip:%61lice@atlanta.com;transport=TCP",
+		"sip:sips%3Auser%40example.com@example.net",
+		"sip:user;par=u%40example.net@example.com",
+		"sip:[2001:db8::10]:5070",
+		"sip:+1234@example.com;user=phone",
+		"sip:user@example.com?Route=%3Csip:example.com%3E",
+		"sip:mrf;voicexml=http://foo.bar.com/vxml/play.jsp%3Fuser%3Dsip:foo%40bar.com"
+	};
+
+	static final String[] ADDRESSES = {
+		"\"J Rosenberg \\\\\\\"\"       <sip:jdrosen@example.com>;tag=98asjd8",
+		"Bob <sip:bob@biloxi.example.com>;tag=a73kszlfl",
+		"<sip:caller@example.net>;tag=2827",
+		"sip:vivekg@chair-dnrc.example.com ; tag = 19923n",
+		"\"Quoted string \\\"\\\"\" <sip:jdrosen@example.com> ; newparam = newvalue ; secondparam ; q = 0.33",
+		"<sip:+1234@example.com;user=phone>;q=0.5;expires=3600",
+		"<sip:ss2.example.com;lr>"
+	};
+
+	static final String[] VIAS = {
+		"SIP/2.0/UDP 192.0.2.2:5060;branch=z9hG4bKkdjuw;received=192.0.2.1;rport=5060",
+		"SIP/2.0/UDP first.example.com:4000;ttl=16;maddr=224.2.0.1;branch=z9hG4bKa7c6a8dlze.1",
+		"SIP/2.0/TCP [2001:db8::9:1];branch=z9hG4bKas3-111"
+	};
+
+	public static void main(String[] args) throws Exception
+	{
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+		Buffer[] uris = views(URIS);
+		Buffer[] addresses = views(ADDRESSES);
+		Buffer[] vias = views(VIAS);
+
+		for (int mode = 0; mode < 2; mode++)
+		{
+			run(mode, uris, addresses, vias, iterations); // warm-up
+			long start = System.nanoTime();
+			long bytes = run(mode, uris, addresses, vias, iterations);
+			long values = (long) iterations * (uris.length + addresses.length + vias.length);
+			System.out.printf("%-8s %8d ns/value %8d bytes/value%n", MODES[mode],
+					(System.nanoTime() - start) / values, bytes / values);
+		}
+	}
+
+	private static final String[] MODES = { "string", "buffer" };
+
+	static Buffer[] views(String[] values)
+	{
+		Buffer[] views = new Buffer[values.length];
+		for (int i = 0; i < values.length; i++)
+			views[i] = FieldParserTest.view(values[i]);
+		return views;
+	}
+
+	static long run(int mode, Buffer[] uris, Buffer[] addresses, Buffer[] vias, int iterations) throws Exception
+	{
+		com.sun.management.ThreadMXBean mxBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long id = Thread.currentThread().getId();
+		long start = mxBean.getThreadAllocatedBytes(id);
+
+		int hash = 0;
+		for (int i = 0; i < iterations; i++)
+		{
+			if (mode == 0)
+			{
+				for (int j = 0; j < URIS.length; j++)
+					hash += URIFactory.parseURI(URIS[j]).getScheme().length();
+				for (int j = 0; j < ADDRESSES.length; j++)
+					hash += new NameAddr(ADDRESSES[j]).getURI().getScheme().length();
+				for (int j = 0; j < VIAS.length; j++)
+					hash += new Via(VIAS[j]).getPort();
+			}
+			else
+			{
+				for (int j = 0; j < uris.length; j++)
+					hash += FieldParser.parseURI(uris[j]).getScheme().length();
+				for (int j = 0; j < addresses.length; j++)
+					hash += FieldParser.parseNameAddr(addresses[j]).getURI().getScheme().length();
+				for (int j = 0; j < vias.length; j++)
+					hash += FieldParser.parseVia(vias[j]).getPort();
+			}
+		}
+		long bytes = mxBean.getThreadAllocatedBytes(id) - start;
+		if (hash == 42)
+			System.out.println();
+		return bytes;
+	}
+}
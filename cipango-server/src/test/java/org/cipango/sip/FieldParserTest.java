@@ -0,0 +1,194 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+package org.cipango.sip;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.util.Iterator;
+
+import javax.servlet.sip.Address;
+import javax.servlet.sip.ServletParseException;
+import javax.servlet.sip.SipURI;
+
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.eclipse.jetty.io.View;
+import org.junit.Test;
+
+public class FieldParserTest
+{
+	/**
+	 * Returns a view on the value in the middle of a larger buffer, as for a received header.
+	 */
+	static Buffer view(String value)
+	{
+		Buffer buffer = new ByteArrayBuffer("Header: " + value + "\r\n");
+		View view = new View(buffer);
+		view.setGetIndex(8);
+		view.setPutIndex(buffer.length() - 2);
+		return view;
+	}
+
+	@Test
+	public void testSipURI() throws Exception
+	{
+		SipURI uri = (SipURI) FieldParser.parseURI(view("sips:%61lice:secret@Atlanta.com:5061;Transport=TCP;lr;f%3Doo=%22bar%22?Subject=hello%20world&Priority=urgent"));
+		assertTrue(uri.isSecure());
+		assertEquals("alice", uri.getUser());
+		assertEquals("secret", uri.getUserPassword());
+		assertEquals("Atlanta.com", uri.getHost());
+		assertEquals(5061, uri.getPort());
+		assertEquals("TCP", uri.getTransportParam());
+		assertTrue(uri.getLrParam());
+		assertEquals("\"bar\"", uri.getParameter("f=oo"));
+		assertEquals("hello world", uri.getHeader("Subject"));
+		assertEquals("urgent", uri.getHeader("Priority"));
+
+		Iterator<String> it = uri.getParameterNames();
+		assertEquals("transport", it.next());
+		assertEquals("lr", it.next());
+		assertEquals("f=oo", it.next());
+		assertFalse(it.hasNext());
+
+		assertEquals(new SipURIImpl("sips:alice:secret@atlanta.com:5061;transport=tcp;lr;f%3Doo=%22bar%22?Subject=hello%20world&Priority=urgent"), uri);
+	}
+
+	@Test
+	public void testTorture() throws Exception
+	{
+		SipURI uri = (SipURI) FieldParser.parseURI(view("sip:user;par=u%40example.net@example.com"));
+		assertEquals("user;par=u@example.net", uri.getUser());
+		assertEquals("example.com", uri.getHost());
+
+		uri = (SipURI) FieldParser.parseURI(view("sip:sips%3Auser%40example.com@example.net"));
+		assertEquals("sips:user@example.com", uri.getUser());
+
+		uri = (SipURI) FieldParser.parseURI(view("sip:[2001:db8::10]:5070;maddr=[2001:db8::20]"));
+		assertEquals("[2001:db8::10]", uri.getHost());
+		assertEquals(5070, uri.getPort());
+		assertEquals("[2001:db8::20]", uri.getMAddrParam());
+
+		uri = (SipURI) FieldParser.parseURI(view("sip:mrf;voicexml=http://foo.bar.com/vxml/play.jsp%3Fuser%3Dsip:foo%40bar.com"));
+		assertNull(uri.getUser());
+		assertEquals("http://foo.bar.com/vxml/play.jsp?user=sip:foo@bar.com", uri.getParameter("voicexml"));
+
+		String[] invalid = { "sip:user@space here:5060", "sip:user@plus+here:5060", "sip:user@host:50a60",
+				"sip:user@[::1:5060", "sip:user@host?header", "sip:user@", "sipx:user@host" };
+		for (String s : invalid)
+		{
+			try
+			{
+				FieldParser.parseURI(view(s));
+				if (s.startsWith("sip:"))
+					fail(s);
+			}
+			catch (ServletParseException e)
+			{
+			}
+		}
+	}
+
+	@Test
+	public void testNameAddr() throws Exception
+	{
+		Address address = FieldParser.parseNameAddr(view("\"J Rosenberg \\\\\\\"\" <sip:jdrosen@example.com>;tag=98asjd8"));
+		assertEquals("J Rosenberg \\\"", address.getDisplayName());
+		assertEquals("sip:jdrosen@example.com", address.getURI().toString());
+		assertEquals("98asjd8", address.getParameter("tag"));
+
+		address = FieldParser.parseNameAddr(view("Bob <sip:bob@biloxi.example.com;transport=tcp>;Tag=a73kszlfl;q=0.5"));
+		assertEquals("Bob", address.getDisplayName());
+		assertEquals("tcp", ((SipURI) address.getURI()).getTransportParam());
+		assertEquals("a73kszlfl", address.getParameter("tag"));
+		assertEquals(0.5f, address.getQ());
+
+		address = FieldParser.parseNameAddr(view("sip:vivekg@chair-dnrc.example.com ; tag = 19923n"));
+		assertNull(address.getDisplayName());
+		assertEquals("chair-dnrc.example.com", ((SipURI) address.getURI()).getHost());
+		assertEquals("19923n", address.getParameter("tag"));
+
+		address = FieldParser.parseNameAddr(view("<sip:alice@atlanta.com>;info=\"a;b=c\";expires=60"));
+		assertEquals("a;b=c", address.getParameter("info"));
+		assertEquals(60, address.getExpires());
+
+		assertTrue(FieldParser.parseNameAddr(view("*")).isWildcard());
+
+		assertEquals(new NameAddr("\"Quoted string \\\"\\\"\" <sip:jdrosen@example.com> ; newparam = newvalue"),
+				FieldParser.parseNameAddr(view("\"Quoted string \\\"\\\"\" <sip:jdrosen@example.com> ; newparam = newvalue")));
+
+		try
+		{
+			FieldParser.parseNameAddr(view("\"Watson, Thomas\" < sip:t.watson@example.org >"));
+			fail();
+		}
+		catch (ServletParseException e)
+		{
+		}
+	}
+
+	@Test
+	public void testVia() throws Exception
+	{
+		Via via = FieldParser.parseVia(view("SIP/2.0/UDP 192.0.2.2:5060;branch=z9hG4bKkdjuw;Received=192.0.2.1;rport"));
+		assertEquals("SIP/2.0", via.getProtocol());
+		assertEquals("UDP", via.getTransport());
+		assertEquals("192.0.2.2", via.getHost());
+		assertEquals(5060, via.getPort());
+		assertEquals("z9hG4bKkdjuw", via.getBranch());
+		assertEquals("192.0.2.1", via.getReceived());
+		assertEquals("", via.getRport());
+		assertEquals("SIP/2.0/UDP 192.0.2.2:5060;branch=z9hG4bKkdjuw;received=192.0.2.1;rport", via.toString());
+
+		via = FieldParser.parseVia(view("SIP / 2.0 / UDP first.example.com: 4000;ttl=16 ;maddr=224.2.0.1 ;branch=z9hG4bKa7c6a8dlze.1"));
+		assertEquals("SIP/2.0", via.getProtocol());
+		assertEquals("first.example.com", via.getHost());
+		assertEquals(4000, via.getPort());
+		assertEquals("224.2.0.1", via.getMAddr());
+		assertEquals("z9hG4bKa7c6a8dlze.1", via.getBranch());
+
+		via = FieldParser.parseVia(view("SIP/2.0/TCP [2001:db8::9:1];branch=z9hG4bKas3-111"));
+		assertEquals("[2001:db8::9:1]", via.getHost());
+		assertEquals(-1, via.getPort());
+		assertEquals("TCP", via.getTransport());
+	}
+
+	@Test
+	public void testParameterMap() throws Exception
+	{
+		ParameterMap map = new ParameterMap(1);
+		map.put("a", "1");
+		map.put("b", "2");
+		map.put("c", "3");
+		assertEquals("1", map.put("a", "4"));
+		assertEquals(3, map.size());
+		assertEquals("{a=4, b=2, c=3}", map.toString());
+
+		Iterator<String> it = map.keySet().iterator();
+		it.next();
+		it.next();
+		it.remove();
+		assertEquals("c", it.next());
+		assertEquals("{a=4, c=3}", map.toString());
+
+		ParameterMap clone = map.clone();
+		clone.remove("a");
+		assertEquals("4", map.get("a"));
+		assertNull(clone.get("a"));
+		assertEquals(1, clone.size());
+	}
+}
@@ -26,6 +26,7 @@ import org.junit.Test;
 public class StreamParserTest
 {
 	int seq = -1;
+	String subject;
 
 	@Test
 	public void testTcp() throws Exception 
@@ -103,6 +104,38 @@ public class StreamParserTest
 		System.out.println(_msg.getBytes().length);
 	}
 	
+	@Test
+	public void testFoldedOverflow() throws Exception 
+	{
+		StringEndPoint ep = new StringEndPoint();
+		ep.setInput("INVITE sip:foo SIP/2.0\r\n"
+				+ "Subject: hello\r\n world\r\n"
+				+ "X-Padding: ----------------------------------------------------------------------------------------------------\r\n"
+				+ "Content-Length: 0\r\n\r\n");
+		
+		// parsed again from the start in a larger buffer, as TCP connectors do on overflow
+		int size = 128;
+		SipParser parser = new SipParser(new ByteArrayBuffer(size), ep, new Handler());
+		boolean overflow = false;
+		do
+		{
+			try
+			{
+				parser.parse();
+				overflow = false;
+			}
+			catch (BufferOverflowException e)
+			{
+				size = size * 2;
+				parser.setBuffer(new ByteArrayBuffer(size), true);
+				overflow = true;
+			}
+		}
+		while (overflow);
+		assertEquals(256, size);
+		assertEquals("hello world", subject);
+	}
+	
 	class Handler extends SipParser.EventHandler
     {
 
@@ -110,6 +143,8 @@ public class StreamParserTest
 		{
 			if (name.toString().equals("X-Seq"))
 				seq = Integer.parseInt(value.toString());
+			else if (name.toString().equals("Subject"))
+				subject = value.toString();
 		}
     	
     }
@@ -0,0 +1,103 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.sipapp.rules;
+
+import static org.cipango.sipapp.rules.CompiledRulesTest.and;
+import static org.cipango.sipapp.rules.CompiledRulesTest.equal;
+import static org.cipango.sipapp.rules.CompiledRulesTest.newRequest;
+
+import javax.servlet.sip.SipServletRequest;
+
+/**
+ * Standalone benchmark comparing the time to find the servlet mapping of an initial request
+ * when each of 50 mapping rules is evaluated in turn and when the rules are compiled.
+ * <p>
+ * Usage: <code>CompiledRulesBenchmark [iterations]</code>
+ */
+public class CompiledRulesBenchmark
+{
+	private static final String[] METHODS = { "INVITE", "MESSAGE", "SUBSCRIBE", "PUBLISH", "OPTIONS" };
+
+	public static void main(String[] args) throws Exception
+	{
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+		MatchingRule[] rules = new MatchingRule[50];
+		for (int i = 0; i < rules.length; i++)
+		{
+			String method = METHODS[i % METHODS.length];
+			switch (i % 3)
+			{
+			case 0:
+				rules[i] = and(equal("request.method", method), equal("request.uri.user", "service" + i));
+				break;
+			case 1:
+				rules[i] = and(equal("request.method", method), 
+						new SubdomainRule("request.uri.host", "domain" + i + ".org"),
+						new ContainsRule("request.from.uri.user", "user" + i, true));
+				break;
+			default:
+				rules[i] = and(new EqualsRule("request.to.uri.user", "service" + i, true), 
+						new ExistsRule("request.from.uri.param.transport"));
+			}
+		}
+
+		SipServletRequest[] requests = new SipServletRequest[rules.length];
+		for (int i = 0; i < requests.length; i++)
+		{
+			String method = METHODS[i % METHODS.length];
+			requests[i] = newRequest(method, "sip:service" + i + "@domain" + i + ".org", "sip:user" + i + "@cipango.org;transport=tcp");
+		}
+
+		CompiledRules compiled = new CompiledRules(rules);
+		for (int i = 0; i < requests.length; i++)
+		{
+			if (compiled.match(requests[i]) != sequential(rules, requests[i]))
+				throw new IllegalStateException("Compiled rules mismatch for " + requests[i]);
+		}
+
+		for (int run = 0; run < 2; run++) // first run is warm-up
+		{
+			long start = System.nanoTime();
+			int matches = 0;
+			for (int i = 0; i < iterations; i++)
+				matches += sequential(rules, requests[i % requests.length]);
+			long sequential = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < iterations; i++)
+				matches += compiled.match(requests[i % requests.length]);
+			long compiledTime = System.nanoTime() - start;
+
+			if (run == 1)
+			{
+				System.out.printf("%-12s %8d ns/request%n", "sequential", sequential / iterations);
+				System.out.printf("%-12s %8d ns/request%n", "compiled", compiledTime / iterations);
+			}
+			if (matches == 0)
+				System.out.println();
+		}
+	}
+
+	static int sequential(MatchingRule[] rules, SipServletRequest request)
+	{
+		for (int i = 0; i < rules.length; i++)
+		{
+			if (rules[i].matches(request))
+				return i;
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,130 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.sipapp.rules;
+
+import static junit.framework.Assert.assertEquals;
+
+import javax.servlet.sip.SipServletRequest;
+
+import org.cipango.server.SipRequestTest;
+import org.junit.Test;
+
+public class CompiledRulesTest
+{
+	public static SipServletRequest newRequest(String method, String uri, String from) throws Exception
+	{
+		String message = method + " " + uri + " SIP/2.0\r\n"
+			+ "Via: SIP/2.0/UDP 192.168.1.2:5061;branch=z9hG4bKnashds7\r\n"
+			+ "Max-Forwards: 70\r\n"
+			+ "From: Bob <" + from + ">;tag=a73kszlfl\r\n"
+			+ "To: <" + uri + ">\r\n"
+			+ "Call-ID: 1j9FpLxk3uxtm8tn@192.168.1.2\r\n"
+			+ "CSeq: 1 " + method + "\r\n"
+			+ "Content-Length: 0\r\n\r\n";
+		return (SipServletRequest) SipRequestTest.getMessage(message);
+	}
+
+	public static MatchingRule and(MatchingRule... rules)
+	{
+		AndRule and = new AndRule();
+		for (MatchingRule rule : rules)
+			and.addCriterion(rule);
+		return and;
+	}
+
+	public static MatchingRule or(MatchingRule... rules)
+	{
+		OrRule or = new OrRule();
+		for (MatchingRule rule : rules)
+			or.addCriterion(rule);
+		return or;
+	}
+
+	public static MatchingRule not(MatchingRule rule)
+	{
+		NotRule not = new NotRule();
+		not.setCriterion(rule);
+		return not;
+	}
+
+	public static MatchingRule equal(String var, String value)
+	{
+		return new EqualsRule(var, value, false);
+	}
+
+	protected void assertMatch(MatchingRule[] rules, SipServletRequest request)
+	{
+		int expected = -1;
+		for (int i = 0; i < rules.length && expected == -1; i++)
+		{
+			if (rules[i].matches(request))
+				expected = i;
+		}
+		assertEquals(request.toString(), expected, new CompiledRules(rules).match(request));
+	}
+
+	@Test
+	public void testMatch() throws Exception
+	{
+		MatchingRule[] rules = {
+			and(equal("request.method", "MESSAGE"), new ContainsRule("request.from.uri.host", "EXAMPLE", true)),
+			equal("request.uri.user", "voicemail"),
+			and(equal("request.method", "INVITE"), new SubdomainRule("request.uri.host", "example.com")),
+			or(equal("request.method", "SUBSCRIBE"), equal("request.method", "PUBLISH")),
+			and(new ExistsRule("request.uri.param.transport"), not(equal("request.uri.scheme", "sips"))),
+			and(equal("request.method", "REGISTER"), new EqualsRule("request.from.uri.user", "ALICE", true)),
+			equal("request.method", "FOO"),
+			new EqualsRule("request.uri.host", "Cipango.org", true),
+			equal("request.method", "INVITE")
+		};
+
+		String[] methods = { "INVITE", "MESSAGE", "SUBSCRIBE", "PUBLISH", "REGISTER", "FOO", "OPTIONS" };
+		String[] uris = { "sip:voicemail@cipango.org", "sip:bob@sub.example.com", "sip:bob@notexample.com",
+				"sip:bob@CIPANGO.org;transport=tcp", "sips:bob@example.com;transport=tls", "tel:+3312345678" };
+		String[] froms = { "sip:alice@example.com", "sip:bob@cipango.org" };
+
+		for (String method : methods)
+			for (String uri : uris)
+				for (String from : froms)
+					assertMatch(rules, newRequest(method, uri, from));
+	}
+
+	@Test
+	public void testIndexes() throws Exception
+	{
+		MatchingRule[] rules = {
+			equal("request.method", "INVITE"),
+			and(equal("request.method", "INVITE"), equal("request.uri.user", "bob")),
+			equal("request.uri.user", "bob"),
+			new ExistsRule("request.method")
+		};
+		CompiledRules compiled = new CompiledRules(rules);
+		assertEquals(0, compiled.match(newRequest("INVITE", "sip:bob@cipango.org", "sip:alice@cipango.org")));
+		assertEquals(2, compiled.match(newRequest("MESSAGE", "sip:bob@cipango.org", "sip:alice@cipango.org")));
+		assertEquals(3, compiled.match(newRequest("MESSAGE", "sip:alice@cipango.org", "sip:alice@cipango.org")));
+
+		compiled = new CompiledRules(new MatchingRule[] { equal("request.method", "MESSAGE") });
+		assertEquals(-1, compiled.match(newRequest("INVITE", "sip:bob@cipango.org", "sip:alice@cipango.org")));
+	}
+
+	@Test
+	public void testContainsIgnoreCase() throws Exception
+	{
+		SipServletRequest request = newRequest("INVITE", "sip:bob@Cipango.org", "sip:alice@cipango.org");
+		assertEquals(true, new ContainsRule("request.uri.host", "CIPANGO", true).matches(request));
+		assertEquals(0, new CompiledRules(new MatchingRule[] { new ContainsRule("request.uri.host", "CIPANGO", true) }).match(request));
+		assertEquals(-1, new CompiledRules(new MatchingRule[] { new ContainsRule("request.uri.host", "CIPANGO", false) }).match(request));
+	}
+}
@@ -0,0 +1,89 @@
+package org.cipango.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.cipango.util.TimerQueue.Node;
+
+/**
+ * Compares scheduling and cancelling timers with {@link TimerQueue} and {@link TimingWheel}.
+ * <p>
+ * Usage: <code>TimingWheelBenchmark [timers] [rounds]</code>
+ */
+public class TimingWheelBenchmark
+{
+	public static void main(String[] args)
+	{
+		int timers = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		
+		long[] delays = new long[timers];
+		Random random = new Random(0);
+		for (int i = 0; i < timers; i++)
+		{
+			// SIP transaction timers: T1 retransmissions to 64*T1 and a few long lived ones
+			delays[i] = i % 10 == 0 ? 180000 + random.nextInt(3600000) : 500 + random.nextInt(32000);
+		}
+		
+		for (int r = 0; r < rounds; r++)
+		{
+			queue(delays);
+			wheel(delays);
+		}
+	}
+	
+	static void queue(long[] delays)
+	{
+		long now = System.currentTimeMillis();
+		TimerQueue<Node> queue = new TimerQueue<Node>(1024);
+		Node[] nodes = new Node[delays.length];
+		
+		long start = System.nanoTime();
+		for (int i = 0; i < delays.length; i++)
+		{
+			nodes[i] = new Node();
+			queue.offer(nodes[i], now + delays[i]);
+		}
+		long scheduled = System.nanoTime();
+		for (int i = 0; i < delays.length; i += 2)
+			queue.remove(nodes[i]);
+		long cancelled = System.nanoTime();
+		while (queue.poll() != null);
+		long expired = System.nanoTime();
+		
+		print("TimerQueue", delays.length, start, scheduled, cancelled, expired);
+	}
+	
+	static void wheel(long[] delays)
+	{
+		long now = System.currentTimeMillis();
+		TimingWheel wheel = new TimingWheel(10, now);
+		TimerTask[] tasks = new TimerTask[delays.length];
+		
+		long start = System.nanoTime();
+		for (int i = 0; i < delays.length; i++)
+		{
+			tasks[i] = new TimerTask(null, now + delays[i]);
+			wheel.schedule(tasks[i]);
+		}
+		long scheduled = System.nanoTime();
+		for (int i = 0; i < delays.length; i += 2)
+			wheel.cancel(tasks[i]);
+		long cancelled = System.nanoTime();
+		List<TimerTask> expired = new ArrayList<TimerTask>();
+		wheel.expire(now + 3800000, expired);
+		long end = System.nanoTime();
+		
+		print("TimingWheel", delays.length, start, scheduled, cancelled, end);
+	}
+	
+	static void print(String name, int timers, long start, long scheduled, long cancelled, long expired)
+	{
+		System.out.printf("%-12s schedule: %6.1f ns/timer  cancel: %6.1f ns/timer  expire: %6.1f ns/timer%n",
+				name,
+				(scheduled - start) / (double) timers,
+				(cancelled - scheduled) / (timers / 2.0),
+				(expired - cancelled) / (timers / 2.0));
+	}
+}
@@ -0,0 +1,114 @@
+package org.cipango.util;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TimingWheelTest
+{
+	private Random _random = new Random();
+	
+	@Test
+	public void testExpire()
+	{
+		long start = 1000000;
+		TimingWheel wheel = new TimingWheel(10, start);
+		
+		// delays up to 2 days, in all the levels of the wheel
+		List<TimerTask> tasks = new ArrayList<TimerTask>();
+		for (int i = 0; i < 10000; i++)
+		{
+			long delay = i % 4 == 0 ? _random.nextInt(2560) : (long) _random.nextInt(Integer.MAX_VALUE) % (2 * 86400000L);
+			TimerTask task = new TimerTask(null, start + delay);
+			tasks.add(task);
+			wheel.schedule(task);
+		}
+		assertEquals(tasks.size(), wheel.getSize());
+		
+		List<TimerTask> expired = new ArrayList<TimerTask>();
+		long now = start;
+		int nb = 0;
+		while (wheel.getSize() > 0)
+		{
+			now += 1 + _random.nextInt(60000);
+			wheel.expire(now, expired);
+			for (TimerTask task : expired)
+			{
+				assertTrue(task.getExecutionTime() <= now);
+				// not run later than one expire call
+				assertTrue(task.getExecutionTime() > now - 60001 - 10);
+			}
+			nb += expired.size();
+			expired.clear();
+		}
+		assertEquals(tasks.size(), nb);
+	}
+	
+	@Test
+	public void testTick()
+	{
+		long start = 0;
+		TimingWheel wheel = new TimingWheel(10, start);
+		List<TimerTask> tasks = new ArrayList<TimerTask>();
+		for (int i = 0; i < 2000; i++)
+		{
+			TimerTask task = new TimerTask(null, start + _random.nextInt(700000));
+			tasks.add(task);
+			wheel.schedule(task);
+		}
+		
+		List<TimerTask> expired = new ArrayList<TimerTask>();
+		for (long now = start; wheel.getSize() > 0; now += 10)
+		{
+			wheel.expire(now, expired);
+			for (TimerTask task : expired)
+			{
+				assertTrue(task.getExecutionTime() <= now);
+				assertTrue(task.getExecutionTime() > now - 10);
+			}
+			expired.clear();
+		}
+	}
+	
+	@Test
+	public void testCancel()
+	{
+		TimingWheel wheel = new TimingWheel(10, 0);
+		TimerTask[] tasks = new TimerTask[1000];
+		for (int i = 0; i < tasks.length; i++)
+		{
+			tasks[i] = new TimerTask(null, _random.nextInt(100000));
+			wheel.schedule(tasks[i]);
+		}
+		for (int i = 0; i < tasks.length; i += 2)
+			assertTrue(wheel.cancel(tasks[i]));
+		assertFalse(wheel.cancel(tasks[0]));
+		assertEquals(tasks.length / 2, wheel.getSize());
+		
+		List<TimerTask> expired = new ArrayList<TimerTask>();
+		wheel.expire(100000, expired);
+		assertEquals(tasks.length / 2, expired.size());
+		for (TimerTask task : expired)
+			assertFalse(wheel.cancel(task));
+		assertEquals(0, wheel.getSize());
+	}
+	
+	@Test
+	public void testPast()
+	{
+		TimingWheel wheel = new TimingWheel(10, 1000);
+		TimerTask task = new TimerTask(null, 500);
+		wheel.schedule(task);
+		
+		List<TimerTask> expired = new ArrayList<TimerTask>();
+		wheel.expire(1009, expired);
+		assertEquals(0, expired.size());
+		wheel.expire(1010, expired);
+		assertEquals(1, expired.size());
+	}
+}
@@ -14,23 +14,32 @@
 package org.cipango.groovy;
 
 import groovy.lang.Closure;
+import groovy.lang.Script;
 import groovy.util.GroovyScriptEngine;
 import groovy.util.ResourceConnector;
 import groovy.util.ResourceException;
 import groovy.util.ScriptException;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.sip.SipServlet;
+import javax.servlet.sip.SipServletMessage;
 import javax.servlet.sip.SipServletRequest;
 import javax.servlet.sip.SipServletResponse;
 
 import org.codehaus.groovy.runtime.GroovyCategorySupport;
+import org.codehaus.groovy.runtime.InvokerHelper;
 
 /**
  * This servlet will run Groovy scripts as SIP Groovlets.
@@ -59,6 +68,13 @@ import org.codehaus.groovy.runtime.GroovyCategorySupport;
  *      &lt;load-on-startup/>
  *    &lt;/servlet>
  * </pre>
+ * 
+ * <p>By default, the script engine checks whether the script has been modified and creates
+ * a new script instance for each message. If the init parameter <code>precompiled</code> is
+ * <code>true</code>, each script is compiled once and run by a script instance per thread, 
+ * whose binding is reset for each message. The compiled scripts are then only reloaded when
+ * a modification is detected by the scanner, run every <code>scanInterval</code> seconds if
+ * this init parameter is set, or when {@link #invalidate()} is called.
  *
  * @see SipServletBinding
  * @see SipServletRequestBinding
@@ -80,6 +96,11 @@ public class GroovyServlet extends SipServlet implements ResourceConnector
 	private String _requestScript = DEFAULT_REQUEST_SCRIPT;
 	private String _responseScript = DEFAULT_RESPONSE_SCRIPT;
 	
+	private boolean _precompiled = false;
+	private int _scanInterval;
+	private Timer _scanner;
+	private ConcurrentMap<String, CompiledScript> _compiledScripts = new ConcurrentHashMap<String, CompiledScript>();
+	
 	/**
 	 * The script engine executing the Groovy scripts for this servlet
 	 */
@@ -126,11 +147,18 @@ public class GroovyServlet extends SipServlet implements ResourceConnector
 		}
 		catch (Exception e) 
 		{
-			_responseScript = null;
 			if (!_responseScript.equals(DEFAULT_RESPONSE_SCRIPT))
 				throw new ServletException("Response script defined and not found", e);
+			_responseScript = null;
 		}
 		
+		value = config.getInitParameter("precompiled");
+		if (value != null)
+			_precompiled = Boolean.valueOf(value).booleanValue();
+		
+		value = config.getInitParameter("scanInterval");
+		if (value != null)
+			_scanInterval = Integer.parseInt(value.trim());
 
 		if (_verbose)
 		{
@@ -140,9 +168,34 @@ public class GroovyServlet extends SipServlet implements ResourceConnector
 
 		// Set up the scripting engine
 		_gse = createGroovyScriptEngine();
+		
+		if (_precompiled && _scanInterval > 0)
+		{
+			_scanner = new Timer("groovy-scanner", true);
+			_scanner.schedule(new TimerTask()
+			{
+				@Override
+				public void run()
+				{
+					scan();
+				}
+			}, _scanInterval * 1000L, _scanInterval * 1000L);
+		}
 
 		_servletContext.log("Groovy servlet initialized on " + _gse + ".");
 	}
+	
+	@Override
+	public void destroy()
+	{
+		if (_scanner != null)
+		{
+			_scanner.cancel();
+			_scanner = null;
+		}
+		_compiledScripts.clear();
+		super.destroy();
+	}
 
 	/**
 	 * Handle web requests to the GroovyServlet
@@ -150,13 +203,13 @@ public class GroovyServlet extends SipServlet implements ResourceConnector
 	@Override
 	public void doRequest(SipServletRequest request) throws IOException
 	{
-		// Set up the script context
-		SipServletBinding binding = new SipServletRequestBinding(request, _servletContext);
-
 		// Run the script
 		try
 		{
-			runScript(binding, _requestScript);
+			if (_precompiled)
+				runCompiledScript(request, _requestScript);
+			else
+				runScript(new SipServletRequestBinding(request, _servletContext), _requestScript);
 		}
 		catch (RuntimeException runtimeException)
 		{
@@ -210,13 +263,13 @@ public class GroovyServlet extends SipServlet implements ResourceConnector
 		if (_responseScript == null)
 			return;
 		
-		// Set up the script context
-		SipServletBinding binding = new SipServletResponseBinding(response, _servletContext);
-
 		// Run the script
 		try
 		{
-			runScript(binding, _responseScript);
+			if (_precompiled)
+				runCompiledScript(response, _responseScript);
+			else
+				runScript(new SipServletResponseBinding(response, _servletContext), _responseScript);
 		}
 		catch (RuntimeException runtimeException)
 		{
@@ -254,6 +307,96 @@ public class GroovyServlet extends SipServlet implements ResourceConnector
 		GroovyCategorySupport.use(ServletCategory.class, closure);	
 	}
 	
+	private void runCompiledScript(SipServletMessage message, String name)
+	{
+		Script script = getCompiledScript(name).getInstance(message);
+		try
+		{
+			Closure closure = new Closure(script)
+			{
+				@Override
+				public Object call()
+				{
+					return ((Script) getDelegate()).run();
+				}
+			};
+			GroovyCategorySupport.use(ServletCategory.class, closure);
+		}
+		finally
+		{
+			// do not keep the message until the next one handled by this thread
+			Map<?, ?> variables = script.getBinding().getVariables();
+			if (variables != null)
+				variables.clear();
+		}
+	}
+	
+	private CompiledScript getCompiledScript(String name)
+	{
+		CompiledScript script = _compiledScripts.get(name);
+		if (script == null)
+		{
+			try
+			{
+				long lastModified = getLastModified(name);
+				script = new CompiledScript(_gse.loadScriptByName(name), lastModified);
+			}
+			catch (ResourceException e)
+			{
+				throw new RuntimeException(e);
+			}
+			catch (ScriptException e)
+			{
+				throw new RuntimeException(e);
+			}
+			CompiledScript previous = _compiledScripts.putIfAbsent(name, script);
+			if (previous != null)
+				script = previous;
+			else if (_verbose)
+				log("Compiled script: " + name);
+		}
+		return script;
+	}
+	
+	/**
+	 * Removes the compiled scripts whose file has been modified or removed.
+	 */
+	protected void scan()
+	{
+		for (Map.Entry<String, CompiledScript> entry : _compiledScripts.entrySet())
+		{
+			long lastModified;
+			try
+			{
+				lastModified = getLastModified(entry.getKey());
+			}
+			catch (ResourceException e)
+			{
+				lastModified = -1;
+			}
+			if (lastModified != entry.getValue().getLastModified())
+			{
+				_compiledScripts.remove(entry.getKey(), entry.getValue());
+				if (_verbose)
+					log("Script modified: " + entry.getKey());
+			}
+		}
+	}
+	
+	private long getLastModified(String name) throws ResourceException
+	{
+		// use the file as the connection would keep it open
+		return new File(getResourceConnection(name).getURL().getPath()).lastModified();
+	}
+	
+	/**
+	 * Removes all the compiled scripts: they are compiled again when next used.
+	 */
+	public void invalidate()
+	{
+		_compiledScripts.clear();
+	}
+	
 	/**
 	 * Hook method to setup the GroovyScriptEngine to use.<br/>
 	 * Subclasses may override this method to provide a custom engine.
@@ -333,4 +476,63 @@ public class GroovyServlet extends SipServlet implements ResourceConnector
 	{
 		_responseScript = responseScript;
 	}
+
+	public boolean isPrecompiled()
+	{
+		return _precompiled;
+	}
+
+	public void setPrecompiled(boolean precompiled)
+	{
+		_precompiled = precompiled;
+	}
+
+	public int getScanInterval()
+	{
+		return _scanInterval;
+	}
+
+	public void setScanInterval(int scanInterval)
+	{
+		_scanInterval = scanInterval;
+	}
+	
+	/**
+	 * A script class, compiled once, with one instance per thread.
+	 */
+	class CompiledScript
+	{
+		private Class<?> _scriptClass;
+		private long _lastModified;
+		private ThreadLocal<Script> _instances = new ThreadLocal<Script>();
+		
+		CompiledScript(Class<?> scriptClass, long lastModified)
+		{
+			_scriptClass = scriptClass;
+			_lastModified = lastModified;
+		}
+		
+		long getLastModified()
+		{
+			return _lastModified;
+		}
+		
+		Script getInstance(SipServletMessage message)
+		{
+			Script script = _instances.get();
+			if (script == null)
+			{
+				SipServletBinding binding;
+				if (message instanceof SipServletRequest)
+					binding = new SipServletRequestBinding((SipServletRequest) message, _servletContext);
+				else
+					binding = new SipServletResponseBinding((SipServletResponse) message, _servletContext);
+				script = InvokerHelper.createScript(_scriptClass, binding);
+				_instances.set(script);
+			}
+			else
+				((SipServletBinding) script.getBinding()).bind(message);
+			return script;
+		}
+	}
 }
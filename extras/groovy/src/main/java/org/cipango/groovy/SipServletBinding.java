@@ -26,6 +26,9 @@ import javax.servlet.sip.SipServletMessage;
 /**
  * SIP-Servlet-specific binding extension.
  * <p>
+ * A binding may be reused for several messages: {@link #bind(SipServletMessage)} clears the 
+ * variables, including the ones set by the previous script run, and binds the new message.
+ * <p>
  * <h3>Variables</h3>
  * <ul>
  *    <li><tt>"context"</tt> : the ServletContext object</li>
@@ -44,10 +47,28 @@ public class SipServletBinding extends Binding
 	
 	protected List<String> _reservedNames = new ArrayList<String>();
 	
+	private ServletContext _context;
+	
 	public SipServletBinding(SipServletMessage message, ServletContext context)
 	{
-		super.setVariable(CONTEXT, context);
-		super.setVariable(SIP_FACTORY, context.getAttribute(SipServlet.SIP_FACTORY));
+		_context = context;
+		bindMessage(message);
+	}
+	
+	/**
+	 * Clears all the variables and binds the message.
+	 */
+	public void bind(SipServletMessage message)
+	{
+		if (getVariables() != null)
+			getVariables().clear();
+		bindMessage(message);
+	}
+	
+	protected void bindMessage(SipServletMessage message)
+	{
+		super.setVariable(CONTEXT, _context);
+		super.setVariable(SIP_FACTORY, _context.getAttribute(SipServlet.SIP_FACTORY));
 		super.setVariable(SESSION, message.getSession());
 	}
 
@@ -58,6 +79,14 @@ public class SipServletBinding extends Binding
 		super.setVariable(name, value);
 	}
 
+	/**
+	 * Sets a variable whose name may be reserved, as when the message is bound again.
+	 */
+	protected void setReservedVariable(String name, Object value)
+	{
+		super.setVariable(name, value);
+	}
+
 	protected void excludeReservedName(String name)
 	{
 		if (_reservedNames.contains(name))
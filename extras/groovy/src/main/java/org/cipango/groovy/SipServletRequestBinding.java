@@ -22,6 +22,7 @@ import javax.servlet.ServletContext;
 import javax.servlet.sip.Proxy;
 import javax.servlet.sip.ServletParseException;
 import javax.servlet.sip.SipFactory;
+import javax.servlet.sip.SipServletMessage;
 import javax.servlet.sip.SipServletRequest;
 import javax.servlet.sip.TooManyHopsException;
 import javax.servlet.sip.URI;
@@ -58,11 +59,18 @@ public class SipServletRequestBinding extends SipServletBinding
 		REQUEST = "request",
 		PARAMS = "params";
 	
-	@SuppressWarnings("unchecked")
 	public SipServletRequestBinding(SipServletRequest request, ServletContext context)
 	{
 		super(request, context);
-
+	}
+	
+	@SuppressWarnings("unchecked")
+	@Override
+	protected void bindMessage(SipServletMessage message)
+	{
+		super.bindMessage(message);
+		
+		SipServletRequest request = (SipServletRequest) message;
 		setVariable(REQUEST, request);
 
 		/*
@@ -96,8 +104,9 @@ public class SipServletRequestBinding extends SipServletBinding
 	
 	private void addMethod(String name)
 	{
-		super.setVariable(name, new MethodClosure(this, name));
-		_reservedNames.add(name);
+		setReservedVariable(name, new MethodClosure(this, name));
+		if (!_reservedNames.contains(name))
+			_reservedNames.add(name);
 	}
 	
 	private SipServletRequest getRequest()
@@ -14,6 +14,7 @@
 package org.cipango.groovy;
 
 import javax.servlet.ServletContext;
+import javax.servlet.sip.SipServletMessage;
 import javax.servlet.sip.SipServletResponse;
 
 /**
@@ -34,7 +35,13 @@ public class SipServletResponseBinding extends SipServletBinding
 	public SipServletResponseBinding(SipServletResponse response, ServletContext context)
 	{
 		super(response, context);
-		setVariable(RESPONSE, response);
+	}
+	
+	@Override
+	protected void bindMessage(SipServletMessage message)
+	{
+		super.bindMessage(message);
+		setVariable(RESPONSE, message);
 	}
 
 
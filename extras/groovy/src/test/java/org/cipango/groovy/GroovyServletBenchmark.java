@@ -0,0 +1,176 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.groovy;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.sip.SipServletRequest;
+
+/**
+ * Standalone benchmark comparing the requests per second handled by the Groovy servlet when 
+ * the script engine runs the script for each request and when the script is precompiled.
+ * <p>
+ * Usage: <code>GroovyServletBenchmark [threads] [requests per thread]</code>
+ */
+public class GroovyServletBenchmark
+{
+	private static final String SCRIPT = 
+		"if (request.method == 'INVITE')\n"
+		+ "  request.setAttribute('route', 'sip:' + request.getAttribute('user') + '@proxy.cipango.org')\n"
+		+ "else\n"
+		+ "  request.setAttribute('route', null)\n";
+	
+	public static void main(String[] args) throws Exception
+	{
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		int requests = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+		
+		File root = new File(System.getProperty("java.io.tmpdir"), "groovy-benchmark");
+		File scripts = new File(root, "WEB-INF/groovy");
+		scripts.mkdirs();
+		FileWriter writer = new FileWriter(new File(scripts, "requests.groovy"));
+		writer.write(SCRIPT);
+		writer.close();
+		
+		ServletContext context = newContext(root);
+		GroovyServlet engine = new GroovyServlet();
+		engine.init(newConfig(context, false));
+		GroovyServlet precompiled = new GroovyServlet();
+		precompiled.init(newConfig(context, true));
+		
+		for (int run = 0; run < 2; run++) // first run is warm-up
+		{
+			long scriptEngine = run(engine, threads, requests);
+			long compiled = run(precompiled, threads, requests);
+			if (run == 1)
+			{
+				System.out.println("Script engine: " + scriptEngine + " requests/s");
+				System.out.println("Precompiled:   " + compiled + " requests/s");
+			}
+		}
+		engine.destroy();
+		precompiled.destroy();
+	}
+	
+	private static long run(final GroovyServlet servlet, int threads, final int requests) throws Exception
+	{
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++)
+		{
+			final String user = "user" + t;
+			workers[t] = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						SipServletRequest invite = newRequest("INVITE", user);
+						SipServletRequest bye = newRequest("BYE", user);
+						for (int i = 0; i < requests; i++)
+							servlet.doRequest(i % 2 == 0 ? invite : bye);
+					}
+					catch (Exception e)
+					{
+						e.printStackTrace();
+					}
+				}
+			};
+		}
+		long start = System.nanoTime();
+		for (Thread worker : workers)
+			worker.start();
+		for (Thread worker : workers)
+			worker.join();
+		long time = System.nanoTime() - start;
+		return (long) threads * requests * 1000000000L / time;
+	}
+	
+	static ServletConfig newConfig(final ServletContext context, final boolean precompiled)
+	{
+		return (ServletConfig) Proxy.newProxyInstance(ServletConfig.class.getClassLoader(), 
+				new Class[] { ServletConfig.class }, new InvocationHandler()
+		{
+			public Object invoke(Object proxy, Method m, Object[] args) throws Throwable
+			{
+				String name = m.getName();
+				if ("getServletContext".equals(name))
+					return context;
+				if ("getServletName".equals(name))
+					return "groovy";
+				if ("getInitParameter".equals(name) && "precompiled".equals(args[0]))
+					return String.valueOf(precompiled);
+				if ("getInitParameterNames".equals(name))
+					return Collections.enumeration(Collections.singleton("precompiled"));
+				return null;
+			}
+		});
+	}
+	
+	static ServletContext newContext(final File root)
+	{
+		return (ServletContext) Proxy.newProxyInstance(ServletContext.class.getClassLoader(), 
+				new Class[] { ServletContext.class }, new InvocationHandler()
+		{
+			public Object invoke(Object proxy, Method m, Object[] args) throws Throwable
+			{
+				String name = m.getName();
+				if ("getRealPath".equals(name))
+					return new File(root, (String) args[0]).getPath();
+				if ("getResource".equals(name))
+				{
+					File file = new File(root, (String) args[0]);
+					return file.isFile() ? file.toURI().toURL() : null;
+				}
+				return null;
+			}
+		});
+	}
+	
+	static SipServletRequest newRequest(final String method, String user)
+	{
+		final Map<String, Object> attributes = new HashMap<String, Object>();
+		attributes.put("user", user);
+		return (SipServletRequest) Proxy.newProxyInstance(SipServletRequest.class.getClassLoader(), 
+				new Class[] { SipServletRequest.class }, new InvocationHandler()
+		{
+			public Object invoke(Object proxy, Method m, Object[] args) throws Throwable
+			{
+				String name = m.getName();
+				if ("getMethod".equals(name))
+					return method;
+				if ("getAttribute".equals(name))
+					return attributes.get(args[0]);
+				if ("setAttribute".equals(name))
+				{
+					attributes.put((String) args[0], args[1]);
+					return null;
+				}
+				if ("getParameterNames".equals(name))
+					return Collections.enumeration(Collections.emptyList());
+				return null;
+			}
+		});
+	}
+}
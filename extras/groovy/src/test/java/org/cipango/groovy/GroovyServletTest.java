@@ -0,0 +1,147 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.groovy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import groovy.lang.Binding;
+
+import java.io.File;
+import java.io.FileWriter;
+
+import javax.servlet.sip.SipServletRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class GroovyServletTest
+{
+	private File _root;
+	private File _script;
+	private GroovyServlet _servlet;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		_root = new File(System.getProperty("java.io.tmpdir"), "groovy-test-" + System.nanoTime());
+		File scripts = new File(_root, "WEB-INF/groovy");
+		scripts.mkdirs();
+		_script = new File(scripts, "requests.groovy");
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		if (_servlet != null)
+			_servlet.destroy();
+		_script.delete();
+		_script.getParentFile().delete();
+		new File(_root, "WEB-INF").delete();
+		_root.delete();
+	}
+
+	@Test
+	public void testModifiedScript() throws Exception
+	{
+		writeScript("request.setAttribute('version', 1)\n", -20000);
+		_servlet = newServlet();
+		assertEquals(1, handle().getAttribute("version"));
+
+		// the modification is not checked on each request
+		writeScript("request.setAttribute('version', 2)\n", -10000);
+		assertEquals(1, handle().getAttribute("version"));
+
+		// but picked up once the scanner has seen it, the script engine itself checking at most 
+		// every 100 ms
+		Thread.sleep(200);
+		_servlet.scan();
+		assertEquals(2, handle().getAttribute("version"));
+		assertEquals(2, handle().getAttribute("version"));
+
+		writeScript("request.setAttribute('version', 3)\n", 0);
+		Thread.sleep(200);
+		_servlet.invalidate();
+		assertEquals(3, handle().getAttribute("version"));
+	}
+
+	@Test
+	public void testBindingNotShared() throws Exception
+	{
+		writeScript("request.setAttribute('leaked', binding.variables.containsKey('previous'))\n"
+				+ "request.setAttribute('binding', binding)\n"
+				+ "previous = request\n", -10000);
+		_servlet = newServlet();
+
+		SipServletRequest first = handle();
+		SipServletRequest second = handle();
+		assertEquals(Boolean.FALSE, first.getAttribute("leaked"));
+		assertEquals(Boolean.FALSE, second.getAttribute("leaked"));
+
+		// the same script instance is used by the thread, without the previous message
+		Binding binding = (Binding) second.getAttribute("binding");
+		assertSame(first.getAttribute("binding"), binding);
+		assertTrue(binding.getVariables().isEmpty());
+
+		// other threads have their own instance
+		final SipServletRequest[] other = new SipServletRequest[1];
+		Thread thread = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					other[0] = handle();
+				}
+				catch (Exception e)
+				{
+					e.printStackTrace();
+				}
+			}
+		};
+		thread.start();
+		thread.join();
+		assertEquals(Boolean.FALSE, other[0].getAttribute("leaked"));
+		assertTrue(binding != other[0].getAttribute("binding"));
+	}
+
+	private GroovyServlet newServlet() throws Exception
+	{
+		GroovyServlet servlet = new GroovyServlet();
+		servlet.init(GroovyServletBenchmark.newConfig(GroovyServletBenchmark.newContext(_root), true));
+		return servlet;
+	}
+
+	private SipServletRequest handle() throws Exception
+	{
+		SipServletRequest request = GroovyServletBenchmark.newRequest("INVITE", "alice");
+		_servlet.doRequest(request);
+		return request;
+	}
+
+	/**
+	 * Writes the script, dated from <code>offset</code> ms from now.
+	 */
+	private void writeScript(String script, long offset) throws Exception
+	{
+		FileWriter writer = new FileWriter(_script);
+		writer.write(script);
+		writer.close();
+		_script.setLastModified(System.currentTimeMillis() + offset);
+	}
+}
@@ -3,7 +3,7 @@
 // ------------------------------------------------------------------------
 // Licensed under the Apache License, Version 2.0 (the "License");
 // you may not use this file except in compliance with the License.
-// You may obtain a copy of the License at 
+// You may obtain a copy of the License at
 // http://www.apache.org/licenses/LICENSE-2.0
 // Unless required by applicable law or agreed to in writing, software
 // distributed under the License is distributed on an "AS IS" BASIS,
@@ -15,265 +15,493 @@
 package org.cipango.kaleo;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.locks.ReentrantLock;
 
-import org.cipango.util.PriorityQueue;
+import org.cipango.kaleo.util.TimerWheel;
 import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.component.LifeCycle;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Manage resources, which may be registrations or event resources. 
+ * Manage resources, which may be registrations or event resources.
+ * <p>
+ * Resources are kept in a segmented concurrent map, so that lookups do not lock and updates
+ * of different resources seldom contend. Each resource is accessed by a single thread at a
+ * time, either by {@link #get(String)} and {@link #put(AbstractResource)} or by
+ * {@link #execute(String, ResourceTask)} which never blocks: the task is run by the thread
+ * holding the resource when it releases it.
+ * <p>
+ * Resource expirations are scheduled in timing wheels, each driven by its own scheduler
+ * thread. A resource always uses the same wheel and its timeouts are run from the thread pool
+ * as resource tasks so that a scheduler never waits for a busy or slow resource.
  */
 public abstract class AbstractResourceManager<T extends AbstractResource> extends AbstractLifeCycle
-{	
-	private Thread _scheduler;
-	private PriorityQueue _queue = new PriorityQueue();
-	
-	private Map<String, ResourceHolder> _resources = new HashMap<String, ResourceHolder>();
-		
+{
+	private static final int __SEGMENTS = 64;
+	private static final int __WHEEL_SLOTS = 4096;
+	private static final long __TICK_DURATION = 100;
+
+	private ConcurrentMap<String, ResourceHolder> _resources =
+		new ConcurrentHashMap<String, ResourceHolder>(1024, 0.75f, __SEGMENTS);
+
+	private int _schedulerThreads = Math.min(4, Runtime.getRuntime().availableProcessors());
+	private Scheduler[] _schedulers;
+	private ThreadPool _threadPool;
+	private boolean _ownThreadPool;
+
+	private final ResourceTask<T> _timeout = new ResourceTask<T>()
+	{
+		public void run(T resource)
+		{
+			if (_log.isDebugEnabled())
+				_log.debug("running timeout for resource " + resource);
+			resource.doTimeout(System.currentTimeMillis());
+		}
+	};
+
 	protected Logger _log = LoggerFactory.getLogger(AbstractResourceManager.class);
-		
+
 	@Override
 	protected void doStart() throws Exception
 	{
-		new Thread(new Scheduler()).start();
+		if (_threadPool == null)
+		{
+			QueuedThreadPool threadPool = new QueuedThreadPool();
+			threadPool.setName(getClass().getSimpleName() + " - timeout");
+			_threadPool = threadPool;
+			_ownThreadPool = true;
+		}
+		if (_ownThreadPool && _threadPool instanceof LifeCycle)
+			((LifeCycle) _threadPool).start();
+
+		Scheduler[] schedulers = new Scheduler[_schedulerThreads];
+		for (int i = 0; i < schedulers.length; i++)
+			schedulers[i] = new Scheduler(this, i);
+		_schedulers = schedulers;
+		for (int i = 0; i < schedulers.length; i++)
+			new Thread(schedulers[i]).start();
 	}
-	
+
 	@Override
 	protected void doStop() throws Exception
 	{
-		if (_scheduler != null)
-			_scheduler.interrupt();
+		Scheduler[] schedulers = _schedulers;
+		if (schedulers != null)
+		{
+			for (int i = 0; i < schedulers.length; i++)
+			{
+				if (schedulers[i]._thread != null)
+					schedulers[i]._thread.interrupt();
+			}
+		}
+
+		if (_ownThreadPool)
+		{
+			if (_threadPool instanceof LifeCycle)
+				((LifeCycle) _threadPool).stop();
+			_threadPool = null;
+			_ownThreadPool = false;
+		}
 	}
-	
+
+	public ThreadPool getThreadPool()
+	{
+		return _threadPool;
+	}
+
+	/**
+	 * Sets the thread pool resource timeouts are run from. If not set, a pool is created on start.
+	 */
+	public void setThreadPool(ThreadPool threadPool)
+	{
+		if (isRunning())
+			throw new IllegalStateException("Started");
+		_threadPool = threadPool;
+		_ownThreadPool = false;
+	}
+
+	/**
+	 * Runs the timeout from the thread pool, or from the calling thread if it cannot be dispatched.
+	 */
+	protected void dispatch(Runnable timeout)
+	{
+		ThreadPool threadPool = _threadPool;
+		if (threadPool == null || !threadPool.dispatch(timeout))
+			timeout.run();
+	}
+
+	public int getSchedulerThreads()
+	{
+		return _schedulerThreads;
+	}
+
+	public void setSchedulerThreads(int schedulerThreads)
+	{
+		if (isRunning())
+			throw new IllegalStateException("Started");
+		if (schedulerThreads < 1)
+			throw new IllegalArgumentException("Scheduler threads: " + schedulerThreads);
+		_schedulerThreads = schedulerThreads;
+	}
+
+	/**
+	 * @return the number of resource timeouts scheduled.
+	 */
+	public int getTimeouts()
+	{
+		int timeouts = 0;
+		Scheduler[] schedulers = _schedulers;
+		if (schedulers != null)
+		{
+			for (int i = 0; i < schedulers.length; i++)
+			{
+				synchronized (schedulers[i]._wheel)
+				{
+					timeouts += schedulers[i]._wheel.getSize();
+				}
+			}
+		}
+		return timeouts;
+	}
+
 	public List<T> getResources()
 	{
 		List<T> resources = new ArrayList<T>();
-		synchronized (_resources)
+		Iterator<ResourceHolder> it = _resources.values().iterator();
+		while (it.hasNext())
 		{
-			Iterator<ResourceHolder> it = _resources.values().iterator();
-			while (it.hasNext())
-				resources.add(it.next().getResource());
+			T resource = it.next().getResource();
+			if (resource != null)
+				resources.add(resource);
 		}
 		return resources;
 	}
-	
+
 	public List<ResourceHolder> getHolders()
 	{
-		synchronized (_resources)
-		{
-			return new ArrayList<ResourceHolder>(_resources.values());
-		}
+		return new ArrayList<ResourceHolder>(_resources.values());
 	}
-	
+
 	protected ResourceHolder getHolder(String uri)
 	{
-		synchronized (_resources)
-		{
-			return _resources.get(uri);
-		}
+		ResourceHolder holder = _resources.get(uri);
+		if (holder == null || holder.getResource() == null)
+			return null;
+		return holder;
 	}
-	
+
+	/**
+	 * Returns the resource with the given URI, creating it if needed, once the calling thread
+	 * holds it. The resource must be released with {@link #put(AbstractResource)}.
+	 */
 	public T get(String uri)
 	{
-		ResourceHolder holder;
-		synchronized (_resources)
+		return lock(uri).getResource();
+	}
+
+	private ResourceHolder lock(String uri)
+	{
+		while (true)
 		{
-			holder = _resources.get(uri);
+			ResourceHolder holder = _resources.get(uri);
 			if (holder == null)
 			{
-				holder = new ResourceHolder(newResource(uri));
-				_resources.put(uri, holder);
+				// the holder is published locked so that only one thread creates the resource
+				holder = new ResourceHolder(uri);
+				holder._lock.lock();
+				ResourceHolder existing = _resources.putIfAbsent(uri, holder);
+				if (existing == null)
+				{
+					try
+					{
+						holder._resource = newResource(uri);
+					}
+					finally
+					{
+						if (holder._resource == null)
+						{
+							holder._removed = true;
+							_resources.remove(uri, holder);
+							holder.unlock();
+						}
+					}
+					return holder;
+				}
+				holder = existing;
 			}
-		}
 
-		return holder.lock();
+			holder._lock.lock();
+			if (!holder._removed)
+				return holder;
+			put(holder);
+		}
 	}
-	
+
 	public boolean contains(String uri)
 	{
-		synchronized (_resources)
-		{
-			return _resources.containsKey(uri);
-		}
+		return _resources.containsKey(uri);
 	}
-	
+
 	public void put(T resource)
 	{
-		ResourceHolder holder = null;
-		synchronized (_resources)
+		ResourceHolder holder = _resources.get(resource.getUri());
+		if (holder != null)
+			put(holder);
+	}
+
+	/**
+	 * Runs the task on the resource with the given URI, creating it if needed. The task is run
+	 * by the calling thread if the resource is free or else by the thread holding it, after
+	 * the tasks previously submitted for this resource.
+	 */
+	public void execute(String uri, ResourceTask<? super T> task)
+	{
+		ResourceHolder holder = _resources.get(uri);
+		if (holder == null)
 		{
-			holder = _resources.get(resource.getUri());
+			holder = lock(uri);
+			holder.offer(task);
+			put(holder);
 		}
-		if (holder != null)
+		else
+			execute(holder, task);
+	}
+
+	protected void execute(ResourceHolder holder, ResourceTask<? super T> task)
+	{
+		holder.offer(task);
+		if (holder._lock.tryLock())
 			put(holder);
 	}
-	
+
 	protected void put(ResourceHolder holder)
 	{
-		try
+		if (holder._lock.getHoldCount() > 1)
 		{
-			int holds = holder._lock.getHoldCount();
-	    	
-	    	if (holds == 1)
-	    	{
-				T resource = holder.getResource();
-				long time = resource.nextTimeout();
-				
-				synchronized (_queue)
-				{
-					if (time > 0)
-					{
-						if (time < System.currentTimeMillis())
-							time = System.currentTimeMillis() + 100;
-						_queue.offer(holder, time);
-					}
-					else 
-					{
-						_queue.remove(holder);
-					}
-					_queue.notifyAll();
-				}
-				
-				if (resource.isDone())
-				{
-					synchronized (_resources)
-					{
-						_resources.remove(resource.getUri());
-						_log.debug("Remove {} resource {}", resource.getClass().getSimpleName(), resource);
-					}
-					removeResource(resource);
-				}
-	    	}
+			holder.unlock();
+			return;
 		}
-		finally
+
+		do
 		{
-			holder.unlock();
+			try
+			{
+				holder.runTasks();
+				if (!holder._removed)
+					update(holder);
+			}
+			finally
+			{
+				holder.unlock();
+			}
 		}
+		while (holder.hasTasks() && holder._lock.tryLock());
 	}
-	
+
+	private void update(ResourceHolder holder)
+	{
+		T resource = holder.getResource();
+		long time = resource.nextTimeout();
+
+		Scheduler[] schedulers = _schedulers;
+		if (schedulers != null)
+		{
+			Scheduler scheduler = schedulers[(holder._uri.hashCode() & 0x7fffffff) % schedulers.length];
+			synchronized (scheduler._wheel)
+			{
+				if (time > 0 && !resource.isDone())
+					scheduler._wheel.offer(holder, time);
+				else
+					scheduler._wheel.remove(holder);
+			}
+		}
+
+		if (resource.isDone())
+		{
+			holder._removed = true;
+			_resources.remove(holder._uri, holder);
+			_log.debug("Remove {} resource {}", resource.getClass().getSimpleName(), resource);
+			removeResource(resource);
+		}
+	}
+
 	protected abstract T newResource(String uri);
-	
+
 	protected void removeResource(T resource)
-	{	
+	{
 	}
-	
-	public class ResourceHolder extends PriorityQueue.Node implements Runnable
+
+	/**
+	 * Task run on a resource by the thread holding it.
+	 */
+	public interface ResourceTask<R extends AbstractResource>
 	{
-		private T _resource;
+		void run(R resource);
+	}
+
+	public class ResourceHolder extends TimerWheel.Node implements Runnable
+	{
+		private final String _uri;
+		private volatile T _resource;
+		private volatile boolean _removed;
 		private ReentrantLock _lock = new ReentrantLock();
-		
-		ResourceHolder(T resource) 
+		private List<ResourceTask<? super T>> _tasks;
+
+		ResourceHolder(String uri)
 		{
 			super(Long.MAX_VALUE);
-			_resource = resource;
+			_uri = uri;
 		}
-		
+
 		public T getResource()
 		{
 			return _resource;
 		}
-		
+
 		public T lock()
 		{
-			try 
-			{
-				if (_lock.tryLock(500, TimeUnit.MILLISECONDS))
-					return _resource;
-			}
-			catch (InterruptedException e) 
-			{
-			}
-			return null;
+			_lock.lock();
+			return _resource;
 		}
-		
+
 		public int getHoldCount()
 		{
 			return _lock.getHoldCount();
 		}
-		
+
 		public String getOwner()
 		{
 			return _lock.toString();
 		}
-		
+
 		public void unlock()
 		{
 			_lock.unlock();
 		}
-		
-		public void run()
+
+		synchronized void offer(ResourceTask<? super T> task)
 		{
-			lock();
-			if (_log.isDebugEnabled())
-				_log.debug("running timeout for resource " + _resource);
-			try
-			{
-				_resource.doTimeout(System.currentTimeMillis());
-			}
-			finally
+			if (_tasks == null)
+				_tasks = new ArrayList<ResourceTask<? super T>>(2);
+			_tasks.add(task);
+		}
+
+		synchronized boolean hasTasks()
+		{
+			return _tasks != null;
+		}
+
+		void runTasks()
+		{
+			List<ResourceTask<? super T>> tasks;
+			while (true)
 			{
-				put(this);
+				synchronized (this)
+				{
+					tasks = _tasks;
+					_tasks = null;
+				}
+				if (tasks == null)
+					return;
+
+				for (ResourceTask<? super T> task : tasks)
+				{
+					if (_removed)
+					{
+						// resource released in between, tasks go to its successor
+						if (task != _timeout)
+							execute(_uri, task);
+						continue;
+					}
+					try
+					{
+						task.run(_resource);
+					}
+					catch (Throwable t)
+					{
+						_log.warn("exception in task for resource " + _uri, t);
+					}
+				}
 			}
 		}
-		
+
+		/**
+		 * Runs the resource timeout.
+		 */
+		public void run()
+		{
+			execute(this, _timeout);
+		}
+
 		@Override
 		public String toString()
 		{
-			return _resource.toString();
+			T resource = _resource;
+			return resource == null ? _uri : resource.toString();
 		}
 	}
-	
-	class Scheduler implements Runnable
+
+	static class Scheduler implements Runnable
 	{
+		private final AbstractResourceManager<?> _manager;
+		private final int _index;
+		private final TimerWheel _wheel = new TimerWheel(__WHEEL_SLOTS, __TICK_DURATION, System.currentTimeMillis());
+		private Thread _thread;
+
+		Scheduler(AbstractResourceManager<?> manager, int index)
+		{
+			_manager = manager;
+			_index = index;
+		}
+
 		public void run()
 		{
-			_scheduler = Thread.currentThread();
-			_scheduler.setName(AbstractResourceManager.this.getClass().getSimpleName() + " - scheduler");
+			_thread = Thread.currentThread();
+			_thread.setName(_manager.getClass().getSimpleName() + " - scheduler-" + _index);
+			List<TimerWheel.Node> expired = new ArrayList<TimerWheel.Node>();
 			try
 			{
 				do
 				{
 					try
 					{
-						ResourceHolder holder = null;
-						long timeout;
-						
-						synchronized (_queue)
+						synchronized (_wheel)
 						{
-							holder = (ResourceHolder) _queue.peek();
-							timeout = (holder != null) ? (holder.getValue() - System.currentTimeMillis()) : Long.MAX_VALUE;
-							
-							if (_log.isDebugEnabled() && timeout >= 0 && holder != null)
-								_log.debug("next timeout in {} seconds for node {}", timeout / 1000, holder);
-							
+							long timeout = _wheel.getNextTickTime() - System.currentTimeMillis();
 							if (timeout > 0)
-								_queue.wait(timeout);
-							else
-								_queue.poll();
+								_wheel.wait(timeout);
+							_wheel.expire(System.currentTimeMillis(), expired);
+						}
+						for (int i = 0; i < expired.size(); i++)
+						{
+							try
+							{
+								_manager.dispatch((Runnable) expired.get(i));
+							}
+							catch (Throwable t) { _manager._log.warn("exception in scheduler", t); }
 						}
-						if (timeout <= 0)
-							holder.run();
 					}
 					catch (InterruptedException e) { continue; }
-					catch (Throwable t) { _log.warn("exception in scheduler", t); };
+					catch (Throwable t) { _manager._log.warn("exception in scheduler", t); }
+					finally { expired.clear(); }
 				}
-				while (isStarted());
+				while (_manager.isRunning());
 			}
 			finally
 			{
-				_scheduler = null;
+				_thread = null;
 				String exit = Thread.currentThread().getName() + " exited";
-				if (isStarted())
-					_log.warn(exit);
+				if (_manager.isRunning())
+					_manager._log.warn(exit);
 				else
-					_log.debug(exit);
+					_manager._log.debug(exit);
 			}
 		}
 	}
@@ -14,12 +14,10 @@
 
 package org.cipango.kaleo.event;
 
-import javax.servlet.sip.SipServletRequest;
 import javax.servlet.sip.SipSession;
 
 import org.cipango.kaleo.AbstractResource;
 import org.cipango.kaleo.AbstractResourceManager;
-import org.cipango.kaleo.Constants;
 import org.cipango.kaleo.event.Subscription.Reason;
 
 public abstract class AbstractEventPackage<T extends AbstractResource & EventResource> extends AbstractResourceManager<T> implements EventPackage<T>
@@ -29,6 +27,21 @@ public abstract class AbstractEventPackage<T extends AbstractResource & EventRes
 	private int _defaultExpires = 3600;
 	
 	private EventNotifier _eventNotifier = new EventNotifier();
+	private Notifier _notifier = new Notifier(getClass().getSimpleName());
+	
+	@Override
+	protected void doStart() throws Exception
+	{
+		super.doStart();
+		_notifier.start();
+	}
+	
+	@Override
+	protected void doStop() throws Exception
+	{
+		_notifier.stop();
+		super.doStop();
+	}
 	
 	public int getMinExpires()
 	{
@@ -65,38 +78,33 @@ public abstract class AbstractEventPackage<T extends AbstractResource & EventRes
 		return _eventNotifier;
 	}
 	
-	@SuppressWarnings("unchecked")
+	public Notifier getNotifier()
+	{
+		return _notifier;
+	}
+	
+	/**
+	 * Notifies the subscriber of the current state of the resource. Must be called while 
+	 * holding the resource.
+	 */
 	public void notify(Subscription subscription)
 	{
 		try
 		{
 			SipSession session = subscription.getSession();
-			if (session.isValid())
+			if (!session.isValid())
 			{
-				SipServletRequest notify = session.createRequest(Constants.NOTIFY);
-				notify.addHeader(Constants.EVENT, getName());
-				
-				String s = subscription.getState().getName();
-				if (subscription.getState() == Subscription.State.ACTIVE 
-						|| subscription.getState() == Subscription.State.PENDING)
-					s = s + ";expires=" + ((subscription.getExpirationTime()-System.currentTimeMillis()) / 1000);
-				notify.addHeader(Constants.SUBSCRIPTION_STATE, s);
-				
-				State state;
-				if (subscription.isAuthorized())
-					state = subscription.getResource().getState();
-				else
-					state = subscription.getResource().getNeutralState();
-				preprocessState(session, state);
-				ContentHandler handler = getContentHandler(state.getContentType());
-				byte[] b = handler.getBytes(state.getContent());
-				
-				notify.setContent(b, state.getContentType());
-				notify.send();
-			}
-			else
 				_log.warn("Could not send notification to {} for event {} as sip session is invalidated", 
 						subscription, getName());
+				return;
+			}
+			State state;
+			if (subscription.isAuthorized())
+				state = subscription.getResource().getState();
+			else
+				state = subscription.getResource().getNeutralState();
+			preprocessState(session, state);
+			notify(subscription, state.getContentType(), getBytes(state));
 		}
 		catch (Exception e) 
 		{
@@ -104,6 +112,39 @@ public abstract class AbstractEventPackage<T extends AbstractResource & EventRes
 		}
 	}
 	
+	protected void notify(Subscription subscription, String contentType, byte[] content)
+	{
+		_notifier.notify(subscription, new Notifier.Notification(getName(), subscription, contentType, content));
+	}
+	
+	/**
+	 * Returns the serialized state content, which is cached in the state when it is shared by
+	 * all the subscriptions.
+	 */
+	@SuppressWarnings("unchecked")
+	protected byte[] getBytes(State state) throws Exception
+	{
+		byte[] b = state.getBytes();
+		if (b == null)
+		{
+			ContentHandler handler = getContentHandler(state.getContentType());
+			b = handler.getBytes(state.getContent());
+			if (isContentShared())
+				state.setBytes(b);
+		}
+		return b;
+	}
+	
+	/**
+	 * @return <code>true</code> if the same content can be sent to all the subscribers of a 
+	 * 	resource, which is not the case when {@link #preprocessState(SipSession, State)} 
+	 * 	depends on the session. 
+	 */
+	protected boolean isContentShared()
+	{
+		return true;
+	}
+	
 	protected void preprocessState(SipSession session, State state)
 	{	
 	}
@@ -116,10 +157,33 @@ public abstract class AbstractEventPackage<T extends AbstractResource & EventRes
 			if (_log.isDebugEnabled())
 				_log.debug("State changed for {} resource {} ", getName(), resource);
 			
+			State state = null;
+			byte[] content = null;
 			for (Subscription subscription : resource.getSubscriptions())
 			{
-				if (subscription.isAuthorized())
+				if (!subscription.isAuthorized())
+					continue;
+				
+				if (!isContentShared())
+				{
 					AbstractEventPackage.this.notify(subscription);
+					continue;
+				}
+				// serialize once for all subscriptions
+				if (state == null)
+				{
+					try
+					{
+						state = resource.getState();
+						content = getBytes(state);
+					}
+					catch (Exception e)
+					{
+						_log.warn("Exception while serializing state of " + resource, e);
+						return;
+					}
+				}
+				AbstractEventPackage.this.notify(subscription, state.getContentType(), content);
 			}
 		}
 		
@@ -3,7 +3,7 @@
 // ------------------------------------------------------------------------
 // Licensed under the Apache License, Version 2.0 (the "License");
 // you may not use this file except in compliance with the License.
-// You may obtain a copy of the License at 
+// You may obtain a copy of the License at
 // http://www.apache.org/licenses/LICENSE-2.0
 // Unless required by applicable law or agreed to in writing, software
 // distributed under the License is distributed on an "AS IS" BASIS,
@@ -14,277 +14,349 @@
 
 package org.cipango.kaleo.event;
 
-import java.util.LinkedList;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.servlet.sip.SipServletRequest;
 import javax.servlet.sip.SipSession;
 
 import org.cipango.kaleo.Constants;
-import org.cipango.kaleo.Resource;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class Notifier<T extends Resource> //implements Runnable
+/**
+ * Sends the NOTIFY requests of an event package from a pool of worker threads.
+ * <p>
+ * The notifications are built by the caller while it holds the resource, so their content is
+ * consistent, and queued per subscription. A subscription has at most one pending notification:
+ * a newer notification replaces the pending one, which is then stale. A subscription is sent by
+ * a single worker at a time and no more than once every <code>minInterval</code> ms, except for
+ * the final NOTIFY of a terminated subscription.
+ * <p>
+ * When the notifier is not started, notifications are sent by the calling thread.
+ */
+public class Notifier extends AbstractLifeCycle
 {
-	/*
 	private final Logger _log = LoggerFactory.getLogger(Notifier.class);
-	
-	private EventPackage<T> _eventPackage;
-	
-	private Thread _thread;
-	private LinkedList<Notification> _notifications = new LinkedList<Notification>();
-	
-	public void notify(EventPackage<T> eventPackage, SipSession session)
+
+	private final String _name;
+	private int _threads = 2;
+	private long _minInterval;
+
+	private final DelayQueue<Entry> _queue = new DelayQueue<Entry>();
+	private Thread[] _workers;
+
+	private final AtomicInteger _backlog = new AtomicInteger();
+	private final AtomicLong _notifications = new AtomicLong();
+	private final AtomicLong _coalesced = new AtomicLong();
+	private final AtomicLong _sent = new AtomicLong();
+
+	public Notifier(String name)
+	{
+		_name = name;
+	}
+
+	public int getThreads()
+	{
+		return _threads;
+	}
+
+	public void setThreads(int threads)
+	{
+		if (isRunning())
+			throw new IllegalStateException("Started");
+		if (threads < 1)
+			throw new IllegalArgumentException("Threads: " + threads);
+		_threads = threads;
+	}
+
+	/**
+	 * @return the minimum time in ms between two NOTIFY requests of a subscription.
+	 */
+	public long getMinInterval()
+	{
+		return _minInterval;
+	}
+
+	public void setMinInterval(long minInterval)
+	{
+		_minInterval = minInterval;
+	}
+
+	/**
+	 * @return the number of notifications waiting to be sent.
+	 */
+	public int getBacklog()
+	{
+		return _backlog.get();
+	}
+
+	public long getNotifications()
+	{
+		return _notifications.get();
+	}
+
+	/**
+	 * @return the number of notifications which were replaced by a newer one before being sent.
+	 */
+	public long getCoalesced()
+	{
+		return _coalesced.get();
+	}
+
+	public long getSent()
 	{
-		Notification notification = new Notification();
-		
-		synchronized (_notifications)
+		return _sent.get();
+	}
+
+	public double getCoalesceRatio()
+	{
+		long notifications = _notifications.get();
+		return notifications == 0 ? 0 : (double) _coalesced.get() / notifications;
+	}
+
+	public void statsReset()
+	{
+		_notifications.set(0);
+		_coalesced.set(0);
+		_sent.set(0);
+	}
+
+	@Override
+	protected void doStart() throws Exception
+	{
+		Thread[] workers = new Thread[_threads];
+		for (int i = 0; i < workers.length; i++)
 		{
-			_notifications.addLast(notification);
-			_notifications.notifyAll();
+			workers[i] = new Thread(new Worker(), _name + " - notifier-" + i);
+			workers[i].start();
 		}
+		_workers = workers;
 	}
-	
-	public void start()
+
+	@Override
+	protected void doStop() throws Exception
 	{
-		_thread = new Thread(this);
-		_thread.start();
+		Thread[] workers = _workers;
+		_workers = null;
+		if (workers != null)
+		{
+			for (int i = 0; i < workers.length; i++)
+				workers[i].interrupt();
+		}
 	}
-	
-	public void run()
+
+	/**
+	 * Queues the notification for the subscription, replacing any pending one.
+	 */
+	public void notify(Subscription subscription, Notification notification)
 	{
-		Thread.currentThread().setName("notifier");
-		while (true)
+		_notifications.incrementAndGet();
+		if (!isRunning())
 		{
-			Notification notification = null;
-			try
+			send(subscription, notification);
+			return;
+		}
+
+		Entry entry;
+		synchronized (subscription)
+		{
+			entry = subscription._notifierEntry;
+			if (entry == null)
+				subscription._notifierEntry = entry = new Entry(subscription);
+		}
+
+		synchronized (entry)
+		{
+			if (entry._pending != null)
 			{
-				synchronized (_notifications)
-				{
-					while (_notifications.isEmpty())
-					{
-						_notifications.wait();
-					}
-					notification = _notifications.removeFirst();
-				}
-				try
-				{
-					send(notification);
-				}
-				catch (Exception e)
+				_coalesced.incrementAndGet();
+				entry._pending = notification;
+
+				// the final NOTIFY is not throttled: the entry is moved if it is still waiting,
+				// otherwise it is being taken by a worker
+				if (notification.getState() == Subscription.State.TERMINATED && _queue.remove(entry))
 				{
-					_log.warn("Exception while sending notification {}", e);
+					entry._readyTime = System.currentTimeMillis();
+					_queue.offer(entry);
 				}
+				return;
 			}
-			catch (InterruptedException e)
+			entry._pending = notification;
+			_backlog.incrementAndGet();
+
+			// a queued entry without pending notification is being sent and is requeued after
+			if (!entry._queued)
 			{
+				entry._queued = true;
+				entry._readyTime = readyTime(entry, notification);
+				_queue.offer(entry);
 			}
 		}
 	}
-	
-	@SuppressWarnings("unchecked")
-	protected void send(Notification notification)
+
+	private long readyTime(Entry entry, Notification notification)
+	{
+		long now = System.currentTimeMillis();
+		if (notification.getState() == Subscription.State.TERMINATED)
+			return now;
+		return Math.max(now, entry._lastSent + _minInterval);
+	}
+
+	protected void send(Subscription subscription, Notification notification)
 	{
 		try
 		{
-			SipSession session = notification.getSession();
+			SipSession session = subscription.getSession();
 			if (session.isValid())
 			{
 				SipServletRequest notify = session.createRequest(Constants.NOTIFY);
-				notify.addHeader(Constants.EVENT, _eventPackage.getName());
-				String type = notification.getContent().getType();
-				
-				ContentHandler handler = _eventPackage.getContentHandler(type);
-				byte[] b = handler.getBytes(notification.getContent().getValue());
-				notify.setContent(b, type);
+				notify.addHeader(Constants.EVENT, notification.getEvent());
+
+				String s = notification.getState().getName();
+				if (notification.getState() == Subscription.State.ACTIVE
+						|| notification.getState() == Subscription.State.PENDING)
+					s = s + ";expires=" + Math.max(0, (notification.getExpirationTime() - System.currentTimeMillis()) / 1000);
+				notify.addHeader(Constants.SUBSCRIPTION_STATE, s);
+
+				notify.setContent(notification.getContent(), notification.getContentType());
 				notify.send();
+				_sent.incrementAndGet();
 			}
+			else
+				_log.warn("Could not send notification to {} for event {} as sip session is invalidated",
+						subscription, notification.getEvent());
 		}
-		catch (Exception e) 
+		catch (Exception e)
 		{
 			_log.warn("Exception while sending notification {}", e);
 		}
 	}
-	
-	class Notification
-	{
-		private SipSession _session;
-		private Resource.Content _content;
-		
-		public SipSession getSession() { return _session; }
-		public Resource.Content getContent() { return _content; }
-	}*/
-}
 
-/*
-	private void sendNotify(Notification notification) 
+	class Worker implements Runnable
 	{
-		try 
+		public void run()
 		{
-			SipSession session = notification.getSession();
-			if(session.isValid())
-			{
-				SipServletRequest notify = session.createRequest("NOTIFY");
-				String type = notification.getContent().getType();
-				ContentHandler handler = notification.getEventPackage().getContentHandler(type);
-				byte[] b = handler.getBytes(notification.getContent().getValue());
-				notify.addParameterableHeader(Constants.SUBSCRIPTION_STATE, notification.getSubscriptionStateHeader(), true);
-				notify.addHeader(Constants.EVENT, notification.getEventPackage().getName());
-				notify.setContent(b, type);
-				notify.send();
-			}
-			else
+			while (isRunning())
 			{
-				//FIXME
+				Entry entry;
+				try
+				{
+					entry = _queue.take();
+				}
+				catch (InterruptedException e)
+				{
+					continue;
+				}
+
+				Notification notification;
+				synchronized (entry)
+				{
+					notification = entry._pending;
+					entry._pending = null;
+				}
+				_backlog.decrementAndGet();
+
+				try
+				{
+					send(entry._subscription, notification);
+				}
+				finally
+				{
+					synchronized (entry)
+					{
+						entry._lastSent = System.currentTimeMillis();
+						if (entry._pending != null)
+						{
+							entry._readyTime = readyTime(entry, entry._pending);
+							_queue.offer(entry);
+						}
+						else
+							entry._queued = false;
+					}
+				}
 			}
-		} 
-		catch (Throwable e) 
-		{
-			__log.error("Error while sending notifies",e);
+			_log.debug("{} exited", Thread.currentThread().getName());
 		}
 	}
 
-	class Notification 
+	/**
+	 * Notification state of a subscription.
+	 */
+	static class Entry implements Delayed
 	{
-		private SipSession _session;
+		private final Subscription _subscription;
+		private Notification _pending;
+		private boolean _queued;
+		private long _lastSent;
+		private long _readyTime;
 
-		private EventPackage<?> _evtPackage;
-
-		private int _expires;
+		Entry(Subscription subscription)
+		{
+			_subscription = subscription;
+		}
 
-		private Resource.Content _content;
+		public long getDelay(TimeUnit unit)
+		{
+			return unit.convert(_readyTime - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+		}
 
-		private Reason _reason;
+		public int compareTo(Delayed o)
+		{
+			long other = ((Entry) o)._readyTime;
+			return _readyTime < other ? -1 : (_readyTime == other ? 0 : 1);
+		}
+	}
 
-		private Subscription.State _state;
+	/**
+	 * NOTIFY to send, with the subscription state and the content at the time it was created.
+	 * The serialized content may be shared by the notifications of all the subscriptions to a
+	 * resource.
+	 */
+	public static class Notification
+	{
+		private final String _event;
+		private final Subscription.State _state;
+		private final long _expirationTime;
+		private final String _contentType;
+		private final byte[] _content;
 
-		public Notification(
-				EventPackage<?> evtPackage,
-				SipSession session,
-				int expires,
-				Resource.Content content,
-				Subscription.State state,
-				Reason reason) 
+		public Notification(String event, Subscription subscription, String contentType, byte[] content)
 		{
-			_session = session;
-			_evtPackage = evtPackage;
-			_expires = expires;
+			_event = event;
+			_state = subscription.getState();
+			_expirationTime = subscription.getExpirationTime();
+			_contentType = contentType;
 			_content = content;
-			_reason = reason;
-			_state = state;
 		}
 
-		/**
-		 * TODO: improve Subscription-State management
-		 * @return
-		 * @throws ServletParseException 
-		 *
-		public Parameterable getSubscriptionStateHeader() throws ServletParseException 
+		public String getEvent()
 		{
-			/*
-			 * Very basic
-			 *
-			SipFactory factory = (SipFactory) getSession().getServletContext().getAttribute(SipServlet.SIP_FACTORY);
-
-			Parameterable header = factory.createParameterable(_state.getName());
-
-			if(_state.equals(Subscription.State.ACTIVE))
-			{
-				/*
-   If the "Subscription-State" header value is "active", it means that
-   the subscription has been accepted and (in general) has been
-   authorized.  If the header also contains an "expires" parameter, the
-   subscriber SHOULD take it as the authoritative subscription duration
-   and adjust accordingly.  The "retry-after" and "reason" parameters
-   have no semantics for "active".
-				 
-				header.setParameter(Constants.EXPIRES, new Integer(_expires).toString());
-
-			}
-			else if (_state.equals(Subscription.State.PENDING))
-			{
-				/*
-   If the "Subscription-State" value is "pending", the subscription has
-   been received by the notifier, but there is insufficient policy
-   information to grant or deny the subscription yet.  If the header
-   also contains an "expires" parameter, the subscriber SHOULD take it
-   as the authoritative subscription duration and adjust accordingly.
-   No further action is necessary on the part of the subscriber.  The
-   "retry-after" and "reason" parameters have no semantics for
-   "pending".
-				 *
-				header.setParameter(Constants.EXPIRES, new Integer(_expires).toString());
-			}
-			else if(_state.equals(Subscription.State.TERMINATED))
-			{
-				/*
-If the "Subscription-State" value is "terminated", the subscriber
-   should consider the subscription terminated.  The "expires" parameter
-   has no semantics for "terminated".  If a reason code is present, the
-   client should behave as described below.  If no reason code or an
-   unknown reason code is present, the client MAY attempt to re-
-   subscribe at any time (unless a "retry-after" parameter is present,
-   in which case the client SHOULD NOT attempt re-subscription until
-   after the number of seconds specified by the "retry-after"
-   parameter).  The defined reason codes are:
-
-   deactivated: The subscription has been terminated, but the subscriber
-      SHOULD retry immediately with a new subscription.  One primary use
-      of such a status code is to allow migration of subscriptions
-      between nodes.  The "retry-after" parameter has no semantics for
-      "deactivated".
-
-   probation: The subscription has been terminated, but the client
-      SHOULD retry at some later time.  If a "retry-after" parameter is
-      also present, the client SHOULD wait at least the number of
-      seconds specified by that parameter before attempting to re-
-      subscribe.
-
-   rejected: The subscription has been terminated due to change in
-      authorization policy.  Clients SHOULD NOT attempt to re-subscribe.
-      The "retry-after" parameter has no semantics for "rejected".
-
-   timeout: The subscription has been terminated because it was not
-      refreshed before it expired.  Clients MAY re-subscribe
-      immediately.  The "retry-after" parameter has no semantics for
-      "timeout".
-
-   giveup: The subscription has been terminated because the notifier
-      could not obtain authorization in a timely fashion.  If a "retry-
-      after" parameter is also present, the client SHOULD wait at least
-      the number of seconds specified by that parameter before
-      attempting to re-subscribe; otherwise, the client MAY retry
-      immediately, but will likely get put back into pending state.
-
-   noresource: The subscription has been terminated because the resource
-      state which was being monitored no longer exists.  Clients SHOULD
-      NOT attempt to re-subscribe.  The "retry-after" parameter has no
-      semantics for "noresource".
-				 *
-				if(_reason != null)
-					header.setParameter(Constants.REASON, _reason.getName());
-
-			}
-			return header;
+			return _event;
 		}
 
-		public SipSession getSession() 
+		public Subscription.State getState()
 		{
-			return _session;
+			return _state;
 		}
 
-		public EventPackage<?> getEventPackage() 
+		public long getExpirationTime()
 		{
-			return _evtPackage;
+			return _expirationTime;
 		}
 
-		public Resource.Content getContent() 
+		public String getContentType()
 		{
-			return _content;
+			return _contentType;
 		}
 
-		public int getExpires()
+		public byte[] getContent()
 		{
-			return _expires;
+			return _content;
 		}
-	}*/
+	}
+}
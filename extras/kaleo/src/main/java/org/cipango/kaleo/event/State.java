@@ -21,6 +21,7 @@ public class State
 {
 	private String _contentType;
 	private Object _content;
+	private byte[] _bytes;
 	
 	public State(String contentType, Object content)
 	{
@@ -31,6 +32,20 @@ public class State
 	{
 		_contentType = contentType;
 		_content = content;
+		_bytes = null;
+	}
+	
+	/**
+	 * @return the serialized content if it has been cached, <code>null</code> otherwise.
+	 */
+	public byte[] getBytes()
+	{
+		return _bytes;
+	}
+	
+	public void setBytes(byte[] bytes)
+	{
+		_bytes = bytes;
 	}
 	
 	public Object getContent()
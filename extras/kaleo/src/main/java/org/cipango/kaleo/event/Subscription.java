@@ -56,6 +56,8 @@ public class Subscription
 	private boolean _authorised = true;
 	private Object _listeners; //LazyList<SubscriptionListener>
 	
+	Notifier.Entry _notifierEntry;
+	
 	public Subscription(EventResource resource, SipSession session, long expirationTime) 
 	{
 		_resource = resource;
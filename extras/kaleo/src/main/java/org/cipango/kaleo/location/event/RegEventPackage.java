@@ -84,6 +84,15 @@ public class RegEventPackage extends AbstractEventPackage<RegResource>
 		return _registrationListener;
 	}
 	
+	/**
+	 * The document version is numbered per subscription.
+	 */
+	@Override
+	protected boolean isContentShared()
+	{
+		return false;
+	}
+	
 	@Override
 	protected void preprocessState(SipSession session, State state)
 	{
@@ -16,10 +16,12 @@ package org.cipango.kaleo.presence;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 
 import org.apache.xmlbeans.XmlCursor;
 import org.apache.xmlbeans.XmlObject;
@@ -33,8 +35,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Attr;
 import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
+/**
+ * Presence resource. Its state is composed from the soft states published for it.
+ * <p>
+ * The composed state and the neutral state are cached, with their serialized content, until a 
+ * soft state is added, modified or removed. 
+ */
 public class Presentity extends AbstractEventResource
 {	
 	private static Random __random = new Random();
@@ -46,6 +53,8 @@ public class Presentity extends AbstractEventResource
 	}
 	
 	private List<SoftState> _states = new ArrayList<SoftState>();
+	private State _composedState;
+	private State _neutralState;
 	
 	//private Map<String, Subscription> _subscriptions = new HashMap<String, Subscription>();
 	//private List<ResourceListener> _listeners = new ArrayList<ResourceListener>();
@@ -78,7 +87,7 @@ public class Presentity extends AbstractEventResource
 			}
 		}
 		if (stateRemoved)
-			fireStateChanged();
+			stateChanged();
 	}
 	
 	@Override
@@ -102,7 +111,7 @@ public class Presentity extends AbstractEventResource
 		{
 			_states.add(state);
 		}
-		fireStateChanged();
+		stateChanged();
 		
 		return state;
 	}
@@ -122,23 +131,40 @@ public class Presentity extends AbstractEventResource
 
 	public void removeState(String etag)
 	{
+		boolean stateRemoved = false;
 		synchronized(_states)
 		{
 			for (int i = 0; i < _states.size(); i++)
 			{
 				SoftState state = _states.get(i);
 				if (state.getETag().equals(etag))
-					_states.remove(i);
+				{
+					_states.remove(i--);
+					stateRemoved = true;
+				}
 			}
 		}
-		fireStateChanged();
+		if (stateRemoved)
+			stateChanged();
 	}
 	
 	public void modifyState(SoftState state, String contentType, Object content, long expirationTime)
 	{
-		state.setContent(contentType, content);
+		boolean changed = state.getContent() != content || !contentType.equals(state.getContentType());
+		if (changed)
+			state.setContent(contentType, content);
 		state.setETag(newETag());
 		state.setExpirationTime(expirationTime);
+		if (changed)
+			stateChanged();
+	}
+	
+	private void stateChanged()
+	{
+		synchronized (_states)
+		{
+			_composedState = null;
+		}
 		fireStateChanged();
 	}
 	
@@ -149,6 +175,13 @@ public class Presentity extends AbstractEventResource
 	}
 
 	public State getNeutralState() 
+	{
+		if (_neutralState == null)
+			_neutralState = newNeutralState();
+		return _neutralState;
+	}
+	
+	private State newNeutralState()
 	{
 		PresenceDocument document = PresenceDocument.Factory.newInstance();
 		Presence presence = document.addNewPresence();
@@ -165,10 +198,18 @@ public class Presentity extends AbstractEventResource
 		{
 			if (_states.size() == 0)
 				return null;
-			if (_states.size() == 1)
-				return _states.get(0);
-			
+			if (_composedState == null)
+				_composedState = _states.size() == 1 ? _states.get(0) : composeState();
+			return _composedState;
+		}
+	}
+	
+	private State composeState()
+	{
+		synchronized (_states)
+		{
 			XmlCursor cursor = null;
+			Set<String> ids = new HashSet<String>();
 			String contentType = null;
 			Map<String, String> namespaces = new HashMap<String, String>();
 			for (State state : _states)
@@ -179,6 +220,18 @@ public class Presentity extends AbstractEventResource
 					cursor = o.copy().newCursor();
 					cursor.push();
 					cursor.toFirstChild();
+					
+					XmlCursor child = cursor.newCursor();
+					if (child.toFirstChild())
+					{
+						do
+						{
+							addId(child, ids);
+						}
+						while (child.toNextSibling());
+					}
+					child.dispose();
+					
 					cursor.toEndToken();
 					contentType = state.getContentType();
 				}
@@ -186,13 +239,17 @@ public class Presentity extends AbstractEventResource
 				{
 					XmlCursor cursor2 = o.newCursor();
 					cursor2.toFirstChild(); // Presence
-					cursor2.toFirstChild(); // tuple
+					boolean hasChild = cursor2.toFirstChild(); // tuple
 					cursor2.getAllNamespaces(namespaces);
-					do 
+					if (hasChild)
 					{
-						add(cursor2, cursor);
-					} 
-					while (cursor2.toNextSibling());
+						do 
+						{
+							if (addId(cursor2, ids))
+								cursor2.copyXml(cursor);
+						} 
+						while (cursor2.toNextSibling());
+					}
 					cursor2.dispose();
 				}
 			}
@@ -209,25 +266,17 @@ public class Presentity extends AbstractEventResource
 		}
 	}
 	
-	private void add(XmlCursor source, XmlCursor destination)
+	/**
+	 * @return <code>false</code> if a node with the same name and id has already been added.
+	 */
+	private boolean addId(XmlCursor cursor, Set<String> ids)
 	{
-		NodeList nodeList = destination.getDomNode().getChildNodes();
-		Attr idNode = (Attr) source.getDomNode().getAttributes().getNamedItem("id");
-		if (idNode != null)
-		{
-			for (int i = 0; i < nodeList.getLength(); i++)
-			{
-				Node node2 = nodeList.item(i);
-				Attr idNode2 = (Attr) (node2.getAttributes() != null ? node2.getAttributes().getNamedItem("id") : null);
-				if (node2.getNodeName().equals(source.getDomNode().getNodeName())
-						&& idNode2 != null && idNode.getValue().equals(idNode2.getValue()))
-				{
-					__log.warn("Got two nodes with same id: {}. Ignore second node.", idNode.getValue());
-					return;
-				}
-			}
-		}
-		source.copyXml(destination);
+		Node node = cursor.getDomNode();
+		Attr idNode = (Attr) (node.getAttributes() != null ? node.getAttributes().getNamedItem("id") : null);
+		if (idNode == null || ids.add(node.getNodeName() + ' ' + idNode.getValue()))
+			return true;
+		__log.warn("Got two nodes with same id: {}. Ignore second node.", idNode.getValue());
+		return false;
 	}
 	
 	public State getState()
@@ -17,6 +17,7 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.xmlbeans.XmlCursor;
 import org.cipango.kaleo.Resource;
@@ -55,6 +56,9 @@ public class XcapPolicy implements Policy
 	private XcapService _xcapService;
 	private List<XcapUri> _xcapResources = new ArrayList<XcapUri>();
 	
+	private volatile int _version;
+	private volatile ConcurrentHashMap<String, SubHandling> _subHandlings = new ConcurrentHashMap<String, SubHandling>();
+	
 	public XcapPolicy(Resource resource, XcapService xcapService)
 	{
 		_resourceUri = resource.getUri();
@@ -78,7 +82,33 @@ public class XcapPolicy implements Policy
 		}
 	}
 	
+	/**
+	 * @return the version of the policy, incremented each time one of its XCAP documents changes.
+	 */
+	public int getVersion()
+	{
+		return _version;
+	}
+	
+	/**
+	 * Returns the sub-handling for the subscriber. The result is memoized for the current version
+	 * of the policy when its documents are listened to and its rules do not depend on time.
+	 */
 	public SubHandling getPolicy(String subscriberUri)
+	{
+		ConcurrentHashMap<String, SubHandling> subHandlings = _subHandlings;
+		SubHandling subHandling = subHandlings.get(subscriberUri);
+		if (subHandling == null)
+		{
+			boolean[] cacheable = { _xcapListener != null };
+			subHandling = evaluate(subscriberUri, cacheable);
+			if (cacheable[0])
+				subHandlings.put(subscriberUri, subHandling);
+		}
+		return subHandling;
+	}
+	
+	private SubHandling evaluate(String subscriberUri, boolean[] cacheable)
 	{
 		try
 		{
@@ -93,6 +123,8 @@ public class XcapPolicy implements Policy
 			for (int i = 0; i < ruleset.getRuleArray().length; i++)
 			{
 				RuleType rule = ruleset.getRuleArray(i);
+				if (rule.getConditions().getValidityArray().length != 0)
+					cacheable[0] = false;
 				if (match(rule.getConditions(), subscriberUri, domain))
 				{
 					SubHandling subHandling = getSubHandling(rule.getActions());
@@ -133,11 +165,13 @@ public class XcapPolicy implements Policy
 		}
 		catch (XcapException e) 
 		{
+			cacheable[0] = false;
 			__log.debug("Unable to find policy for subcription: "  + subscriberUri, e);
 			return SubHandling.BLOCK;
 		}
 		catch (Exception e) 
 		{
+			cacheable[0] = false;
 			__log.warn("Unable to find policy for subcription: "  + subscriberUri, e);
 			return SubHandling.BLOCK;
 		}	
@@ -299,6 +333,8 @@ public class XcapPolicy implements Policy
 			while (it.hasNext())
 				_xcapService.removeListener(_xcapListener, it.next());
 			_xcapListener = null;
+			// changes are no longer tracked
+			_subHandlings = new ConcurrentHashMap<String, SubHandling>();
 		}
 		
 	}
@@ -314,6 +350,8 @@ public class XcapPolicy implements Policy
 		public void documentChanged(XcapResource resource)
 		{
 			__log.debug("Policy for resource " + _resourceUri + " has changed");
+			_version++;
+			_subHandlings = new ConcurrentHashMap<String, SubHandling>();
 			for (int i = 0; i < LazyList.size(_listeners); i++)
 				((PolicyListener) LazyList.get(_listeners, i)).policyHasChanged(XcapPolicy.this);
 		}
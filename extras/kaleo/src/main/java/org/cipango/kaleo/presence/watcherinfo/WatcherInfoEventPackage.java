@@ -82,6 +82,15 @@ public class WatcherInfoEventPackage extends AbstractEventPackage<WatcherResourc
 		return _subscriptionListener;
 	}
 	
+	/**
+	 * The document version is numbered per subscription.
+	 */
+	@Override
+	protected boolean isContentShared()
+	{
+		return false;
+	}
+	
 	@Override
 	protected void preprocessState(SipSession session, State state)
 	{
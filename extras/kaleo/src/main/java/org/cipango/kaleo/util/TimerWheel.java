@@ -0,0 +1,169 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.kaleo.util;
+
+import java.util.List;
+
+/**
+ * Hashed timing wheel. Time is divided in ticks of <code>tickDuration</code> ms and a node
+ * expiring at tick <code>t</code> is kept in slot <code>t % slots</code>, so that scheduling
+ * and removal are done in constant time whatever the number of nodes. Nodes expiring beyond
+ * a turn of the wheel stay in their slot until their tick is reached.
+ * <p>
+ * The wheel is not thread safe, callers are expected to synchronize on it.
+ */
+public class TimerWheel
+{
+	private final Node[] _slots;
+	private final int _mask;
+	private final long _tickDuration;
+	private long _currentTick;
+	private int _size;
+
+	/**
+	 * @param slots the number of slots, rounded up to a power of two.
+	 */
+	public TimerWheel(int slots, long tickDuration, long now)
+	{
+		if (slots <= 0 || tickDuration <= 0)
+			throw new IllegalArgumentException("slots: " + slots + ", tick duration: " + tickDuration);
+		int size = 1;
+		while (size < slots)
+			size <<= 1;
+
+		_slots = new Node[size];
+		_mask = size - 1;
+		_tickDuration = tickDuration;
+		_currentTick = now / tickDuration;
+
+		for (int i = 0; i < size; i++)
+		{
+			Node head = new Node(-1);
+			head._next = head._prev = head;
+			_slots[i] = head;
+		}
+	}
+
+	public long getTickDuration()
+	{
+		return _tickDuration;
+	}
+
+	public int getSize()
+	{
+		return _size;
+	}
+
+	/**
+	 * @return the time at which the next tick should be processed.
+	 */
+	public long getNextTickTime()
+	{
+		return (_currentTick + 1) * _tickDuration;
+	}
+
+	/**
+	 * Schedules the node at <code>time</code>, rescheduling it if it was already in the wheel.
+	 */
+	public void offer(Node node, long time)
+	{
+		if (node._next != null)
+			unlink(node);
+		else
+			_size++;
+
+		// round up so that a node never expires early
+		long tick = time / _tickDuration;
+		if (time % _tickDuration != 0)
+			tick++;
+		if (tick <= _currentTick)
+			tick = _currentTick + 1;
+		node._value = time;
+		node._tick = tick;
+
+		Node head = _slots[(int) (tick & _mask)];
+		node._prev = head._prev;
+		node._next = head;
+		head._prev._next = node;
+		head._prev = node;
+	}
+
+	/**
+	 * @return <code>true</code> if the node was scheduled in this wheel.
+	 */
+	public boolean remove(Node node)
+	{
+		if (node._next == null)
+			return false;
+		unlink(node);
+		_size--;
+		return true;
+	}
+
+	/**
+	 * Advances the wheel up to <code>now</code> and adds the expired nodes to <code>expired</code>.
+	 */
+	public void expire(long now, List<Node> expired)
+	{
+		long nowTick = now / _tickDuration;
+		while (_currentTick < nowTick)
+		{
+			long tick = ++_currentTick;
+			Node head = _slots[(int) (tick & _mask)];
+			Node node = head._next;
+			while (node != head)
+			{
+				Node next = node._next;
+				if (node._tick <= tick)
+				{
+					unlink(node);
+					_size--;
+					expired.add(node);
+				}
+				node = next;
+			}
+		}
+	}
+
+	private void unlink(Node node)
+	{
+		node._prev._next = node._next;
+		node._next._prev = node._prev;
+		node._next = node._prev = null;
+	}
+
+	public static class Node
+	{
+		private long _value;
+		private long _tick;
+		private Node _prev;
+		private Node _next;
+
+		public Node(long value)
+		{
+			_value = value;
+		}
+
+		public long getValue()
+		{
+			return _value;
+		}
+
+		public boolean isScheduled()
+		{
+			return _next != null;
+		}
+	}
+}
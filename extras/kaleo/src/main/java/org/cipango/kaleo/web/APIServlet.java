@@ -13,6 +13,7 @@ import javax.servlet.http.HttpServletResponse;
 import org.cipango.kaleo.Resource;
 import org.cipango.kaleo.AbstractResourceManager.ResourceHolder;
 import org.cipango.kaleo.event.EventResource;
+import org.cipango.kaleo.event.Notifier;
 import org.cipango.kaleo.event.Subscription;
 import org.cipango.kaleo.location.Binding;
 import org.cipango.kaleo.location.LocationService;
@@ -104,6 +105,20 @@ public class APIServlet extends HttpServlet
 			public Object fromJSON(Map object)  { return null; }
 		});
 		
+		JSON.getDefault().addConvertor(Notifier.class, new Convertor()
+		{
+			public void toJSON(Object obj, Output out) 
+			{
+				Notifier notifier = (Notifier) obj;
+				out.add("backlog", notifier.getBacklog());
+				out.add("notifications", notifier.getNotifications());
+				out.add("coalesced", notifier.getCoalesced());
+				out.add("coalesceRatio", notifier.getCoalesceRatio());
+				out.add("sent", notifier.getSent());
+			}
+			public Object fromJSON(Map object)  { return null; }
+		});
+		
 		JSON.getDefault().addConvertor(ResourceHolder.class, new Convertor()
 		{
 			public void toJSON(Object obj, Output out) 
@@ -143,5 +158,12 @@ public class APIServlet extends HttpServlet
 			holders.addAll(_watcherInfo.getHolders());
 			response.getOutputStream().println(JSON.getDefault().toJSON(holders));
 		}
+		else if ("notifiers".equals(path[0]))
+		{
+			List<Notifier> notifiers = new ArrayList<Notifier>();
+			notifiers.add(_presence.getNotifier());
+			notifiers.add(_watcherInfo.getNotifier());
+			response.getOutputStream().println(JSON.getDefault().toJSON(notifiers));
+		}
 	}
 }
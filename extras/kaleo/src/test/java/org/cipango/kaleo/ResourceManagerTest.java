@@ -0,0 +1,236 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.kaleo;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.cipango.kaleo.AbstractResourceManager.ResourceTask;
+
+public class ResourceManagerTest extends TestCase
+{
+	private AtomicInteger _created = new AtomicInteger();
+
+	private Manager _manager;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		_manager = new Manager();
+		_manager.setSchedulerThreads(2);
+		_manager.start();
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		_manager.stop();
+	}
+
+	public void testGetPut()
+	{
+		Counter counter = _manager.get("sip:alice@cipango.org");
+		counter._expirationTime = System.currentTimeMillis() + 60000;
+		_manager.put(counter);
+
+		assertTrue(_manager.contains("sip:alice@cipango.org"));
+		assertSame(counter, _manager.get("sip:alice@cipango.org"));
+		_manager.put(counter);
+		assertEquals(1, _created.get());
+		assertEquals(1, _manager.getTimeouts());
+
+		counter = _manager.get("sip:alice@cipango.org");
+		counter._expirationTime = -1;
+		_manager.put(counter);
+		assertFalse(_manager.contains("sip:alice@cipango.org"));
+		assertEquals(0, _manager.getTimeouts());
+	}
+
+	public void testExecute() throws Exception
+	{
+		final Counter counter = _manager.get("sip:bob@cipango.org");
+		counter._expirationTime = Long.MAX_VALUE;
+
+		Thread thread = new Thread()
+		{
+			public void run()
+			{
+				for (int i = 0; i < 100; i++)
+					_manager.execute("sip:bob@cipango.org", new Increment());
+			}
+		};
+		thread.start();
+		thread.join();
+
+		// tasks are delayed while the resource is held
+		assertEquals(0, counter._count);
+		_manager.put(counter);
+		assertEquals(100, counter._count);
+
+		_manager.execute("sip:bob@cipango.org", new Increment());
+		assertEquals(101, counter._count);
+	}
+
+	public void testConcurrent() throws Exception
+	{
+		final int threads = 8;
+		final int loops = 2000;
+		final CountDownLatch latch = new CountDownLatch(threads);
+
+		for (int t = 0; t < threads; t++)
+		{
+			new Thread()
+			{
+				public void run()
+				{
+					for (int i = 0; i < loops; i++)
+					{
+						String uri = "sip:user" + (i % 50) + "@cipango.org";
+						if (i % 2 == 0)
+						{
+							Counter counter = _manager.get(uri);
+							try
+							{
+								counter._expirationTime = Long.MAX_VALUE;
+								counter._count++;
+							}
+							finally
+							{
+								_manager.put(counter);
+							}
+						}
+						else
+							_manager.execute(uri, new Increment());
+					}
+					latch.countDown();
+				}
+			}.start();
+		}
+		assertTrue(latch.await(30, TimeUnit.SECONDS));
+
+		int total = 0;
+		for (Counter counter : _manager.getResources())
+			total += counter._count;
+		assertEquals(threads * loops, total);
+		assertEquals(50, _created.get());
+	}
+
+	public void testTimeout() throws Exception
+	{
+		Counter counter = _manager.get("sip:carol@cipango.org");
+		counter._expirationTime = System.currentTimeMillis() + 200;
+		_manager.put(counter);
+
+		long end = System.currentTimeMillis() + 5000;
+		while (_manager.contains("sip:carol@cipango.org") && System.currentTimeMillis() < end)
+			Thread.sleep(50);
+		assertFalse(_manager.contains("sip:carol@cipango.org"));
+		assertTrue(counter._timedOut);
+	}
+
+	public void testSlowTimeout() throws Exception
+	{
+		_manager.stop();
+		_manager.setSchedulerThreads(1);
+		_manager.start();
+
+		CountDownLatch block = new CountDownLatch(1);
+		Counter slow = _manager.get("sip:slow@cipango.org");
+		slow._block = block;
+		slow._expirationTime = System.currentTimeMillis() + 100;
+		_manager.put(slow);
+		Counter fast = _manager.get("sip:fast@cipango.org");
+		fast._expirationTime = System.currentTimeMillis() + 300;
+		_manager.put(fast);
+
+		try
+		{
+			// the blocked timeout does not delay the other expirations of the scheduler
+			long end = System.currentTimeMillis() + 5000;
+			while (_manager.contains("sip:fast@cipango.org") && System.currentTimeMillis() < end)
+				Thread.sleep(50);
+			assertFalse(_manager.contains("sip:fast@cipango.org"));
+			assertTrue(_manager.contains("sip:slow@cipango.org"));
+		}
+		finally
+		{
+			block.countDown();
+		}
+	}
+
+	static class Counter extends AbstractResource
+	{
+		int _count;
+		long _expirationTime;
+		boolean _timedOut;
+		CountDownLatch _block;
+
+		public Counter(String uri)
+		{
+			super(uri);
+		}
+
+		public long nextTimeout()
+		{
+			return _expirationTime;
+		}
+
+		public void doTimeout(long time)
+		{
+			if (_block != null)
+			{
+				try
+				{
+					_block.await();
+				}
+				catch (InterruptedException e)
+				{
+				}
+			}
+			if (_expirationTime <= time)
+			{
+				_timedOut = true;
+				_expirationTime = -1;
+			}
+		}
+
+		public boolean isDone()
+		{
+			return _expirationTime <= 0;
+		}
+	}
+
+	static class Increment implements ResourceTask<Counter>
+	{
+		public void run(Counter counter)
+		{
+			counter._expirationTime = Long.MAX_VALUE;
+			counter._count++;
+		}
+	}
+
+	class Manager extends AbstractResourceManager<Counter>
+	{
+		@Override
+		protected Counter newResource(String uri)
+		{
+			_created.incrementAndGet();
+			return new Counter(uri);
+		}
+	}
+}
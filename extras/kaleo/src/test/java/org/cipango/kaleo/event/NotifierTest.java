@@ -0,0 +1,153 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.kaleo.event;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.cipango.kaleo.event.Notifier.Notification;
+
+public class NotifierTest extends TestCase
+{
+	private List<Notification> _sent = new ArrayList<Notification>();
+	private List<Long> _times = new ArrayList<Long>();
+
+	private Notifier _notifier = new Notifier("test")
+	{
+		@Override
+		protected void send(Subscription subscription, Notification notification)
+		{
+			synchronized (_sent)
+			{
+				_sent.add(notification);
+				_times.add(System.currentTimeMillis());
+				_sent.notifyAll();
+			}
+		}
+	};
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		_notifier.stop();
+	}
+
+	public void testNotStarted()
+	{
+		Subscription subscription = newSubscription();
+		_notifier.notify(subscription, newNotification(subscription, "a"));
+		assertEquals(1, _sent.size());
+		assertEquals(0, _notifier.getBacklog());
+	}
+
+	public void testCoalesce() throws Exception
+	{
+		_notifier.setMinInterval(300);
+		_notifier.start();
+
+		Subscription subscription = newSubscription();
+		_notifier.notify(subscription, newNotification(subscription, "a"));
+		waitFor(1);
+
+		// throttled, b is replaced by c
+		_notifier.notify(subscription, newNotification(subscription, "b"));
+		_notifier.notify(subscription, newNotification(subscription, "c"));
+		assertEquals(1, _notifier.getBacklog());
+		waitFor(2);
+
+		assertEquals("c", new String(_sent.get(1).getContent()));
+		assertTrue(_times.get(1) - _times.get(0) >= 290);
+		assertEquals(0, _notifier.getBacklog());
+		assertEquals(3, _notifier.getNotifications());
+		assertEquals(1, _notifier.getCoalesced());
+		assertEquals(1 / 3.0, _notifier.getCoalesceRatio(), 0.001);
+
+		// final NOTIFY is not throttled
+		subscription.setState(Subscription.State.TERMINATED, Subscription.Reason.TIMEOUT);
+		long start = System.currentTimeMillis();
+		_notifier.notify(subscription, newNotification(subscription, "d"));
+		waitFor(3);
+		assertTrue(_times.get(2) - start < 200);
+	}
+
+	public void testTerminatedReplacesPending() throws Exception
+	{
+		_notifier.setMinInterval(2000);
+		_notifier.start();
+
+		Subscription subscription = newSubscription();
+		_notifier.notify(subscription, newNotification(subscription, "a"));
+		waitFor(1);
+
+		// b is throttled, then replaced by the final NOTIFY which is sent at once
+		_notifier.notify(subscription, newNotification(subscription, "b"));
+		Thread.sleep(50);
+		subscription.setState(Subscription.State.TERMINATED, Subscription.Reason.TIMEOUT);
+		long start = System.currentTimeMillis();
+		_notifier.notify(subscription, newNotification(subscription, "c"));
+		waitFor(2);
+
+		assertEquals("c", new String(_sent.get(1).getContent()));
+		assertEquals(Subscription.State.TERMINATED, _sent.get(1).getState());
+		assertTrue(_times.get(1) - start < 500);
+		assertEquals(0, _notifier.getBacklog());
+		assertEquals(1, _notifier.getCoalesced());
+	}
+
+	public void testParallel() throws Exception
+	{
+		_notifier.setThreads(4);
+		_notifier.start();
+
+		Subscription[] subscriptions = new Subscription[100];
+		for (int i = 0; i < subscriptions.length; i++)
+			subscriptions[i] = newSubscription();
+		for (int j = 0; j < 10; j++)
+			for (int i = 0; i < subscriptions.length; i++)
+				_notifier.notify(subscriptions[i], newNotification(subscriptions[i], String.valueOf(j)));
+
+		long end = System.currentTimeMillis() + 5000;
+		while (_notifier.getBacklog() > 0 && System.currentTimeMillis() < end)
+			Thread.sleep(10);
+		assertEquals(0, _notifier.getBacklog());
+		assertEquals(1000, _notifier.getNotifications());
+		assertEquals(1000, _notifier.getCoalesced() + _sent.size());
+	}
+
+	private void waitFor(int sent) throws InterruptedException
+	{
+		long end = System.currentTimeMillis() + 5000;
+		synchronized (_sent)
+		{
+			while (_sent.size() < sent && System.currentTimeMillis() < end)
+				_sent.wait(100);
+		}
+		assertEquals(sent, _sent.size());
+	}
+
+	private Subscription newSubscription()
+	{
+		Subscription subscription = new Subscription(null, null, System.currentTimeMillis() + 60000);
+		subscription.setState(Subscription.State.ACTIVE, Subscription.Reason.SUBSCRIBE);
+		return subscription;
+	}
+
+	private Notification newNotification(Subscription subscription, String content)
+	{
+		return new Notification("presence", subscription, "text/plain", content.getBytes());
+	}
+}
@@ -0,0 +1,90 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.kaleo.location;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Standalone benchmark of the location service: registers bindings for distinct AORs from
+ * several threads, then refreshes them all, as after a network outage. Reports the throughput
+ * of each phase and the number of timeouts scheduled.
+ * <p>
+ * Usage: <code>LocationServiceBenchmark [bindings] [threads]</code>
+ */
+public class LocationServiceBenchmark
+{
+	public static void main(String[] args) throws Exception
+	{
+		int bindings = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+		LocationService service = new LocationService();
+		service.start();
+		try
+		{
+			run("register", service, bindings, threads);
+			run("refresh", service, bindings, threads);
+			System.out.printf("%d registrations, %d timeouts scheduled%n",
+					service.getResources().size(), service.getTimeouts());
+		}
+		finally
+		{
+			service.stop();
+		}
+	}
+
+	static void run(String phase, final LocationService service, final int bindings, final int threads) throws Exception
+	{
+		final CountDownLatch latch = new CountDownLatch(threads);
+		long start = System.nanoTime();
+		for (int t = 0; t < threads; t++)
+		{
+			final int first = t;
+			new Thread()
+			{
+				public void run()
+				{
+					for (int i = first; i < bindings; i += threads)
+						register(service, "sip:user" + i + "@cipango.org", i);
+					latch.countDown();
+				}
+			}.start();
+		}
+		latch.await();
+		long nanos = System.nanoTime() - start;
+		System.out.printf("%-8s %8d ns/binding %10d bindings/s%n", phase,
+				nanos / bindings, (long) bindings * 1000000000L / nanos);
+	}
+
+	static void register(LocationService service, String aor, int i)
+	{
+		long expirationTime = System.currentTimeMillis() + 3600000 + (i % 600) * 1000;
+		Registration registration = service.get(aor);
+		try
+		{
+			if (registration.getBindings().isEmpty())
+				registration.addBinding(new Binding(null, aor, 1, expirationTime));
+			else
+			{
+				Binding binding = registration.getBindings().get(0);
+				registration.updateBinding(binding, null, aor, binding.getCSeq() + 1, expirationTime);
+			}
+		}
+		finally
+		{
+			service.put(registration);
+		}
+	}
+}
@@ -15,6 +15,8 @@ package org.cipango.kaleo.presence;
 
 import junit.framework.TestCase;
 
+import org.cipango.kaleo.event.State;
+
 import org.cipango.kaleo.presence.pidf.Basic;
 import org.cipango.kaleo.presence.pidf.Presence;
 import org.cipango.kaleo.presence.pidf.PresenceDocument;
@@ -116,6 +118,33 @@ public class PresentityTest extends TestCase
 		//System.out.println(presentity.getState().getContent());
 	}
 	
+	public void testCachedState() throws Exception
+	{
+		Presentity presentity = new Presentity("sip:alice@cipango.org");
+		assertSame(presentity.getNeutralState(), presentity.getState());
+		
+		PresenceDocument doc1 = PresenceDocument.Factory.parse(getClass().getResourceAsStream("/org/cipango/kaleo/sipunit/publish1.xml"));
+		SoftState state1 = presentity.addState(PresenceEventPackage.PIDF, doc1, 60);
+		PresenceDocument doc2 = PresenceDocument.Factory.parse(getClass().getResourceAsStream("/pidf1.xml"));
+		presentity.addState(PresenceEventPackage.PIDF, doc2, 60);
+		
+		State state = presentity.getState();
+		assertSame(state, presentity.getState());
+		state.setBytes(new byte[0]);
+		
+		// no content change
+		presentity.refreshState(state1, 120);
+		presentity.modifyState(state1, PresenceEventPackage.PIDF, doc1, 120);
+		presentity.removeState("unknown");
+		assertSame(state, presentity.getState());
+		assertNotNull(presentity.getState().getBytes());
+		
+		presentity.modifyState(state1, PresenceEventPackage.PIDF, doc1.copy(), 120);
+		assertNotSame(state, presentity.getState());
+		assertNull(presentity.getState().getBytes());
+		assertEquals(2, ((PresenceDocument) presentity.getState().getContent()).getPresence().getTupleArray().length);
+	}
+	
 	public void testInsertSameId() throws Exception
 	{		
 		Presentity presentity = new Presentity("sip:alice@cipango.org");
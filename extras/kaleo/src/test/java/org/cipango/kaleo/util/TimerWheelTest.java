@@ -0,0 +1,105 @@
+// ========================================================================
+// Copyright 2011 NEXCOM Systems
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.cipango.kaleo.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import org.cipango.kaleo.util.TimerWheel.Node;
+
+public class TimerWheelTest extends TestCase
+{
+	public void testOne()
+	{
+		TimerWheel wheel = new TimerWheel(16, 10, 1000);
+		List<Node> expired = new ArrayList<Node>();
+
+		Node node = new Node(0);
+		wheel.offer(node, 1055);
+		assertEquals(1, wheel.getSize());
+		assertTrue(node.isScheduled());
+
+		wheel.expire(1050, expired);
+		assertEquals(0, expired.size());
+		wheel.expire(1060, expired);
+		assertEquals(1, expired.size());
+		assertEquals(1055, expired.get(0).getValue());
+		assertEquals(0, wheel.getSize());
+		assertFalse(node.isScheduled());
+
+		wheel.offer(node, 2000);
+		wheel.offer(node, 3000);
+		assertEquals(1, wheel.getSize());
+		assertTrue(wheel.remove(node));
+		assertFalse(wheel.remove(node));
+		assertEquals(0, wheel.getSize());
+	}
+
+	public void testRounds()
+	{
+		TimerWheel wheel = new TimerWheel(16, 10, 0);
+		List<Node> expired = new ArrayList<Node>();
+
+		Node late = new Node(0);
+		Node early = new Node(0);
+		wheel.offer(late, 10 + 16 * 10 * 3);
+		wheel.offer(early, 10);
+
+		wheel.expire(10, expired);
+		assertEquals(1, expired.size());
+		assertSame(early, expired.get(0));
+
+		expired.clear();
+		wheel.expire(16 * 10 * 3, expired);
+		assertEquals(0, expired.size());
+		wheel.expire(10 + 16 * 10 * 3, expired);
+		assertSame(late, expired.get(0));
+
+		// past time expires at next tick
+		wheel.offer(early, 0);
+		expired.clear();
+		wheel.expire(wheel.getNextTickTime(), expired);
+		assertSame(early, expired.get(0));
+	}
+
+	public void testOrder()
+	{
+		Random random = new Random();
+		TimerWheel wheel = new TimerWheel(64, 7, 0);
+		List<Node> expired = new ArrayList<Node>();
+
+		for (int i = 0; i < 10000; i++)
+			wheel.offer(new Node(0), 1 + random.nextInt(100000));
+
+		for (long now = 0; now <= 100000 + 7; now += 1 + random.nextInt(50))
+		{
+			expired.clear();
+			wheel.expire(now, expired);
+			for (Node node : expired)
+			{
+				assertTrue(node.getValue() <= now);
+				assertTrue(node.getValue() > now - 50 - 7);
+			}
+		}
+		// the last step may stop before the rounded up tick of the latest nodes
+		expired.clear();
+		wheel.expire(100000 + 2 * 7, expired);
+		for (Node node : expired)
+			assertTrue(node.getValue() > 100000 - 50 - 7);
+		assertEquals(0, wheel.getSize());
+	}
+}
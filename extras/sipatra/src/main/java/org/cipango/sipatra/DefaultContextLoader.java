@@ -19,11 +19,12 @@ import javax.servlet.ServletContext;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 
-import org.apache.commons.pool.impl.GenericObjectPool;
-import org.apache.commons.pool.impl.GenericObjectPool.Config;
+import org.apache.commons.pool.ObjectPool;
 import org.cipango.sipatra.properties.Properties;
 import org.cipango.sipatra.properties.PropertyUtils;
 import org.cipango.sipatra.ruby.JRubyRuntimeFactory;
+import org.cipango.sipatra.ruby.JRubyRuntimePool;
+import org.cipango.sipatra.ruby.JRubyRuntimePool.ExhaustedAction;
 import org.slf4j.Logger;
 
 public class DefaultContextLoader implements ServletContextListener
@@ -66,53 +67,46 @@ public class DefaultContextLoader implements ServletContextListener
 			}
 		}
 
-		Config conf = new Config();
-
-		conf.maxActive = PropertyUtils.getIntegerProperty(Properties.SIPATRA_POOL_MAX_ACTIVE_PROPERTY, -1, servletContext);
-		conf.maxIdle = PropertyUtils.getIntegerProperty(Properties.SIPATRA_POOL_MAX_IDLE_PROPERTY, -1, servletContext);
-		conf.maxWait = PropertyUtils.getIntegerProperty(Properties.SIPATRA_POOL_MAX_WAIT_PROPERTY, -1, servletContext);
-		conf.minIdle = PropertyUtils.getIntegerProperty(Properties.SIPATRA_POOL_MIN_IDLE_PROPERTY, -1, servletContext);
-		conf.minEvictableIdleTimeMillis = PropertyUtils.getLongProperty(Properties.SIPATRA_POOL_MIN_EVICTABLE_PROPERTY, 1000L*60L*30L, servletContext);
-		conf.lifo = PropertyUtils.getBooleanProperty(Properties.SIPATRA_POOL_LIFO, false, servletContext);
-		conf.numTestsPerEvictionRun = PropertyUtils.getIntegerProperty(Properties.SIPATRA_POOL_TEST_EVICTION_RUN, 3, servletContext);
-		conf.softMinEvictableIdleTimeMillis = PropertyUtils.getLongProperty(Properties.SIPATRA_POOL_SOFT_MIN_EVICTABLE, -1L, servletContext);
-		conf.testOnBorrow = PropertyUtils.getBooleanProperty(Properties.SIPATRA_POOL_TEST_BORROW, false, servletContext);
-		conf.testOnReturn = PropertyUtils.getBooleanProperty(Properties.SIPATRA_POOL_TEST_RETURN, false, servletContext);
-		conf.testWhileIdle = PropertyUtils.getBooleanProperty(Properties.SIPATRA_POOL_TEST_IDLE, false, servletContext);
-		conf.timeBetweenEvictionRunsMillis = PropertyUtils.getLongProperty(Properties.SIPATRA_POOL_TIME_EVICTION, -1L, servletContext);
+		// runtimes are booted in the background: the pool size is bounded by maxActive, 
+		// idle runtimes above the initial size are evicted
+		JRubyRuntimePool pool = new JRubyRuntimePool(new JRubyRuntimeFactory(appPath, scriptPath));
+		pool.setTargetSize(PropertyUtils.getIntegerProperty(Properties.SIPATRA_POOL_INIT_POOL_SIZE, 1, servletContext));
+		pool.setMaxSize(PropertyUtils.getIntegerProperty(Properties.SIPATRA_POOL_MAX_ACTIVE_PROPERTY, -1, servletContext));
+		pool.setMaxWait(PropertyUtils.getLongProperty(Properties.SIPATRA_POOL_MAX_WAIT_PROPERTY, -1L, servletContext));
+		pool.setMinIdle(PropertyUtils.getIntegerProperty(Properties.SIPATRA_POOL_MIN_IDLE_PROPERTY, 1, servletContext));
+		pool.setMinEvictableIdleTime(PropertyUtils.getLongProperty(Properties.SIPATRA_POOL_MIN_EVICTABLE_PROPERTY, 1000L*60L*30L, servletContext));
+		pool.setEvictionInterval(PropertyUtils.getLongProperty(Properties.SIPATRA_POOL_TIME_EVICTION, -1L, servletContext));
+		
+		String action = PropertyUtils.getStringProperty(Properties.SIPATRA_POOL_EXHAUSTED_ACTION, "block", servletContext);
+		try
+		{
+			pool.setExhaustedAction(ExhaustedAction.valueOf(action.trim().toUpperCase()));
+		}
+		catch (IllegalArgumentException e)
+		{
+			_log.warn("Property: "+Properties.SIPATRA_POOL_EXHAUSTED_ACTION+" is not block or fail. Default value is used: block");
+		}
 		
-		GenericObjectPool pool = new GenericObjectPool(new JRubyRuntimeFactory(appPath, scriptPath), conf);
-		startPool(pool, PropertyUtils.getIntegerProperty(Properties.SIPATRA_POOL_INIT_POOL_SIZE, 1, servletContext));
+		startPool(pool);
 		servletContext.setAttribute(Attributes.POOL, pool);
 	}
 	
 	public void contextDestroyed(ServletContextEvent sce) 
 	{
-		GenericObjectPool pool = (GenericObjectPool) sce.getServletContext().getAttribute(Attributes.POOL);
+		ObjectPool pool = (ObjectPool) sce.getServletContext().getAttribute(Attributes.POOL);
 		stopPool(pool);
 	}
 	
-	protected void startPool(GenericObjectPool pool, int init_pool_size) 
+	protected void startPool(JRubyRuntimePool pool) 
 	{
-		for(int i = 0; i< init_pool_size; i++)
-		{
-			try 
-			{
-				pool.addObject();
-			} 
-			catch (Exception e) 
-			{
-				_log.error("<<ERROR>>", e);
-			}
-		}
-		_log.info("Pool started with "+init_pool_size+" JRuby Runtimes!");
+		pool.start();
 	}
 
-	protected void stopPool(GenericObjectPool pool) 
+	protected void stopPool(ObjectPool pool) 
 	{
-		pool.clear();
 		try 
 		{
+			pool.clear();
 			pool.close();
 		} 
 		catch (Exception e) 
@@ -14,13 +14,14 @@
 package org.cipango.sipatra;
 
 import java.io.IOException;
+import java.util.NoSuchElementException;
 
 import javax.servlet.sip.SipServlet;
 import javax.servlet.sip.SipServletMessage;
 import javax.servlet.sip.SipServletRequest;
 import javax.servlet.sip.SipServletResponse;
 
-import org.apache.commons.pool.impl.GenericObjectPool;
+import org.apache.commons.pool.ObjectPool;
 import org.jruby.embed.ScriptingContainer;
 import org.slf4j.Logger;
 
@@ -50,8 +51,16 @@ public class SipatraServlet extends SipServlet
 		ScriptingContainer container = null;
 		try 
 		{
-			GenericObjectPool pool = (GenericObjectPool) message.getSession().getServletContext().getAttribute(Attributes.POOL);
-			container = (ScriptingContainer) pool.borrowObject();
+			ObjectPool pool = (ObjectPool) message.getSession().getServletContext().getAttribute(Attributes.POOL);
+			try
+			{
+				container = (ScriptingContainer) pool.borrowObject();
+			}
+			catch (NoSuchElementException e)
+			{
+				exhausted(message);
+				return;
+			}
             long beginTime = System.currentTimeMillis();
 			try 
 			{
@@ -87,4 +96,25 @@ public class SipatraServlet extends SipServlet
 			//throw e?
 		}
 	}
+	
+	/**
+	 * Called when no JRuby runtime is available: rejects requests with a 503 and drops responses.
+	 */
+	protected void exhausted(SipServletMessage message)
+	{
+		_log.warn("No JRuby Runtime available to process '{}' ({})", message.getMethod(), message.getCallId());
+		if (message instanceof SipServletRequest && !"ACK".equals(message.getMethod()))
+		{
+			try
+			{
+				SipServletResponse response = ((SipServletRequest) message).createResponse(SipServletResponse.SC_SERVICE_UNAVAILABLE);
+				response.setHeader("Retry-After", "1");
+				response.send();
+			}
+			catch (Exception e)
+			{
+				_log.error("ERROR >> Failed to send 503 ", e);
+			}
+		}
+	}
 }
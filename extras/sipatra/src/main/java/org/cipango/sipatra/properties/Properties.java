@@ -28,6 +28,7 @@ public class Properties
 	public static final String SIPATRA_POOL_TEST_BORROW					= "org.cipango.sipatra.pool.test.borrow";
 	public static final String SIPATRA_POOL_TEST_RETURN					= "org.cipango.sipatra.pool.test.return";
 	public static final String SIPATRA_POOL_TEST_IDLE					= "org.cipango.sipatra.pool.test.idle";
+	public static final String SIPATRA_POOL_EXHAUSTED_ACTION			= "org.cipango.sipatra.pool.exhausted.action";
 	
 	public static final String SIPATRA_PATH_PROPERTY 					= "org.cipango.sipatra.script.path";
 }
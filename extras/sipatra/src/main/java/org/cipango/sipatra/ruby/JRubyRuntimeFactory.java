@@ -14,6 +14,11 @@
 package org.cipango.sipatra.ruby;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -23,13 +28,16 @@ import org.jruby.embed.PathType;
 import org.jruby.embed.ScriptingContainer;
 
 /**
- * 
- *
+ * Creates the JRuby runtimes of the pool.
+ * <p>
+ * JRuby cannot share a parsed script between runtimes, so the application scripts are read
+ * once and each new runtime evaluates them from memory.
  */
 public class JRubyRuntimeFactory implements PoolableObjectFactory
 {
 	private String _appPath;
 	private String _scriptPath;
+	private List<String[]> _scripts;
 
 	public JRubyRuntimeFactory(String appPath, String scriptPath) 
 	{
@@ -37,7 +45,7 @@ public class JRubyRuntimeFactory implements PoolableObjectFactory
 		_scriptPath = scriptPath;
 	}
 
-	public Object makeObject() 
+	public Object makeObject() throws IOException
 	{
 		ScriptingContainer container = new ScriptingContainer(LocalContextScope.SINGLETHREAD);
 		// TODO: handle RUBY LOAD PATH to allow non JRuby dev
@@ -47,24 +55,63 @@ public class JRubyRuntimeFactory implements PoolableObjectFactory
 		container.runScriptlet("ENV['SIPATRA_PATH'] = '" + _appPath.replaceAll("'", "\'") + "'");
 		container.runScriptlet(PathType.CLASSPATH, "sipatra.rb");
 
-		if(_scriptPath != null)
+		for (String[] script : getScripts())
+			container.runScriptlet(new StringReader(script[1]), script[0]);
+		return container;
+	}
+
+	/**
+	 * Returns the path and source of the application scripts, read on first call.
+	 */
+	protected synchronized List<String[]> getScripts() throws IOException
+	{
+		if (_scripts == null)
 		{
-			File file = new File(_scriptPath);
-			if(file.isFile())
-				container.runScriptlet(PathType.ABSOLUTE, file.getAbsolutePath());
-			else if(file.isDirectory())
+			List<String[]> scripts = new ArrayList<String[]>();
+			if(_scriptPath != null)
 			{
-				for(File f : file.listFiles())
+				File file = new File(_scriptPath);
+				if(file.isFile())
+					scripts.add(new String[] { file.getAbsolutePath(), read(file) });
+				else if(file.isDirectory())
 				{
-					if(f.getName().endsWith(".rb"))
-						container.runScriptlet(PathType.ABSOLUTE, f.getAbsolutePath());
+					for(File f : file.listFiles())
+					{
+						if(f.getName().endsWith(".rb"))
+							scripts.add(new String[] { f.getAbsolutePath(), read(f) });
+					}
 				}
 			}
+			_scripts = scripts;
 		}
-		return container;
+		return _scripts;
 	}
 
-	public void destroyObject(Object obj) {}
+	private String read(File file) throws IOException
+	{
+		Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+		try
+		{
+			StringBuilder sb = new StringBuilder();
+			char[] buffer = new char[4096];
+			int read;
+			while ((read = reader.read(buffer)) != -1)
+				sb.append(buffer, 0, read);
+			return sb.toString();
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+
+	public void destroyObject(Object obj) 
+	{
+		if (obj instanceof ScriptingContainer) 
+		{
+			((ScriptingContainer) obj).terminate();
+		}
+	}
 
 	public boolean validateObject(Object obj) 
 	{
@@ -0,0 +1,625 @@
+// ========================================================================
+// Copyright 2003-2011 the original author or authors.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+package org.cipango.sipatra.ruby;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.NoSuchElementException;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.pool.BaseObjectPool;
+import org.apache.commons.pool.PoolableObjectFactory;
+import org.slf4j.Logger;
+
+/**
+ * Pool of JRuby runtimes which never boots a runtime in the thread borrowing it.
+ * <p>
+ * The pool is pre-warmed to its target size when deployed. Then, when fewer than
+ * <code>minIdle</code> runtimes are idle, new runtimes are booted by a background thread,
+ * up to <code>maxSize</code> runtimes (the high-water mark). Idle runtimes above the target
+ * size are destroyed when they have been idle for <code>minEvictableIdleTime</code>.
+ * <p>
+ * When no runtime is idle, a borrower either waits for a runtime to be returned or booted
+ * ({@link ExhaustedAction#BLOCK}), or fails at once with a {@link NoSuchElementException}
+ * ({@link ExhaustedAction#FAIL}) so that the caller can fall back without blocking.
+ */
+public class JRubyRuntimePool extends BaseObjectPool
+{
+	private static final Logger _log = org.slf4j.LoggerFactory.getLogger(JRubyRuntimePool.class);
+
+	public enum ExhaustedAction { BLOCK, FAIL }
+
+	private PoolableObjectFactory _factory;
+
+	private int _targetSize = 1;
+	private int _maxSize = -1;
+	private int _minIdle = 1;
+	private long _maxWait = -1;
+	private ExhaustedAction _exhaustedAction = ExhaustedAction.BLOCK;
+	private long _minEvictableIdleTime = 1000L * 60L * 30L;
+	private long _evictionInterval = -1;
+
+	private final ReentrantLock _lock = new ReentrantLock();
+	private final Condition _available = _lock.newCondition();
+	private final LinkedList<IdleRuntime> _idle = new LinkedList<IdleRuntime>();
+	private int _active;
+	private int _booting;
+
+	private ExecutorService _grower;
+	private Timer _evictor;
+
+	private final AtomicLong _borrows = new AtomicLong();
+	private final AtomicLong _borrowWaitTime = new AtomicLong();
+	private final AtomicLong _maxBorrowWaitTime = new AtomicLong();
+	private final AtomicLong _exhausted = new AtomicLong();
+	private final AtomicLong _created = new AtomicLong();
+	private final AtomicLong _destroyed = new AtomicLong();
+
+	public JRubyRuntimePool(PoolableObjectFactory factory)
+	{
+		_factory = factory;
+	}
+
+	/**
+	 * Boots the runtimes up to the target size, in parallel, and starts the background threads.
+	 */
+	public void start()
+	{
+		int size = _targetSize - getNumIdle() - getNumActive();
+		if (size > 0)
+		{
+			long start = System.currentTimeMillis();
+			int threads = Math.min(size, Runtime.getRuntime().availableProcessors());
+			ExecutorService executor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("sipatra-prewarm"));
+			for (int i = 0; i < size; i++)
+			{
+				executor.execute(new Runnable()
+				{
+					public void run()
+					{
+						try
+						{
+							addObject();
+						}
+						catch (Exception e)
+						{
+							_log.error("ERROR >> Failed to start a JRuby Runtime ", e);
+						}
+					}
+				});
+			}
+			executor.shutdown();
+			try
+			{
+				executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			_log.info("Pool started with " + getNumIdle() + " JRuby Runtimes in "
+					+ (System.currentTimeMillis() - start) + "ms");
+		}
+
+		_grower = Executors.newSingleThreadExecutor(new DaemonThreadFactory("sipatra-pool"));
+		if (_evictionInterval > 0)
+		{
+			_evictor = new Timer("sipatra-evictor", true);
+			_evictor.schedule(new TimerTask()
+			{
+				@Override
+				public void run()
+				{
+					evict();
+				}
+			}, _evictionInterval, _evictionInterval);
+		}
+	}
+
+	@Override
+	public Object borrowObject() throws Exception
+	{
+		long start = System.nanoTime();
+		IdleRuntime idle;
+		_lock.lock();
+		try
+		{
+			assertOpen();
+			idle = _idle.poll();
+			if (idle == null)
+			{
+				grow();
+				if (_exhaustedAction == ExhaustedAction.FAIL)
+				{
+					_exhausted.incrementAndGet();
+					throw new NoSuchElementException("No idle JRuby runtime");
+				}
+
+				long remaining = TimeUnit.MILLISECONDS.toNanos(_maxWait);
+				while ((idle = _idle.poll()) == null)
+				{
+					if (_maxWait < 0)
+						_available.await();
+					else if (remaining <= 0)
+					{
+						_exhausted.incrementAndGet();
+						throw new NoSuchElementException("Timeout waiting for an idle JRuby runtime");
+					}
+					else
+						remaining = _available.awaitNanos(remaining);
+					assertOpen();
+				}
+			}
+			_active++;
+			grow();
+		}
+		finally
+		{
+			_lock.unlock();
+			recordBorrowWait(System.nanoTime() - start);
+		}
+
+		try
+		{
+			_factory.activateObject(idle._runtime);
+		}
+		catch (Exception e)
+		{
+			invalidateObject(idle._runtime);
+			throw e;
+		}
+		return idle._runtime;
+	}
+
+	@Override
+	public void returnObject(Object runtime) throws Exception
+	{
+		try
+		{
+			_factory.passivateObject(runtime);
+		}
+		catch (Exception e)
+		{
+			invalidateObject(runtime);
+			return;
+		}
+
+		_lock.lock();
+		try
+		{
+			_active--;
+			if (!isClosed())
+			{
+				_idle.addFirst(new IdleRuntime(runtime));
+				_available.signal();
+				return;
+			}
+		}
+		finally
+		{
+			_lock.unlock();
+		}
+		destroy(runtime);
+	}
+
+	@Override
+	public void invalidateObject(Object runtime) throws Exception
+	{
+		_lock.lock();
+		try
+		{
+			_active--;
+			grow();
+		}
+		finally
+		{
+			_lock.unlock();
+		}
+		destroy(runtime);
+	}
+
+	/**
+	 * Boots a runtime in the calling thread and adds it to the idle runtimes.
+	 */
+	@Override
+	public void addObject() throws Exception
+	{
+		assertOpen();
+		Object runtime = _factory.makeObject();
+		_created.incrementAndGet();
+		_factory.passivateObject(runtime);
+
+		_lock.lock();
+		try
+		{
+			if (!isClosed())
+			{
+				_idle.addFirst(new IdleRuntime(runtime));
+				_available.signal();
+				return;
+			}
+		}
+		finally
+		{
+			_lock.unlock();
+		}
+		destroy(runtime);
+	}
+
+	@Override
+	public int getNumIdle()
+	{
+		_lock.lock();
+		try
+		{
+			return _idle.size();
+		}
+		finally
+		{
+			_lock.unlock();
+		}
+	}
+
+	@Override
+	public int getNumActive()
+	{
+		_lock.lock();
+		try
+		{
+			return _active;
+		}
+		finally
+		{
+			_lock.unlock();
+		}
+	}
+
+	@Override
+	public void clear() throws Exception
+	{
+		List<IdleRuntime> idle;
+		_lock.lock();
+		try
+		{
+			idle = new ArrayList<IdleRuntime>(_idle);
+			_idle.clear();
+		}
+		finally
+		{
+			_lock.unlock();
+		}
+		for (IdleRuntime runtime : idle)
+			destroy(runtime._runtime);
+	}
+
+	@Override
+	public void close() throws Exception
+	{
+		super.close();
+		if (_grower != null)
+			_grower.shutdownNow();
+		if (_evictor != null)
+			_evictor.cancel();
+
+		_lock.lock();
+		try
+		{
+			_available.signalAll();
+		}
+		finally
+		{
+			_lock.unlock();
+		}
+		clear();
+		_log.info("Pool closed: " + this);
+	}
+
+	/**
+	 * Schedules the boot of a runtime if too few are idle and the high-water mark is not reached.
+	 * Must be called with the lock held.
+	 */
+	private void grow()
+	{
+		if (_grower == null || isClosed())
+			return;
+
+		int total = _active + _idle.size() + _booting;
+		if ((_idle.size() + _booting < _minIdle || (_idle.isEmpty() && _booting == 0))
+				&& (_maxSize < 0 || total < _maxSize))
+		{
+			_booting++;
+			_grower.execute(new Runnable()
+			{
+				public void run()
+				{
+					boot();
+				}
+			});
+		}
+	}
+
+	private void boot()
+	{
+		Object runtime = null;
+		try
+		{
+			long start = System.currentTimeMillis();
+			runtime = _factory.makeObject();
+			_factory.passivateObject(runtime);
+			_created.incrementAndGet();
+			_log.debug("JRuby Runtime started in {}ms", System.currentTimeMillis() - start);
+		}
+		catch (Exception e)
+		{
+			_log.error("ERROR >> Failed to start a JRuby Runtime ", e);
+		}
+
+		_lock.lock();
+		try
+		{
+			_booting--;
+			if (runtime != null && !isClosed())
+			{
+				_idle.addFirst(new IdleRuntime(runtime));
+				_available.signal();
+				runtime = null;
+				grow();
+			}
+		}
+		finally
+		{
+			_lock.unlock();
+		}
+		if (runtime != null)
+			destroy(runtime);
+	}
+
+	/**
+	 * Destroys the runtimes above the target size idle for more than the min evictable idle time.
+	 */
+	protected void evict()
+	{
+		List<Object> evicted = new ArrayList<Object>();
+		long now = System.currentTimeMillis();
+		_lock.lock();
+		try
+		{
+			int total = _active + _idle.size();
+			// least recently used runtimes are last
+			ListIterator<IdleRuntime> it = _idle.listIterator(_idle.size());
+			while (it.hasPrevious() && total > _targetSize && total > _minIdle)
+			{
+				IdleRuntime idle = it.previous();
+				if (now - idle._since < _minEvictableIdleTime)
+					break;
+				it.remove();
+				evicted.add(idle._runtime);
+				total--;
+			}
+		}
+		finally
+		{
+			_lock.unlock();
+		}
+		for (Object runtime : evicted)
+			destroy(runtime);
+		if (!evicted.isEmpty())
+			_log.debug("Evicted {} idle JRuby Runtimes", evicted.size());
+	}
+
+	private void destroy(Object runtime)
+	{
+		try
+		{
+			_factory.destroyObject(runtime);
+		}
+		catch (Exception e)
+		{
+			_log.warn("Failed to destroy JRuby Runtime", e);
+		}
+		_destroyed.incrementAndGet();
+	}
+
+	private void recordBorrowWait(long nanos)
+	{
+		_borrows.incrementAndGet();
+		_borrowWaitTime.addAndGet(nanos);
+		long max = _maxBorrowWaitTime.get();
+		while (nanos > max && !_maxBorrowWaitTime.compareAndSet(max, nanos))
+			max = _maxBorrowWaitTime.get();
+	}
+
+	/**
+	 * Returns the number of borrow attempts.
+	 */
+	public long getBorrows()
+	{
+		return _borrows.get();
+	}
+
+	/**
+	 * Returns the average time waited to borrow a runtime, in microseconds.
+	 */
+	public long getAverageBorrowWait()
+	{
+		long borrows = _borrows.get();
+		return borrows == 0 ? 0 : _borrowWaitTime.get() / borrows / 1000;
+	}
+
+	/**
+	 * Returns the maximum time waited to borrow a runtime, in microseconds.
+	 */
+	public long getMaxBorrowWait()
+	{
+		return _maxBorrowWaitTime.get() / 1000;
+	}
+
+	/**
+	 * Returns the number of borrow attempts which failed because no runtime was idle.
+	 */
+	public long getExhausted()
+	{
+		return _exhausted.get();
+	}
+
+	public long getCreated()
+	{
+		return _created.get();
+	}
+
+	public long getDestroyed()
+	{
+		return _destroyed.get();
+	}
+
+	public void resetStatistics()
+	{
+		_borrows.set(0);
+		_borrowWaitTime.set(0);
+		_maxBorrowWaitTime.set(0);
+		_exhausted.set(0);
+	}
+
+	public int getTargetSize()
+	{
+		return _targetSize;
+	}
+
+	/**
+	 * Sets the number of runtimes booted when the pool starts and kept when idle.
+	 */
+	public void setTargetSize(int targetSize)
+	{
+		_targetSize = targetSize;
+	}
+
+	public int getMaxSize()
+	{
+		return _maxSize;
+	}
+
+	/**
+	 * Sets the high-water mark: the maximum number of runtimes, <code>-1</code> for no limit.
+	 */
+	public void setMaxSize(int maxSize)
+	{
+		_maxSize = maxSize;
+	}
+
+	public int getMinIdle()
+	{
+		return _minIdle;
+	}
+
+	/**
+	 * Sets the number of idle runtimes below which runtimes are booted in the background.
+	 */
+	public void setMinIdle(int minIdle)
+	{
+		_minIdle = minIdle;
+	}
+
+	public long getMaxWait()
+	{
+		return _maxWait;
+	}
+
+	/**
+	 * Sets the maximum time to wait for a runtime in ms with {@link ExhaustedAction#BLOCK},
+	 * <code>-1</code> to wait indefinitely.
+	 */
+	public void setMaxWait(long maxWait)
+	{
+		_maxWait = maxWait;
+	}
+
+	public ExhaustedAction getExhaustedAction()
+	{
+		return _exhaustedAction;
+	}
+
+	public void setExhaustedAction(ExhaustedAction exhaustedAction)
+	{
+		_exhaustedAction = exhaustedAction;
+	}
+
+	public long getMinEvictableIdleTime()
+	{
+		return _minEvictableIdleTime;
+	}
+
+	public void setMinEvictableIdleTime(long minEvictableIdleTime)
+	{
+		_minEvictableIdleTime = minEvictableIdleTime;
+	}
+
+	public long getEvictionInterval()
+	{
+		return _evictionInterval;
+	}
+
+	/**
+	 * Sets the interval between eviction runs in ms, <code>-1</code> to never evict.
+	 */
+	public void setEvictionInterval(long evictionInterval)
+	{
+		_evictionInterval = evictionInterval;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "idle=" + getNumIdle() + ", active=" + getNumActive() + ", created=" + getCreated()
+			+ ", borrows=" + getBorrows() + ", averageBorrowWait=" + getAverageBorrowWait()
+			+ "us, maxBorrowWait=" + getMaxBorrowWait() + "us, exhausted=" + getExhausted();
+	}
+
+	private static class IdleRuntime
+	{
+		private Object _runtime;
+		private long _since = System.currentTimeMillis();
+
+		IdleRuntime(Object runtime)
+		{
+			_runtime = runtime;
+		}
+	}
+
+	private static class DaemonThreadFactory implements ThreadFactory
+	{
+		private String _name;
+
+		DaemonThreadFactory(String name)
+		{
+			_name = name;
+		}
+
+		public Thread newThread(Runnable r)
+		{
+			Thread thread = new Thread(r, _name);
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,322 @@
+// ========================================================================
+// Copyright 2003-2011 the original author or authors.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+package org.cipango.sipatra.ruby;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.pool.PoolableObjectFactory;
+import org.cipango.sipatra.ruby.JRubyRuntimePool.ExhaustedAction;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JRubyRuntimePoolTest
+{
+	private TestFactory _factory;
+	private JRubyRuntimePool _pool;
+
+	@Before
+	public void setUp()
+	{
+		_factory = new TestFactory();
+		_pool = new JRubyRuntimePool(_factory);
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		_pool.close();
+	}
+
+	@Test
+	public void testPrewarm() throws Exception
+	{
+		_pool.setTargetSize(4);
+		_pool.start();
+
+		assertEquals(4, _pool.getNumIdle());
+		assertEquals(4, _pool.getCreated());
+		// runtimes are never booted in the deploying thread
+		assertFalse(_factory._threads.contains(Thread.currentThread()));
+
+		// borrowing a pre-warmed runtime does not boot one
+		Object runtime = _pool.borrowObject();
+		assertEquals(1, _pool.getNumActive());
+		assertEquals(3, _pool.getNumIdle());
+		_pool.returnObject(runtime);
+		assertEquals(4, _pool.getCreated());
+		assertEquals(4, _pool.getNumIdle());
+	}
+
+	@Test
+	public void testGrow() throws Exception
+	{
+		_pool.setTargetSize(1);
+		_pool.setMinIdle(1);
+		_pool.setMaxSize(3);
+		_pool.setExhaustedAction(ExhaustedAction.FAIL);
+		_pool.start();
+
+		List<Object> borrowed = new ArrayList<Object>();
+		borrowed.add(_pool.borrowObject());
+		for (int i = 0; i < 2; i++)
+		{
+			// a runtime is booted in the background when the last idle one is borrowed
+			waitIdle(1);
+			borrowed.add(_pool.borrowObject());
+		}
+		assertEquals(3, _pool.getNumActive());
+		assertEquals(0, _pool.getNumIdle());
+
+		// the high-water mark is reached
+		try
+		{
+			_pool.borrowObject();
+			fail("exhausted");
+		}
+		catch (NoSuchElementException e)
+		{
+		}
+		assertEquals(1, _pool.getExhausted());
+		Thread.sleep(50);
+		assertEquals(3, _pool.getCreated());
+
+		for (Object runtime : borrowed)
+			_pool.returnObject(runtime);
+		assertEquals(3, _pool.getNumIdle());
+		assertEquals(0, _pool.getNumActive());
+	}
+
+	@Test
+	public void testShrink() throws Exception
+	{
+		_pool.setTargetSize(1);
+		_pool.setMinIdle(0);
+		_pool.setMaxSize(3);
+		_pool.setMinEvictableIdleTime(0);
+		_pool.start();
+		for (int i = 0; i < 2; i++)
+			_pool.addObject();
+
+		List<Object> borrowed = new ArrayList<Object>();
+		for (int i = 0; i < 3; i++)
+			borrowed.add(_pool.borrowObject());
+		for (Object runtime : borrowed)
+			_pool.returnObject(runtime);
+		assertEquals(3, _pool.getNumIdle());
+
+		// the idle runtimes above the target size are destroyed, least recently used first
+		Thread.sleep(5);
+		_pool.evict();
+		assertEquals(1, _pool.getNumIdle());
+		assertEquals(2, _pool.getDestroyed());
+		assertSame(borrowed.get(2), _pool.borrowObject());
+	}
+
+	@Test
+	public void testEvictionKeepsRecentRuntimes() throws Exception
+	{
+		_pool.setTargetSize(1);
+		_pool.setMinIdle(0);
+		_pool.setMinEvictableIdleTime(60000);
+		_pool.start();
+		_pool.addObject();
+
+		_pool.evict();
+		assertEquals(2, _pool.getNumIdle());
+		assertEquals(0, _pool.getDestroyed());
+	}
+
+	@Test
+	public void testBlock() throws Exception
+	{
+		_pool.setTargetSize(1);
+		_pool.setMaxSize(1);
+		_pool.setMaxWait(2000);
+		_pool.start();
+
+		final Object runtime = _pool.borrowObject();
+		new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					Thread.sleep(100);
+					_pool.returnObject(runtime);
+				}
+				catch (Exception e)
+				{
+					e.printStackTrace();
+				}
+			}
+		}.start();
+
+		// waits for the runtime to be returned
+		assertSame(runtime, _pool.borrowObject());
+		assertTrue(_pool.getMaxBorrowWait() >= 50000);
+		_pool.returnObject(runtime);
+
+		_pool.setMaxWait(50);
+		_pool.borrowObject();
+		try
+		{
+			_pool.borrowObject();
+			fail("exhausted");
+		}
+		catch (NoSuchElementException e)
+		{
+		}
+		assertEquals(1, _pool.getExhausted());
+	}
+
+	@Test
+	public void testInvalidate() throws Exception
+	{
+		_pool.setTargetSize(1);
+		_pool.setMinIdle(1);
+		_pool.start();
+
+		// a runtime which failed while processing a message is destroyed, not returned
+		Object runtime = _pool.borrowObject();
+		_pool.invalidateObject(runtime);
+		assertEquals(0, _pool.getNumActive());
+		assertEquals(1, _pool.getDestroyed());
+		assertTrue(_factory._destroyed.contains(runtime));
+
+		// and replaced in the background
+		waitIdle(1);
+		assertFalse(runtime == _pool.borrowObject());
+	}
+
+	@Test
+	public void testActivateFailure() throws Exception
+	{
+		_pool.setTargetSize(1);
+		_pool.start();
+
+		_factory._failActivate = true;
+		try
+		{
+			_pool.borrowObject();
+			fail("activation failure");
+		}
+		catch (IllegalStateException e)
+		{
+		}
+		assertEquals(0, _pool.getNumActive());
+		assertEquals(1, _pool.getDestroyed());
+
+		_factory._failActivate = false;
+		waitIdle(1);
+		_pool.borrowObject();
+		assertEquals(1, _pool.getNumActive());
+	}
+
+	@Test
+	public void testPassivateFailure() throws Exception
+	{
+		_pool.setTargetSize(1);
+		_pool.setMinIdle(0);
+		_pool.start();
+
+		Object runtime = _pool.borrowObject();
+		_factory._failPassivate = true;
+		_pool.returnObject(runtime);
+
+		// a runtime which could not be cleared is not reused
+		assertEquals(0, _pool.getNumActive());
+		assertTrue(_factory._destroyed.contains(runtime));
+	}
+
+	@Test
+	public void testClose() throws Exception
+	{
+		_pool.setTargetSize(2);
+		_pool.start();
+
+		Object runtime = _pool.borrowObject();
+		_pool.close();
+		assertEquals(0, _pool.getNumIdle());
+
+		// a runtime returned after close is destroyed
+		_pool.returnObject(runtime);
+		assertEquals(0, _pool.getNumIdle());
+		assertTrue(_factory._destroyed.contains(runtime));
+		try
+		{
+			_pool.borrowObject();
+			fail("closed");
+		}
+		catch (IllegalStateException e)
+		{
+		}
+	}
+
+	private void waitIdle(int idle) throws InterruptedException
+	{
+		long end = System.currentTimeMillis() + 2000;
+		while (_pool.getNumIdle() < idle && System.currentTimeMillis() < end)
+			Thread.sleep(5);
+		assertTrue(_pool.getNumIdle() >= idle);
+	}
+
+	static class TestFactory implements PoolableObjectFactory
+	{
+		private AtomicInteger _count = new AtomicInteger();
+		private List<Thread> _threads = Collections.synchronizedList(new ArrayList<Thread>());
+		private List<Object> _destroyed = Collections.synchronizedList(new ArrayList<Object>());
+		private volatile boolean _failActivate;
+		private volatile boolean _failPassivate;
+
+		public Object makeObject() throws Exception
+		{
+			_threads.add(Thread.currentThread());
+			return "runtime-" + _count.incrementAndGet();
+		}
+
+		public void destroyObject(Object runtime)
+		{
+			_destroyed.add(runtime);
+		}
+
+		public boolean validateObject(Object runtime)
+		{
+			return true;
+		}
+
+		public void activateObject(Object runtime)
+		{
+			if (_failActivate)
+				throw new IllegalStateException("activate");
+		}
+
+		public void passivateObject(Object runtime)
+		{
+			if (_failPassivate)
+				throw new IllegalStateException("passivate");
+		}
+	}
+}